@@ -0,0 +1,246 @@
+/*
+ * Copyright (C) 2014 The Android Open Source Project
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *      http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+
+package com.android.internal.telephony;
+
+import android.os.Parcel;
+import android.telephony.PhoneNumberUtils;
+import android.telephony.Rlog;
+
+import com.android.internal.telephony.uicc.IccUtils;
+
+import java.io.PrintWriter;
+import java.util.Arrays;
+
+/**
+ * Decodes RIL_REQUEST_GET_CURRENT_CALLS responses into {@link DriverCallList}s,
+ * comparing each response with the previous one.
+ *
+ * The comparison is done on the raw response bytes, before anything is
+ * unmarshalled: if the whole payload is identical to the previous one a
+ * copy of the previous DriverCallList is returned and no call is decoded.
+ * The copy shares the DriverCall entries but not the list, so a receiver
+ * or the RIL log holding on to an earlier result is not affected. Otherwise
+ * the calls are decoded and every call whose bytes are identical to a call
+ * in the previous response is replaced by the previous DriverCall instance,
+ * which is how DriverCallList knows which entries changed.
+ *
+ * The copy of the last payload and the per-call scratch arrays are kept
+ * and reused from poll to poll.
+ *
+ * {@hide}
+ */
+class CallListDecoder {
+    private static final String LOG_TAG = RIL.RILJ_LOG_TAG;
+
+    private static final int INITIAL_PAYLOAD_BYTES = 512;
+    private static final int INITIAL_CALLS = 8;
+
+    // The last response, starting at the call count
+    private byte[] mLastPayload = new byte[INITIAL_PAYLOAD_BYTES];
+    private int mLastLength = -1;
+    private DriverCallList mLast;
+    private int mGeneration;
+
+    // Calls of the last response in wire order, and their payload ranges
+    private DriverCall[] mLastCalls = new DriverCall[INITIAL_CALLS];
+    private int[] mLastStart = new int[INITIAL_CALLS];
+    private int[] mLastEnd = new int[INITIAL_CALLS];
+    private int mLastCount;
+
+    // Same for the response being decoded; swapped with the above when done
+    private DriverCall[] mCalls = new DriverCall[INITIAL_CALLS];
+    private int[] mStart = new int[INITIAL_CALLS];
+    private int[] mEnd = new int[INITIAL_CALLS];
+    private DriverCall[] mSorted = new DriverCall[INITIAL_CALLS];
+
+    private long mDecodes;
+    private long mUnchanged;
+    private long mReusedCalls;
+
+    /**
+     * Decodes the call list at the current position of p.
+     *
+     * @param frame the bytes p was unmarshalled from, or null if they are
+     * not available, in which case the response is decoded without any
+     * comparison
+     */
+    synchronized DriverCallList decode(Parcel p, byte[] frame, int frameOffset,
+            int frameLength) {
+        mDecodes++;
+        final int start = p.dataPosition();
+        final int length = frameLength - start;
+
+        if (frame == null) {
+            reset();
+        } else if (mLast != null && length == mLastLength
+                && regionEquals(frame, frameOffset + start, mLastPayload, 0, length)) {
+            mUnchanged++;
+            return new DriverCallList(mLast);
+        }
+
+        int num = p.readInt();
+        ensureCapacity(num);
+
+        for (int i = 0; i < num; i++) {
+            int callStart = p.dataPosition() - start;
+            DriverCall dc = readDriverCall(p);
+            int callEnd = p.dataPosition() - start;
+
+            if (frame != null) {
+                DriverCall previous = findPrevious(frame, frameOffset + start,
+                        callStart, callEnd);
+                if (previous != null) {
+                    dc = previous;
+                    mReusedCalls++;
+                }
+            }
+            mCalls[i] = dc;
+            mStart[i] = callStart;
+            mEnd[i] = callEnd;
+        }
+
+        System.arraycopy(mCalls, 0, mSorted, 0, num);
+        Arrays.sort(mSorted, 0, num);
+        DriverCallList result = new DriverCallList(mSorted, num, mLast, mGeneration++);
+        Arrays.fill(mSorted, 0, num, null);
+
+        if (frame != null) {
+            if (length > mLastPayload.length) {
+                mLastPayload = new byte[length];
+            }
+            System.arraycopy(frame, frameOffset + start, mLastPayload, 0, length);
+            mLastLength = length;
+            // Kept apart from what receivers get, so they cannot change it
+            mLast = new DriverCallList(result);
+            swapCalls(num);
+        } else {
+            Arrays.fill(mCalls, 0, num, null);
+        }
+        return result;
+    }
+
+    /** Forgets the previous response, e.g. when the radio went away */
+    synchronized void reset() {
+        mLast = null;
+        mLastLength = -1;
+        Arrays.fill(mLastCalls, 0, mLastCount, null);
+        mLastCount = 0;
+    }
+
+    synchronized void dump(PrintWriter pw) {
+        pw.println(" CallListDecoder decodes=" + mDecodes + " unchanged=" + mUnchanged
+                + " reusedCalls=" + mReusedCalls + " generation=" + mGeneration
+                + " lastBytes=" + mLastLength);
+    }
+
+    private static DriverCall readDriverCall(Parcel p) {
+        DriverCall dc = new DriverCall();
+
+        dc.state = DriverCall.stateFromCLCC(p.readInt());
+        dc.index = p.readInt();
+        dc.TOA = p.readInt();
+        dc.isMpty = (0 != p.readInt());
+        dc.isMT = (0 != p.readInt());
+        dc.als = p.readInt();
+        dc.isVoice = (0 != p.readInt());
+        dc.isVoicePrivacy = (0 != p.readInt());
+        dc.number = p.readString();
+        dc.numberPresentation = DriverCall.presentationFromCLIP(p.readInt());
+        dc.name = p.readString();
+        // according to ril.h, namePresentation should be handled as numberPresentation;
+        dc.namePresentation = DriverCall.presentationFromCLIP(p.readInt());
+        int uusInfoPresent = p.readInt();
+        if (uusInfoPresent == 1) {
+            dc.uusInfo = new UUSInfo();
+            dc.uusInfo.setType(p.readInt());
+            dc.uusInfo.setDcs(p.readInt());
+            byte[] userData = p.createByteArray();
+            dc.uusInfo.setUserData(userData);
+            if (RIL.RILJ_LOGV) {
+                Rlog.v(LOG_TAG, String.format("Incoming UUS : type=%d, dcs=%d, length=%d",
+                        dc.uusInfo.getType(), dc.uusInfo.getDcs(),
+                        dc.uusInfo.getUserData().length));
+                Rlog.v(LOG_TAG, "Incoming UUS : data (string)="
+                        + new String(dc.uusInfo.getUserData()));
+                Rlog.v(LOG_TAG, "Incoming UUS : data (hex): "
+                        + IccUtils.bytesToHexString(dc.uusInfo.getUserData()));
+            }
+        } else {
+            if (RIL.RILJ_LOGV) Rlog.v(LOG_TAG, "Incoming UUS : NOT present!");
+        }
+
+        // Make sure there's a leading + on addresses with a TOA of 145
+        dc.number = PhoneNumberUtils.stringFromStringAndTOA(dc.number, dc.TOA);
+        return dc;
+    }
+
+    /**
+     * @return the call of the previous response whose bytes equal
+     * payload[start, end), or null
+     */
+    private DriverCall findPrevious(byte[] payload, int payloadOffset, int start, int end) {
+        int length = end - start;
+        for (int i = 0; i < mLastCount; i++) {
+            if (mLastEnd[i] - mLastStart[i] == length
+                    && regionEquals(payload, payloadOffset + start,
+                            mLastPayload, mLastStart[i], length)) {
+                return mLastCalls[i];
+            }
+        }
+        return null;
+    }
+
+    private void swapCalls(int count) {
+        DriverCall[] calls = mLastCalls;
+        mLastCalls = mCalls;
+        mCalls = calls;
+        Arrays.fill(mCalls, 0, mLastCount, null);
+
+        int[] tmp = mLastStart;
+        mLastStart = mStart;
+        mStart = tmp;
+        tmp = mLastEnd;
+        mLastEnd = mEnd;
+        mEnd = tmp;
+
+        mLastCount = count;
+    }
+
+    private void ensureCapacity(int count) {
+        if (count <= mCalls.length) {
+            return;
+        }
+        mCalls = new DriverCall[count];
+        mStart = new int[count];
+        mEnd = new int[count];
+        mSorted = new DriverCall[count];
+        // mLast* arrays are swapped in after this decode; size them too
+        mLastCalls = Arrays.copyOf(mLastCalls, count);
+        mLastStart = Arrays.copyOf(mLastStart, count);
+        mLastEnd = Arrays.copyOf(mLastEnd, count);
+    }
+
+    private static boolean regionEquals(byte[] a, int aOffset, byte[] b, int bOffset,
+            int length) {
+        for (int i = 0; i < length; i++) {
+            if (a[aOffset + i] != b[bOffset + i]) {
+                return false;
+            }
+        }
+        return true;
+    }
+}
@@ -26,6 +26,7 @@ import com.android.internal.telephony.CommandException;
 import java.io.FileDescriptor;
 import java.io.PrintWriter;
 import java.util.ArrayList;
+import java.util.List;
 
 
 /**
@@ -44,6 +45,10 @@ public abstract class CallTracker extends Handler {
     protected Message mLastRelevantPoll;
     protected ArrayList<Connection> mHandoverConnections = new ArrayList<Connection>();
 
+    // Generation of the last DriverCallList handlePollCalls() went through
+    // completely, NO_GENERATION if the call state may have moved on since
+    private int mPolledCallsGeneration = DriverCallList.NO_GENERATION;
+
     public CommandsInterface mCi;
 
     protected boolean mNumberConverted = false;
@@ -94,6 +99,47 @@ public abstract class CallTracker extends Handler {
 
     protected abstract void handlePollCalls(AsyncResult ar);
 
+    /**
+     * @return true if polledCalls is the same call list handlePollCalls()
+     * last went through, with no call operation issued since
+     */
+    protected boolean isPolledCallsUnchanged(List polledCalls) {
+        return polledCalls instanceof DriverCallList
+                && mPolledCallsGeneration != DriverCallList.NO_GENERATION
+                && ((DriverCallList) polledCalls).getGeneration() == mPolledCallsGeneration;
+    }
+
+    /**
+     * @return polledCalls if it was diffed against the call list
+     * handlePollCalls() last went through, so DriverCallList.isChanged()
+     * tells which connections need updating; null otherwise
+     */
+    protected DriverCallList getPolledCallsChanges(List polledCalls) {
+        if (polledCalls instanceof DriverCallList
+                && mPolledCallsGeneration != DriverCallList.NO_GENERATION) {
+            DriverCallList calls = (DriverCallList) polledCalls;
+            if (calls.getBaseGeneration() == mPolledCallsGeneration) {
+                return calls;
+            }
+        }
+        return null;
+    }
+
+    /** Connections now match polledCalls */
+    protected void setPolledCallsHandled(List polledCalls) {
+        mPolledCallsGeneration = polledCalls instanceof DriverCallList
+                ? ((DriverCallList) polledCalls).getGeneration()
+                : DriverCallList.NO_GENERATION;
+    }
+
+    /**
+     * Connections may no longer match the last polled call list, e.g.
+     * because an operation was issued on them; the next poll is handled in full.
+     */
+    protected void invalidatePolledCalls() {
+        mPolledCallsGeneration = DriverCallList.NO_GENERATION;
+    }
+
     protected Connection getHoConnection(DriverCall dc) {
         for (Connection hoConn : mHandoverConnections) {
             log("getHoConnection - compare number: hoConn= " + hoConn.toString());
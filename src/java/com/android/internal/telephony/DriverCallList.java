@@ -0,0 +1,103 @@
+/*
+ * Copyright (C) 2014 The Android Open Source Project
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *      http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+
+package com.android.internal.telephony;
+
+import java.util.ArrayList;
+
+/**
+ * A RIL_REQUEST_GET_CURRENT_CALLS result, sorted by call index, that knows
+ * which of its entries changed since the previous poll.
+ *
+ * Every distinct call list decoded by RIL gets a new generation; when the
+ * modem reports exactly the same calls again RIL hands out a copy of the
+ * previous DriverCallList, with its generation, instead of decoding them.
+ * Each result is a list of its own, but DriverCall entries that did not
+ * change are shared with the previous list, so the entries must not be
+ * modified by the receiver.
+ *
+ * {@hide}
+ */
+public class DriverCallList extends ArrayList<DriverCall> {
+    private static final long serialVersionUID = 1L;
+
+    /** Generation of a list that was not diffed against anything */
+    public static final int NO_GENERATION = -1;
+
+    private final int mGeneration;
+    private final int mBaseGeneration;
+    private final boolean[] mChanged;
+
+    /**
+     * @param calls the calls, sorted by index
+     * @param previous the list these calls were compared with, or null
+     */
+    DriverCallList(DriverCall[] calls, int count, DriverCallList previous, int generation) {
+        super(count);
+        mGeneration = generation;
+        mBaseGeneration = previous == null ? NO_GENERATION : previous.mGeneration;
+        mChanged = new boolean[count];
+
+        for (int i = 0; i < count; i++) {
+            add(calls[i]);
+            mChanged[i] = previous == null || !previous.containsInstance(calls[i]);
+        }
+    }
+
+    /**
+     * A new list with the same calls, generation and changes as calls, for
+     * a response identical to the one calls was decoded from.
+     */
+    DriverCallList(DriverCallList calls) {
+        super(calls);
+        mGeneration = calls.mGeneration;
+        mBaseGeneration = calls.mBaseGeneration;
+        // Never written after construction
+        mChanged = calls.mChanged;
+    }
+
+    public int getGeneration() {
+        return mGeneration;
+    }
+
+    /** @return the generation this list was compared with */
+    public int getBaseGeneration() {
+        return mBaseGeneration;
+    }
+
+    /**
+     * @return false if the entry at position is the same DriverCall instance,
+     * with the same contents, as in the base generation
+     */
+    public boolean isChanged(int position) {
+        return mChanged[position];
+    }
+
+    public int getChangedCount() {
+        int count = 0;
+        for (boolean changed : mChanged) {
+            if (changed) count++;
+        }
+        return count;
+    }
+
+    private boolean containsInstance(DriverCall dc) {
+        for (int i = 0, n = size(); i < n; i++) {
+            if (get(i) == dc) return true;
+        }
+        return false;
+    }
+}
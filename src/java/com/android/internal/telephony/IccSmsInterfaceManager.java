@@ -44,6 +44,8 @@ import com.android.internal.telephony.SmsNumberUtils;
 import com.android.internal.telephony.uicc.IccRecords;
 import com.android.internal.util.HexDump;
 
+import java.io.FileDescriptor;
+import java.io.PrintWriter;
 import java.util.ArrayList;
 import java.util.Arrays;
 import java.util.List;
@@ -1319,4 +1321,8 @@ public class IccSmsInterfaceManager {
         }
         return mSmscSuccess;
     }
+
+    public void dump(FileDescriptor fd, PrintWriter pw, String[] args) {
+        mDispatcher.dump(fd, pw, args);
+    }
 }
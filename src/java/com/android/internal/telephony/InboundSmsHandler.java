@@ -61,11 +61,9 @@ import android.telephony.SmsManager;
 import android.telephony.SmsMessage;
 import android.telephony.SubscriptionManager;
 import android.telephony.TelephonyManager;
-import android.text.TextUtils;
 
 import com.android.internal.telephony.uicc.UiccCard;
 import com.android.internal.telephony.uicc.UiccController;
-import com.android.internal.util.HexDump;
 import com.android.internal.util.State;
 import com.android.internal.util.StateMachine;
 
@@ -98,16 +96,19 @@ public abstract class InboundSmsHandler extends StateMachine {
     protected static final boolean DBG = true;
     private static final boolean VDBG = false;  // STOPSHIP if true, logs user data
 
-    /** Query projection for checking for duplicate message segments. */
-    private static final String[] PDU_PROJECTION = {
-            "pdu"
-    };
-
-    /** Query projection for combining concatenated message segments. */
-    private static final String[] PDU_SEQUENCE_PORT_PROJECTION = {
+    /**
+     * Query projection for reading whole rows of the raw table.
+     * Column order must match the {@code *_COLUMN} constants below.
+     */
+    static final String[] PDU_PENDING_MESSAGE_PROJECTION = {
             "pdu",
             "sequence",
-            "destination_port"
+            "destination_port",
+            "date",
+            "reference_number",
+            "count",
+            "address",
+            "_id"
     };
 
     static final int PDU_COLUMN = 0;
@@ -137,7 +138,7 @@ public abstract class InboundSmsHandler extends StateMachine {
     /** Release wakelock after a short timeout when returning to idle state. */
     static final int EVENT_RELEASE_WAKELOCK = 5;
 
-    /** Sent by {@link SmsBroadcastUndelivered} after cleaning the raw table. */
+    /** Sent by {@link SmsBroadcastUndelivered} after reading the first page of the raw table. */
     static final int EVENT_START_ACCEPTING_SMS = 6;
 
     /** Update phone object */
@@ -152,6 +153,15 @@ public abstract class InboundSmsHandler extends StateMachine {
     /** URI for raw table of SMS provider. */
     private static final Uri sRawUri = Uri.withAppendedPath(Telephony.Sms.CONTENT_URI, "raw");
 
+    /**
+     * Whether PDUs are written to the raw table as BLOBs instead of hex strings. Off by
+     * default, as builds before BLOBs were read can not deliver such rows after a downgrade
+     * or rollback. Rows of either kind are always read.
+     */
+    static final String PROPERTY_RAW_PDU_BLOB = "persist.radio.sms_raw_pdu_blob";
+    private static final boolean RAW_PDU_BLOB =
+            SystemProperties.getBoolean(PROPERTY_RAW_PDU_BLOB, false);
+
     protected final Context mContext;
     private final ContentResolver mResolver;
 
@@ -187,6 +197,12 @@ public abstract class InboundSmsHandler extends StateMachine {
 
     private UserManager mUserManager;
 
+    /** Segments of concatenated messages, read from the raw table only where it may hold more. */
+    private final SmsReassemblyIndex mReassemblyIndex = new SmsReassemblyIndex();
+
+    /** Writes messages to the inbox when the framework stores them, shared by all handlers. */
+    private final InboxWriter mInboxWriter;
+
     /**
      * Create a new SMS broadcast helper.
      * @param name the class name for logging
@@ -203,6 +219,7 @@ public abstract class InboundSmsHandler extends StateMachine {
         mCellBroadcastHandler = cellBroadcastHandler;
         mResolver = context.getContentResolver();
         mWapPush = new WapPushOverSms(context);
+        mInboxWriter = InboxWriter.getInstance(mResolver);
 
         boolean smsCapable = mContext.getResources().getBoolean(
                 com.android.internal.R.bool.config_sms_capable);
@@ -290,8 +307,9 @@ public abstract class InboundSmsHandler extends StateMachine {
     }
 
     /**
-     * The Startup state waits for {@link SmsBroadcastUndelivered} to process the raw table and
-     * notify the state machine to broadcast any complete PDUs that might not have been broadcast.
+     * The Startup state waits for {@link SmsBroadcastUndelivered} to process the first page of
+     * the raw table and notify the state machine to broadcast any complete PDUs that might not
+     * have been broadcast. Messages found in later pages are broadcast from the Idle state.
      */
     class StartupState extends State {
         @Override
@@ -680,54 +698,28 @@ public abstract class InboundSmsHandler extends StateMachine {
             pdus = new byte[][]{tracker.getPdu()};
         } else {
             // multi-part message
-            Cursor cursor = null;
-            try {
-                // used by several query selection arguments
-                address = tracker.getAddress();
-                String refNumber = Integer.toString(tracker.getReferenceNumber());
-                String count = Integer.toString(tracker.getMessageCount());
-
-                // query for all segments and broadcast message if we have all the parts
-                String[] whereArgs = {address, refNumber, count};
-                cursor = mResolver.query(sRawUri, PDU_SEQUENCE_PORT_PROJECTION,
-                        SELECT_BY_REFERENCE, whereArgs, null);
-
-                int cursorCount = cursor.getCount();
-                if (cursorCount < messageCount) {
-                    // Wait for the other message parts to arrive. It's also possible for the last
-                    // segment to arrive before processing the EVENT_BROADCAST_SMS for one of the
-                    // earlier segments. In that case, the broadcast will be sent as soon as all
-                    // segments are in the table, and any later EVENT_BROADCAST_SMS messages will
-                    // get a row count of 0 and return.
-                    return false;
-                }
-
-                // All the parts are in place, deal with them
-                pdus = new byte[messageCount][];
-                while (cursor.moveToNext()) {
-                    // subtract offset to convert sequence to 0-based array index
-                    int index = cursor.getInt(SEQUENCE_COLUMN) - tracker.getIndexOffset();
-
-                    pdus[index] = HexDump.hexStringToByteArray(cursor.getString(PDU_COLUMN));
-
-                    // Read the destination port from the first segment (needed for CDMA WAP PDU).
-                    // It's not a bad idea to prefer the port from the first segment in other cases.
-                    if (index == 0 && !cursor.isNull(DESTINATION_PORT_COLUMN)) {
-                        int port = cursor.getInt(DESTINATION_PORT_COLUMN);
-                        // strip format flags and convert to real port number, or -1
-                        port = InboundSmsTracker.getRealDestPort(port);
-                        if (port != -1) {
-                            destPort = port;
-                        }
-                    }
-                }
-            } catch (SQLException e) {
-                loge("Can't access multipart SMS database", e);
+            address = tracker.getAddress();
+            loadIntoReassemblyIndex(tracker);
+            InboundSmsTracker[] segments = mReassemblyIndex.takeComplete(tracker);
+            if (segments == null) {
+                // Wait for the other message parts to arrive. It's also possible for the last
+                // segment to arrive before processing the EVENT_BROADCAST_SMS for one of the
+                // earlier segments. In that case, the broadcast will be sent as soon as all
+                // segments are in the index, and any later EVENT_BROADCAST_SMS messages will
+                // find the message already taken and return.
                 return false;
-            } finally {
-                if (cursor != null) {
-                    cursor.close();
-                }
+            }
+
+            // All the parts are in place, deal with them
+            pdus = new byte[messageCount][];
+            for (int i = 0; i < messageCount; i++) {
+                pdus[i] = segments[i].getPdu();
+            }
+
+            // Use the destination port of the first segment (needed for CDMA WAP PDU).
+            // It's not a bad idea to prefer the port from the first segment in other cases.
+            if (segments[0].getDestPort() != -1) {
+                destPort = segments[0].getDestPort();
             }
         }
 
@@ -753,7 +745,12 @@ public abstract class InboundSmsHandler extends StateMachine {
                     this, address);
             if (DBG) log("dispatchWapPdu() returned " + result);
             // result is Activity.RESULT_OK if an ordered broadcast was sent
-            return (result == Activity.RESULT_OK);
+            if (result == Activity.RESULT_OK) {
+                return true;
+            }
+            // Nobody will finish with it, drop it from the raw table and the index
+            deleteFromRawTable(tracker.getDeleteWhere(), tracker.getDeleteWhereArgs());
+            return false;
         }
 
         List<String> carrierPackages = null;
@@ -862,9 +859,81 @@ public abstract class InboundSmsHandler extends StateMachine {
     }
 
     /**
-     * Helper for {@link SmsBroadcastUndelivered} to delete an old message in the raw table.
+     * Helper for {@link SmsBroadcastUndelivered} to add a segment of a concatenated message
+     * found in the raw table at startup.
+     * @return true if the segment completed its message, which can then be broadcast
+     */
+    boolean addToReassemblyIndex(InboundSmsTracker tracker) {
+        if (mReassemblyIndex.wasDropped(tracker)) {
+            // Dropped while the scan went on, read back all its rows, also those not
+            // scanned yet
+            loadIntoReassemblyIndex(tracker);
+            return mReassemblyIndex.isLoaded(tracker)
+                    && !mReassemblyIndex.isMissingSegments(tracker);
+        }
+        return mReassemblyIndex.add(tracker) && !mReassemblyIndex.isMissingSegments(tracker);
+    }
+
+    /**
+     * Helper for {@link SmsBroadcastUndelivered} to note that all rows of the raw table were
+     * added to the reassembly index.
+     */
+    void onRawTableScanned() {
+        mReassemblyIndex.setScanned();
+    }
+
+    /**
+     * Read the segments of the message of tracker from the raw table into the reassembly
+     * index, unless the index already holds all of them. Until the startup scan is done, and
+     * for messages dropped from the index, some segments may only be in the raw table.
+     */
+    private void loadIntoReassemblyIndex(InboundSmsTracker tracker) {
+        if (mReassemblyIndex.isLoaded(tracker)) {
+            return;
+        }
+        String[] whereArgs = {tracker.getAddress(),
+                Integer.toString(tracker.getReferenceNumber()),
+                Integer.toString(tracker.getMessageCount())};
+        Cursor cursor = null;
+        try {
+            cursor = mResolver.query(sRawUri, PDU_PENDING_MESSAGE_PROJECTION,
+                    SELECT_BY_REFERENCE, whereArgs, null);
+            if (cursor == null) {
+                loge("Can't read segments of message from raw table");
+                return;
+            }
+            while (cursor.moveToNext()) {
+                try {
+                    mReassemblyIndex.add(new InboundSmsTracker(cursor, tracker.is3gpp2()));
+                } catch (IllegalArgumentException e) {
+                    loge("error loading SmsTracker: " + e);
+                }
+            }
+            mReassemblyIndex.setLoaded(tracker);
+        } catch (SQLException e) {
+            loge("Can't access multipart SMS database", e);
+        } finally {
+            if (cursor != null) {
+                cursor.close();
+            }
+        }
+    }
+
+    /**
+     * Forget the segments of a concatenated message, once they are deleted from the raw table.
+     */
+    void removeFromReassemblyIndex(String address, int referenceNumber, int messageCount) {
+        mReassemblyIndex.remove(address, referenceNumber, messageCount);
+    }
+
+    /**
+     * Delete a delivered or dropped message from the raw table.
      */
     void deleteFromRawTable(String deleteWhere, String[] deleteWhereArgs) {
+        if (SELECT_BY_REFERENCE.equals(deleteWhere)) {
+            removeFromReassemblyIndex(deleteWhereArgs[0], Integer.parseInt(deleteWhereArgs[1]),
+                    Integer.parseInt(deleteWhereArgs[2]));
+        }
         int rows = mResolver.delete(sRawUri, deleteWhere, deleteWhereArgs);
         if (rows == 0) {
             loge("No rows were deleted from raw table!");
@@ -882,8 +951,8 @@ public abstract class InboundSmsHandler extends StateMachine {
      * @param resultReceiver the receiver handling the delivery result
      */
     void dispatchSmsDeliveryIntent(byte[][] pdus, String format, int destPort,
-            BroadcastReceiver resultReceiver) {
-        Intent intent = new Intent();
+            final BroadcastReceiver resultReceiver) {
+        final Intent intent = new Intent();
         intent.putExtra("pdus", pdus);
         intent.putExtra("format", format);
 
@@ -904,11 +973,19 @@ public abstract class InboundSmsHandler extends StateMachine {
 
             // TODO: Validate that this is the right place to store the SMS.
             if (SmsManager.getDefault().getAutoPersisting()) {
-                final Uri uri = writeInboxMessage(intent);
-                if (uri != null) {
-                    // Pass this to SMS apps so that they know where it is stored
-                    intent.putExtra("uri", uri.toString());
-                }
+                // Deliver once the message is stored, new messages are handled meanwhile
+                mInboxWriter.write(intent, getHandler(), new InboxWriter.Callback() {
+                    @Override
+                    public void onInboxMessageWritten(Uri uri) {
+                        if (uri != null) {
+                            // Pass this to SMS apps so that they know where it is stored
+                            intent.putExtra("uri", uri.toString());
+                        }
+                        dispatchIntent(intent, android.Manifest.permission.RECEIVE_SMS,
+                                AppOpsManager.OP_RECEIVE_SMS, resultReceiver, UserHandle.OWNER);
+                    }
+                });
+                return;
             }
         } else {
             intent.setAction(Intents.DATA_SMS_RECEIVED_ACTION);
@@ -933,53 +1010,40 @@ public abstract class InboundSmsHandler extends StateMachine {
      */
     private int addTrackerToRawTable(InboundSmsTracker tracker) {
         if (tracker.getMessageCount() != 1) {
-            // check for duplicate message segments
-            Cursor cursor = null;
-            try {
-                // sequence numbers are 1-based except for CDMA WAP, which is 0-based
-                int sequence = tracker.getSequenceNumber();
-
-                // convert to strings for query
-                String address = tracker.getAddress();
-                String refNumber = Integer.toString(tracker.getReferenceNumber());
-                String count = Integer.toString(tracker.getMessageCount());
-
-                String seqNumber = Integer.toString(sequence);
-
-                // set the delete selection args for multi-part message
-                String[] deleteWhereArgs = {address, refNumber, count};
-                tracker.setDeleteWhere(SELECT_BY_REFERENCE, deleteWhereArgs);
-
-                // Check for duplicate message segments
-                cursor = mResolver.query(sRawUri, PDU_PROJECTION,
-                        "address=? AND reference_number=? AND count=? AND sequence=?",
-                        new String[] {address, refNumber, count, seqNumber}, null);
-
-                // moveToNext() returns false if no duplicates were found
-                if (cursor.moveToNext()) {
-                    loge("Discarding duplicate message segment, refNumber=" + refNumber
-                            + " seqNumber=" + seqNumber);
-                    String oldPduString = cursor.getString(PDU_COLUMN);
-                    byte[] pdu = tracker.getPdu();
-                    byte[] oldPdu = HexDump.hexStringToByteArray(oldPduString);
-                    if (!Arrays.equals(oldPdu, tracker.getPdu())) {
-                        loge("Warning: dup message segment PDU of length " + pdu.length
-                                + " is different from existing PDU of length " + oldPdu.length);
-                    }
-                    return Intents.RESULT_SMS_DUPLICATED;   // reject message
-                }
-                cursor.close();
-            } catch (SQLException e) {
-                loge("Can't access multipart SMS database", e);
+            // sequence numbers are 1-based except for CDMA WAP, which is 0-based
+            int sequence = tracker.getSequenceNumber();
+            String address = tracker.getAddress();
+            String refNumber = Integer.toString(tracker.getReferenceNumber());
+            String count = Integer.toString(tracker.getMessageCount());
+
+            if (!SmsReassemblyIndex.isValidSegment(tracker)) {
+                loge("Discarding message segment with invalid sequence, refNumber=" + refNumber
+                        + " seqNumber=" + sequence + " of " + count);
                 return Intents.RESULT_SMS_GENERIC_ERROR;    // reject message
-            } finally {
-                if (cursor != null) {
-                    cursor.close();
+            }
+
+            // set the delete selection args for multi-part message
+            String[] deleteWhereArgs = {address, refNumber, count};
+            tracker.setDeleteWhere(SELECT_BY_REFERENCE, deleteWhereArgs);
+
+            // Check for duplicate message segments in the index, which holds all segments in
+            // the raw table once they are loaded
+            loadIntoReassemblyIndex(tracker);
+            InboundSmsTracker oldTracker = mReassemblyIndex.getSegment(tracker);
+            if (oldTracker != null) {
+                loge("Discarding duplicate message segment, refNumber=" + refNumber
+                        + " seqNumber=" + sequence);
+                byte[] pdu = tracker.getPdu();
+                byte[] oldPdu = oldTracker.getPdu();
+                if (!Arrays.equals(oldPdu, pdu)) {
+                    loge("Warning: dup message segment PDU of length " + pdu.length
+                            + " is different from existing PDU of length " + oldPdu.length);
                 }
+                return Intents.RESULT_SMS_DUPLICATED;   // reject message
             }
         }
 
-        ContentValues values = tracker.getContentValues();
+        ContentValues values = tracker.getContentValues(RAW_PDU_BLOB);
 
         if (VDBG) log("adding content values to raw table: " + values.toString());
         Uri newUri = mResolver.insert(sRawUri, values);
@@ -990,6 +1054,8 @@ public abstract class InboundSmsHandler extends StateMachine {
             if (tracker.getMessageCount() == 1) {
                 // set the delete selection args for single-part message
                 tracker.setDeleteWhere(SELECT_BY_ID, new String[]{Long.toString(rowId)});
+            } else {
+                mReassemblyIndex.add(tracker);
             }
             return Intents.RESULT_SMS_HANDLED;
         } catch (Exception e) {
@@ -1224,90 +1290,4 @@ public abstract class InboundSmsHandler extends StateMachine {
     protected void loge(String s, Throwable e) {
         Rlog.e(getName(), s, e);
     }
-
-    /**
-     * Store a received SMS into Telephony provider
-     *
-     * @param intent The intent containing the received SMS
-     * @return The URI of written message
-     */
-    private Uri writeInboxMessage(Intent intent) {
-        final SmsMessage[] messages = Telephony.Sms.Intents.getMessagesFromIntent(intent);
-        if (messages == null || messages.length < 1) {
-            loge("Failed to parse SMS pdu");
-            return null;
-        }
-        // Sometimes, SmsMessage.mWrappedSmsMessage is null causing NPE when we access
-        // the methods on it although the SmsMessage itself is not null. So do this check
-        // before we do anything on the parsed SmsMessages.
-        for (final SmsMessage sms : messages) {
-            try {
-                sms.getDisplayMessageBody();
-            } catch (NullPointerException e) {
-                loge("NPE inside SmsMessage");
-                return null;
-            }
-        }
-        final ContentValues values = parseSmsMessage(messages);
-        final long identity = Binder.clearCallingIdentity();
-        try {
-            return mContext.getContentResolver().insert(Telephony.Sms.Inbox.CONTENT_URI, values);
-        } catch (Exception e) {
-            loge("Failed to persist inbox message", e);
-        } finally {
-            Binder.restoreCallingIdentity(identity);
-        }
-        return null;
-    }
-
-    /**
-     * Convert SmsMessage[] into SMS database schema columns
-     *
-     * @param msgs The SmsMessage array of the received SMS
-     * @return ContentValues representing the columns of parsed SMS
-     */
-    private static ContentValues parseSmsMessage(SmsMessage[] msgs) {
-        final SmsMessage sms = msgs[0];
-        final ContentValues values = new ContentValues();
-        values.put(Telephony.Sms.Inbox.ADDRESS, sms.getDisplayOriginatingAddress());
-        values.put(Telephony.Sms.Inbox.BODY, buildMessageBodyFromPdus(msgs));
-        values.put(Telephony.Sms.Inbox.DATE_SENT, sms.getTimestampMillis());
-        values.put(Telephony.Sms.Inbox.DATE, System.currentTimeMillis());
-        values.put(Telephony.Sms.Inbox.PROTOCOL, sms.getProtocolIdentifier());
-        values.put(Telephony.Sms.Inbox.SEEN, 0);
-        values.put(Telephony.Sms.Inbox.READ, 0);
-        final String subject = sms.getPseudoSubject();
-        if (!TextUtils.isEmpty(subject)) {
-            values.put(Telephony.Sms.Inbox.SUBJECT, subject);
-        }
-        values.put(Telephony.Sms.Inbox.REPLY_PATH_PRESENT, sms.isReplyPathPresent() ? 1 : 0);
-        values.put(Telephony.Sms.Inbox.SERVICE_CENTER, sms.getServiceCenterAddress());
-        return values;
-    }
-
-    /**
-     * Build up the SMS message body from the SmsMessage array of received SMS
-     *
-     * @param msgs The SmsMessage array of the received SMS
-     * @return The text message body
-     */
-    private static String buildMessageBodyFromPdus(SmsMessage[] msgs) {
-        if (msgs.length == 1) {
-            // There is only one part, so grab the body directly.
-            return replaceFormFeeds(msgs[0].getDisplayMessageBody());
-        } else {
-            // Build up the body from the parts.
-            StringBuilder body = new StringBuilder();
-            for (SmsMessage msg: msgs) {
-                // getDisplayMessageBody() can NPE if mWrappedMessage inside is null.
-                body.append(msg.getDisplayMessageBody());
-            }
-            return replaceFormFeeds(body.toString());
-        }
-    }
-
-    // Some providers send formfeeds in their messages. Convert those formfeeds to newlines.
-    private static String replaceFormFeeds(String s) {
-        return s == null ? "" : s.replace('\f', '\n');
-    }
 }
@@ -123,7 +123,7 @@ public final class InboundSmsTracker {
      * @param cursor a Cursor pointing to the row to construct this SmsTracker for
      */
     InboundSmsTracker(Cursor cursor, boolean isCurrentFormat3gpp2) {
-        mPdu = HexDump.hexStringToByteArray(cursor.getString(InboundSmsHandler.PDU_COLUMN));
+        mPdu = getPdu(cursor, InboundSmsHandler.PDU_COLUMN);
 
         if (cursor.isNull(InboundSmsHandler.DESTINATION_PORT_COLUMN)) {
             mDestPort = -1;
@@ -174,9 +174,32 @@ public final class InboundSmsTracker {
         }
     }
 
-    ContentValues getContentValues() {
+    /**
+     * Get the PDU of a row of the raw table, which is stored as a BLOB or, in rows written
+     * before PDUs were stored as BLOBs, as a hex string.
+     * @param cursor a Cursor pointing to the row
+     * @param column the index of the pdu column
+     * @return the PDU
+     */
+    static byte[] getPdu(Cursor cursor, int column) {
+        if (cursor.getType(column) == Cursor.FIELD_TYPE_BLOB) {
+            return cursor.getBlob(column);
+        }
+        return HexDump.hexStringToByteArray(cursor.getString(column));
+    }
+
+    /**
+     * Get the values of the raw table row for this message.
+     * @param pduAsBlob true to store the PDU as a BLOB; false to store it as a hex string
+     * @return the values to insert
+     */
+    ContentValues getContentValues(boolean pduAsBlob) {
         ContentValues values = new ContentValues();
-        values.put("pdu", HexDump.toHexString(mPdu));
+        if (pduAsBlob) {
+            values.put("pdu", mPdu);
+        } else {
+            values.put("pdu", HexDump.toHexString(mPdu));
+        }
         values.put("date", mTimestamp);
         // Always set the destination port, since it now contains message format flags.
         // Port is a 16-bit value, or -1, so clear the upper bits before setting flags.
@@ -0,0 +1,262 @@
+/*
+ * Copyright (C) 2014 The Android Open Source Project
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *      http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+
+package com.android.internal.telephony;
+
+import android.content.ContentResolver;
+import android.content.ContentValues;
+import android.content.Intent;
+import android.net.Uri;
+import android.os.Binder;
+import android.os.Handler;
+import android.os.HandlerThread;
+import android.os.Looper;
+import android.provider.Telephony;
+import android.telephony.Rlog;
+import android.telephony.SmsMessage;
+import android.text.TextUtils;
+
+import java.io.PrintWriter;
+
+/**
+ * Writes received SMS messages to the inbox of the SMS provider on a worker thread, when the
+ * framework stores messages itself, so that the inbound SMS state machine can handle the next
+ * message while the insert is pending. Messages are written one at a time, in the order
+ * they are given.
+ *
+ * One writer is shared by the inbound SMS handlers of all phones. The queue needs no bound
+ * of its own: a handler starts the ordered broadcast of a message from the callback of its
+ * write, and stays in its waiting state, deferring the next message, until that broadcast
+ * completes. So each handler has at most one message queued here, and there is no backlog
+ * to write in a batch.
+ */
+class InboxWriter {
+    private static final String TAG = "InboxWriter";
+    private static final boolean DBG = InboundSmsHandler.DBG;
+
+    /** Writes slower than this, from queueing to the callback, are logged as errors. */
+    private static final long SLOW_WRITE_MS = 5000;
+
+    private static InboxWriter sInstance;
+
+    /** Called on the Handler passed to {@link #write} once the message is stored. */
+    interface Callback {
+        /**
+         * @param uri the Uri of the inbox message, or null if it could not be stored
+         */
+        void onInboxMessageWritten(Uri uri);
+    }
+
+    private final ContentResolver mResolver;
+    private final Handler mWorker;
+
+    // Metrics, guarded by this
+    private int mQueueDepth;
+    private int mMaxQueueDepth;
+    private long mWriteCount;
+    private long mFailureCount;
+    private long mTotalLatencyNano;
+    private long mMaxLatencyNano;
+
+    /**
+     * Get the writer shared by all inbound SMS handlers, starting its thread the first time.
+     */
+    static synchronized InboxWriter getInstance(ContentResolver resolver) {
+        if (sInstance == null) {
+            HandlerThread thread = new HandlerThread(TAG);
+            thread.start();
+            sInstance = new InboxWriter(resolver, thread.getLooper());
+        }
+        return sInstance;
+    }
+
+    InboxWriter(ContentResolver resolver, Looper looper) {
+        mResolver = resolver;
+        mWorker = new Handler(looper);
+    }
+
+    /**
+     * Store the message of an {@link Telephony.Sms.Intents#SMS_DELIVER_ACTION} intent in the
+     * inbox, then call back on handler. The intent must not be changed until then.
+     */
+    void write(final Intent intent, final Handler handler, final Callback callback) {
+        final long queueTimeNano = System.nanoTime();
+        synchronized (this) {
+            mQueueDepth++;
+            if (mQueueDepth > mMaxQueueDepth) {
+                mMaxQueueDepth = mQueueDepth;
+            }
+        }
+        mWorker.post(new Runnable() {
+            @Override
+            public void run() {
+                final Uri uri = insert(intent);
+                finish(queueTimeNano, uri);
+                handler.post(new Runnable() {
+                    @Override
+                    public void run() {
+                        callback.onInboxMessageWritten(uri);
+                    }
+                });
+            }
+        });
+    }
+
+    /**
+     * @return the number of messages waiting to be written
+     */
+    synchronized int getQueueDepth() {
+        return mQueueDepth;
+    }
+
+    /**
+     * Parse and insert a message.
+     * @return the Uri of the inbox message, or null on failure
+     */
+    private Uri insert(Intent intent) {
+        ContentValues values = parseSmsMessage(intent);
+        if (values == null) {
+            return null;
+        }
+
+        final long identity = Binder.clearCallingIdentity();
+        try {
+            return mResolver.insert(Telephony.Sms.Inbox.CONTENT_URI, values);
+        } catch (Exception e) {
+            Rlog.e(TAG, "Failed to persist inbox message", e);
+            return null;
+        } finally {
+            Binder.restoreCallingIdentity(identity);
+        }
+    }
+
+    /**
+     * Record the metrics of a written message.
+     */
+    private void finish(long queueTimeNano, Uri uri) {
+        long latency = System.nanoTime() - queueTimeNano;
+        int queueDepth;
+        synchronized (this) {
+            mQueueDepth--;
+            queueDepth = mQueueDepth;
+            mWriteCount++;
+            mTotalLatencyNano += latency;
+            if (latency > mMaxLatencyNano) {
+                mMaxLatencyNano = latency;
+            }
+            if (uri == null) {
+                mFailureCount++;
+            }
+        }
+
+        long latencyMs = latency / 1000000;
+        if (latencyMs >= SLOW_WRITE_MS) {
+            Rlog.e(TAG, "Slow inbox write: " + latencyMs + " ms");
+        } else if (DBG) {
+            Rlog.d(TAG, "wrote inbox message in " + latencyMs + " ms, " + queueDepth
+                    + " waiting");
+        }
+    }
+
+    /**
+     * Dump the shared writer, if it was started.
+     */
+    static void dumpInstance(PrintWriter pw) {
+        InboxWriter writer;
+        synchronized (InboxWriter.class) {
+            writer = sInstance;
+        }
+        if (writer != null) {
+            writer.dump(pw);
+        }
+    }
+
+    synchronized void dump(PrintWriter pw) {
+        pw.println("InboxWriter:");
+        pw.println(" mWriteCount=" + mWriteCount + " mFailureCount=" + mFailureCount);
+        pw.println(" queue depth=" + mQueueDepth + " mMaxQueueDepth=" + mMaxQueueDepth);
+        pw.println(" latency avg=" + ((mWriteCount > 0)
+                ? (mTotalLatencyNano / mWriteCount / 1000000) : 0)
+                + "ms max=" + (mMaxLatencyNano / 1000000) + "ms");
+    }
+
+    /**
+     * Convert the message of an intent into SMS database schema columns
+     *
+     * @param intent The intent containing the received SMS
+     * @return ContentValues representing the columns of parsed SMS, or null if it can't be parsed
+     */
+    private static ContentValues parseSmsMessage(Intent intent) {
+        final SmsMessage[] msgs = Telephony.Sms.Intents.getMessagesFromIntent(intent);
+        if (msgs == null || msgs.length < 1) {
+            Rlog.e(TAG, "Failed to parse SMS pdu");
+            return null;
+        }
+        // Sometimes, SmsMessage.mWrappedSmsMessage is null causing NPE when we access
+        // the methods on it although the SmsMessage itself is not null. So do this check
+        // before we do anything on the parsed SmsMessages.
+        for (final SmsMessage sms : msgs) {
+            try {
+                sms.getDisplayMessageBody();
+            } catch (NullPointerException e) {
+                Rlog.e(TAG, "NPE inside SmsMessage");
+                return null;
+            }
+        }
+        final SmsMessage sms = msgs[0];
+        final ContentValues values = new ContentValues();
+        values.put(Telephony.Sms.Inbox.ADDRESS, sms.getDisplayOriginatingAddress());
+        values.put(Telephony.Sms.Inbox.BODY, buildMessageBodyFromPdus(msgs));
+        values.put(Telephony.Sms.Inbox.DATE_SENT, sms.getTimestampMillis());
+        values.put(Telephony.Sms.Inbox.DATE, System.currentTimeMillis());
+        values.put(Telephony.Sms.Inbox.PROTOCOL, sms.getProtocolIdentifier());
+        values.put(Telephony.Sms.Inbox.SEEN, 0);
+        values.put(Telephony.Sms.Inbox.READ, 0);
+        final String subject = sms.getPseudoSubject();
+        if (!TextUtils.isEmpty(subject)) {
+            values.put(Telephony.Sms.Inbox.SUBJECT, subject);
+        }
+        values.put(Telephony.Sms.Inbox.REPLY_PATH_PRESENT, sms.isReplyPathPresent() ? 1 : 0);
+        values.put(Telephony.Sms.Inbox.SERVICE_CENTER, sms.getServiceCenterAddress());
+        return values;
+    }
+
+    /**
+     * Build up the SMS message body from the SmsMessage array of received SMS
+     *
+     * @param msgs The SmsMessage array of the received SMS
+     * @return The text message body
+     */
+    private static String buildMessageBodyFromPdus(SmsMessage[] msgs) {
+        if (msgs.length == 1) {
+            // There is only one part, so grab the body directly.
+            return replaceFormFeeds(msgs[0].getDisplayMessageBody());
+        } else {
+            // Build up the body from the parts.
+            StringBuilder body = new StringBuilder();
+            for (SmsMessage msg: msgs) {
+                // getDisplayMessageBody() can NPE if mWrappedMessage inside is null.
+                body.append(msg.getDisplayMessageBody());
+            }
+            return replaceFormFeeds(body.toString());
+        }
+    }
+
+    // Some providers send formfeeds in their messages. Convert those formfeeds to newlines.
+    private static String replaceFormFeeds(String s) {
+        return s == null ? "" : s.replace('\f', '\n');
+    }
+}
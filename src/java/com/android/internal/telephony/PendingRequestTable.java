@@ -0,0 +1,262 @@
+/*
+ * Copyright (C) 2014 The Android Open Source Project
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *      http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+
+package com.android.internal.telephony;
+
+import android.util.SparseArray;
+
+import java.util.ArrayList;
+import java.util.concurrent.atomic.AtomicInteger;
+import java.util.concurrent.atomic.AtomicLong;
+import java.util.concurrent.atomic.AtomicReferenceArray;
+
+/**
+ * Table of in-flight requests keyed by an int serial, safe to use from
+ * several threads without locking.
+ *
+ * Entries live in an open-addressed array of slots. The home slot of a
+ * key is <code>key & (capacity - 1)</code>; since serials are handed out
+ * sequentially, requests that are in flight at the same time normally
+ * occupy distinct slots and put/remove touch exactly one slot. On a
+ * collision put probes linearly for a free slot and raises the probe
+ * bound that remove scans, so remove never has to stop at an empty slot
+ * and no tombstones are needed. The bound is kept together with the
+ * number of entries stored away from their home slot, and drops back to
+ * zero once the last of those is removed, so a burst of collisions does
+ * not lengthen every later miss.
+ *
+ * When every slot is taken, entries go to an overflow map guarded by a
+ * lock, which is only consulted while it is non-empty.
+ *
+ * The key of an entry is read from the entry itself through
+ * {@link #keyOf} when it is added, and stored with it in a slot node.
+ * Entries such as RILRequest are recycled under a new key, so remove
+ * matches the key stored in the node rather than reading the entry
+ * again: a node is never reused, so a single CAS on it checks both the
+ * key and the entry.
+ *
+ * {@hide}
+ */
+abstract class PendingRequestTable<E> {
+    /** An entry and the key it was added under. */
+    private static final class Node<E> {
+        final int mKey;
+        final E mEntry;
+
+        Node(int key, E entry) {
+            mKey = key;
+            mEntry = entry;
+        }
+    }
+
+    private final AtomicReferenceArray<Node<E>> mSlots;
+    private final int mMask;
+    // Number of entries stored away from their home slot in the high 32
+    // bits, and the largest distance any of them is stored at in the low
+    // 32 bits. Updated together so the bound is only reset when no
+    // displaced entry is left.
+    private final AtomicLong mDisplaced = new AtomicLong(0);
+    private final AtomicInteger mSize = new AtomicInteger(0);
+
+    private final SparseArray<E> mOverflow = new SparseArray<E>();
+    private final AtomicInteger mOverflowSize = new AtomicInteger(0);
+
+    /**
+     * @param capacity number of slots, rounded up to a power of two
+     */
+    PendingRequestTable(int capacity) {
+        if (capacity <= 0 || capacity > (1 << 30)) {
+            throw new IllegalArgumentException("capacity=" + capacity);
+        }
+        int slots = Integer.highestOneBit(capacity);
+        if (slots < capacity) {
+            slots <<= 1;
+        }
+        mSlots = new AtomicReferenceArray<Node<E>>(slots);
+        mMask = slots - 1;
+    }
+
+    /** @return the key the entry is stored under; must not change while stored */
+    protected abstract int keyOf(E entry);
+
+    /**
+     * Adds an entry. Keys are expected to be unique among the entries
+     * currently in the table.
+     */
+    void put(E entry) {
+        int key = keyOf(entry);
+        int home = key & mMask;
+        Node<E> node = null;
+
+        for (int probe = 0; probe <= mMask; probe++) {
+            int i = (home + probe) & mMask;
+            if (mSlots.get(i) == null) {
+                if (node == null) {
+                    node = new Node<E>(key, entry);
+                }
+                // Publish the bound before the entry so remove can find it
+                if (probe > 0) {
+                    addDisplaced(probe);
+                }
+                if (mSlots.compareAndSet(i, null, node)) {
+                    mSize.incrementAndGet();
+                    return;
+                }
+                if (probe > 0) {
+                    removeDisplaced();
+                }
+            }
+        }
+
+        synchronized (mOverflow) {
+            mOverflow.put(key, entry);
+            mOverflowSize.incrementAndGet();
+        }
+        mSize.incrementAndGet();
+    }
+
+    /**
+     * Removes and returns the entry stored under key, or null if there is
+     * none. When several threads race to remove the same entry exactly one
+     * of them gets it.
+     */
+    E remove(int key) {
+        int home = key & mMask;
+        int maxProbe = maxProbe();
+
+        for (int probe = 0; probe <= maxProbe; probe++) {
+            int i = (home + probe) & mMask;
+            Node<E> node = mSlots.get(i);
+            if (node != null && node.mKey == key && mSlots.compareAndSet(i, node, null)) {
+                if (probe > 0) {
+                    removeDisplaced();
+                }
+                mSize.decrementAndGet();
+                return node.mEntry;
+            }
+        }
+
+        if (mOverflowSize.get() > 0) {
+            synchronized (mOverflow) {
+                E entry = mOverflow.get(key);
+                if (entry != null) {
+                    mOverflow.remove(key);
+                    mOverflowSize.decrementAndGet();
+                    mSize.decrementAndGet();
+                    return entry;
+                }
+            }
+        }
+        return null;
+    }
+
+    /**
+     * Removes every entry and appends it to out. Entries removed
+     * concurrently through {@link #remove} are not reported here.
+     *
+     * @return the number of entries removed
+     */
+    int removeAll(ArrayList<E> out) {
+        int count = 0;
+        for (int i = 0; i <= mMask; i++) {
+            if (mSlots.get(i) != null) {
+                Node<E> node = mSlots.getAndSet(i, null);
+                if (node != null) {
+                    if (((i - node.mKey) & mMask) != 0) {
+                        removeDisplaced();
+                    }
+                    out.add(node.mEntry);
+                    count++;
+                }
+            }
+        }
+
+        if (mOverflowSize.get() > 0) {
+            synchronized (mOverflow) {
+                for (int i = 0, n = mOverflow.size(); i < n; i++) {
+                    out.add(mOverflow.valueAt(i));
+                    count++;
+                }
+                mOverflow.clear();
+                mOverflowSize.set(0);
+            }
+        }
+        mSize.addAndGet(-count);
+        return count;
+    }
+
+    /**
+     * Appends the entries currently in the table to out, without removing
+     * them. The result is weakly consistent: entries added or removed while
+     * the snapshot is taken may or may not be included.
+     *
+     * @return the number of entries appended
+     */
+    int snapshot(ArrayList<E> out) {
+        int count = 0;
+        for (int i = 0; i <= mMask; i++) {
+            Node<E> node = mSlots.get(i);
+            if (node != null) {
+                out.add(node.mEntry);
+                count++;
+            }
+        }
+
+        if (mOverflowSize.get() > 0) {
+            synchronized (mOverflow) {
+                for (int i = 0, n = mOverflow.size(); i < n; i++) {
+                    out.add(mOverflow.valueAt(i));
+                    count++;
+                }
+            }
+        }
+        return count;
+    }
+
+    int size() {
+        return mSize.get();
+    }
+
+    int capacity() {
+        return mMask + 1;
+    }
+
+    /** @return how far from its home slot remove has to look for a key */
+    int maxProbe() {
+        return (int) mDisplaced.get();
+    }
+
+    private void addDisplaced(int probe) {
+        long current;
+        long next;
+        do {
+            current = mDisplaced.get();
+            long count = (current >>> 32) + 1;
+            int maxProbe = Math.max((int) current, probe);
+            next = (count << 32) | maxProbe;
+        } while (!mDisplaced.compareAndSet(current, next));
+    }
+
+    private void removeDisplaced() {
+        long current;
+        long next;
+        do {
+            current = mDisplaced.get();
+            long count = (current >>> 32) - 1;
+            next = (count == 0) ? 0 : ((count << 32) | (current & 0xffffffffL));
+        } while (!mDisplaced.compareAndSet(current, next));
+    }
+}
@@ -565,6 +565,14 @@ public class PhoneFactory {
             }
             pw.flush();
             pw.println("++++++++++++++++++++++++++++++++");
+
+            try {
+                phoneProxy.getIccSmsInterfaceManager().dump(fd, pw, args);
+            } catch (Exception e) {
+                e.printStackTrace();
+            }
+            pw.flush();
+            pw.println("++++++++++++++++++++++++++++++++");
         }
 
         try {
@@ -581,5 +589,9 @@ public class PhoneFactory {
             e.printStackTrace();
         }
         pw.flush();
+        pw.println("++++++++++++++++++++++++++++++++");
+
+        InboxWriter.dumpInstance(pw);
+        pw.flush();
     }
 }
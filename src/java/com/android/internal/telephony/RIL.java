@@ -37,6 +37,7 @@ import android.net.ConnectivityManager;
 import android.net.LocalSocket;
 import android.net.LocalSocketAddress;
 import android.os.AsyncResult;
+import android.os.Build;
 import android.os.Handler;
 import android.os.HandlerThread;
 import android.os.Looper;
@@ -55,7 +56,8 @@ import android.telephony.SmsManager;
 import android.telephony.SmsMessage;
 import android.telephony.SubscriptionManager;
 import android.text.TextUtils;
-import android.util.SparseArray;
+import android.util.Log;
+import android.util.SparseIntArray;
 import android.view.Display;
 
 import com.android.internal.telephony.gsm.SmsBroadcastConfigInfo;
@@ -81,15 +83,19 @@ import com.android.internal.telephony.HardwareConfig;
 import java.io.ByteArrayInputStream;
 import java.io.DataInputStream;
 import java.io.FileDescriptor;
+import java.io.FileOutputStream;
 import java.io.IOException;
 import java.io.InputStream;
 import java.io.PrintWriter;
 import java.nio.ByteBuffer;
 import java.nio.ByteOrder;
 import java.util.ArrayList;
-import java.util.Collections;
+import java.util.Arrays;
+import java.util.List;
 import java.util.concurrent.atomic.AtomicBoolean;
 import java.util.concurrent.atomic.AtomicInteger;
+import java.util.concurrent.atomic.AtomicLong;
+import java.util.concurrent.atomic.AtomicReferenceArray;
 import java.util.Random;
 
 /**
@@ -101,10 +107,27 @@ class RILRequest {
     //***** Class Variables
     static Random sRandom = new Random();
     static AtomicInteger sNextSerial = new AtomicInteger(0);
-    private static Object sPoolSync = new Object();
-    private static RILRequest sPool = null;
-    private static int sPoolSize = 0;
-    private static final int MAX_POOL_SIZE = 4;
+
+    // Size of the pool shared by all threads
+    static final String PROPERTY_POOL_SIZE = "persist.radio.ril_req_pool";
+    private static final int MAX_POOL_SIZE =
+            Math.max(SystemProperties.getInt(PROPERTY_POOL_SIZE, 16), 0);
+
+    // Requests are obtained on caller threads and released on the receiver
+    // thread, so the pool is a fixed array of slots taken and filled with a
+    // CAS rather than a list under a lock. A slot holds the request itself,
+    // so a recycled request can not be confused with another as a linked
+    // free list would allow.
+    private static final AtomicReferenceArray<RILRequest> sPool =
+            new AtomicReferenceArray<RILRequest>(MAX_POOL_SIZE);
+    // Approximate number of pooled requests, lets obtain skip an empty pool
+    private static final AtomicInteger sPoolSize = new AtomicInteger(0);
+
+    // Pool statistics, see dumpPool()
+    private static final AtomicLong sPoolHits = new AtomicLong();
+    private static final AtomicLong sAllocations = new AtomicLong();
+    private static final AtomicLong sDiscards = new AtomicLong();
+
     private Context mContext;
 
     //***** Instance Variables
@@ -112,7 +135,10 @@ class RILRequest {
     int mRequest;
     Message mResult;
     Parcel mParcel;
-    RILRequest mNext;
+    // System.nanoTime() when RILSender wrote the request, 0 if not yet sent
+    long mSendTimeNanos;
+    // Whether a wake lock timeout already counted this request in RilMetrics
+    boolean mTimeoutCounted;
 
     /**
      * Retrieves a new RILRequest instance from the pool.
@@ -124,16 +150,19 @@ class RILRequest {
     static RILRequest obtain(int request, Message result) {
         RILRequest rr = null;
 
-        synchronized(sPoolSync) {
-            if (sPool != null) {
-                rr = sPool;
-                sPool = rr.mNext;
-                rr.mNext = null;
-                sPoolSize--;
+        if (sPoolSize.get() > 0) {
+            for (int i = 0; i < MAX_POOL_SIZE && rr == null; i++) {
+                if (sPool.get(i) != null) {
+                    rr = sPool.getAndSet(i, null);
+                }
             }
         }
 
-        if (rr == null) {
+        if (rr != null) {
+            sPoolSize.decrementAndGet();
+            sPoolHits.incrementAndGet();
+        } else {
+            sAllocations.incrementAndGet();
             rr = new RILRequest();
         }
 
@@ -142,6 +171,8 @@ class RILRequest {
         rr.mRequest = request;
         rr.mResult = result;
         rr.mParcel = Parcel.obtain();
+        rr.mSendTimeNanos = 0;
+        rr.mTimeoutCounted = false;
 
         if (result != null && result.getTarget() == null) {
             throw new NullPointerException("Message target must not be null");
@@ -160,14 +191,21 @@ class RILRequest {
      * Note: This should only be called once per use.
      */
     void release() {
-        synchronized (sPoolSync) {
-            if (sPoolSize < MAX_POOL_SIZE) {
-                mNext = sPool;
-                sPool = this;
-                sPoolSize++;
-                mResult = null;
+        mResult = null;
+        for (int i = 0; i < MAX_POOL_SIZE; i++) {
+            if (sPool.get(i) == null && sPool.compareAndSet(i, null, this)) {
+                sPoolSize.incrementAndGet();
+                return;
             }
         }
+        sDiscards.incrementAndGet();
+    }
+
+    static void dumpPool(PrintWriter pw) {
+        pw.println(" RILRequest pool: size=" + sPoolSize.get() + "/" + MAX_POOL_SIZE
+                + " hits=" + sPoolHits.get()
+                + " allocations=" + sAllocations.get()
+                + " discards=" + sDiscards.get());
     }
 
     private RILRequest() {
@@ -266,6 +304,8 @@ public final class RIL extends BaseCommands implements CommandsInterface {
     RILSender mSender;
     Thread mReceiverThread;
     RILReceiver mReceiver;
+    UnsolCoalescer mUnsolCoalescer;
+    volatile RilTrafficRecorder mRecorder;
     Display mDefaultDisplay;
     int mDefaultDisplayState = Display.STATE_UNKNOWN;
     WakeLock mWakeLock;
@@ -274,7 +314,34 @@ public final class RIL extends BaseCommands implements CommandsInterface {
     // until dec'd to 0
     int mWakeLockCount;
 
-    SparseArray<RILRequest> mRequestList = new SparseArray<RILRequest>();
+    final RilMetrics mMetrics = new RilMetrics();
+
+    // Responses are always recorded here and only formatted on dump
+    final RilLogBuffer mResponseLog = new RilLogBuffer(RESPONSE_LOG_SIZE);
+
+    // Also format every response to logcat. Responses used to go to logcat
+    // whenever RILJ_LOGD was set; now they only do if RILJ_LOGV is set or
+    // "setprop log.tag.RILJ VERBOSE" was run before the phone process
+    // started, and are otherwise only in the history printed by dump()
+    final boolean mLogResponses = RILJ_LOGV || Rlog.isLoggable(RILJ_LOG_TAG, Log.VERBOSE);
+
+    final PendingRequestTable<RILRequest> mRequestList =
+            new PendingRequestTable<RILRequest>(REQUEST_TABLE_CAPACITY) {
+        @Override
+        protected int keyOf(RILRequest rr) {
+            return rr.mSerial;
+        }
+    };
+
+    // The frame being processed, so responses can be compared with the
+    // previous one before they are unmarshalled. Only used on the receiver
+    // thread: replay decodes on its own thread but skips the call list,
+    // the only response that reads these.
+    private byte[] mFrame;
+    private int mFrameOffset;
+    private int mFrameLength;
+
+    final CallListDecoder mCallListDecoder = new CallListDecoder();
 
     Object     mLastNITZTimeInfo;
 
@@ -287,6 +354,7 @@ public final class RIL extends BaseCommands implements CommandsInterface {
 
     static final int EVENT_SEND                 = 1;
     static final int EVENT_WAKE_LOCK_TIMEOUT    = 2;
+    static final int EVENT_FLUSH_BATCH          = 3;
 
     //***** Constants
 
@@ -299,6 +367,37 @@ public final class RIL extends BaseCommands implements CommandsInterface {
 
     static final int SOCKET_OPEN_RETRY_MILLIS = 4 * 1000;
 
+    // Slots in mRequestList; more in-flight requests than this still work
+    // but no longer map to a slot of their own
+    static final int REQUEST_TABLE_CAPACITY = 1024;
+
+    static final int RESPONSE_LOG_SIZE = 256;
+
+    /**
+     * Minimum delivery interval per unsolicited response code, as
+     * "code:ms[,code:ms...]". Only RIL_UNSOL_SIGNAL_STRENGTH,
+     * RIL_UNSOL_CELL_INFO_LIST and RIL_UNSOL_RESPONSE_VOICE_NETWORK_STATE_CHANGED
+     * can be rate limited, see UnsolCoalescer.
+     */
+    static final String PROPERTY_UNSOL_COALESCE = "persist.radio.unsol_coalesce";
+
+    /**
+     * When set on a debuggable build, the rild socket traffic is captured to
+     * this path with the instance id appended, see RilTrafficRecorder.
+     */
+    static final String PROPERTY_RECORD_FILE = "persist.radio.ril_record";
+
+    private static final long MAX_RECORD_BYTES = 16 * 1024 * 1024;
+
+    /**
+     * Maximum number of requests RILSender writes to the socket in one go.
+     * 0 or 1 sends every request as soon as it is dequeued.
+     */
+    static final String PROPERTY_SEND_BATCH_SIZE = "persist.radio.ril_send_batch";
+
+    /** How long RILSender waits for more requests before flushing a batch */
+    static final String PROPERTY_SEND_BATCH_DELAY_MS = "persist.radio.ril_send_delay";
+
     // The number of the required config values for broadcast SMS stored in the C struct
     // RIL_CDMA_BroadcastServiceInfo
     private static final int CDMA_BSI_NO_OF_INTS_STRUCT = 3;
@@ -324,11 +423,35 @@ public final class RIL extends BaseCommands implements CommandsInterface {
     class RILSender extends Handler implements Runnable {
         public RILSender(Looper looper) {
             super(looper);
+            mMaxBatchSize = SystemProperties.getInt(PROPERTY_SEND_BATCH_SIZE, 0);
+            mFlushDelayMs = SystemProperties.getInt(PROPERTY_SEND_BATCH_DELAY_MS, 0);
+            if (isBatching()) {
+                mBatch = new ArrayList<RILRequest>(mMaxBatchSize);
+                mBatchWriter = new RilFrameWriter(RIL_MAX_COMMAND_BYTES);
+            }
         }
 
         // Only allocated once
         byte[] dataLength = new byte[4];
 
+        // Batched send mode: requests are queued in mBatch and written to
+        // the socket together, either when mMaxBatchSize is reached or
+        // mFlushDelayMs after the first request of the batch was queued.
+        final int mMaxBatchSize;
+        final int mFlushDelayMs;
+        ArrayList<RILRequest> mBatch;
+        RilFrameWriter mBatchWriter;
+
+        // Number of flushes that carried 1, 2-3, 4-7, 8-15 and 16+ requests
+        final long[] mBatchSizeCounts = new long[5];
+        long mBatchFlushCount;
+        long mBatchedRequestCount;
+        int mLargestBatch;
+
+        boolean isBatching() {
+            return mMaxBatchSize > 1;
+        }
+
         //***** Runnable implementation
         @Override
         public void
@@ -345,6 +468,11 @@ public final class RIL extends BaseCommands implements CommandsInterface {
 
             switch (msg.what) {
                 case EVENT_SEND:
+                    if (isBatching()) {
+                        queueForBatch(rr);
+                        break;
+                    }
+
                     try {
                         LocalSocket s;
 
@@ -357,9 +485,7 @@ public final class RIL extends BaseCommands implements CommandsInterface {
                             return;
                         }
 
-                        synchronized (mRequestList) {
-                            mRequestList.append(rr.mSerial, rr);
-                        }
+                        addRequestToList(rr);
 
                         byte[] data;
 
@@ -373,15 +499,9 @@ public final class RIL extends BaseCommands implements CommandsInterface {
                                                           + data.length);
                         }
 
-                        // parcel length in big endian
-                        dataLength[0] = dataLength[1] = 0;
-                        dataLength[2] = (byte)((data.length >> 8) & 0xff);
-                        dataLength[3] = (byte)((data.length) & 0xff);
-
                         //Rlog.v(RILJ_LOG_TAG, "writing packet: " + data.length + " bytes");
 
-                        s.getOutputStream().write(dataLength);
-                        s.getOutputStream().write(data);
+                        RilFrameWriter.writeFrame(s.getOutputStream(), dataLength, data);
                     } catch (IOException ex) {
                         Rlog.e(RILJ_LOG_TAG, "IOException", ex);
                         req = findAndRemoveRequestFromList(rr.mSerial);
@@ -418,89 +538,160 @@ public final class RIL extends BaseCommands implements CommandsInterface {
                     // Note: Keep mRequestList so that delayed response
                     // can still be handled when response finally comes.
 
-                    synchronized (mRequestList) {
-                        if (clearWakeLock()) {
+                    if (clearWakeLock()) {
+                        ArrayList<RILRequest> pending = new ArrayList<RILRequest>();
+                        int count = mRequestList.snapshot(pending);
+                        if (RILJ_LOGD) {
+                            Rlog.d(RILJ_LOG_TAG, "WAKE_LOCK_TIMEOUT " +
+                                    " mRequestList=" + count);
+                        }
+                        for (int i = 0; i < count; i++) {
+                            rr = pending.get(i);
+                            // A request unanswered across several timeouts counts once
+                            if (!rr.mTimeoutCounted) {
+                                rr.mTimeoutCounted = true;
+                                mMetrics.onTimeout(rr.mRequest);
+                            }
                             if (RILJ_LOGD) {
-                                int count = mRequestList.size();
-                                Rlog.d(RILJ_LOG_TAG, "WAKE_LOCK_TIMEOUT " +
-                                        " mRequestList=" + count);
-                                for (int i = 0; i < count; i++) {
-                                    rr = mRequestList.valueAt(i);
-                                    Rlog.d(RILJ_LOG_TAG, i + ": [" + rr.mSerial + "] "
-                                            + requestToString(rr.mRequest));
-                                }
+                                Rlog.d(RILJ_LOG_TAG, i + ": [" + rr.mSerial + "] "
+                                        + requestToString(rr.mRequest));
                             }
                         }
                     }
                     break;
+
+                case EVENT_FLUSH_BATCH:
+                    flushBatch();
+                    break;
             }
         }
-    }
 
-    /**
-     * Reads in a single RIL message off the wire. A RIL message consists
-     * of a 4-byte little-endian length and a subsequent series of bytes.
-     * The final message (length header omitted) is read into
-     * <code>buffer</code> and the length of the final message (less header)
-     * is returned. A return value of -1 indicates end-of-stream.
-     *
-     * @param is non-null; Stream to read from
-     * @param buffer Buffer to fill in. Must be as large as maximum
-     * message size, or an ArrayOutOfBounds exception will be thrown.
-     * @return Length of message less header, or -1 on end of stream.
-     * @throws IOException
-     */
-    private static int readRilMessage(InputStream is, byte[] buffer)
-            throws IOException {
-        int countRead;
-        int offset;
-        int remaining;
-        int messageLength;
-
-        // First, read in the length of the message
-        offset = 0;
-        remaining = 4;
-        do {
-            countRead = is.read(buffer, offset, remaining);
-
-            if (countRead < 0 ) {
-                Rlog.e(RILJ_LOG_TAG, "Hit EOS reading message length");
-                return -1;
+        private void queueForBatch(RILRequest rr) {
+            mBatch.add(rr);
+            if (mBatch.size() >= mMaxBatchSize) {
+                flushBatch();
+            } else if (mBatch.size() == 1) {
+                // With no delay the flush still runs after every EVENT_SEND
+                // already in the queue, which is what coalesces a burst
+                sendMessageDelayed(obtainMessage(EVENT_FLUSH_BATCH), mFlushDelayMs);
             }
+        }
 
-            offset += countRead;
-            remaining -= countRead;
-        } while (remaining > 0);
-
-        messageLength = ((buffer[0] & 0xff) << 24)
-                | ((buffer[1] & 0xff) << 16)
-                | ((buffer[2] & 0xff) << 8)
-                | (buffer[3] & 0xff);
-
-        // Then, re-use the buffer and read in the message itself
-        offset = 0;
-        remaining = messageLength;
-        do {
-            countRead = is.read(buffer, offset, remaining);
-
-            if (countRead < 0 ) {
-                Rlog.e(RILJ_LOG_TAG, "Hit EOS reading message.  messageLength=" + messageLength
-                        + " remaining=" + remaining);
-                return -1;
+        /**
+         * Writes all queued requests to the socket with a single write.
+         */
+        private void flushBatch() {
+            removeMessages(EVENT_FLUSH_BATCH);
+
+            int count = mBatch.size();
+            if (count == 0) {
+                return;
+            }
+
+            LocalSocket s = mSocket;
+            if (s == null) {
+                for (int i = 0; i < count; i++) {
+                    RILRequest rr = mBatch.get(i);
+                    rr.onError(RADIO_NOT_AVAILABLE, null);
+                    rr.release();
+                    decrementWakeLock();
+                }
+                mBatch.clear();
+                return;
             }
 
-            offset += countRead;
-            remaining -= countRead;
-        } while (remaining > 0);
+            // Register everything first so that a failure below can always
+            // be reported through findAndRemoveRequestFromList
+            for (int i = 0; i < count; i++) {
+                addRequestToList(mBatch.get(i));
+            }
+
+            mBatchWriter.reset();
+            for (int i = 0; i < count; i++) {
+                RILRequest rr = mBatch.get(i);
+                byte[] data;
+                try {
+                    data = rr.mParcel.marshall();
+                    rr.mParcel.recycle();
+                    rr.mParcel = null;
+
+                    if (data.length > RIL_MAX_COMMAND_BYTES) {
+                        throw new RuntimeException(
+                                "Parcel larger than max bytes allowed! " + data.length);
+                    }
+                } catch (RuntimeException exc) {
+                    Rlog.e(RILJ_LOG_TAG, "Uncaught exception ", exc);
+                    failBatchedRequest(rr, GENERIC_FAILURE);
+                    continue;
+                }
+
+                mBatchWriter.append(data);
+            }
 
-        return messageLength;
+            try {
+                mBatchWriter.writeTo(s.getOutputStream());
+            } catch (IOException ex) {
+                Rlog.e(RILJ_LOG_TAG, "IOException", ex);
+                for (int i = 0; i < count; i++) {
+                    failBatchedRequest(mBatch.get(i), RADIO_NOT_AVAILABLE);
+                }
+            }
+
+            mBatch.clear();
+
+            int written = mBatchWriter.getFrameCount();
+            mBatchFlushCount++;
+            mBatchedRequestCount += written;
+            if (written > mLargestBatch) {
+                mLargestBatch = written;
+            }
+            int bucket = 31 - Integer.numberOfLeadingZeros(Math.max(written, 1));
+            mBatchSizeCounts[Math.min(bucket, mBatchSizeCounts.length - 1)]++;
+        }
+
+        private void failBatchedRequest(RILRequest rr, int error) {
+            // make sure this request has not already been handled,
+            // eg, if RILReceiver cleared the list.
+            if (findAndRemoveRequestFromList(rr.mSerial) != null) {
+                rr.onError(error, null);
+                rr.release();
+                decrementWakeLock();
+            }
+        }
+
+        void dump(PrintWriter pw) {
+            pw.println(" mSender maxBatchSize=" + mMaxBatchSize
+                    + " flushDelayMs=" + mFlushDelayMs);
+            if (isBatching()) {
+                pw.println("  flushes=" + mBatchFlushCount
+                        + " requests=" + mBatchedRequestCount
+                        + " largestBatch=" + mLargestBatch);
+                pw.println("  batch sizes [1, 2-3, 4-7, 8-15, 16+]="
+                        + Arrays.toString(mBatchSizeCounts));
+            }
+        }
     }
 
-    class RILReceiver implements Runnable {
-        byte[] buffer;
+    class RILReceiver implements Runnable, RilFrameReader.FrameHandler {
+        RilFrameReader mFrameReader;
 
         RILReceiver() {
-            buffer = new byte[RIL_MAX_COMMAND_BYTES];
+        }
+
+        @Override
+        public void
+        onFrame(byte[] buffer, int offset, int length) {
+            RilTrafficRecorder recorder = mRecorder;
+            if (recorder != null) {
+                recorder.recordReceived(buffer, offset, length);
+            }
+
+            processFrame(buffer, offset, length);
+        }
+
+        @Override
+        public String toString() {
+            return "RILReceiver{" + mFrameReader + "}";
         }
 
         @Override
@@ -562,35 +753,24 @@ public final class RIL extends BaseCommands implements CommandsInterface {
                 Rlog.i(RILJ_LOG_TAG, "(" + mInstanceId + ") Connected to '"
                         + rilSocket + "' socket");
 
-                int length = 0;
                 try {
                     InputStream is = mSocket.getInputStream();
 
-                    for (;;) {
-                        Parcel p;
-
-                        length = readRilMessage(is, buffer);
+                    mFrameReader = new RilFrameReader(RilFrameReader.fromInputStream(is));
 
-                        if (length < 0) {
+                    for (;;) {
+                        if (mFrameReader.readFrames(this) < 0) {
                             // End-of-stream reached
+                            Rlog.e(RILJ_LOG_TAG, "Hit EOS reading message");
                             break;
                         }
-
-                        p = Parcel.obtain();
-                        p.unmarshall(buffer, 0, length);
-                        p.setDataPosition(0);
-
-                        //Rlog.v(RILJ_LOG_TAG, "Read packet: " + length + " bytes");
-
-                        processResponse(p);
-                        p.recycle();
                     }
                 } catch (java.io.IOException ex) {
                     Rlog.i(RILJ_LOG_TAG, "'" + rilSocket + "' socket closed",
                           ex);
                 } catch (Throwable tr) {
-                    Rlog.e(RILJ_LOG_TAG, "Uncaught exception read length=" + length +
-                        "Exception:" + tr.toString());
+                    Rlog.e(RILJ_LOG_TAG, "Uncaught exception reading " + mFrameReader +
+                        " Exception:" + tr.toString());
                 }
 
                 Rlog.i(RILJ_LOG_TAG, "(" + mInstanceId + ") Disconnected from '" + rilSocket
@@ -652,6 +832,25 @@ public final class RIL extends BaseCommands implements CommandsInterface {
         Looper looper = mSenderThread.getLooper();
         mSender = new RILSender(looper);
 
+        mUnsolCoalescer = new UnsolCoalescer(looper, new UnsolCoalescer.Target() {
+            @Override
+            public void deliverUnsol(int response, Object ret) {
+                notifyCoalescableUnsol(response, ret);
+            }
+        }, SystemProperties.get(PROPERTY_UNSOL_COALESCE, ""));
+
+        String recordFile = SystemProperties.get(PROPERTY_RECORD_FILE, "");
+        if (Build.IS_DEBUGGABLE && !TextUtils.isEmpty(recordFile)) {
+            recordFile += "." + (mInstanceId == null ? 0 : mInstanceId);
+            try {
+                mRecorder = new RilTrafficRecorder(new FileOutputStream(recordFile),
+                        MAX_RECORD_BYTES);
+                riljLog("Recording RIL traffic to " + recordFile);
+            } catch (IOException ex) {
+                Rlog.e(RILJ_LOG_TAG, "Cannot record RIL traffic to " + recordFile, ex);
+            }
+        }
+
         ConnectivityManager cm = (ConnectivityManager)context.getSystemService(
                 Context.CONNECTIVITY_SERVICE);
         if (cm.isNetworkSupported(ConnectivityManager.TYPE_MOBILE) == false) {
@@ -2513,6 +2712,25 @@ public final class RIL extends BaseCommands implements CommandsInterface {
         msg.sendToTarget();
     }
 
+    private void
+    processFrame(byte[] buffer, int offset, int length) {
+        Parcel p = Parcel.obtain();
+        p.unmarshall(buffer, offset, length);
+        p.setDataPosition(0);
+
+        //Rlog.v(RILJ_LOG_TAG, "Read packet: " + length + " bytes");
+
+        mFrame = buffer;
+        mFrameOffset = offset;
+        mFrameLength = length;
+        try {
+            processResponse(p);
+        } finally {
+            mFrame = null;
+        }
+        p.recycle();
+    }
+
     private void
     processResponse (Parcel p) {
         int type;
@@ -2537,40 +2755,131 @@ public final class RIL extends BaseCommands implements CommandsInterface {
      */
     private void clearRequestList(int error, boolean loggable) {
         RILRequest rr;
-        synchronized (mRequestList) {
-            int count = mRequestList.size();
+        ArrayList<RILRequest> removed = new ArrayList<RILRequest>();
+        int count = mRequestList.removeAll(removed);
+        if (RILJ_LOGD && loggable) {
+            Rlog.d(RILJ_LOG_TAG, "clearRequestList " +
+                    " mWakeLockCount=" + mWakeLockCount +
+                    " mRequestList=" + count);
+        }
+
+        for (int i = 0; i < count ; i++) {
+            rr = removed.get(i);
+            mMetrics.onRequestDone(rr.mRequest);
             if (RILJ_LOGD && loggable) {
-                Rlog.d(RILJ_LOG_TAG, "clearRequestList " +
-                        " mWakeLockCount=" + mWakeLockCount +
-                        " mRequestList=" + count);
+                Rlog.d(RILJ_LOG_TAG, i + ": [" + rr.mSerial + "] " +
+                        requestToString(rr.mRequest));
             }
+            rr.onError(error, null);
+            rr.release();
+            decrementWakeLock();
+        }
+    }
+
+    private void addRequestToList(RILRequest rr) {
+        rr.mSendTimeNanos = System.nanoTime();
+        mMetrics.onRequestSent(rr.mRequest);
+        mRequestList.put(rr);
+
+        RilTrafficRecorder recorder = mRecorder;
+        if (recorder != null) {
+            recorder.recordSent(rr.mRequest, rr.mSerial);
+        }
+    }
 
-            for (int i = 0; i < count ; i++) {
-                rr = mRequestList.valueAt(i);
-                if (RILJ_LOGD && loggable) {
-                    Rlog.d(RILJ_LOG_TAG, i + ": [" + rr.mSerial + "] " +
-                            requestToString(rr.mRequest));
+    /**
+     * Decodes replayed traffic with the same decoders as RILReceiver, but
+     * apart from this RIL's live state: it matches solicited responses
+     * against its own table of replayed requests and notifies no
+     * registrants, so a replay cannot disturb pending requests or the phone.
+     */
+    class ReplaySink implements RilTrafficReplayer.Sink {
+        // Request code per replayed serial awaiting its response
+        private final SparseIntArray mRequests = new SparseIntArray();
+        int mDecoded;
+        int mUnmatched;
+        int mSkipped;
+        int mFailed;
+
+        @Override
+        public void onRequestSent(int request, int serial) {
+            mRequests.put(serial, request);
+        }
+
+        @Override
+        public void onMessage(byte[] buffer, int offset, int length) {
+            Parcel p = Parcel.obtain();
+            try {
+                p.unmarshall(buffer, offset, length);
+                p.setDataPosition(0);
+                int type = p.readInt();
+                if (type == RESPONSE_UNSOLICITED) {
+                    decodeUnsolicited(p.readInt(), p);
+                    mDecoded++;
+                } else if (type == RESPONSE_SOLICITED) {
+                    decodeSolicitedReplay(p);
                 }
-                rr.onError(error, null);
-                rr.release();
-                decrementWakeLock();
+            } catch (RuntimeException ex) {
+                mFailed++;
+            } finally {
+                p.recycle();
             }
-            mRequestList.clear();
         }
-    }
 
-    private RILRequest findAndRemoveRequestFromList(int serial) {
-        RILRequest rr = null;
-        synchronized (mRequestList) {
-            rr = mRequestList.get(serial);
-            if (rr != null) {
-                mRequestList.remove(serial);
+        private void decodeSolicitedReplay(Parcel p) {
+            int serial = p.readInt();
+            int error = p.readInt();
+            int index = mRequests.indexOfKey(serial);
+            if (index < 0) {
+                mUnmatched++;
+                return;
             }
+            int request = mRequests.valueAt(index);
+            mRequests.removeAt(index);
+
+            switch (request) {
+                // These decoders update the live call list and network type
+                case RIL_REQUEST_GET_CURRENT_CALLS:
+                case RIL_REQUEST_GET_PREFERRED_NETWORK_TYPE:
+                    mSkipped++;
+                    return;
+            }
+            if (error == 0 || p.dataAvail() > 0) {
+                decodeSolicited(request, p);
+            }
+            mDecoded++;
+        }
+
+        @Override
+        public String toString() {
+            return "decoded=" + mDecoded + " unmatched=" + mUnmatched
+                    + " skipped=" + mSkipped + " failed=" + mFailed;
         }
+    }
 
+    /**
+     * @return a new sink for replaying captured traffic, see ReplaySink
+     */
+    ReplaySink getReplaySink() {
+        return new ReplaySink();
+    }
+
+    private RILRequest findAndRemoveRequestFromList(int serial) {
+        RILRequest rr = mRequestList.remove(serial);
+        if (rr != null) {
+            mMetrics.onRequestDone(rr.mRequest);
+        }
         return rr;
     }
 
+    /**
+     * @return a copy of the per request code latency, in-flight and
+     * timeout statistics collected so far
+     */
+    public List<RilMetrics.RequestStats> getRequestMetrics() {
+        return mMetrics.snapshot();
+    }
+
     private RILRequest
     processSolicited (Parcel p) {
         int serial, error;
@@ -2589,158 +2898,22 @@ public final class RIL extends BaseCommands implements CommandsInterface {
             return null;
         }
 
+        mMetrics.onResponse(rr.mRequest, System.nanoTime() - rr.mSendTimeNanos);
+
         Object ret = null;
 
         if (error == 0 || p.dataAvail() > 0) {
             // either command succeeds or command fails but with data payload
-            try {switch (rr.mRequest) {
-            /*
- cat libs/telephony/ril_commands.h \
- | egrep "^ *{RIL_" \
- | sed -re 's/\{([^,]+),[^,]+,([^}]+).+/case \1: ret = \2(p); break;/'
-             */
-            case RIL_REQUEST_GET_SIM_STATUS: ret =  responseIccCardStatus(p); break;
-            case RIL_REQUEST_ENTER_SIM_PIN: ret =  responseInts(p); break;
-            case RIL_REQUEST_ENTER_SIM_PUK: ret =  responseInts(p); break;
-            case RIL_REQUEST_ENTER_SIM_PIN2: ret =  responseInts(p); break;
-            case RIL_REQUEST_ENTER_SIM_PUK2: ret =  responseInts(p); break;
-            case RIL_REQUEST_CHANGE_SIM_PIN: ret =  responseInts(p); break;
-            case RIL_REQUEST_CHANGE_SIM_PIN2: ret =  responseInts(p); break;
-            case RIL_REQUEST_ENTER_DEPERSONALIZATION_CODE: ret =  responseInts(p); break;
-            case RIL_REQUEST_GET_CURRENT_CALLS: ret =  responseCallList(p); break;
-            case RIL_REQUEST_DIAL: ret =  responseVoid(p); break;
-            case RIL_REQUEST_GET_IMSI: ret =  responseString(p); break;
-            case RIL_REQUEST_HANGUP: ret =  responseVoid(p); break;
-            case RIL_REQUEST_HANGUP_WAITING_OR_BACKGROUND: ret =  responseVoid(p); break;
-            case RIL_REQUEST_HANGUP_FOREGROUND_RESUME_BACKGROUND: {
-                if (mTestingEmergencyCall.getAndSet(false)) {
+            try {
+                if (rr.mRequest == RIL_REQUEST_HANGUP_FOREGROUND_RESUME_BACKGROUND
+                        && mTestingEmergencyCall.getAndSet(false)) {
                     if (mEmergencyCallbackModeRegistrant != null) {
                         riljLog("testing emergency call, notify ECM Registrants");
                         mEmergencyCallbackModeRegistrant.notifyRegistrant();
                     }
                 }
-                ret =  responseVoid(p);
-                break;
-            }
-            case RIL_REQUEST_SWITCH_WAITING_OR_HOLDING_AND_ACTIVE: ret =  responseVoid(p); break;
-            case RIL_REQUEST_CONFERENCE: ret =  responseVoid(p); break;
-            case RIL_REQUEST_UDUB: ret =  responseVoid(p); break;
-            case RIL_REQUEST_LAST_CALL_FAIL_CAUSE: ret =  responseInts(p); break;
-            case RIL_REQUEST_SIGNAL_STRENGTH: ret =  responseSignalStrength(p); break;
-            case RIL_REQUEST_VOICE_REGISTRATION_STATE: ret =  responseStrings(p); break;
-            case RIL_REQUEST_DATA_REGISTRATION_STATE: ret =  responseStrings(p); break;
-            case RIL_REQUEST_OPERATOR: ret =  responseStrings(p); break;
-            case RIL_REQUEST_RADIO_POWER: ret =  responseVoid(p); break;
-            case RIL_REQUEST_DTMF: ret =  responseVoid(p); break;
-            case RIL_REQUEST_SEND_SMS: ret =  responseSMS(p); break;
-            case RIL_REQUEST_SEND_SMS_EXPECT_MORE: ret =  responseSMS(p); break;
-            case RIL_REQUEST_SETUP_DATA_CALL: ret =  responseSetupDataCall(p); break;
-            case RIL_REQUEST_SIM_IO: ret =  responseICC_IO(p); break;
-            case RIL_REQUEST_SEND_USSD: ret =  responseVoid(p); break;
-            case RIL_REQUEST_CANCEL_USSD: ret =  responseVoid(p); break;
-            case RIL_REQUEST_GET_CLIR: ret =  responseInts(p); break;
-            case RIL_REQUEST_SET_CLIR: ret =  responseVoid(p); break;
-            case RIL_REQUEST_QUERY_CALL_FORWARD_STATUS: ret =  responseCallForward(p); break;
-            case RIL_REQUEST_SET_CALL_FORWARD: ret =  responseVoid(p); break;
-            case RIL_REQUEST_QUERY_CALL_WAITING: ret =  responseInts(p); break;
-            case RIL_REQUEST_SET_CALL_WAITING: ret =  responseVoid(p); break;
-            case RIL_REQUEST_SMS_ACKNOWLEDGE: ret =  responseVoid(p); break;
-            case RIL_REQUEST_GET_IMEI: ret =  responseString(p); break;
-            case RIL_REQUEST_GET_IMEISV: ret =  responseString(p); break;
-            case RIL_REQUEST_ANSWER: ret =  responseVoid(p); break;
-            case RIL_REQUEST_DEACTIVATE_DATA_CALL: ret =  responseVoid(p); break;
-            case RIL_REQUEST_QUERY_FACILITY_LOCK: ret =  responseInts(p); break;
-            case RIL_REQUEST_SET_FACILITY_LOCK: ret =  responseInts(p); break;
-            case RIL_REQUEST_CHANGE_BARRING_PASSWORD: ret =  responseVoid(p); break;
-            case RIL_REQUEST_QUERY_NETWORK_SELECTION_MODE: ret =  responseInts(p); break;
-            case RIL_REQUEST_SET_NETWORK_SELECTION_AUTOMATIC: ret =  responseVoid(p); break;
-            case RIL_REQUEST_SET_NETWORK_SELECTION_MANUAL: ret =  responseVoid(p); break;
-            case RIL_REQUEST_QUERY_AVAILABLE_NETWORKS : ret =  responseOperatorInfos(p); break;
-            case RIL_REQUEST_DTMF_START: ret =  responseVoid(p); break;
-            case RIL_REQUEST_DTMF_STOP: ret =  responseVoid(p); break;
-            case RIL_REQUEST_BASEBAND_VERSION: ret =  responseString(p); break;
-            case RIL_REQUEST_SEPARATE_CONNECTION: ret =  responseVoid(p); break;
-            case RIL_REQUEST_SET_MUTE: ret =  responseVoid(p); break;
-            case RIL_REQUEST_GET_MUTE: ret =  responseInts(p); break;
-            case RIL_REQUEST_QUERY_CLIP: ret =  responseInts(p); break;
-            case RIL_REQUEST_LAST_DATA_CALL_FAIL_CAUSE: ret =  responseInts(p); break;
-            case RIL_REQUEST_DATA_CALL_LIST: ret =  responseDataCallList(p); break;
-            case RIL_REQUEST_RESET_RADIO: ret =  responseVoid(p); break;
-            case RIL_REQUEST_OEM_HOOK_RAW: ret =  responseRaw(p); break;
-            case RIL_REQUEST_OEM_HOOK_STRINGS: ret =  responseStrings(p); break;
-            case RIL_REQUEST_SCREEN_STATE: ret =  responseVoid(p); break;
-            case RIL_REQUEST_SET_SUPP_SVC_NOTIFICATION: ret =  responseVoid(p); break;
-            case RIL_REQUEST_WRITE_SMS_TO_SIM: ret =  responseInts(p); break;
-            case RIL_REQUEST_DELETE_SMS_ON_SIM: ret =  responseVoid(p); break;
-            case RIL_REQUEST_SET_BAND_MODE: ret =  responseVoid(p); break;
-            case RIL_REQUEST_QUERY_AVAILABLE_BAND_MODE: ret =  responseInts(p); break;
-            case RIL_REQUEST_STK_GET_PROFILE: ret =  responseString(p); break;
-            case RIL_REQUEST_STK_SET_PROFILE: ret =  responseVoid(p); break;
-            case RIL_REQUEST_STK_SEND_ENVELOPE_COMMAND: ret =  responseString(p); break;
-            case RIL_REQUEST_STK_SEND_TERMINAL_RESPONSE: ret =  responseVoid(p); break;
-            case RIL_REQUEST_STK_HANDLE_CALL_SETUP_REQUESTED_FROM_SIM: ret =  responseInts(p); break;
-            case RIL_REQUEST_EXPLICIT_CALL_TRANSFER: ret =  responseVoid(p); break;
-            case RIL_REQUEST_SET_PREFERRED_NETWORK_TYPE: ret =  responseVoid(p); break;
-            case RIL_REQUEST_GET_PREFERRED_NETWORK_TYPE: ret =  responseGetPreferredNetworkType(p); break;
-            case RIL_REQUEST_GET_NEIGHBORING_CELL_IDS: ret = responseCellList(p); break;
-            case RIL_REQUEST_SET_LOCATION_UPDATES: ret =  responseVoid(p); break;
-            case RIL_REQUEST_CDMA_SET_SUBSCRIPTION_SOURCE: ret =  responseVoid(p); break;
-            case RIL_REQUEST_CDMA_SET_ROAMING_PREFERENCE: ret =  responseVoid(p); break;
-            case RIL_REQUEST_CDMA_QUERY_ROAMING_PREFERENCE: ret =  responseInts(p); break;
-            case RIL_REQUEST_SET_TTY_MODE: ret =  responseVoid(p); break;
-            case RIL_REQUEST_QUERY_TTY_MODE: ret =  responseInts(p); break;
-            case RIL_REQUEST_CDMA_SET_PREFERRED_VOICE_PRIVACY_MODE: ret =  responseVoid(p); break;
-            case RIL_REQUEST_CDMA_QUERY_PREFERRED_VOICE_PRIVACY_MODE: ret =  responseInts(p); break;
-            case RIL_REQUEST_CDMA_FLASH: ret =  responseVoid(p); break;
-            case RIL_REQUEST_CDMA_BURST_DTMF: ret =  responseVoid(p); break;
-            case RIL_REQUEST_CDMA_SEND_SMS: ret =  responseSMS(p); break;
-            case RIL_REQUEST_CDMA_SMS_ACKNOWLEDGE: ret =  responseVoid(p); break;
-            case RIL_REQUEST_GSM_GET_BROADCAST_CONFIG: ret =  responseGmsBroadcastConfig(p); break;
-            case RIL_REQUEST_GSM_SET_BROADCAST_CONFIG: ret =  responseVoid(p); break;
-            case RIL_REQUEST_GSM_BROADCAST_ACTIVATION: ret =  responseVoid(p); break;
-            case RIL_REQUEST_CDMA_GET_BROADCAST_CONFIG: ret =  responseCdmaBroadcastConfig(p); break;
-            case RIL_REQUEST_CDMA_SET_BROADCAST_CONFIG: ret =  responseVoid(p); break;
-            case RIL_REQUEST_CDMA_BROADCAST_ACTIVATION: ret =  responseVoid(p); break;
-            case RIL_REQUEST_CDMA_VALIDATE_AND_WRITE_AKEY: ret =  responseVoid(p); break;
-            case RIL_REQUEST_CDMA_SUBSCRIPTION: ret =  responseStrings(p); break;
-            case RIL_REQUEST_CDMA_WRITE_SMS_TO_RUIM: ret =  responseInts(p); break;
-            case RIL_REQUEST_CDMA_DELETE_SMS_ON_RUIM: ret =  responseVoid(p); break;
-            case RIL_REQUEST_DEVICE_IDENTITY: ret =  responseStrings(p); break;
-            case RIL_REQUEST_GET_SMSC_ADDRESS: ret = responseString(p); break;
-            case RIL_REQUEST_SET_SMSC_ADDRESS: ret = responseVoid(p); break;
-            case RIL_REQUEST_EXIT_EMERGENCY_CALLBACK_MODE: ret = responseVoid(p); break;
-            case RIL_REQUEST_REPORT_SMS_MEMORY_STATUS: ret = responseVoid(p); break;
-            case RIL_REQUEST_REPORT_STK_SERVICE_IS_RUNNING: ret = responseVoid(p); break;
-            case RIL_REQUEST_CDMA_GET_SUBSCRIPTION_SOURCE: ret =  responseInts(p); break;
-            case RIL_REQUEST_GET_DATA_CALL_PROFILE: ret =  responseGetDataCallProfile(p); break;
-            case RIL_REQUEST_ISIM_AUTHENTICATION: ret =  responseString(p); break;
-            case RIL_REQUEST_ACKNOWLEDGE_INCOMING_GSM_SMS_WITH_PDU: ret = responseVoid(p); break;
-            case RIL_REQUEST_STK_SEND_ENVELOPE_WITH_STATUS: ret = responseICC_IO(p); break;
-            case RIL_REQUEST_VOICE_RADIO_TECH: ret = responseInts(p); break;
-            case RIL_REQUEST_GET_CELL_INFO_LIST: ret = responseCellInfoList(p); break;
-            case RIL_REQUEST_SET_UNSOL_CELL_INFO_LIST_RATE: ret = responseVoid(p); break;
-            case RIL_REQUEST_SET_INITIAL_ATTACH_APN: ret = responseVoid(p); break;
-            case RIL_REQUEST_SET_DATA_PROFILE: ret = responseVoid(p); break;
-            case RIL_REQUEST_IMS_REGISTRATION_STATE: ret = responseInts(p); break;
-            case RIL_REQUEST_IMS_SEND_SMS: ret =  responseSMS(p); break;
-            case RIL_REQUEST_SIM_TRANSMIT_APDU_BASIC: ret =  responseICC_IO(p); break;
-            case RIL_REQUEST_SIM_OPEN_CHANNEL: ret  = responseInts(p); break;
-            case RIL_REQUEST_SIM_CLOSE_CHANNEL: ret  = responseVoid(p); break;
-            case RIL_REQUEST_SIM_TRANSMIT_APDU_CHANNEL: ret = responseICC_IO(p); break;
-            case RIL_REQUEST_SIM_GET_ATR: ret = responseString(p); break;
-            case RIL_REQUEST_NV_READ_ITEM: ret = responseString(p); break;
-            case RIL_REQUEST_NV_WRITE_ITEM: ret = responseVoid(p); break;
-            case RIL_REQUEST_NV_WRITE_CDMA_PRL: ret = responseVoid(p); break;
-            case RIL_REQUEST_NV_RESET_CONFIG: ret = responseVoid(p); break;
-            case RIL_REQUEST_SET_UICC_SUBSCRIPTION: ret = responseVoid(p); break;
-            case RIL_REQUEST_ALLOW_DATA: ret = responseVoid(p); break;
-            case RIL_REQUEST_GET_HARDWARE_CONFIG: ret = responseHardwareConfig(p); break;
-            case RIL_REQUEST_SIM_AUTHENTICATION: ret =  responseICC_IOBase64(p); break;
-            case RIL_REQUEST_SHUTDOWN: ret = responseVoid(p); break;
-            default:
-                throw new RuntimeException("Unrecognized solicited response: " + rr.mRequest);
-            //break;
-            }} catch (Throwable tr) {
+                ret = decodeSolicited(rr.mRequest, p);
+            } catch (Throwable tr) {
                 // Exceptions here usually mean invalid RIL responses
 
                 Rlog.w(RILJ_LOG_TAG, rr.serialString() + "< "
@@ -2799,8 +2972,13 @@ public final class RIL extends BaseCommands implements CommandsInterface {
             rr.onError(error, ret);
         } else {
 
-            if (RILJ_LOGD) riljLog(rr.serialString() + "< " + requestToString(rr.mRequest)
-                    + " " + retToString(rr.mRequest, ret));
+            if (RILJ_LOGD) {
+                mResponseLog.recordResponse(rr.mSerial, rr.mRequest, 0, ret);
+                if (mLogResponses) {
+                    riljLog(rr.serialString() + "< " + requestToString(rr.mRequest)
+                            + " " + retToString(rr.mRequest, ret));
+                }
+            }
 
             if (rr.mResult != null) {
                 AsyncResult.forMessage(rr.mResult, ret, null);
@@ -2810,6 +2988,156 @@ public final class RIL extends BaseCommands implements CommandsInterface {
         return rr;
     }
 
+    /**
+     * Decodes the payload of a solicited response to the given request.
+     * Only the call list and preferred network type decoders change the
+     * state of this RIL, see ReplaySink.
+     */
+    private Object
+    decodeSolicited(int request, Parcel p) {
+        Object ret;
+        switch (request) {
+        /*
+ cat libs/telephony/ril_commands.h \
+ | egrep "^ *{RIL_" \
+ | sed -re 's/\{([^,]+),[^,]+,([^}]+).+/case \1: ret = \2(p); break;/'
+         */
+        case RIL_REQUEST_GET_SIM_STATUS: ret =  responseIccCardStatus(p); break;
+        case RIL_REQUEST_ENTER_SIM_PIN: ret =  responseInts(p); break;
+        case RIL_REQUEST_ENTER_SIM_PUK: ret =  responseInts(p); break;
+        case RIL_REQUEST_ENTER_SIM_PIN2: ret =  responseInts(p); break;
+        case RIL_REQUEST_ENTER_SIM_PUK2: ret =  responseInts(p); break;
+        case RIL_REQUEST_CHANGE_SIM_PIN: ret =  responseInts(p); break;
+        case RIL_REQUEST_CHANGE_SIM_PIN2: ret =  responseInts(p); break;
+        case RIL_REQUEST_ENTER_DEPERSONALIZATION_CODE: ret =  responseInts(p); break;
+        case RIL_REQUEST_GET_CURRENT_CALLS: ret =  responseCallList(p); break;
+        case RIL_REQUEST_DIAL: ret =  responseVoid(p); break;
+        case RIL_REQUEST_GET_IMSI: ret =  responseString(p); break;
+        case RIL_REQUEST_HANGUP: ret =  responseVoid(p); break;
+        case RIL_REQUEST_HANGUP_WAITING_OR_BACKGROUND: ret =  responseVoid(p); break;
+        case RIL_REQUEST_HANGUP_FOREGROUND_RESUME_BACKGROUND: ret =  responseVoid(p); break;
+        case RIL_REQUEST_SWITCH_WAITING_OR_HOLDING_AND_ACTIVE: ret =  responseVoid(p); break;
+        case RIL_REQUEST_CONFERENCE: ret =  responseVoid(p); break;
+        case RIL_REQUEST_UDUB: ret =  responseVoid(p); break;
+        case RIL_REQUEST_LAST_CALL_FAIL_CAUSE: ret =  responseInts(p); break;
+        case RIL_REQUEST_SIGNAL_STRENGTH: ret =  responseSignalStrength(p); break;
+        case RIL_REQUEST_VOICE_REGISTRATION_STATE: ret =  responseStrings(p); break;
+        case RIL_REQUEST_DATA_REGISTRATION_STATE: ret =  responseStrings(p); break;
+        case RIL_REQUEST_OPERATOR: ret =  responseStrings(p); break;
+        case RIL_REQUEST_RADIO_POWER: ret =  responseVoid(p); break;
+        case RIL_REQUEST_DTMF: ret =  responseVoid(p); break;
+        case RIL_REQUEST_SEND_SMS: ret =  responseSMS(p); break;
+        case RIL_REQUEST_SEND_SMS_EXPECT_MORE: ret =  responseSMS(p); break;
+        case RIL_REQUEST_SETUP_DATA_CALL: ret =  responseSetupDataCall(p); break;
+        case RIL_REQUEST_SIM_IO: ret =  responseICC_IO(p); break;
+        case RIL_REQUEST_SEND_USSD: ret =  responseVoid(p); break;
+        case RIL_REQUEST_CANCEL_USSD: ret =  responseVoid(p); break;
+        case RIL_REQUEST_GET_CLIR: ret =  responseInts(p); break;
+        case RIL_REQUEST_SET_CLIR: ret =  responseVoid(p); break;
+        case RIL_REQUEST_QUERY_CALL_FORWARD_STATUS: ret =  responseCallForward(p); break;
+        case RIL_REQUEST_SET_CALL_FORWARD: ret =  responseVoid(p); break;
+        case RIL_REQUEST_QUERY_CALL_WAITING: ret =  responseInts(p); break;
+        case RIL_REQUEST_SET_CALL_WAITING: ret =  responseVoid(p); break;
+        case RIL_REQUEST_SMS_ACKNOWLEDGE: ret =  responseVoid(p); break;
+        case RIL_REQUEST_GET_IMEI: ret =  responseString(p); break;
+        case RIL_REQUEST_GET_IMEISV: ret =  responseString(p); break;
+        case RIL_REQUEST_ANSWER: ret =  responseVoid(p); break;
+        case RIL_REQUEST_DEACTIVATE_DATA_CALL: ret =  responseVoid(p); break;
+        case RIL_REQUEST_QUERY_FACILITY_LOCK: ret =  responseInts(p); break;
+        case RIL_REQUEST_SET_FACILITY_LOCK: ret =  responseInts(p); break;
+        case RIL_REQUEST_CHANGE_BARRING_PASSWORD: ret =  responseVoid(p); break;
+        case RIL_REQUEST_QUERY_NETWORK_SELECTION_MODE: ret =  responseInts(p); break;
+        case RIL_REQUEST_SET_NETWORK_SELECTION_AUTOMATIC: ret =  responseVoid(p); break;
+        case RIL_REQUEST_SET_NETWORK_SELECTION_MANUAL: ret =  responseVoid(p); break;
+        case RIL_REQUEST_QUERY_AVAILABLE_NETWORKS : ret =  responseOperatorInfos(p); break;
+        case RIL_REQUEST_DTMF_START: ret =  responseVoid(p); break;
+        case RIL_REQUEST_DTMF_STOP: ret =  responseVoid(p); break;
+        case RIL_REQUEST_BASEBAND_VERSION: ret =  responseString(p); break;
+        case RIL_REQUEST_SEPARATE_CONNECTION: ret =  responseVoid(p); break;
+        case RIL_REQUEST_SET_MUTE: ret =  responseVoid(p); break;
+        case RIL_REQUEST_GET_MUTE: ret =  responseInts(p); break;
+        case RIL_REQUEST_QUERY_CLIP: ret =  responseInts(p); break;
+        case RIL_REQUEST_LAST_DATA_CALL_FAIL_CAUSE: ret =  responseInts(p); break;
+        case RIL_REQUEST_DATA_CALL_LIST: ret =  responseDataCallList(p); break;
+        case RIL_REQUEST_RESET_RADIO: ret =  responseVoid(p); break;
+        case RIL_REQUEST_OEM_HOOK_RAW: ret =  responseRaw(p); break;
+        case RIL_REQUEST_OEM_HOOK_STRINGS: ret =  responseStrings(p); break;
+        case RIL_REQUEST_SCREEN_STATE: ret =  responseVoid(p); break;
+        case RIL_REQUEST_SET_SUPP_SVC_NOTIFICATION: ret =  responseVoid(p); break;
+        case RIL_REQUEST_WRITE_SMS_TO_SIM: ret =  responseInts(p); break;
+        case RIL_REQUEST_DELETE_SMS_ON_SIM: ret =  responseVoid(p); break;
+        case RIL_REQUEST_SET_BAND_MODE: ret =  responseVoid(p); break;
+        case RIL_REQUEST_QUERY_AVAILABLE_BAND_MODE: ret =  responseInts(p); break;
+        case RIL_REQUEST_STK_GET_PROFILE: ret =  responseString(p); break;
+        case RIL_REQUEST_STK_SET_PROFILE: ret =  responseVoid(p); break;
+        case RIL_REQUEST_STK_SEND_ENVELOPE_COMMAND: ret =  responseString(p); break;
+        case RIL_REQUEST_STK_SEND_TERMINAL_RESPONSE: ret =  responseVoid(p); break;
+        case RIL_REQUEST_STK_HANDLE_CALL_SETUP_REQUESTED_FROM_SIM: ret =  responseInts(p); break;
+        case RIL_REQUEST_EXPLICIT_CALL_TRANSFER: ret =  responseVoid(p); break;
+        case RIL_REQUEST_SET_PREFERRED_NETWORK_TYPE: ret =  responseVoid(p); break;
+        case RIL_REQUEST_GET_PREFERRED_NETWORK_TYPE: ret =  responseGetPreferredNetworkType(p); break;
+        case RIL_REQUEST_GET_NEIGHBORING_CELL_IDS: ret = responseCellList(p); break;
+        case RIL_REQUEST_SET_LOCATION_UPDATES: ret =  responseVoid(p); break;
+        case RIL_REQUEST_CDMA_SET_SUBSCRIPTION_SOURCE: ret =  responseVoid(p); break;
+        case RIL_REQUEST_CDMA_SET_ROAMING_PREFERENCE: ret =  responseVoid(p); break;
+        case RIL_REQUEST_CDMA_QUERY_ROAMING_PREFERENCE: ret =  responseInts(p); break;
+        case RIL_REQUEST_SET_TTY_MODE: ret =  responseVoid(p); break;
+        case RIL_REQUEST_QUERY_TTY_MODE: ret =  responseInts(p); break;
+        case RIL_REQUEST_CDMA_SET_PREFERRED_VOICE_PRIVACY_MODE: ret =  responseVoid(p); break;
+        case RIL_REQUEST_CDMA_QUERY_PREFERRED_VOICE_PRIVACY_MODE: ret =  responseInts(p); break;
+        case RIL_REQUEST_CDMA_FLASH: ret =  responseVoid(p); break;
+        case RIL_REQUEST_CDMA_BURST_DTMF: ret =  responseVoid(p); break;
+        case RIL_REQUEST_CDMA_SEND_SMS: ret =  responseSMS(p); break;
+        case RIL_REQUEST_CDMA_SMS_ACKNOWLEDGE: ret =  responseVoid(p); break;
+        case RIL_REQUEST_GSM_GET_BROADCAST_CONFIG: ret =  responseGmsBroadcastConfig(p); break;
+        case RIL_REQUEST_GSM_SET_BROADCAST_CONFIG: ret =  responseVoid(p); break;
+        case RIL_REQUEST_GSM_BROADCAST_ACTIVATION: ret =  responseVoid(p); break;
+        case RIL_REQUEST_CDMA_GET_BROADCAST_CONFIG: ret =  responseCdmaBroadcastConfig(p); break;
+        case RIL_REQUEST_CDMA_SET_BROADCAST_CONFIG: ret =  responseVoid(p); break;
+        case RIL_REQUEST_CDMA_BROADCAST_ACTIVATION: ret =  responseVoid(p); break;
+        case RIL_REQUEST_CDMA_VALIDATE_AND_WRITE_AKEY: ret =  responseVoid(p); break;
+        case RIL_REQUEST_CDMA_SUBSCRIPTION: ret =  responseStrings(p); break;
+        case RIL_REQUEST_CDMA_WRITE_SMS_TO_RUIM: ret =  responseInts(p); break;
+        case RIL_REQUEST_CDMA_DELETE_SMS_ON_RUIM: ret =  responseVoid(p); break;
+        case RIL_REQUEST_DEVICE_IDENTITY: ret =  responseStrings(p); break;
+        case RIL_REQUEST_GET_SMSC_ADDRESS: ret = responseString(p); break;
+        case RIL_REQUEST_SET_SMSC_ADDRESS: ret = responseVoid(p); break;
+        case RIL_REQUEST_EXIT_EMERGENCY_CALLBACK_MODE: ret = responseVoid(p); break;
+        case RIL_REQUEST_REPORT_SMS_MEMORY_STATUS: ret = responseVoid(p); break;
+        case RIL_REQUEST_REPORT_STK_SERVICE_IS_RUNNING: ret = responseVoid(p); break;
+        case RIL_REQUEST_CDMA_GET_SUBSCRIPTION_SOURCE: ret =  responseInts(p); break;
+        case RIL_REQUEST_GET_DATA_CALL_PROFILE: ret =  responseGetDataCallProfile(p); break;
+        case RIL_REQUEST_ISIM_AUTHENTICATION: ret =  responseString(p); break;
+        case RIL_REQUEST_ACKNOWLEDGE_INCOMING_GSM_SMS_WITH_PDU: ret = responseVoid(p); break;
+        case RIL_REQUEST_STK_SEND_ENVELOPE_WITH_STATUS: ret = responseICC_IO(p); break;
+        case RIL_REQUEST_VOICE_RADIO_TECH: ret = responseInts(p); break;
+        case RIL_REQUEST_GET_CELL_INFO_LIST: ret = responseCellInfoList(p); break;
+        case RIL_REQUEST_SET_UNSOL_CELL_INFO_LIST_RATE: ret = responseVoid(p); break;
+        case RIL_REQUEST_SET_INITIAL_ATTACH_APN: ret = responseVoid(p); break;
+        case RIL_REQUEST_SET_DATA_PROFILE: ret = responseVoid(p); break;
+        case RIL_REQUEST_IMS_REGISTRATION_STATE: ret = responseInts(p); break;
+        case RIL_REQUEST_IMS_SEND_SMS: ret =  responseSMS(p); break;
+        case RIL_REQUEST_SIM_TRANSMIT_APDU_BASIC: ret =  responseICC_IO(p); break;
+        case RIL_REQUEST_SIM_OPEN_CHANNEL: ret  = responseInts(p); break;
+        case RIL_REQUEST_SIM_CLOSE_CHANNEL: ret  = responseVoid(p); break;
+        case RIL_REQUEST_SIM_TRANSMIT_APDU_CHANNEL: ret = responseICC_IO(p); break;
+        case RIL_REQUEST_SIM_GET_ATR: ret = responseString(p); break;
+        case RIL_REQUEST_NV_READ_ITEM: ret = responseString(p); break;
+        case RIL_REQUEST_NV_WRITE_ITEM: ret = responseVoid(p); break;
+        case RIL_REQUEST_NV_WRITE_CDMA_PRL: ret = responseVoid(p); break;
+        case RIL_REQUEST_NV_RESET_CONFIG: ret = responseVoid(p); break;
+        case RIL_REQUEST_SET_UICC_SUBSCRIPTION: ret = responseVoid(p); break;
+        case RIL_REQUEST_ALLOW_DATA: ret = responseVoid(p); break;
+        case RIL_REQUEST_GET_HARDWARE_CONFIG: ret = responseHardwareConfig(p); break;
+        case RIL_REQUEST_SIM_AUTHENTICATION: ret =  responseICC_IOBase64(p); break;
+        case RIL_REQUEST_SHUTDOWN: ret = responseVoid(p); break;
+        default:
+            throw new RuntimeException("Unrecognized solicited response: " + request);
+        //break;
+        }
+        return ret;
+    }
+
     static String
     retToString(int req, Object ret) {
         if (ret == null) return "";
@@ -2884,14 +3212,14 @@ public final class RIL extends BaseCommands implements CommandsInterface {
         return s;
     }
 
-    private void
-    processUnsolicited (Parcel p) {
-        int response;
+    /**
+     * Decodes the payload of an unsolicited response. Any extra fields are
+     * left in p for processUnsolicited.
+     */
+    private Object
+    decodeUnsolicited(int response, Parcel p) {
         Object ret;
-
-        response = p.readInt();
-
-        try {switch(response) {
+        switch(response) {
 /*
  cat libs/telephony/ril_unsol_commands.h \
  | egrep "^ *{RIL_" \
@@ -2944,7 +3272,20 @@ public final class RIL extends BaseCommands implements CommandsInterface {
             default:
                 throw new RuntimeException("Unrecognized unsol response: " + response);
             //break; (implied)
-        }} catch (Throwable tr) {
+        }
+        return ret;
+    }
+
+    private void
+    processUnsolicited (Parcel p) {
+        int response;
+        Object ret;
+
+        response = p.readInt();
+
+        try {
+            ret = decodeUnsolicited(response, p);
+        } catch (Throwable tr) {
             Rlog.e(RILJ_LOG_TAG, "Exception processing unsol response: " + response +
                 "Exception:" + tr.toString());
             return;
@@ -2973,8 +3314,8 @@ public final class RIL extends BaseCommands implements CommandsInterface {
             case RIL_UNSOL_RESPONSE_VOICE_NETWORK_STATE_CHANGED:
                 if (RILJ_LOGD) unsljLog(response);
 
-                mVoiceNetworkStateRegistrants
-                    .notifyRegistrants(new AsyncResult(null, null, null));
+                if (mUnsolCoalescer.offer(response, ret)) break;
+                notifyCoalescableUnsol(response, ret);
             break;
             case RIL_UNSOL_RESPONSE_NEW_SMS: {
                 if (RILJ_LOGD) unsljLog(response);
@@ -3064,10 +3405,8 @@ public final class RIL extends BaseCommands implements CommandsInterface {
                 // frequently
                 if (RILJ_LOGV) unsljLogvRet(response, ret);
 
-                if (mSignalStrengthRegistrant != null) {
-                    mSignalStrengthRegistrant.notifyRegistrant(
-                                        new AsyncResult (null, ret, null));
-                }
+                if (mUnsolCoalescer.offer(response, ret)) break;
+                notifyCoalescableUnsol(response, ret);
             break;
             case RIL_UNSOL_DATA_CALL_LIST_CHANGED:
                 if (RILJ_LOGD) unsljLogRet(response, ret);
@@ -3313,10 +3652,8 @@ public final class RIL extends BaseCommands implements CommandsInterface {
             case RIL_UNSOL_CELL_INFO_LIST: {
                 if (RILJ_LOGD) unsljLogRet(response, ret);
 
-                if (mRilCellInfoListRegistrants != null) {
-                    mRilCellInfoListRegistrants.notifyRegistrants(
-                                        new AsyncResult (null, ret, null));
-                }
+                if (mUnsolCoalescer.offer(response, ret)) break;
+                notifyCoalescableUnsol(response, ret);
                 break;
             }
             case RIL_UNSOL_UICC_SUBSCRIPTION_STATUS_CHANGED: {
@@ -3364,6 +3701,38 @@ public final class RIL extends BaseCommands implements CommandsInterface {
         }
     }
 
+    /**
+     * Notifies the registrants of an indication that may be rate limited by
+     * mUnsolCoalescer. Runs on the receiver thread, or on the sender thread
+     * for indications the coalescer held back.
+     */
+    private void notifyCoalescableUnsol(int response, Object ret) {
+        switch (response) {
+            case RIL_UNSOL_RESPONSE_VOICE_NETWORK_STATE_CHANGED:
+                mVoiceNetworkStateRegistrants
+                    .notifyRegistrants(new AsyncResult(null, null, null));
+                break;
+
+            case RIL_UNSOL_SIGNAL_STRENGTH:
+                if (mSignalStrengthRegistrant != null) {
+                    mSignalStrengthRegistrant.notifyRegistrant(
+                                        new AsyncResult (null, ret, null));
+                }
+                break;
+
+            case RIL_UNSOL_CELL_INFO_LIST:
+                if (mRilCellInfoListRegistrants != null) {
+                    mRilCellInfoListRegistrants.notifyRegistrants(
+                                        new AsyncResult (null, ret, null));
+                }
+                break;
+
+            default:
+                Rlog.e(RILJ_LOG_TAG, "Unexpected coalesced response " + response);
+                break;
+        }
+    }
+
     /**
      * Notifiy all registrants that the ril has connected or disconnected.
      *
@@ -3686,61 +4055,20 @@ public final class RIL extends BaseCommands implements CommandsInterface {
 
     private Object
     responseCallList(Parcel p) {
-        int num;
-        int voiceSettings;
-        ArrayList<DriverCall> response;
-        DriverCall dc;
-
-        num = p.readInt();
-        response = new ArrayList<DriverCall>(num);
+        DriverCallList response = mCallListDecoder.decode(p, mFrame, mFrameOffset, mFrameLength);
+        int num = response.size();
 
         if (RILJ_LOGV) {
             riljLog("responseCallList: num=" + num +
+                    " generation=" + response.getGeneration() +
+                    " changed=" + response.getChangedCount() +
                     " mEmergencyCallbackModeRegistrant=" + mEmergencyCallbackModeRegistrant +
                     " mTestingEmergencyCall=" + mTestingEmergencyCall.get());
         }
-        for (int i = 0 ; i < num ; i++) {
-            dc = new DriverCall();
-
-            dc.state = DriverCall.stateFromCLCC(p.readInt());
-            dc.index = p.readInt();
-            dc.TOA = p.readInt();
-            dc.isMpty = (0 != p.readInt());
-            dc.isMT = (0 != p.readInt());
-            dc.als = p.readInt();
-            voiceSettings = p.readInt();
-            dc.isVoice = (0 == voiceSettings) ? false : true;
-            dc.isVoicePrivacy = (0 != p.readInt());
-            dc.number = p.readString();
-            int np = p.readInt();
-            dc.numberPresentation = DriverCall.presentationFromCLIP(np);
-            dc.name = p.readString();
-            // according to ril.h, namePresentation should be handled as numberPresentation;
-            dc.namePresentation = DriverCall.presentationFromCLIP(p.readInt());
-            int uusInfoPresent = p.readInt();
-            if (uusInfoPresent == 1) {
-                dc.uusInfo = new UUSInfo();
-                dc.uusInfo.setType(p.readInt());
-                dc.uusInfo.setDcs(p.readInt());
-                byte[] userData = p.createByteArray();
-                dc.uusInfo.setUserData(userData);
-                riljLogv(String.format("Incoming UUS : type=%d, dcs=%d, length=%d",
-                                dc.uusInfo.getType(), dc.uusInfo.getDcs(),
-                                dc.uusInfo.getUserData().length));
-                riljLogv("Incoming UUS : data (string)="
-                        + new String(dc.uusInfo.getUserData()));
-                riljLogv("Incoming UUS : data (hex): "
-                        + IccUtils.bytesToHexString(dc.uusInfo.getUserData()));
-            } else {
-                riljLogv("Incoming UUS : NOT present!");
-            }
-
-            // Make sure there's a leading + on addresses with a TOA of 145
-            dc.number = PhoneNumberUtils.stringFromStringAndTOA(dc.number, dc.TOA);
 
-            response.add(dc);
-
-            if (dc.isVoicePrivacy) {
+        // Reported for every call on every poll, changed or not, as listeners expect
+        for (int i = 0; i < num; i++) {
+            if (response.get(i).isVoicePrivacy) {
                 mVoicePrivacyOnRegistrants.notifyRegistrants();
                 riljLog("InCall VoicePrivacy is enabled");
             } else {
@@ -3749,8 +4077,6 @@ public final class RIL extends BaseCommands implements CommandsInterface {
             }
         }
 
-        Collections.sort(response);
-
         if ((num == 0) && mTestingEmergencyCall.getAndSet(false)) {
             if (mEmergencyCallbackModeRegistrant != null) {
                 riljLog("responseCallList: call ended, testing emergency call," +
@@ -4427,7 +4753,8 @@ public final class RIL extends BaseCommands implements CommandsInterface {
     }
 
     private void unsljLog(int response) {
-        riljLog("[UNSL]< " + responseToString(response));
+        mResponseLog.recordUnsol(response, null);
+        if (mLogResponses) riljLog("[UNSL]< " + responseToString(response));
     }
 
     private void unsljLogMore(int response, String more) {
@@ -4435,7 +4762,10 @@ public final class RIL extends BaseCommands implements CommandsInterface {
     }
 
     private void unsljLogRet(int response, Object ret) {
-        riljLog("[UNSL]< " + responseToString(response) + " " + retToString(response, ret));
+        mResponseLog.recordUnsol(response, ret);
+        if (mLogResponses) {
+            riljLog("[UNSL]< " + responseToString(response) + " " + retToString(response, ret));
+        }
     }
 
     private void unsljLogvRet(int response, Object ret) {
@@ -4784,21 +5114,28 @@ public final class RIL extends BaseCommands implements CommandsInterface {
         pw.println(" mSocket=" + mSocket);
         pw.println(" mSenderThread=" + mSenderThread);
         pw.println(" mSender=" + mSender);
+        mSender.dump(pw);
         pw.println(" mReceiverThread=" + mReceiverThread);
         pw.println(" mReceiver=" + mReceiver);
         pw.println(" mWakeLock=" + mWakeLock);
         pw.println(" mWakeLockTimeout=" + mWakeLockTimeout);
-        synchronized (mRequestList) {
-            synchronized (mWakeLock) {
-                pw.println(" mWakeLockCount=" + mWakeLockCount);
-            }
-            int count = mRequestList.size();
-            pw.println(" mRequestList count=" + count);
-            for (int i = 0; i < count; i++) {
-                RILRequest rr = mRequestList.valueAt(i);
-                pw.println("  [" + rr.mSerial + "] " + requestToString(rr.mRequest));
-            }
+        synchronized (mWakeLock) {
+            pw.println(" mWakeLockCount=" + mWakeLockCount);
+        }
+        ArrayList<RILRequest> pending = new ArrayList<RILRequest>();
+        int count = mRequestList.snapshot(pending);
+        pw.println(" mRequestList count=" + count + " capacity=" + mRequestList.capacity()
+                + " maxProbe=" + mRequestList.maxProbe());
+        for (int i = 0; i < count; i++) {
+            RILRequest rr = pending.get(i);
+            pw.println("  [" + rr.mSerial + "] " + requestToString(rr.mRequest));
         }
+        RILRequest.dumpPool(pw);
+        mMetrics.dump(pw);
+        mResponseLog.dump(pw);
+        mUnsolCoalescer.dump(pw);
+        mCallListDecoder.dump(pw);
+        pw.println(" mRecorder=" + mRecorder);
         pw.println(" mLastNITZTimeInfo=" + mLastNITZTimeInfo);
         pw.println(" mTestingEmergencyCall=" + mTestingEmergencyCall.get());
     }
@@ -0,0 +1,149 @@
+/*
+ * Copyright (C) 2014 The Android Open Source Project
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *      http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+
+package com.android.internal.telephony;
+
+import android.content.ContentProviderOperation;
+import android.content.ContentProviderResult;
+import android.content.ContentResolver;
+import android.content.OperationApplicationException;
+import android.database.SQLException;
+import android.net.Uri;
+import android.os.RemoteException;
+import android.telephony.Rlog;
+
+import java.util.ArrayList;
+
+/**
+ * Deletes rows of the raw table of the SMS provider in a single provider call, for the
+ * incomplete messages that expired while the device was off, found by
+ * {@link SmsBroadcastUndelivered} at startup.
+ *
+ * Deletes are collected with {@link #delete} and applied by {@link #flush}. If the batch
+ * fails, they are applied one call at a time. Delivered messages are deleted by
+ * {@link InboundSmsHandler} right away instead, so a restart never delivers them again.
+ *
+ * Inserts are not grouped: a segment is only acknowledged to the SMSC once it is stored, and
+ * the next one is not received before that, so there is never a second insert to group with.
+ *
+ * Not thread safe, used from the startup thread only.
+ */
+class RawTableWriter {
+    private static final String TAG = "RawTableWriter";
+    private static final boolean DBG = InboundSmsHandler.DBG;
+
+    private final ContentResolver mResolver;
+    private final Uri mUri;
+
+    private final ArrayList<String> mDeleteWheres = new ArrayList<String>();
+    private final ArrayList<String[]> mDeleteWhereArgs = new ArrayList<String[]>();
+
+    /**
+     * @param resolver the resolver to write with
+     * @param uri the raw table Uri
+     */
+    RawTableWriter(ContentResolver resolver, Uri uri) {
+        mResolver = resolver;
+        mUri = uri;
+    }
+
+    /**
+     * Delete rows with the next flush().
+     */
+    void delete(String deleteWhere, String[] deleteWhereArgs) {
+        mDeleteWheres.add(deleteWhere);
+        mDeleteWhereArgs.add(deleteWhereArgs);
+    }
+
+    /**
+     * Apply the pending deletes now.
+     */
+    void flush() {
+        if (mDeleteWheres.size() == 1) {
+            deleteEach();
+        } else if (!mDeleteWheres.isEmpty()) {
+            ArrayList<ContentProviderOperation> ops = buildDeletes();
+            ContentProviderResult[] results = applyBatch(ops);
+            if (results == null) {
+                // Apply them one at a time, deletes can be repeated
+                deleteEach();
+            } else {
+                clearDeletes();
+                logDeletes(results, ops.size());
+            }
+        }
+    }
+
+    /**
+     * @return the number of deletes waiting
+     */
+    int getPendingDeleteCount() {
+        return mDeleteWheres.size();
+    }
+
+    private ArrayList<ContentProviderOperation> buildDeletes() {
+        ArrayList<ContentProviderOperation> ops =
+                new ArrayList<ContentProviderOperation>(mDeleteWheres.size());
+        for (int i = 0; i < mDeleteWheres.size(); i++) {
+            ops.add(ContentProviderOperation.newDelete(mUri)
+                    .withSelection(mDeleteWheres.get(i), mDeleteWhereArgs.get(i))
+                    .build());
+        }
+        return ops;
+    }
+
+    private void deleteEach() {
+        for (int i = 0; i < mDeleteWheres.size(); i++) {
+            logDelete(mResolver.delete(mUri, mDeleteWheres.get(i), mDeleteWhereArgs.get(i)));
+        }
+        clearDeletes();
+    }
+
+    private void clearDeletes() {
+        mDeleteWheres.clear();
+        mDeleteWhereArgs.clear();
+    }
+
+    /**
+     * @return the results, or null if the batch failed and its operations may not be applied
+     */
+    private ContentProviderResult[] applyBatch(ArrayList<ContentProviderOperation> ops) {
+        try {
+            return mResolver.applyBatch(mUri.getAuthority(), ops);
+        } catch (RemoteException e) {
+            Rlog.e(TAG, "Failed to apply " + ops.size() + " raw table operations", e);
+        } catch (OperationApplicationException e) {
+            Rlog.e(TAG, "Failed to apply " + ops.size() + " raw table operations", e);
+        } catch (SQLException e) {
+            Rlog.e(TAG, "Failed to apply " + ops.size() + " raw table operations", e);
+        }
+        return null;
+    }
+
+    private static void logDeletes(ContentProviderResult[] results, int count) {
+        for (int i = 0; i < count; i++) {
+            logDelete((results[i].count != null) ? results[i].count : 0);
+        }
+    }
+
+    private static void logDelete(int rows) {
+        if (rows == 0) {
+            Rlog.e(TAG, "No rows were deleted from raw table!");
+        } else if (DBG) {
+            Rlog.d(TAG, "Deleted " + rows + " rows from raw table.");
+        }
+    }
+}
@@ -0,0 +1,202 @@
+/*
+ * Copyright (C) 2014 The Android Open Source Project
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *      http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+
+package com.android.internal.telephony;
+
+import java.io.IOException;
+import java.io.InputStream;
+
+/**
+ * Splits the byte stream read from the rild socket into RIL messages.
+ *
+ * A RIL message consists of a 4-byte big-endian length followed by the
+ * marshalled Parcel. Data is read from the {@link Source} into a single
+ * reusable buffer in chunks as large as the buffer allows, so one read
+ * usually yields several messages and each message is handed to the
+ * {@link FrameHandler} in place, without being copied out of the buffer.
+ *
+ * The buffer starts at {@link RIL#RIL_MAX_COMMAND_BYTES} and grows on
+ * demand for messages that do not fit, up to {@link #MAX_FRAME_BYTES}.
+ * Once a large message has been consumed the buffer drops back to its
+ * initial size.
+ *
+ * {@hide}
+ */
+class RilFrameReader {
+    static final int HEADER_SIZE = 4;
+
+    /** Largest message accepted; anything bigger means the stream is corrupt */
+    static final int MAX_FRAME_BYTES = 1024 * 1024;
+
+    /**
+     * Byte source the frames are read from. Follows the contract of
+     * {@link InputStream#read(byte[], int, int)}.
+     */
+    interface Source {
+        int read(byte[] buffer, int offset, int count) throws IOException;
+    }
+
+    /**
+     * Receives each decoded message. The bytes are only valid for the
+     * duration of the call.
+     */
+    interface FrameHandler {
+        void onFrame(byte[] buffer, int offset, int length);
+    }
+
+    static Source fromInputStream(final InputStream is) {
+        return new Source() {
+            @Override
+            public int read(byte[] buffer, int offset, int count) throws IOException {
+                return is.read(buffer, offset, count);
+            }
+        };
+    }
+
+    private final Source mSource;
+    private final int mInitialCapacity;
+    private final int mMaxFrameBytes;
+
+    private byte[] mBuffer;
+    // Unconsumed bytes are in [mStart, mEnd)
+    private int mStart;
+    private int mEnd;
+
+    // Statistics, only touched by the reading thread
+    private long mReadCount;
+    private long mFrameCount;
+    private long mByteCount;
+    private int mLargestFrame;
+
+    RilFrameReader(Source source) {
+        this(source, RIL.RIL_MAX_COMMAND_BYTES, MAX_FRAME_BYTES);
+    }
+
+    RilFrameReader(Source source, int initialCapacity, int maxFrameBytes) {
+        if (initialCapacity < HEADER_SIZE || maxFrameBytes < initialCapacity - HEADER_SIZE) {
+            throw new IllegalArgumentException("initialCapacity=" + initialCapacity
+                    + " maxFrameBytes=" + maxFrameBytes);
+        }
+        mSource = source;
+        mInitialCapacity = initialCapacity;
+        mMaxFrameBytes = maxFrameBytes;
+        mBuffer = new byte[initialCapacity];
+    }
+
+    /**
+     * Reads from the source until at least one complete message is
+     * available, then delivers every complete message currently buffered.
+     *
+     * @return the number of messages delivered, or -1 on end of stream
+     * @throws IOException on a read failure or a corrupt length header
+     */
+    int readFrames(FrameHandler handler) throws IOException {
+        int frames = 0;
+
+        for (;;) {
+            while (mEnd - mStart >= HEADER_SIZE) {
+                int length = peekLength();
+                if (length < 0 || length > mMaxFrameBytes) {
+                    throw new IOException("Invalid RIL message length " + length);
+                }
+                if (mEnd - mStart - HEADER_SIZE < length) {
+                    break;
+                }
+
+                handler.onFrame(mBuffer, mStart + HEADER_SIZE, length);
+                mStart += HEADER_SIZE + length;
+                frames++;
+                mFrameCount++;
+                mByteCount += length;
+                if (length > mLargestFrame) {
+                    mLargestFrame = length;
+                }
+            }
+
+            if (frames > 0) {
+                compact();
+                return frames;
+            }
+
+            makeRoom();
+            int count = mSource.read(mBuffer, mEnd, mBuffer.length - mEnd);
+            if (count < 0) {
+                return -1;
+            }
+            mReadCount++;
+            mEnd += count;
+        }
+    }
+
+    /** Drops any partially read message, e.g. after the socket was reconnected */
+    void reset() {
+        mStart = mEnd = 0;
+        if (mBuffer.length != mInitialCapacity) {
+            mBuffer = new byte[mInitialCapacity];
+        }
+    }
+
+    int getCapacity() {
+        return mBuffer.length;
+    }
+
+    @Override
+    public String toString() {
+        return "RilFrameReader{reads=" + mReadCount + " frames=" + mFrameCount
+                + " bytes=" + mByteCount + " largestFrame=" + mLargestFrame
+                + " capacity=" + mBuffer.length + "}";
+    }
+
+    private int peekLength() {
+        return ((mBuffer[mStart] & 0xff) << 24)
+                | ((mBuffer[mStart + 1] & 0xff) << 16)
+                | ((mBuffer[mStart + 2] & 0xff) << 8)
+                | (mBuffer[mStart + 3] & 0xff);
+    }
+
+    /** Called after delivering frames; cheap unless bytes of the next frame are pending */
+    private void compact() {
+        if (mStart == mEnd) {
+            mStart = mEnd = 0;
+            if (mBuffer.length != mInitialCapacity) {
+                // Don't hold on to the memory of a single oversized message
+                mBuffer = new byte[mInitialCapacity];
+            }
+        }
+    }
+
+    /** Ensures there is space to read the rest of the message at mStart */
+    private void makeRoom() {
+        int needed = HEADER_SIZE;
+        if (mEnd - mStart >= HEADER_SIZE) {
+            needed += peekLength();
+        }
+
+        if (needed > mBuffer.length) {
+            int capacity = Math.max(needed, Math.min(mBuffer.length * 2,
+                    mMaxFrameBytes + HEADER_SIZE));
+            byte[] buffer = new byte[capacity];
+            System.arraycopy(mBuffer, mStart, buffer, 0, mEnd - mStart);
+            mBuffer = buffer;
+            mEnd -= mStart;
+            mStart = 0;
+        } else if (mEnd == mBuffer.length || mBuffer.length - mStart < needed) {
+            System.arraycopy(mBuffer, mStart, mBuffer, 0, mEnd - mStart);
+            mEnd -= mStart;
+            mStart = 0;
+        }
+    }
+}
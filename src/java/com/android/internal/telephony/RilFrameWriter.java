@@ -0,0 +1,101 @@
+/*
+ * Copyright (C) 2014 The Android Open Source Project
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *      http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+
+package com.android.internal.telephony;
+
+import java.io.IOException;
+import java.io.OutputStream;
+
+/**
+ * Frames RIL requests for the rild socket, the counterpart of
+ * {@link RilFrameReader}: a 4-byte big-endian length followed by the
+ * marshalled Parcel.
+ *
+ * {@link #writeFrame} writes a single request. In batched send mode the
+ * requests are appended to one reusable buffer and written together with
+ * {@link #writeTo}, which produces the same bytes as writing each request
+ * with {@link #writeFrame}.
+ *
+ * {@hide}
+ */
+class RilFrameWriter {
+    static final int HEADER_SIZE = RilFrameReader.HEADER_SIZE;
+
+    private byte[] mBuffer;
+    private int mLength;
+    private int mFrameCount;
+
+    RilFrameWriter(int initialCapacity) {
+        mBuffer = new byte[initialCapacity];
+    }
+
+    /**
+     * Write the length header of a frame into header, which must hold
+     * {@link #HEADER_SIZE} bytes.
+     */
+    static void putHeader(byte[] header, int offset, int length) {
+        // parcel length in big endian
+        header[offset] = header[offset + 1] = 0;
+        header[offset + 2] = (byte)((length >> 8) & 0xff);
+        header[offset + 3] = (byte)((length) & 0xff);
+    }
+
+    /**
+     * Write one frame, using header as scratch space for the length.
+     */
+    static void writeFrame(OutputStream out, byte[] header, byte[] data)
+            throws IOException {
+        putHeader(header, 0, data.length);
+        out.write(header);
+        out.write(data);
+    }
+
+    /**
+     * Append a frame to the batch, growing the buffer if needed.
+     */
+    void append(byte[] data) {
+        int needed = mLength + HEADER_SIZE + data.length;
+        if (needed > mBuffer.length) {
+            byte[] buffer = new byte[Math.max(needed, mBuffer.length * 2)];
+            System.arraycopy(mBuffer, 0, buffer, 0, mLength);
+            mBuffer = buffer;
+        }
+        putHeader(mBuffer, mLength, data.length);
+        System.arraycopy(data, 0, mBuffer, mLength + HEADER_SIZE, data.length);
+        mLength = needed;
+        mFrameCount++;
+    }
+
+    /**
+     * Write the batch with a single write, if it is not empty.
+     */
+    void writeTo(OutputStream out) throws IOException {
+        if (mLength > 0) {
+            out.write(mBuffer, 0, mLength);
+        }
+    }
+
+    /** @return the number of frames in the batch */
+    int getFrameCount() {
+        return mFrameCount;
+    }
+
+    /** Empty the batch, keeping the buffer. */
+    void reset() {
+        mLength = 0;
+        mFrameCount = 0;
+    }
+}
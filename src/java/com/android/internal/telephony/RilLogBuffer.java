@@ -0,0 +1,186 @@
+/*
+ * Copyright (C) 2014 The Android Open Source Project
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *      http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+
+package com.android.internal.telephony;
+
+import android.telephony.SignalStrength;
+import android.util.TimeUtils;
+
+import java.io.PrintWriter;
+
+/**
+ * Fixed-size history of RIL responses that defers all string formatting
+ * until the history is dumped.
+ *
+ * Recording stores the request or response code, the serial and the
+ * decoded result in a preallocated slot. Results are handed on to their
+ * receivers, which may change them, and a call list may be shared between
+ * polls, so only immutable results are kept as they are. Arrays and
+ * signal strengths, the most frequent indications, are copied, which is
+ * cheaper than converting them to text. Any other result is formatted
+ * when it is recorded, so a dump never prints a later state of an object
+ * under an earlier time.
+ *
+ * {@hide}
+ */
+class RilLogBuffer {
+    private static final int NO_SERIAL = -1;
+
+    private static final class Entry {
+        long mTime;
+        boolean mUnsol;
+        int mCode;
+        int mSerial;
+        int mError;
+        // Immutable result or a copy of it, formatted at dump time
+        Object mRet;
+        // Result formatted when it was recorded, if it could not be kept
+        String mText;
+    }
+
+    private final Entry[] mEntries;
+    // Slot the next record goes to
+    private int mNext;
+    private long mTotal;
+
+    RilLogBuffer(int capacity) {
+        mEntries = new Entry[capacity];
+        for (int i = 0; i < capacity; i++) {
+            mEntries[i] = new Entry();
+        }
+    }
+
+    void recordResponse(int serial, int request, int error, Object ret) {
+        record(false, request, serial, error, ret);
+    }
+
+    void recordUnsol(int response, Object ret) {
+        record(true, response, NO_SERIAL, 0, ret);
+    }
+
+    private void record(boolean unsol, int code, int serial, int error, Object ret) {
+        long time = System.currentTimeMillis();
+        Object kept = copy(ret);
+        String text = null;
+        if (kept == null && ret != null) {
+            text = RIL.retToString(code, ret);
+        }
+
+        synchronized (this) {
+            Entry e = mEntries[mNext];
+            e.mTime = time;
+            e.mUnsol = unsol;
+            e.mCode = code;
+            e.mSerial = serial;
+            e.mError = error;
+            e.mRet = kept;
+            e.mText = text;
+            mNext = (mNext + 1) % mEntries.length;
+            mTotal++;
+        }
+    }
+
+    /**
+     * @return ret if it is immutable, a copy of it if that is cheap, or
+     *         null if it has to be formatted right away
+     */
+    private static Object copy(Object ret) {
+        if (ret instanceof String || ret instanceof Number || ret instanceof Boolean) {
+            return ret;
+        } else if (ret instanceof int[]) {
+            return ((int[]) ret).clone();
+        } else if (ret instanceof String[]) {
+            return ((String[]) ret).clone();
+        } else if (ret instanceof SignalStrength) {
+            return new SignalStrength((SignalStrength) ret);
+        }
+        return null;
+    }
+
+    /**
+     * Formats one record the same way RIL logs it to logcat.
+     */
+    static String format(boolean unsol, int code, int serial, int error, Object ret,
+            String text) {
+        StringBuilder sb = new StringBuilder();
+        if (unsol) {
+            sb.append("[UNSL]< ").append(RIL.responseToString(code));
+        } else {
+            appendSerial(sb, serial);
+            sb.append("< ").append(RIL.requestToString(code));
+            if (error != 0) {
+                sb.append(" error: ").append(error);
+            }
+        }
+        String s = (text != null) ? text : RIL.retToString(code, ret);
+        if (s.length() > 0) {
+            sb.append(' ').append(s);
+        }
+        return sb.toString();
+    }
+
+    void dump(PrintWriter pw) {
+        int count;
+        long total;
+        long[] times;
+        boolean[] unsol;
+        int[] codes;
+        int[] serials;
+        int[] errors;
+        Object[] rets;
+        String[] texts;
+
+        // Copy out under the lock, format without it
+        synchronized (this) {
+            total = mTotal;
+            count = (int) Math.min(total, mEntries.length);
+            times = new long[count];
+            unsol = new boolean[count];
+            codes = new int[count];
+            serials = new int[count];
+            errors = new int[count];
+            rets = new Object[count];
+            texts = new String[count];
+            int start = (mNext - count + mEntries.length) % mEntries.length;
+            for (int i = 0; i < count; i++) {
+                Entry e = mEntries[(start + i) % mEntries.length];
+                times[i] = e.mTime;
+                unsol[i] = e.mUnsol;
+                codes[i] = e.mCode;
+                serials[i] = e.mSerial;
+                errors[i] = e.mError;
+                rets[i] = e.mRet;
+                texts[i] = e.mText;
+            }
+        }
+
+        pw.println(" RIL response history (last " + count + " of " + total + "):");
+        for (int i = 0; i < count; i++) {
+            String line = format(unsol[i], codes[i], serials[i], errors[i], rets[i], texts[i]);
+            pw.println("  " + TimeUtils.logTimeOfDay(times[i]) + " " + line);
+        }
+    }
+
+    /** Same format as RILRequest.serialString() */
+    private static void appendSerial(StringBuilder sb, int serial) {
+        String sn = Long.toString((((long) serial) - Integer.MIN_VALUE) % 10000);
+        sb.append('[');
+        for (int i = 0, s = sn.length(); i < 4 - s; i++) {
+            sb.append('0');
+        }
+        sb.append(sn).append(']');
+    }
+}
@@ -0,0 +1,223 @@
+/*
+ * Copyright (C) 2014 The Android Open Source Project
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *      http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+
+package com.android.internal.telephony;
+
+import android.util.SparseArray;
+
+import java.io.PrintWriter;
+import java.util.ArrayList;
+import java.util.List;
+import java.util.concurrent.atomic.AtomicInteger;
+import java.util.concurrent.atomic.AtomicLong;
+import java.util.concurrent.atomic.AtomicLongArray;
+
+/**
+ * Round-trip latency histograms, in-flight gauges and timeout counts per
+ * RIL request code.
+ *
+ * Latency is measured from the moment RILSender hands a request to the
+ * socket until processSolicited matches the response. Each request code
+ * gets a fixed set of atomic counters the first time it is seen; recording
+ * after that neither allocates nor locks, so the sender, the receiver and
+ * the callers of RIL never wait on each other here.
+ *
+ * {@hide}
+ */
+public class RilMetrics {
+    /**
+     * Upper bounds in milliseconds of all but the last histogram bucket,
+     * which collects everything slower.
+     */
+    public static final int[] BUCKET_BOUNDS_MS = {
+        5, 10, 20, 50, 100, 200, 500, 1000, 2000, 5000, 10000, 30000
+    };
+
+    /**
+     * Statistics for one request code. Instances returned by
+     * {@link RilMetrics#snapshot} are copies and are not updated.
+     */
+    public static class RequestStats {
+        public final int request;
+        /** Response count per latency bucket, see {@link #BUCKET_BOUNDS_MS} */
+        public final long[] buckets = new long[BUCKET_BOUNDS_MS.length + 1];
+        public long count;
+        public long totalNanos;
+        public long maxNanos;
+        /** Requests sent and not yet answered, failed or cleared */
+        public int inFlight;
+        /** Requests still unanswered when the wake lock timeout expired */
+        public long timeouts;
+
+        RequestStats(int request) {
+            this.request = request;
+        }
+
+        /**
+         * @return the upper bound in ms of the bucket holding the given
+         * percentile (0-100), Integer.MAX_VALUE if that is the last bucket,
+         * or -1 if nothing was recorded
+         */
+        public int getPercentileMs(int percentile) {
+            if (count == 0) return -1;
+            long threshold = (count * percentile + 99) / 100;
+            long seen = 0;
+            for (int i = 0; i < BUCKET_BOUNDS_MS.length; i++) {
+                seen += buckets[i];
+                if (seen >= threshold) {
+                    return BUCKET_BOUNDS_MS[i];
+                }
+            }
+            return Integer.MAX_VALUE;
+        }
+
+        public long getAverageMs() {
+            return count == 0 ? 0 : totalNanos / count / 1000000;
+        }
+
+        @Override
+        public String toString() {
+            return RIL.requestToString(request) + " count=" + count
+                    + " avg=" + getAverageMs() + "ms"
+                    + " p50<=" + formatBound(getPercentileMs(50))
+                    + " p99<=" + formatBound(getPercentileMs(99))
+                    + " max=" + (maxNanos / 1000000) + "ms"
+                    + " inFlight=" + inFlight + " timeouts=" + timeouts;
+        }
+
+        private static String formatBound(int ms) {
+            if (ms < 0) return "-";
+            if (ms == Integer.MAX_VALUE) return "inf";
+            return ms + "ms";
+        }
+    }
+
+    /** The live counters of one request code. */
+    private static final class Counters {
+        final int mRequest;
+        final AtomicLongArray mBuckets = new AtomicLongArray(BUCKET_BOUNDS_MS.length + 1);
+        final AtomicLong mCount = new AtomicLong();
+        final AtomicLong mTotalNanos = new AtomicLong();
+        final AtomicLong mMaxNanos = new AtomicLong();
+        final AtomicInteger mInFlight = new AtomicInteger();
+        final AtomicLong mTimeouts = new AtomicLong();
+
+        Counters(int request) {
+            mRequest = request;
+        }
+
+        RequestStats toStats() {
+            RequestStats stats = new RequestStats(mRequest);
+            for (int i = 0; i < stats.buckets.length; i++) {
+                stats.buckets[i] = mBuckets.get(i);
+            }
+            stats.count = mCount.get();
+            stats.totalNanos = mTotalNanos.get();
+            stats.maxNanos = mMaxNanos.get();
+            stats.inFlight = mInFlight.get();
+            stats.timeouts = mTimeouts.get();
+            return stats;
+        }
+    }
+
+    // Copied on write under mLock when a new request code is seen, so
+    // lookups read it without locking
+    private volatile SparseArray<Counters> mCounters = new SparseArray<Counters>();
+    private final Object mLock = new Object();
+
+    void onRequestSent(int request) {
+        getCounters(request).mInFlight.incrementAndGet();
+    }
+
+    /** Called whenever a sent request leaves the pending list, for any reason */
+    void onRequestDone(int request) {
+        AtomicInteger inFlight = getCounters(request).mInFlight;
+        int current;
+        while ((current = inFlight.get()) > 0) {
+            if (inFlight.compareAndSet(current, current - 1)) {
+                return;
+            }
+        }
+    }
+
+    void onResponse(int request, long latencyNanos) {
+        Counters counters = getCounters(request);
+        counters.mCount.incrementAndGet();
+        counters.mTotalNanos.addAndGet(latencyNanos);
+        long max;
+        while (latencyNanos > (max = counters.mMaxNanos.get())) {
+            if (counters.mMaxNanos.compareAndSet(max, latencyNanos)) {
+                break;
+            }
+        }
+        counters.mBuckets.incrementAndGet(bucketFor(latencyNanos));
+    }
+
+    /** Called once per request still unanswered when the wake lock timeout expired */
+    void onTimeout(int request) {
+        getCounters(request).mTimeouts.incrementAndGet();
+    }
+
+    /**
+     * @return a copy of the statistics of every request code seen so far.
+     * The counters of a request code are read one at a time, so a copy
+     * taken while requests complete may be slightly inconsistent.
+     */
+    public List<RequestStats> snapshot() {
+        SparseArray<Counters> counters = mCounters;
+        int n = counters.size();
+        ArrayList<RequestStats> result = new ArrayList<RequestStats>(n);
+        for (int i = 0; i < n; i++) {
+            result.add(counters.valueAt(i).toStats());
+        }
+        return result;
+    }
+
+    void dump(PrintWriter pw) {
+        List<RequestStats> stats = snapshot();
+        pw.println(" RIL request latency (" + stats.size() + " request types):");
+        for (RequestStats s : stats) {
+            pw.println("  " + s);
+        }
+    }
+
+    static int bucketFor(long latencyNanos) {
+        long ms = latencyNanos / 1000000;
+        for (int i = 0; i < BUCKET_BOUNDS_MS.length; i++) {
+            if (ms < BUCKET_BOUNDS_MS[i]) {
+                return i;
+            }
+        }
+        return BUCKET_BOUNDS_MS.length;
+    }
+
+    private Counters getCounters(int request) {
+        Counters counters = mCounters.get(request);
+        if (counters != null) {
+            return counters;
+        }
+        synchronized (mLock) {
+            counters = mCounters.get(request);
+            if (counters == null) {
+                SparseArray<Counters> copy = mCounters.clone();
+                counters = new Counters(request);
+                copy.put(request, counters);
+                mCounters = copy;
+            }
+            return counters;
+        }
+    }
+}
@@ -0,0 +1,321 @@
+/*
+ * Copyright (C) 2014 The Android Open Source Project
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *      http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+
+package com.android.internal.telephony;
+
+import android.telephony.Rlog;
+import android.util.SparseBooleanArray;
+
+import java.io.BufferedOutputStream;
+import java.io.ByteArrayOutputStream;
+import java.io.IOException;
+import java.io.OutputStream;
+import java.util.concurrent.LinkedBlockingQueue;
+
+/**
+ * Records the traffic on the rild socket so it can be replayed offline by
+ * {@link RilTrafficReplayer}. For debugging only, RIL records on debuggable
+ * builds only.
+ *
+ * File format, all multi-byte integers unsigned LEB128 varints unless noted:
+ * <pre>
+ *   header:   "RILT" version(byte)
+ *   record:   type(byte) delayMicros payload
+ *   SENT:     request serial(4 bytes, big endian)
+ *   RECEIVED: length bytes[length]
+ * </pre>
+ * delayMicros is the time since the previous record. Only the request code
+ * and serial of outgoing requests are kept; incoming messages are stored
+ * exactly as read from the socket, without their length header.
+ *
+ * Incoming messages that carry subscriber or message content, such as SMS,
+ * USSD, call lists, SIM file contents and device identities, are left out;
+ * see {@link #isRedactedRequest} and {@link #isRedactedUnsol}.
+ *
+ * Records are encoded on the calling thread and written to the file by a
+ * writer thread, so the RIL threads never wait for storage. When the
+ * writer falls more than {@link #MAX_QUEUED} records behind, new records
+ * are dropped. Recording stops once maxBytes have been queued or on the
+ * first write error.
+ *
+ * {@hide}
+ */
+class RilTrafficRecorder {
+    private static final String LOG_TAG = "RilTrafficRecorder";
+
+    static final byte[] MAGIC = { 'R', 'I', 'L', 'T' };
+    static final int VERSION = 1;
+
+    static final int TYPE_SENT = 1;
+    static final int TYPE_RECEIVED = 2;
+
+    // Records waiting for the writer thread at most
+    static final int MAX_QUEUED = 256;
+
+    // Serials of redacted requests awaiting their response at most
+    private static final int MAX_REDACTED_SERIALS = 1024;
+
+    // Tells the writer thread to close the file
+    private static final byte[] END = new byte[0];
+
+    private final OutputStream mOut;
+    private final long mMaxBytes;
+    // One more than MAX_QUEUED, so that END always fits
+    private final LinkedBlockingQueue<byte[]> mQueue =
+            new LinkedBlockingQueue<byte[]>(MAX_QUEUED + 1);
+    private final Thread mWriterThread;
+
+    // Guarded by this
+    private final ByteArrayOutputStream mRecord = new ByteArrayOutputStream(64);
+    private final SparseBooleanArray mRedactedSerials = new SparseBooleanArray();
+    private long mBytesQueued;
+    private long mRecords;
+    private long mRedacted;
+    private long mDropped;
+    private long mLastNanos;
+    private boolean mStopped;
+
+    RilTrafficRecorder(OutputStream out, long maxBytes) throws IOException {
+        mOut = new BufferedOutputStream(out);
+        mMaxBytes = maxBytes;
+        mOut.write(MAGIC);
+        mOut.write(VERSION);
+        mBytesQueued = MAGIC.length + 1;
+        mLastNanos = System.nanoTime();
+
+        mWriterThread = new Thread(LOG_TAG) {
+            @Override
+            public void run() {
+                writeRecords();
+            }
+        };
+        mWriterThread.start();
+    }
+
+    synchronized void recordSent(int request, int serial) {
+        if (mStopped) return;
+        if (isRedactedRequest(request)) {
+            if (mRedactedSerials.size() >= MAX_REDACTED_SERIALS) {
+                // never answered; the lowest serial is normally the oldest
+                mRedactedSerials.removeAt(0);
+            }
+            mRedactedSerials.put(serial, true);
+        }
+
+        long now = System.nanoTime();
+        mRecord.reset();
+        mRecord.write(TYPE_SENT);
+        writeVarint((now - mLastNanos) / 1000);
+        writeVarint(request);
+        write4(serial);
+        queueRecord(now);
+    }
+
+    synchronized void recordReceived(byte[] buffer, int offset, int length) {
+        if (mStopped) return;
+        if (isRedactedMessage(buffer, offset, length)) {
+            mRedacted++;
+            return;
+        }
+
+        long now = System.nanoTime();
+        mRecord.reset();
+        mRecord.write(TYPE_RECEIVED);
+        writeVarint((now - mLastNanos) / 1000);
+        writeVarint(length);
+        mRecord.write(buffer, offset, length);
+        queueRecord(now);
+    }
+
+    /**
+     * Stops recording. The records already queued are still written, see
+     * {@link #awaitClosed}.
+     */
+    synchronized void close() {
+        if (mStopped) return;
+        mStopped = true;
+        mQueue.offer(END);
+    }
+
+    /**
+     * Waits until the writer thread has written the queued records and
+     * closed the file.
+     *
+     * @return whether the file was closed within the timeout
+     */
+    boolean awaitClosed(long timeoutMs) throws InterruptedException {
+        mWriterThread.join(timeoutMs);
+        return !mWriterThread.isAlive();
+    }
+
+    synchronized boolean isStopped() {
+        return mStopped;
+    }
+
+    @Override
+    public synchronized String toString() {
+        return "RilTrafficRecorder{records=" + mRecords + " bytes=" + mBytesQueued
+                + "/" + mMaxBytes + " redacted=" + mRedacted + " dropped=" + mDropped
+                + (mStopped ? " stopped" : "") + "}";
+    }
+
+    /**
+     * @return whether the response to a request carries subscriber or
+     * message content and must not be recorded
+     */
+    static boolean isRedactedRequest(int request) {
+        switch (request) {
+            case RILConstants.RIL_REQUEST_GET_IMSI:
+            case RILConstants.RIL_REQUEST_GET_IMEI:
+            case RILConstants.RIL_REQUEST_GET_IMEISV:
+            case RILConstants.RIL_REQUEST_DEVICE_IDENTITY:
+            case RILConstants.RIL_REQUEST_CDMA_SUBSCRIPTION:
+            case RILConstants.RIL_REQUEST_GET_SMSC_ADDRESS:
+            case RILConstants.RIL_REQUEST_GET_CURRENT_CALLS:
+            case RILConstants.RIL_REQUEST_DIAL:
+            case RILConstants.RIL_REQUEST_QUERY_CALL_FORWARD_STATUS:
+            case RILConstants.RIL_REQUEST_SEND_USSD:
+            case RILConstants.RIL_REQUEST_SEND_SMS:
+            case RILConstants.RIL_REQUEST_SEND_SMS_EXPECT_MORE:
+            case RILConstants.RIL_REQUEST_CDMA_SEND_SMS:
+            case RILConstants.RIL_REQUEST_IMS_SEND_SMS:
+            case RILConstants.RIL_REQUEST_WRITE_SMS_TO_SIM:
+            case RILConstants.RIL_REQUEST_CDMA_WRITE_SMS_TO_RUIM:
+            case RILConstants.RIL_REQUEST_SIM_IO:
+            case RILConstants.RIL_REQUEST_SIM_OPEN_CHANNEL:
+            case RILConstants.RIL_REQUEST_SIM_TRANSMIT_APDU_BASIC:
+            case RILConstants.RIL_REQUEST_SIM_TRANSMIT_APDU_CHANNEL:
+            case RILConstants.RIL_REQUEST_SIM_GET_ATR:
+            case RILConstants.RIL_REQUEST_ISIM_AUTHENTICATION:
+            case RILConstants.RIL_REQUEST_SIM_AUTHENTICATION:
+            case RILConstants.RIL_REQUEST_STK_SEND_ENVELOPE_COMMAND:
+            case RILConstants.RIL_REQUEST_STK_SEND_ENVELOPE_WITH_STATUS:
+            case RILConstants.RIL_REQUEST_NV_READ_ITEM:
+            case RILConstants.RIL_REQUEST_OEM_HOOK_RAW:
+            case RILConstants.RIL_REQUEST_OEM_HOOK_STRINGS:
+                return true;
+            default:
+                return false;
+        }
+    }
+
+    /**
+     * @return whether an unsolicited response carries subscriber or message
+     * content and must not be recorded
+     */
+    static boolean isRedactedUnsol(int response) {
+        switch (response) {
+            case RILConstants.RIL_UNSOL_RESPONSE_NEW_SMS:
+            case RILConstants.RIL_UNSOL_RESPONSE_NEW_SMS_STATUS_REPORT:
+            case RILConstants.RIL_UNSOL_RESPONSE_CDMA_NEW_SMS:
+            case RILConstants.RIL_UNSOL_RESPONSE_NEW_BROADCAST_SMS:
+            case RILConstants.RIL_UNSOL_ON_USSD:
+            case RILConstants.RIL_UNSOL_ON_SS:
+            case RILConstants.RIL_UNSOL_SUPP_SVC_NOTIFICATION:
+            case RILConstants.RIL_UNSOL_CDMA_CALL_WAITING:
+            case RILConstants.RIL_UNSOL_CDMA_INFO_REC:
+            case RILConstants.RIL_UNSOL_STK_PROACTIVE_COMMAND:
+            case RILConstants.RIL_UNSOL_STK_EVENT_NOTIFY:
+            case RILConstants.RIL_UNSOL_STK_CC_ALPHA_NOTIFY:
+            case RILConstants.RIL_UNSOL_OEM_HOOK_RAW:
+                return true;
+            default:
+                return false;
+        }
+    }
+
+    private boolean isRedactedMessage(byte[] buffer, int offset, int length) {
+        if (length < 8) {
+            return false;
+        }
+        int type = readParcelInt(buffer, offset);
+        int value = readParcelInt(buffer, offset + 4);
+        if (type == RIL.RESPONSE_UNSOLICITED) {
+            return isRedactedUnsol(value);
+        }
+        if (type == RIL.RESPONSE_SOLICITED && mRedactedSerials.get(value)) {
+            mRedactedSerials.delete(value);
+            return true;
+        }
+        return false;
+    }
+
+    /** Parcels are in host byte order, which is little endian on all Android ABIs */
+    private static int readParcelInt(byte[] buffer, int offset) {
+        return (buffer[offset] & 0xff)
+                | (buffer[offset + 1] & 0xff) << 8
+                | (buffer[offset + 2] & 0xff) << 16
+                | (buffer[offset + 3] & 0xff) << 24;
+    }
+
+    private void queueRecord(long now) {
+        if (mBytesQueued + mRecord.size() > mMaxBytes) {
+            Rlog.i(LOG_TAG, "Size limit reached, stopping: " + this);
+            close();
+            return;
+        }
+        if (mQueue.size() >= MAX_QUEUED) {
+            mDropped++;
+            return;
+        }
+        mQueue.offer(mRecord.toByteArray());
+        mBytesQueued += mRecord.size();
+        mRecords++;
+        mLastNanos = now;
+    }
+
+    private void writeRecords() {
+        try {
+            for (;;) {
+                byte[] record = mQueue.take();
+                if (record == END) {
+                    break;
+                }
+                mOut.write(record);
+                if (mQueue.isEmpty()) {
+                    mOut.flush();
+                }
+            }
+        } catch (IOException ex) {
+            Rlog.e(LOG_TAG, "Recording failed, stopping", ex);
+            close();
+        } catch (InterruptedException ex) {
+            close();
+        } finally {
+            mQueue.clear();
+            try {
+                mOut.close();
+            } catch (IOException ex) {
+                // nothing more we can do
+            }
+        }
+    }
+
+    private void writeVarint(long value) {
+        while ((value & ~0x7fL) != 0) {
+            mRecord.write((int) ((value & 0x7f) | 0x80));
+            value >>>= 7;
+        }
+        mRecord.write((int) value);
+    }
+
+    private void write4(int value) {
+        mRecord.write(value >>> 24);
+        mRecord.write(value >>> 16);
+        mRecord.write(value >>> 8);
+        mRecord.write(value);
+    }
+}
@@ -0,0 +1,201 @@
+/*
+ * Copyright (C) 2014 The Android Open Source Project
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *      http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+
+package com.android.internal.telephony;
+
+import android.os.Debug;
+
+import java.io.BufferedInputStream;
+import java.io.EOFException;
+import java.io.IOException;
+import java.io.InputStream;
+
+/**
+ * Feeds traffic captured by {@link RilTrafficRecorder} back into a
+ * {@link Sink}, either with the recorded timing or as fast as possible,
+ * and measures the throughput and allocations of the sink.
+ *
+ * {@hide}
+ */
+class RilTrafficReplayer {
+    /** Receives the replayed traffic, see RIL.getReplaySink() */
+    interface Sink {
+        /** An outgoing request; makes the matching response decodable */
+        void onRequestSent(int request, int serial);
+
+        /** An incoming message, as RILReceiver would have read it */
+        void onMessage(byte[] buffer, int offset, int length);
+    }
+
+    static class Result {
+        int sent;
+        int messages;
+        long bytes;
+        long elapsedNanos;
+        // Allocations made by the replaying thread, -1 if unavailable
+        long allocCount = -1;
+        long allocBytes = -1;
+
+        double getMessagesPerSecond() {
+            return elapsedNanos == 0 ? 0 : messages * 1e9 / elapsedNanos;
+        }
+
+        @Override
+        public String toString() {
+            return "messages=" + messages + " requests=" + sent + " bytes=" + bytes
+                    + " elapsed=" + (elapsedNanos / 1000000) + "ms"
+                    + " msgs/sec=" + (long) getMessagesPerSecond()
+                    + " allocs=" + allocCount + " allocBytes=" + allocBytes
+                    + (messages > 0 && allocCount >= 0
+                            ? " allocs/msg=" + (allocCount / messages)
+                            + " allocBytes/msg=" + (allocBytes / messages) : "");
+        }
+    }
+
+    private final InputStream mIn;
+    private byte[] mBuffer = new byte[RIL.RIL_MAX_COMMAND_BYTES];
+
+    RilTrafficReplayer(InputStream in) {
+        mIn = new BufferedInputStream(in);
+    }
+
+    /**
+     * Replays the whole capture.
+     *
+     * @param realTime wait between records as long as was recorded,
+     * otherwise replay as fast as possible
+     * @param countAllocations measure allocations with Debug's thread
+     * allocation counters; only meaningful when replaying at full speed
+     */
+    Result replay(Sink sink, boolean realTime, boolean countAllocations) throws IOException {
+        readHeader();
+
+        Result result = new Result();
+        if (countAllocations) {
+            Debug.startAllocCounting();
+            Debug.resetThreadAllocCount();
+            Debug.resetThreadAllocSize();
+        }
+        long start = System.nanoTime();
+        long due = start;
+
+        try {
+            for (;;) {
+                int type = mIn.read();
+                if (type < 0) {
+                    break;
+                }
+                long delayMicros = readVarint();
+
+                if (realTime) {
+                    due += delayMicros * 1000;
+                    long waitMillis = (due - System.nanoTime()) / 1000000;
+                    if (waitMillis > 0) {
+                        try {
+                            Thread.sleep(waitMillis);
+                        } catch (InterruptedException ex) {
+                            break;
+                        }
+                    }
+                }
+
+                switch (type) {
+                    case RilTrafficRecorder.TYPE_SENT: {
+                        int request = (int) readVarint();
+                        int serial = read4();
+                        sink.onRequestSent(request, serial);
+                        result.sent++;
+                        break;
+                    }
+                    case RilTrafficRecorder.TYPE_RECEIVED: {
+                        int length = (int) readVarint();
+                        if (length < 0 || length > RilFrameReader.MAX_FRAME_BYTES) {
+                            throw new IOException("Invalid message length " + length);
+                        }
+                        if (length > mBuffer.length) {
+                            mBuffer = new byte[length];
+                        }
+                        readFully(mBuffer, length);
+                        sink.onMessage(mBuffer, 0, length);
+                        result.messages++;
+                        result.bytes += length;
+                        break;
+                    }
+                    default:
+                        throw new IOException("Unknown record type " + type);
+                }
+            }
+        } finally {
+            result.elapsedNanos = System.nanoTime() - start;
+            if (countAllocations) {
+                result.allocCount = Debug.getThreadAllocCount();
+                result.allocBytes = Debug.getThreadAllocSize();
+                Debug.stopAllocCounting();
+            }
+        }
+        return result;
+    }
+
+    private void readHeader() throws IOException {
+        for (int i = 0; i < RilTrafficRecorder.MAGIC.length; i++) {
+            if (mIn.read() != RilTrafficRecorder.MAGIC[i]) {
+                throw new IOException("Not a RIL traffic capture");
+            }
+        }
+        int version = mIn.read();
+        if (version != RilTrafficRecorder.VERSION) {
+            throw new IOException("Unsupported capture version " + version);
+        }
+    }
+
+    private long readVarint() throws IOException {
+        long value = 0;
+        for (int shift = 0; shift < 64; shift += 7) {
+            int b = mIn.read();
+            if (b < 0) {
+                throw new EOFException("Truncated record");
+            }
+            value |= (long) (b & 0x7f) << shift;
+            if ((b & 0x80) == 0) {
+                return value;
+            }
+        }
+        throw new IOException("Malformed varint");
+    }
+
+    private int read4() throws IOException {
+        int value = 0;
+        for (int i = 0; i < 4; i++) {
+            int b = mIn.read();
+            if (b < 0) {
+                throw new EOFException("Truncated record");
+            }
+            value = (value << 8) | b;
+        }
+        return value;
+    }
+
+    private void readFully(byte[] buffer, int length) throws IOException {
+        int offset = 0;
+        while (offset < length) {
+            int count = mIn.read(buffer, offset, length - offset);
+            if (count < 0) {
+                throw new EOFException("Truncated record");
+            }
+            offset += count;
+        }
+    }
+}
@@ -67,6 +67,8 @@ import com.android.internal.telephony.GsmAlphabet.TextEncodingDetails;
 import com.android.internal.telephony.uicc.UiccCard;
 import com.android.internal.telephony.uicc.UiccController;
 
+import java.io.FileDescriptor;
+import java.io.PrintWriter;
 import java.util.ArrayList;
 import java.util.HashMap;
 import java.util.List;
@@ -263,8 +265,12 @@ public abstract class SMSDispatcher extends Handler {
      *       we will lose this list and any status reports that come in after
      *       will be dropped.
      */
-    /** Sent messages awaiting a delivery status report. */
-    protected final ArrayList<SmsTracker> deliveryPendingList = new ArrayList<SmsTracker>();
+    /**
+     * Sent messages awaiting a delivery status report, by message reference. Still named
+     * as when it was an ArrayList.
+     */
+    protected final SmsDeliveryPendingIndex<SmsTracker> deliveryPendingList =
+            new SmsDeliveryPendingIndex<SmsTracker>();
 
     /**
      * Handles events coming from the phone stack. Overridden from handler.
@@ -615,8 +621,8 @@ public abstract class SMSDispatcher extends Handler {
             if (DBG) Rlog.d(TAG, "SMS send complete. Broadcasting intent: " + sentIntent);
 
             if (tracker.mDeliveryIntent != null) {
-                // Expecting a status report.  Add it to the list.
-                deliveryPendingList.add(tracker);
+                // Expecting a status report.  Add it to the index.
+                deliveryPendingList.add(tracker.mMessageRef, tracker);
             }
             tracker.onSent(mContext);
         } else {
@@ -1749,4 +1755,9 @@ public abstract class SMSDispatcher extends Handler {
     protected int getSubId() {
         return SubscriptionController.getInstance().getSubIdUsingPhoneId(mPhone.mPhoneId);
     }
+
+    public void dump(FileDescriptor fd, PrintWriter pw, String[] args) {
+        pw.println("SMSDispatcher: format=" + getFormat());
+        deliveryPendingList.dump(pw);
+    }
 }
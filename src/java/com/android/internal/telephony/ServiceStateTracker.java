@@ -83,6 +83,15 @@ public abstract class ServiceStateTracker extends Handler {
 
     protected SignalStrength mSignalStrength = new SignalStrength();
 
+    /**
+     * Signal strength filter configuration and minimum milliseconds between
+     * reports, see SignalStrengthFilter
+     */
+    static final String PROPERTY_SIGNAL_STRENGTH_FILTER = "persist.radio.ss_filter";
+    static final String PROPERTY_SIGNAL_STRENGTH_MIN_INTERVAL = "persist.radio.ss_min_interval";
+
+    protected final SignalStrengthFilter mSignalStrengthFilter;
+
     // TODO - this should not be public, right now used externally GsmConnetion.
     public RestrictedState mRestrictedState = new RestrictedState();
 
@@ -282,6 +291,15 @@ public abstract class ServiceStateTracker extends Handler {
                 com.android.internal.R.bool.config_voice_capable);
         mUiccController = UiccController.getInstance();
         mUiccController.registerForIccChanged(this, EVENT_ICC_CHANGED, null);
+        mSignalStrengthFilter = new SignalStrengthFilter(getLooper(),
+                new SignalStrengthFilter.Target() {
+                    @Override
+                    public void onSignalStrengthReady(SignalStrength ss) {
+                        // mSignalStrength already holds ss, the latest update
+                        notifySignalStrength();
+                    }
+                }, SystemProperties.get(PROPERTY_SIGNAL_STRENGTH_FILTER, ""),
+                SystemProperties.getLong(PROPERTY_SIGNAL_STRENGTH_MIN_INTERVAL, 0));
         mCi.setOnSignalStrengthUpdate(this, EVENT_SIGNAL_STRENGTH_UPDATE, null);
         mCi.registerForCellInfoList(this, EVENT_UNSOL_CELL_INFO_LIST, null);
 
@@ -313,18 +331,19 @@ public abstract class ServiceStateTracker extends Handler {
         return mDesiredPowerState;
     }
 
-    private SignalStrength mLastSignalStrength = null;
+    /**
+     * Notifies mSignalStrength, the latest update. Callers only get here for
+     * updates mSignalStrengthFilter found worth reporting.
+     */
     protected boolean notifySignalStrength() {
         boolean notified = false;
         synchronized(mCellInfo) {
-            if (!mSignalStrength.equals(mLastSignalStrength)) {
-                try {
-                    mPhoneBase.notifySignalStrength();
-                    notified = true;
-                } catch (NullPointerException ex) {
-                    loge("updateSignalStrength() Phone already destroyed: " + ex
-                            + "SignalStrength not notified");
-                }
+            try {
+                mPhoneBase.notifySignalStrength();
+                notified = true;
+            } catch (NullPointerException ex) {
+                loge("updateSignalStrength() Phone already destroyed: " + ex
+                        + "SignalStrength not notified");
             }
         }
         return notified;
@@ -788,20 +807,27 @@ public abstract class ServiceStateTracker extends Handler {
      * @return true if the signal strength changed and a notification was sent.
      */
     protected boolean onSignalStrengthResult(AsyncResult ar, boolean isGsm) {
-        SignalStrength oldSignalStrength = mSignalStrength;
+        SignalStrength signalStrength;
 
         // This signal is used for both voice and data radio signal so parse
         // all fields
 
         if ((ar.exception == null) && (ar.result != null)) {
-            mSignalStrength = (SignalStrength) ar.result;
-            mSignalStrength.validateInput();
-            mSignalStrength.setGsm(isGsm);
+            signalStrength = (SignalStrength) ar.result;
+            signalStrength.validateInput();
+            signalStrength.setGsm(isGsm);
         } else {
             log("onSignalStrengthResult() Exception from RIL : " + ar.exception);
-            mSignalStrength = new SignalStrength(isGsm);
+            signalStrength = new SignalStrength(isGsm);
         }
 
+        // Always kept current for getSignalStrength(), the filter only
+        // decides whether listeners are notified
+        mSignalStrength = signalStrength;
+        if (!mSignalStrengthFilter.offer(signalStrength)) {
+            // Suppressed, or held back and reported through notifySignalStrength later
+            return false;
+        }
         return notifySignalStrength();
     }
 
@@ -940,6 +966,7 @@ public abstract class ServiceStateTracker extends Handler {
         pw.println(" mPollingContext=" + mPollingContext);
         pw.println(" mDesiredPowerState=" + mDesiredPowerState);
         pw.println(" mDontPollSignalStrength=" + mDontPollSignalStrength);
+        mSignalStrengthFilter.dump(pw);
         pw.println(" mPendingRadioPowerOffAfterDataOff=" + mPendingRadioPowerOffAfterDataOff);
         pw.println(" mPendingRadioPowerOffAfterDataOffTag=" + mPendingRadioPowerOffAfterDataOffTag);
         pw.flush();
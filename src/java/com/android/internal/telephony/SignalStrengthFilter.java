@@ -0,0 +1,294 @@
+/*
+ * Copyright (C) 2014 The Android Open Source Project
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *      http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+
+package com.android.internal.telephony;
+
+import android.os.Handler;
+import android.os.Looper;
+import android.os.Message;
+import android.os.SystemClock;
+import android.telephony.Rlog;
+import android.telephony.SignalStrength;
+
+import java.io.PrintWriter;
+
+/**
+ * Decides which signal strength updates ServiceStateTracker passes on to
+ * the phone notifier.
+ *
+ * For each radio technology that is configured, an update is reported when
+ * <ul>
+ * <li>the bar level changed and the dBm moved at least the hysteresis away
+ * from the last reported value, so a signal hovering around a level
+ * boundary does not make the bars flap, or</li>
+ * <li>the level is the same but the dBm moved at least the configured
+ * delta.</li>
+ * </ul>
+ * Changes to or from no signal and changes of technology are always
+ * reported. Technologies without configuration report every update that
+ * is not equal to the last reported one.
+ *
+ * In addition, reports are at least the minimum interval apart: an update
+ * that arrives sooner is held back and the latest held back update is
+ * reported when the interval expires.
+ *
+ * The last report is copied into a single SignalStrength owned by the
+ * filter and reused for every report, so nothing is allocated per update
+ * and the filter does not hold on to instances handed out to other
+ * threads. Everything runs on the looper passed in, which must be the one
+ * offer() is called on.
+ *
+ * The configuration is a comma separated list of
+ * <code>rat:hysteresisDb:deltaDb</code> entries where rat is one of gsm,
+ * lte, cdma or evdo, e.g. "gsm:2:6,lte:3:8".
+ *
+ * {@hide}
+ */
+class SignalStrengthFilter {
+    private static final String LOG_TAG = "SignalStrengthFilter";
+
+    /** Receives held back updates when the minimum interval expires */
+    interface Target {
+        void onSignalStrengthReady(SignalStrength ss);
+    }
+
+    static final int RAT_GSM = 0;
+    static final int RAT_LTE = 1;
+    static final int RAT_CDMA = 2;
+    static final int RAT_EVDO = 3;
+    private static final String[] RAT_NAMES = { "gsm", "lte", "cdma", "evdo" };
+
+    private static final int EVENT_REPORT_PENDING = 1;
+
+    // -1 for technologies that are not filtered
+    private final int[] mHysteresisDb = { -1, -1, -1, -1 };
+    private final int[] mDeltaDb = new int[RAT_NAMES.length];
+    private final long mMinIntervalMs;
+    private final Target mTarget;
+    private final Handler mHandler;
+
+    /** SignalStrength whose fields can be overwritten, for mReported */
+    private static final class MutableSignalStrength extends SignalStrength {
+        void set(SignalStrength ss) {
+            copyFrom(ss);
+        }
+    }
+
+    private final MutableSignalStrength mReported = new MutableSignalStrength();
+    private boolean mHasReported;
+    private int mReportedRat;
+    private int mReportedLevel;
+    private int mReportedDbm;
+    private long mReportedTime;
+    private SignalStrength mPending;
+
+    private long mReceivedCount;
+    private long mReportedCount;
+    private long mUnchangedCount;
+    private long mHysteresisCount;
+    private long mSmallDeltaCount;
+    private long mDeferredCount;
+    // Held back updates replaced by a newer one before being reported
+    private long mMergedCount;
+
+    SignalStrengthFilter(Looper looper, Target target, String config, long minIntervalMs) {
+        parseConfig(config);
+        mMinIntervalMs = minIntervalMs;
+        mTarget = target;
+        mHandler = new Handler(looper) {
+            @Override
+            public void handleMessage(Message msg) {
+                reportPending();
+            }
+        };
+    }
+
+    private void parseConfig(String config) {
+        if (config == null || config.length() == 0) {
+            return;
+        }
+
+        for (String entry : config.split(",")) {
+            String[] parts = entry.trim().split(":");
+            int rat = parts.length == 3 ? ratFromName(parts[0].trim()) : -1;
+            try {
+                if (rat < 0) {
+                    throw new NumberFormatException();
+                }
+                int hysteresis = Integer.parseInt(parts[1].trim());
+                int delta = Integer.parseInt(parts[2].trim());
+                if (hysteresis < 0 || delta < 0) {
+                    throw new NumberFormatException();
+                }
+                mHysteresisDb[rat] = hysteresis;
+                mDeltaDb[rat] = delta;
+            } catch (NumberFormatException ex) {
+                Rlog.e(LOG_TAG, "Ignoring malformed entry '" + entry + "'");
+            }
+        }
+    }
+
+    private static int ratFromName(String name) {
+        for (int i = 0; i < RAT_NAMES.length; i++) {
+            if (RAT_NAMES[i].equals(name)) {
+                return i;
+            }
+        }
+        return -1;
+    }
+
+    static int ratOf(SignalStrength ss) {
+        if (ss.isGsm()) {
+            return ss.getLteLevel() != SignalStrength.SIGNAL_STRENGTH_NONE_OR_UNKNOWN
+                    ? RAT_LTE : RAT_GSM;
+        }
+        return ss.getCdmaLevel() == SignalStrength.SIGNAL_STRENGTH_NONE_OR_UNKNOWN
+                && ss.getEvdoLevel() != SignalStrength.SIGNAL_STRENGTH_NONE_OR_UNKNOWN
+                ? RAT_EVDO : RAT_CDMA;
+    }
+
+    private static int dbmOf(SignalStrength ss, int rat) {
+        switch (rat) {
+            case RAT_LTE: return ss.getLteDbm();
+            case RAT_CDMA: return ss.getCdmaDbm();
+            case RAT_EVDO: return ss.getEvdoDbm();
+            default: return ss.getGsmDbm();
+        }
+    }
+
+    /**
+     * Offers a validated update.
+     *
+     * @return true if the caller should report ss now; false if it was
+     * suppressed, or held back to be reported to the target later
+     */
+    boolean offer(SignalStrength ss) {
+        mReceivedCount++;
+
+        if (!isSignificant(ss)) {
+            if (mPending != null) {
+                // Back to what was reported last, nothing left to report
+                mPending = null;
+                mMergedCount++;
+                mHandler.removeMessages(EVENT_REPORT_PENDING);
+            }
+            return false;
+        }
+
+        if (mPending != null) {
+            mPending = ss;
+            mMergedCount++;
+            return false;
+        }
+
+        long now = SystemClock.elapsedRealtime();
+        long sinceReported = now - mReportedTime;
+        if (mHasReported && sinceReported < mMinIntervalMs) {
+            mPending = ss;
+            mDeferredCount++;
+            mHandler.sendEmptyMessageDelayed(EVENT_REPORT_PENDING,
+                    mMinIntervalMs - sinceReported);
+            return false;
+        }
+
+        setReported(ss, now);
+        return true;
+    }
+
+    /** Forgets the last report so the next update is reported */
+    void reset() {
+        mHasReported = false;
+        mPending = null;
+        mHandler.removeMessages(EVENT_REPORT_PENDING);
+    }
+
+    private boolean isSignificant(SignalStrength ss) {
+        if (!mHasReported || ss.isGsm() != mReported.isGsm()) {
+            return true;
+        }
+        int rat = ratOf(ss);
+        if (rat != mReportedRat) {
+            return true;
+        }
+
+        int hysteresis = mHysteresisDb[rat];
+        if (hysteresis < 0) {
+            if (ss.equals(mReported)) {
+                mUnchangedCount++;
+                return false;
+            }
+            return true;
+        }
+
+        int level = ss.getLevel();
+        int delta = Math.abs(dbmOf(ss, rat) - mReportedDbm);
+        if (level != mReportedLevel) {
+            if (level == SignalStrength.SIGNAL_STRENGTH_NONE_OR_UNKNOWN
+                    || mReportedLevel == SignalStrength.SIGNAL_STRENGTH_NONE_OR_UNKNOWN
+                    || delta >= hysteresis) {
+                return true;
+            }
+            mHysteresisCount++;
+            return false;
+        }
+        if (delta == 0) {
+            mUnchangedCount++;
+            return false;
+        }
+        if (delta < mDeltaDb[rat]) {
+            mSmallDeltaCount++;
+            return false;
+        }
+        return true;
+    }
+
+    private void setReported(SignalStrength ss, long now) {
+        mReported.set(ss);
+        mHasReported = true;
+        mReportedRat = ratOf(ss);
+        mReportedLevel = ss.getLevel();
+        mReportedDbm = dbmOf(ss, mReportedRat);
+        mReportedTime = now;
+        mReportedCount++;
+    }
+
+    private void reportPending() {
+        SignalStrength ss = mPending;
+        if (ss == null) {
+            return;
+        }
+        mPending = null;
+        setReported(ss, SystemClock.elapsedRealtime());
+        mTarget.onSignalStrengthReady(ss);
+    }
+
+    void dump(PrintWriter pw) {
+        StringBuilder config = new StringBuilder();
+        for (int i = 0; i < RAT_NAMES.length; i++) {
+            if (mHysteresisDb[i] >= 0) {
+                config.append(' ').append(RAT_NAMES[i]).append(':').append(mHysteresisDb[i])
+                        .append(':').append(mDeltaDb[i]);
+            }
+        }
+        pw.println(" SignalStrengthFilter minInterval=" + mMinIntervalMs + "ms config="
+                + (config.length() == 0 ? " none" : config.toString()));
+        pw.println("  received=" + mReceivedCount + " reported=" + mReportedCount
+                + " suppressed: unchanged=" + mUnchangedCount
+                + " hysteresis=" + mHysteresisCount + " smallDelta=" + mSmallDeltaCount
+                + " deferred=" + mDeferredCount + " merged=" + mMergedCount
+                + " pending=" + (mPending != null));
+    }
+}
@@ -21,40 +21,48 @@ import android.content.Context;
 import android.database.Cursor;
 import android.database.SQLException;
 import android.net.Uri;
+import android.os.SystemClock;
 import android.provider.Telephony;
 import android.telephony.Rlog;
+import android.util.EventLog;
 
 import com.android.internal.telephony.cdma.CdmaInboundSmsHandler;
 import com.android.internal.telephony.gsm.GsmInboundSmsHandler;
 
 import java.util.HashMap;
-import java.util.HashSet;
+import java.util.Map;
 
 /**
  * Called at boot time to clean out the raw table, collecting all acknowledged messages and
  * deleting any partial message segments older than 30 days. Called from a worker thread to
- * avoid delaying phone app startup. The last step is to broadcast the first pending message
- * from the main thread, then the remaining pending messages will be broadcast after the
- * previous ordered broadcast completes.
+ * avoid delaying phone app startup. Complete messages are sent to the handlers for broadcast
+ * as they are found, then the handlers broadcast them one after the other as each ordered
+ * broadcast completes.
+ *
+ * The table is read in pages of {@link #PAGE_SIZE} rows, and the handlers start accepting new
+ * messages after the first page, so that a long table does not hold up incoming SMS. Only the
+ * rows that were in the table when the scan started are read. Until the scan is done, a
+ * handler that gets a segment of a concatenated message reads that message from the raw table,
+ * as its rows may not be scanned yet.
  */
 public class SmsBroadcastUndelivered implements Runnable {
     private static final String TAG = "SmsBroadcastUndelivered";
     private static final boolean DBG = InboundSmsHandler.DBG;
 
-    /**
-     * Query projection for dispatching pending messages at boot time.
-     * Column order must match the {@code *_COLUMN} constants in {@link InboundSmsHandler}.
-     */
-    private static final String[] PDU_PENDING_MESSAGE_PROJECTION = {
-            "pdu",
-            "sequence",
-            "destination_port",
-            "date",
-            "reference_number",
-            "count",
-            "address",
-            "_id"
-    };
+    /** Rows read from the raw table per query. */
+    static final int PAGE_SIZE = 100;
+
+    /** Query projection for the segments of a message. */
+    private static final String[] SEQUENCE_PROJECTION = { "sequence" };
+
+    /** Query projection for the last row of the raw table. */
+    private static final String[] ID_PROJECTION = { "_id" };
+
+    /** Selection of the rows of a page, after the last row of the previous page. */
+    private static final String SELECT_PAGE = "_id>? AND _id<=?";
+
+    /** Sort order of the rows of a page. */
+    private static final String PAGE_SORT_ORDER = "_id LIMIT " + PAGE_SIZE;
 
     /** URI for raw table from SmsProvider. */
     private static final Uri sRawUri = Uri.withAppendedPath(Telephony.Sms.CONTENT_URI, "raw");
@@ -71,6 +79,15 @@ public class SmsBroadcastUndelivered implements Runnable {
     /** Use context get bool config resource from framework. */
     private final Context mContext;
 
+    /** Whether the handlers were told to start accepting new messages. */
+    private boolean mAcceptingSms;
+
+    /** Time the scan started, from {@link SystemClock#elapsedRealtime}. */
+    private long mStartTime;
+
+    /** Milliseconds from the start of the scan until new messages were accepted. */
+    private long mStartAcceptingMs;
+
     public SmsBroadcastUndelivered(Context context, GsmInboundSmsHandler gsmInboundSmsHandler,
             CdmaInboundSmsHandler cdmaInboundSmsHandler) {
         mContext = context;
@@ -82,8 +99,19 @@ public class SmsBroadcastUndelivered implements Runnable {
     @Override
     public void run() {
         if (DBG) Rlog.d(TAG, "scanning raw table for undelivered messages");
+        mStartTime = SystemClock.elapsedRealtime();
         scanRawTable();
-        // tell handlers to start processing new messages
+    }
+
+    /**
+     * Tell the handlers to start processing new messages, once.
+     */
+    private void startAcceptingSms() {
+        if (mAcceptingSms) {
+            return;
+        }
+        mAcceptingSms = true;
+        mStartAcceptingMs = SystemClock.elapsedRealtime() - mStartTime;
         if (mGsmInboundSmsHandler != null) {
             mGsmInboundSmsHandler.sendMessage(InboundSmsHandler.EVENT_START_ACCEPTING_SMS);
         }
@@ -96,93 +124,214 @@ public class SmsBroadcastUndelivered implements Runnable {
      * Scan the raw table for complete SMS messages to broadcast, and old PDUs to delete.
      */
     private void scanRawTable() {
-        long startTime = System.nanoTime();
-        HashMap<SmsReferenceKey, Integer> multiPartReceivedCount =
-                new HashMap<SmsReferenceKey, Integer>(4);
-        HashSet<SmsReferenceKey> oldMultiPartMessages = new HashSet<SmsReferenceKey>(4);
-        Cursor cursor = null;
+        // get partial segment expire age from resource which in config.xml
+        // Add this function for international roaming requirement.
+        String expireAgeString = mContext.getResources().getString(
+                com.android.internal.R.string.config_partial_segment_expire_age);
+        long expireTime = System.currentTimeMillis() - Long.valueOf(expireAgeString);
+        // a segment of each message with segments older than the expire age
+        HashMap<SmsReferenceKey, InboundSmsTracker> oldMultiPartMessages =
+                new HashMap<SmsReferenceKey, InboundSmsTracker>(4);
+        int rows = 0;
+        int pages = 0;
+        int broadcasts = 0;
+        int deletes = 0;
         try {
-            cursor = mResolver.query(sRawUri, PDU_PENDING_MESSAGE_PROJECTION, null, null, null);
-            if (cursor == null) {
-                Rlog.e(TAG, "error getting pending message cursor");
+            long lastId = getLastRowId();
+            if (lastId < 0) {
                 return;
             }
 
             boolean isCurrentFormat3gpp2 = InboundSmsHandler.isCurrentFormat3gpp2();
-            while (cursor.moveToNext()) {
-                InboundSmsTracker tracker;
-                try {
-                    tracker = new InboundSmsTracker(cursor, isCurrentFormat3gpp2);
-                } catch (IllegalArgumentException e) {
-                    Rlog.e(TAG, "error loading SmsTracker: " + e);
-                    continue;
+            long pageStartId = 0;
+            int pageRows;
+            do {
+                Cursor cursor = mResolver.query(sRawUri,
+                        InboundSmsHandler.PDU_PENDING_MESSAGE_PROJECTION,
+                        SELECT_PAGE, new String[]{Long.toString(pageStartId),
+                        Long.toString(lastId)}, PAGE_SORT_ORDER);
+                if (cursor == null) {
+                    Rlog.e(TAG, "error getting pending message cursor");
+                    return;
                 }
+                pageRows = 0;
+                try {
+                    while (cursor.moveToNext()) {
+                        pageRows++;
+                        pageStartId = cursor.getLong(InboundSmsHandler.ID_COLUMN);
+                        InboundSmsTracker tracker;
+                        try {
+                            tracker = new InboundSmsTracker(cursor, isCurrentFormat3gpp2);
+                        } catch (IllegalArgumentException e) {
+                            Rlog.e(TAG, "error loading SmsTracker: " + e);
+                            continue;
+                        }
 
-                if (tracker.getMessageCount() == 1) {
-                    // deliver single-part message
-                    broadcastSms(tracker);
-                } else {
-                    SmsReferenceKey reference = new SmsReferenceKey(tracker);
-                    Integer receivedCount = multiPartReceivedCount.get(reference);
-                    // get partial segment expire age from resource which in config.xml
-                    // Add this function for international roaming requirement.
-                    String expireAgeString = mContext.getResources().getString(
-                            com.android.internal.R.string.config_partial_segment_expire_age);
-                    long expireAge = Long.valueOf(expireAgeString);
-                    if (receivedCount == null) {
-                        multiPartReceivedCount.put(reference, 1);    // first segment seen
-                        if (tracker.getTimestamp() <
-                                (System.currentTimeMillis() - expireAge)) {
-                            // older than 30 days; delete if we don't find all the segments
-                            oldMultiPartMessages.add(reference);
+                        if (tracker.getMessageCount() == 1) {
+                            // deliver single-part message
+                            broadcastSms(tracker);
+                            broadcasts++;
+                            continue;
                         }
-                    } else {
-                        int newCount = receivedCount + 1;
-                        if (newCount == tracker.getMessageCount()) {
+                        // the handler reassembles the message from its index of segments,
+                        // which also holds the segments received since the first page
+                        InboundSmsHandler handler = getHandler(tracker);
+                        if (handler != null && handler.addToReassemblyIndex(tracker)) {
                             // looks like we've got all the pieces; send a single tracker
-                            // to state machine which will find the other pieces to broadcast
+                            // to state machine which will take the others from its index
                             if (DBG) Rlog.d(TAG, "found complete multi-part message");
                             broadcastSms(tracker);
-                            // don't delete this old message until after we broadcast it
-                            oldMultiPartMessages.remove(reference);
-                        } else {
-                            multiPartReceivedCount.put(reference, newCount);
+                            broadcasts++;
+                        }
+                        if (tracker.getTimestamp() < expireTime) {
+                            SmsReferenceKey reference = new SmsReferenceKey(tracker);
+                            if (!oldMultiPartMessages.containsKey(reference)) {
+                                // delete at the end if we don't find all the segments
+                                oldMultiPartMessages.put(reference, tracker);
+                            }
                         }
                     }
+                } finally {
+                    cursor.close();
                 }
-            }
-            // Delete old incomplete message segments
-            for (SmsReferenceKey message : oldMultiPartMessages) {
-                int rows = mResolver.delete(sRawUri, InboundSmsHandler.SELECT_BY_REFERENCE,
+                rows += pageRows;
+                pages++;
+                // the remaining pages are read while new messages are processed
+                startAcceptingSms();
+            } while (pageRows == PAGE_SIZE);
+            // the indexes now hold all segments that were in the table
+            onRawTableScanned();
+
+            // Delete old incomplete message segments, in one provider call
+            RawTableWriter writer = new RawTableWriter(mResolver, sRawUri);
+            for (Map.Entry<SmsReferenceKey, InboundSmsTracker> entry
+                    : oldMultiPartMessages.entrySet()) {
+                SmsReferenceKey message = entry.getKey();
+                if (!isMissingSegments(message, entry.getValue())) {
+                    // complete, or already delivered and deleted
+                    continue;
+                }
+                writer.delete(InboundSmsHandler.SELECT_BY_REFERENCE,
                         message.getDeleteWhereArgs());
-                if (rows == 0) {
-                    Rlog.e(TAG, "No rows were deleted from raw table!");
-                } else if (DBG) {
-                    Rlog.d(TAG, "Deleted " + rows + " rows from raw table for incomplete "
-                            + message.mMessageCount + " part message");
+                removeFromReassemblyIndex(message);
+                deletes++;
+                if (DBG) {
+                    Rlog.d(TAG, "Deleting incomplete " + message.mMessageCount
+                            + " part message from raw table");
                 }
             }
+            writer.flush();
         } catch (SQLException e) {
             Rlog.e(TAG, "error reading pending SMS messages", e);
         } finally {
-            if (cursor != null) {
-                cursor.close();
+            // if the first page could not be read
+            startAcceptingSms();
+            long scanMs = SystemClock.elapsedRealtime() - mStartTime;
+            EventLog.writeEvent(EventLogTags.SMS_RAW_TABLE_RECOVERY, rows, pages, broadcasts,
+                    deletes, mStartAcceptingMs, scanMs);
+            if (DBG) Rlog.d(TAG, "finished scanning raw table in " + scanMs + " ms, "
+                    + rows + " rows in " + pages + " pages, accepting new messages after "
+                    + mStartAcceptingMs + " ms");
+        }
+    }
+
+    /**
+     * Tell from the rows of the raw table whether a message is still waiting for segments.
+     * The reassembly index can not tell, as it may have dropped the message. Rows added since
+     * the scan started count too, so a message completed meanwhile is not deleted.
+     * @param message the key of the message
+     * @param tracker a segment of the message
+     * @return true if segments are missing, false if the message is complete, deleted, or the
+     *         rows could not be read
+     */
+    private boolean isMissingSegments(SmsReferenceKey message, InboundSmsTracker tracker) {
+        Cursor cursor = mResolver.query(sRawUri, SEQUENCE_PROJECTION,
+                InboundSmsHandler.SELECT_BY_REFERENCE, message.getDeleteWhereArgs(), null);
+        if (cursor == null) {
+            Rlog.e(TAG, "error getting segments of old message");
+            return false;
+        }
+        try {
+            if (cursor.getCount() == 0) {
+                return false;
+            }
+            boolean[] received = new boolean[message.mMessageCount];
+            int receivedCount = 0;
+            while (cursor.moveToNext()) {
+                // sequence numbers are 1-based except for CDMA WAP, which is 0-based
+                int index = cursor.getInt(0) - tracker.getIndexOffset();
+                if (index >= 0 && index < received.length && !received[index]) {
+                    received[index] = true;
+                    receivedCount++;
+                }
             }
-            if (DBG) Rlog.d(TAG, "finished scanning raw table in "
-                    + ((System.nanoTime() - startTime) / 1000000) + " ms");
+            return receivedCount < received.length;
+        } finally {
+            cursor.close();
         }
     }
 
     /**
-     * Send tracker to appropriate (3GPP or 3GPP2) inbound SMS handler for broadcast.
+     * Get the _id of the last row of the raw table, which bounds the scan.
+     * @return the _id, 0 if the table is empty, or -1 on error
      */
-    private void broadcastSms(InboundSmsTracker tracker) {
-        InboundSmsHandler handler;
+    private long getLastRowId() {
+        Cursor cursor = mResolver.query(sRawUri, ID_PROJECTION, null, null, "_id DESC LIMIT 1");
+        if (cursor == null) {
+            Rlog.e(TAG, "error getting last raw table row");
+            return -1;
+        }
+        try {
+            return cursor.moveToFirst() ? cursor.getLong(0) : 0;
+        } finally {
+            cursor.close();
+        }
+    }
+
+    /**
+     * Get the appropriate (3GPP or 3GPP2) inbound SMS handler for a tracker.
+     * @return the handler, or null if there is none for the format
+     */
+    private InboundSmsHandler getHandler(InboundSmsTracker tracker) {
         if (tracker.is3gpp2()) {
-            handler = mCdmaInboundSmsHandler;
+            return mCdmaInboundSmsHandler;
         } else {
-            handler = mGsmInboundSmsHandler;
+            return mGsmInboundSmsHandler;
         }
+    }
+
+    /**
+     * Tell both handlers that all rows of the raw table were added to their reassembly index.
+     */
+    private void onRawTableScanned() {
+        if (mGsmInboundSmsHandler != null) {
+            mGsmInboundSmsHandler.onRawTableScanned();
+        }
+        if (mCdmaInboundSmsHandler != null) {
+            mCdmaInboundSmsHandler.onRawTableScanned();
+        }
+    }
+
+    /**
+     * Remove a deleted message from the reassembly index of both handlers, the key does not
+     * tell the format.
+     */
+    private void removeFromReassemblyIndex(SmsReferenceKey message) {
+        if (mGsmInboundSmsHandler != null) {
+            mGsmInboundSmsHandler.removeFromReassemblyIndex(message.mAddress,
+                    message.mReferenceNumber, message.mMessageCount);
+        }
+        if (mCdmaInboundSmsHandler != null) {
+            mCdmaInboundSmsHandler.removeFromReassemblyIndex(message.mAddress,
+                    message.mReferenceNumber, message.mMessageCount);
+        }
+    }
+
+    /**
+     * Send tracker to appropriate (3GPP or 3GPP2) inbound SMS handler for broadcast.
+     */
+    private void broadcastSms(InboundSmsTracker tracker) {
+        InboundSmsHandler handler = getHandler(tracker);
         if (handler != null) {
             handler.sendMessage(InboundSmsHandler.EVENT_BROADCAST_SMS, tracker);
         } else {
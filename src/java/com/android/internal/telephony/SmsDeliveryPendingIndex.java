@@ -0,0 +1,161 @@
+/*
+ * Copyright (C) 2014 The Android Open Source Project
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *      http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+
+package com.android.internal.telephony;
+
+import android.os.SystemClock;
+import android.telephony.Rlog;
+
+import java.io.PrintWriter;
+import java.util.Iterator;
+import java.util.LinkedHashMap;
+
+/**
+ * Sent messages awaiting a delivery status report, indexed by message reference.
+ *
+ * A message whose report has not arrived after {@link #EXPIRY_MS} is dropped, and so is the
+ * oldest message once {@link #MAX_PENDING} are waiting. A message sent with the reference of a
+ * pending one replaces it, since the SMSC reuses a reference only once the earlier message is
+ * long gone. The dropped messages are counted as orphans.
+ *
+ * Messages are added from the SMS dispatcher and reports come from the inbound SMS handlers,
+ * so all methods are synchronized.
+ *
+ * {@hide}
+ */
+public class SmsDeliveryPendingIndex<T> {
+    private static final String TAG = "SmsDeliveryPendingIndex";
+
+    /** How long a message waits for its status report. */
+    static final long EXPIRY_MS = 2L * 24 * 60 * 60 * 1000;
+
+    /** Messages waiting at most. */
+    static final int MAX_PENDING = 1000;
+
+    /** A waiting message and when it was added. */
+    private static final class Entry<T> {
+        final T mTracker;
+        final long mAddTime;
+
+        Entry(T tracker, long addTime) {
+            mTracker = tracker;
+            mAddTime = addTime;
+        }
+    }
+
+    /** In the order the messages were added, so the oldest come first. */
+    private final LinkedHashMap<Integer, Entry<T>> mPending =
+            new LinkedHashMap<Integer, Entry<T>>();
+
+    // Metrics
+    private long mAddCount;
+    private long mReportCount;
+    private long mUnmatchedReportCount;
+    private long mExpiredCount;
+    private long mEvictedCount;
+    private long mReplacedCount;
+
+    /**
+     * Add a sent message that expects a status report.
+     */
+    public void add(int messageRef, T tracker) {
+        add(messageRef, tracker, SystemClock.elapsedRealtime());
+    }
+
+    synchronized void add(int messageRef, T tracker, long now) {
+        expire(now);
+        // removed first, so that it moves to the end
+        if (mPending.remove(messageRef) != null) {
+            mReplacedCount++;
+            Rlog.d(TAG, "Replacing message awaiting status report, messageRef=" + messageRef);
+        }
+        if (mPending.size() >= MAX_PENDING) {
+            Iterator<Entry<T>> oldest = mPending.values().iterator();
+            oldest.next();
+            oldest.remove();
+            mEvictedCount++;
+            Rlog.e(TAG, "Too many messages awaiting status report, dropping the oldest");
+        }
+        mPending.put(messageRef, new Entry<T>(tracker, now));
+        mAddCount++;
+    }
+
+    /**
+     * Get the message a status report is for, leaving it in the index for later reports.
+     * @return the message, or null if there is none with that reference
+     */
+    public T get(int messageRef) {
+        return get(messageRef, SystemClock.elapsedRealtime());
+    }
+
+    synchronized T get(int messageRef, long now) {
+        expire(now);
+        Entry<T> entry = mPending.get(messageRef);
+        mReportCount++;
+        if (entry == null) {
+            mUnmatchedReportCount++;
+            return null;
+        }
+        return entry.mTracker;
+    }
+
+    /**
+     * Remove a message, once its final status report arrived.
+     * @return the message, or null if there is none with that reference
+     */
+    public synchronized T remove(int messageRef) {
+        Entry<T> entry = mPending.remove(messageRef);
+        return (entry != null) ? entry.mTracker : null;
+    }
+
+    /**
+     * @return the number of messages awaiting a status report
+     */
+    public synchronized int size() {
+        return mPending.size();
+    }
+
+    /**
+     * @return the number of messages dropped without a final status report
+     */
+    public synchronized long getOrphanCount() {
+        return mExpiredCount + mEvictedCount + mReplacedCount;
+    }
+
+    /**
+     * Drop the messages added more than {@link #EXPIRY_MS} ago, which are the first ones.
+     */
+    private void expire(long now) {
+        int expired = 0;
+        Iterator<Entry<T>> entries = mPending.values().iterator();
+        while (entries.hasNext() && (now - entries.next().mAddTime) > EXPIRY_MS) {
+            entries.remove();
+            expired++;
+        }
+        if (expired > 0) {
+            mExpiredCount += expired;
+            Rlog.e(TAG, "Dropping " + expired + " messages whose status report never arrived");
+        }
+    }
+
+    public synchronized void dump(PrintWriter pw) {
+        pw.println(" SmsDeliveryPendingIndex: size=" + mPending.size() + " mAddCount=" + mAddCount
+                + " mReportCount=" + mReportCount + " mUnmatchedReportCount="
+                + mUnmatchedReportCount);
+        pw.println("  orphans: mExpiredCount=" + mExpiredCount + " mEvictedCount="
+                + mEvictedCount + " mReplacedCount=" + mReplacedCount);
+    }
+}
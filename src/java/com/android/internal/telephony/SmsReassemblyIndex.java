@@ -0,0 +1,300 @@
+/*
+ * Copyright (C) 2014 The Android Open Source Project
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *      http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+
+package com.android.internal.telephony;
+
+import android.os.SystemClock;
+import android.telephony.Rlog;
+
+import java.util.HashMap;
+import java.util.Iterator;
+import java.util.LinkedHashMap;
+import java.util.Map;
+
+/**
+ * In-memory index of the received segments of concatenated SMS messages, keyed by
+ * originating address, reference number and segment count.
+ *
+ * {@link InboundSmsHandler} still writes every segment to the raw table so that it
+ * survives a restart, and {@link SmsBroadcastUndelivered} reads the table back at startup,
+ * adding the segments it finds here. Duplicate checks and reassembly use the index, holding
+ * the decoded PDUs of each segment, and only read a message from the raw table when the
+ * index may not hold all of its rows, see {@link #isLoaded}.
+ *
+ * A message stays in the index after it was taken for broadcast, so that duplicates are
+ * still recognized, until its rows are deleted from the raw table.
+ *
+ * A message added more than {@link #EXPIRY_MS} ago is dropped, and so is the oldest message
+ * once {@link #MAX_MESSAGES} are held. Its segments stay in the raw table; only its key is
+ * kept, so that the next segment reads the message back from the raw table.
+ *
+ * Used from the state machine, from receivers of the ordered broadcasts and from the
+ * startup thread, so all methods are synchronized.
+ */
+class SmsReassemblyIndex {
+    private static final String TAG = "SmsReassemblyIndex";
+
+    /** How long a message is held after its first segment. */
+    static final long EXPIRY_MS = 7L * 24 * 60 * 60 * 1000;
+
+    /** Messages held at most. */
+    static final int MAX_MESSAGES = 1000;
+
+    /** The segments received so far of one message. */
+    private static final class Message {
+        final InboundSmsTracker[] mSegments;
+        final long mAddTime;
+        int mReceivedCount;
+        boolean mTaken;
+        /** Whether all rows of the message in the raw table were added. */
+        boolean mLoaded;
+
+        Message(int messageCount, long addTime) {
+            mSegments = new InboundSmsTracker[messageCount];
+            mAddTime = addTime;
+        }
+    }
+
+    /** Key of a message, as {@link InboundSmsHandler#SELECT_BY_REFERENCE}. */
+    private static final class Key {
+        final String mAddress;
+        final int mReferenceNumber;
+        final int mMessageCount;
+
+        Key(String address, int referenceNumber, int messageCount) {
+            mAddress = address;
+            mReferenceNumber = referenceNumber;
+            mMessageCount = messageCount;
+        }
+
+        @Override
+        public int hashCode() {
+            return ((mReferenceNumber * 31) + mMessageCount) * 31
+                    + (mAddress != null ? mAddress.hashCode() : 0);
+        }
+
+        @Override
+        public boolean equals(Object o) {
+            if (o instanceof Key) {
+                Key other = (Key) o;
+                return (other.mReferenceNumber == mReferenceNumber)
+                        && (other.mMessageCount == mMessageCount)
+                        && (mAddress != null ? mAddress.equals(other.mAddress)
+                                : other.mAddress == null);
+            }
+            return false;
+        }
+    }
+
+    /** In the order the messages were added, so the oldest come first. */
+    private final LinkedHashMap<Key, Message> mMessages = new LinkedHashMap<Key, Message>();
+
+    /**
+     * Messages dropped from the index whose rows may still be in the raw table, and whether
+     * they were taken for broadcast, until they are read back or removed.
+     */
+    private final HashMap<Key, Boolean> mDropped = new HashMap<Key, Boolean>();
+
+    /** Whether the startup scan added all the rows of the raw table. */
+    private boolean mScanned;
+
+    private static Key keyOf(InboundSmsTracker tracker) {
+        return new Key(tracker.getAddress(), tracker.getReferenceNumber(),
+                tracker.getMessageCount());
+    }
+
+    private static int indexOf(InboundSmsTracker tracker) {
+        // sequence numbers are 1-based except for CDMA WAP, which is 0-based
+        return tracker.getSequenceNumber() - tracker.getIndexOffset();
+    }
+
+    /**
+     * @return whether the sequence number of a segment is within its message
+     */
+    static boolean isValidSegment(InboundSmsTracker tracker) {
+        int index = indexOf(tracker);
+        return (index >= 0) && (index < tracker.getMessageCount());
+    }
+
+    /**
+     * Get the segment that was received with the same sequence number as tracker.
+     * @return the segment, or null if none was received yet
+     */
+    synchronized InboundSmsTracker getSegment(InboundSmsTracker tracker) {
+        Message message = mMessages.get(keyOf(tracker));
+        if (message == null || !isValidSegment(tracker)) {
+            return null;
+        }
+        return message.mSegments[indexOf(tracker)];
+    }
+
+    /**
+     * Add a segment of a concatenated message.
+     * @return false if the sequence number is invalid or its segment was already added
+     */
+    boolean add(InboundSmsTracker tracker) {
+        return add(tracker, SystemClock.elapsedRealtime());
+    }
+
+    synchronized boolean add(InboundSmsTracker tracker, long now) {
+        if (!isValidSegment(tracker)) {
+            return false;
+        }
+        Message message = getOrCreate(tracker, now);
+        int index = indexOf(tracker);
+        if (message.mSegments[index] != null) {
+            return false;
+        }
+        message.mSegments[index] = tracker;
+        message.mReceivedCount++;
+        return true;
+    }
+
+    private Message getOrCreate(InboundSmsTracker tracker, long now) {
+        expire(now);
+        Key key = keyOf(tracker);
+        Message message = mMessages.get(key);
+        if (message == null) {
+            if (mMessages.size() >= MAX_MESSAGES) {
+                Iterator<Map.Entry<Key, Message>> oldest = mMessages.entrySet().iterator();
+                drop(oldest.next());
+                oldest.remove();
+                Rlog.e(TAG, "Too many concatenated messages, dropping the oldest");
+            }
+            message = new Message(tracker.getMessageCount(), now);
+            Boolean taken = mDropped.get(key);
+            if (taken != null) {
+                // Not broadcast twice once it is read back
+                message.mTaken = taken;
+            } else {
+                message.mLoaded = mScanned;
+            }
+            mMessages.put(key, message);
+        }
+        return message;
+    }
+
+    /**
+     * @return whether the index holds all the segments of the message of tracker that are in
+     *         the raw table, so that a segment missing from the index is not in the table
+     *         either. This is not the case before the startup scan is done, or once the
+     *         message was dropped from the index, until it is read back and
+     *         {@link #setLoaded} is called.
+     */
+    synchronized boolean isLoaded(InboundSmsTracker tracker) {
+        Key key = keyOf(tracker);
+        Message message = mMessages.get(key);
+        if (message == null) {
+            return mScanned && !mDropped.containsKey(key);
+        }
+        return message.mLoaded;
+    }
+
+    /**
+     * Note that all rows of the message of tracker in the raw table were added.
+     */
+    void setLoaded(InboundSmsTracker tracker) {
+        setLoaded(tracker, SystemClock.elapsedRealtime());
+    }
+
+    synchronized void setLoaded(InboundSmsTracker tracker, long now) {
+        getOrCreate(tracker, now).mLoaded = true;
+        mDropped.remove(keyOf(tracker));
+    }
+
+    /**
+     * @return whether the message of tracker was dropped from the index and not read back yet
+     */
+    synchronized boolean wasDropped(InboundSmsTracker tracker) {
+        return mDropped.containsKey(keyOf(tracker));
+    }
+
+    /**
+     * Note that the startup scan added all the rows of the raw table, so messages that are
+     * not in the index have no rows unless they were dropped.
+     */
+    synchronized void setScanned() {
+        mScanned = true;
+        for (Map.Entry<Key, Message> entry : mMessages.entrySet()) {
+            if (!mDropped.containsKey(entry.getKey())) {
+                entry.getValue().mLoaded = true;
+            }
+        }
+    }
+
+    /**
+     * Take the segments of the message of tracker for broadcast, once all are received.
+     * @return the segments in sequence, or null if some are missing or they were taken before
+     */
+    synchronized InboundSmsTracker[] takeComplete(InboundSmsTracker tracker) {
+        Message message = mMessages.get(keyOf(tracker));
+        if (message == null || message.mTaken
+                || message.mReceivedCount < message.mSegments.length) {
+            return null;
+        }
+        message.mTaken = true;
+        return message.mSegments.clone();
+    }
+
+    /**
+     * @return whether the message of tracker is in the index with some segments still missing
+     */
+    synchronized boolean isMissingSegments(InboundSmsTracker tracker) {
+        Message message = mMessages.get(keyOf(tracker));
+        return (message != null) && (message.mReceivedCount < message.mSegments.length);
+    }
+
+    /**
+     * Forget a message, once its rows are deleted from the raw table.
+     */
+    synchronized void remove(String address, int referenceNumber, int messageCount) {
+        Key key = new Key(address, referenceNumber, messageCount);
+        mMessages.remove(key);
+        mDropped.remove(key);
+    }
+
+    /**
+     * @return the number of messages in the index
+     */
+    synchronized int size() {
+        return mMessages.size();
+    }
+
+    /**
+     * Drop the messages added more than {@link #EXPIRY_MS} ago, which are the first ones.
+     */
+    private void expire(long now) {
+        int expired = 0;
+        Iterator<Map.Entry<Key, Message>> messages = mMessages.entrySet().iterator();
+        while (messages.hasNext()) {
+            Map.Entry<Key, Message> entry = messages.next();
+            if ((now - entry.getValue().mAddTime) <= EXPIRY_MS) {
+                break;
+            }
+            drop(entry);
+            messages.remove();
+            expired++;
+        }
+        if (expired > 0) {
+            Rlog.e(TAG, "Dropping " + expired + " concatenated messages older than "
+                    + EXPIRY_MS + " ms");
+        }
+    }
+
+    private void drop(Map.Entry<Key, Message> entry) {
+        mDropped.put(entry.getKey(), entry.getValue().mTaken);
+    }
+}
@@ -32,6 +32,7 @@ import com.android.internal.telephony.test.TestConferenceEventPackageParser;
 import java.io.File;
 import java.io.FileInputStream;
 import java.io.FileNotFoundException;
+import java.io.IOException;
 
 /**
  * Telephony tester receives the following intents where {name} is the phone name
@@ -40,6 +41,8 @@ import java.io.FileNotFoundException;
  * adb shell am broadcast -a com.android.internal.telephony.{name}.action_attached
  * adb shell am broadcast -a com.android.internal.telephony.TestConferenceEventPackage -e filename
  *      test_filename.xml
+ * adb shell am broadcast -a com.android.internal.telephony.{name}.action_ril_replay -e filename
+ *      /data/misc/radio/ril_capture.0 [--ez realtime true]
  */
 public class TelephonyTester {
     private static final String LOG_TAG = "TelephonyTester";
@@ -52,6 +55,14 @@ public class TelephonyTester {
             "com.android.internal.telephony.TestConferenceEventPackage";
     private static final String EXTRA_FILENAME = "filename";
 
+    private static final String EXTRA_REALTIME = "realtime";
+
+    /**
+     * Test-only intent used to replay a RIL traffic capture made with
+     * persist.radio.ril_record through this phone's RIL, see RilTrafficReplayer.
+     */
+    private final String mActionRilReplay;
+
     private PhoneBase mPhone;
 
     // The static intent receiver one for all instances and we assume this
@@ -67,6 +78,10 @@ public class TelephonyTester {
             } else if (action.equals(mPhone.getActionAttached())) {
                 log("simulate attaching");
                 mPhone.getServiceStateTracker().mAttachedRegistrants.notifyRegistrants();
+            } else if (action.equals(mActionRilReplay)) {
+                log("replay RIL traffic");
+                handleRilReplay(intent.getStringExtra(EXTRA_FILENAME),
+                        intent.getBooleanExtra(EXTRA_REALTIME, false));
             } else if (action.equals(ACTION_TEST_CONFERENCE_EVENT_PACKAGE)) {
                 log("inject simulated conference event package");
                 handleTestConferenceEventPackage(context, intent.getStringExtra(EXTRA_FILENAME));
@@ -78,6 +93,7 @@ public class TelephonyTester {
 
     TelephonyTester(PhoneBase phone) {
         mPhone = phone;
+        mActionRilReplay = mPhone.getClass().getPackage().getName() + ".action_ril_replay";
 
         if (Build.IS_DEBUGGABLE) {
             IntentFilter filter = new IntentFilter();
@@ -88,6 +104,11 @@ public class TelephonyTester {
             filter.addAction(mPhone.getActionAttached());
             log("register for intent action=" + mPhone.getActionAttached());
 
+            if (mPhone.mCi instanceof RIL) {
+                filter.addAction(mActionRilReplay);
+                log("register for intent action=" + mActionRilReplay);
+            }
+
             if (mPhone.getPhoneType() == PhoneConstants.PHONE_TYPE_IMS) {
                 log("register for intent action=" + ACTION_TEST_CONFERENCE_EVENT_PACKAGE);
                 filter.addAction(ACTION_TEST_CONFERENCE_EVENT_PACKAGE);
@@ -107,6 +128,46 @@ public class TelephonyTester {
         Rlog.d(LOG_TAG, s);
     }
 
+    /**
+     * Replays a RIL traffic capture through the decoders of the phone's RIL
+     * on a separate thread and logs the decode throughput and allocations.
+     * The replay does not touch pending requests or notify registrants, see
+     * RIL.ReplaySink.
+     *
+     * @param fileName absolute path of the capture
+     * @param realTime replay with the recorded timing instead of at full speed
+     */
+    private void handleRilReplay(final String fileName, final boolean realTime) {
+        if (fileName == null) {
+            log("replay RIL traffic: no filename");
+            return;
+        }
+        final RIL ril = (RIL) mPhone.mCi;
+        new Thread("RilReplay") {
+            @Override
+            public void run() {
+                FileInputStream is = null;
+                try {
+                    is = new FileInputStream(fileName);
+                    RilTrafficReplayer replayer = new RilTrafficReplayer(is);
+                    RIL.ReplaySink sink = ril.getReplaySink();
+                    RilTrafficReplayer.Result result = replayer.replay(sink, realTime, !realTime);
+                    log("replayed " + fileName + ": " + result + " " + sink);
+                } catch (IOException ex) {
+                    log("replay of " + fileName + " failed: " + ex);
+                } finally {
+                    if (is != null) {
+                        try {
+                            is.close();
+                        } catch (IOException ex) {
+                            // ignore
+                        }
+                    }
+                }
+            }
+        }.start();
+    }
+
     /**
      * Handles request to send a test conference event package to the active Ims call.
      *
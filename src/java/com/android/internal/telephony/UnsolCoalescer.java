@@ -0,0 +1,205 @@
+/*
+ * Copyright (C) 2014 The Android Open Source Project
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *      http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+
+package com.android.internal.telephony;
+
+import android.os.Handler;
+import android.os.Looper;
+import android.os.Message;
+import android.os.SystemClock;
+import android.telephony.Rlog;
+import android.util.SparseArray;
+
+import java.io.PrintWriter;
+
+/**
+ * Rate limits high-frequency unsolicited indications before they reach
+ * their registrants.
+ *
+ * Each configured indication may be delivered at most once per minimum
+ * interval. The first indication after a quiet period goes through
+ * immediately; indications arriving within the interval are held back and
+ * only the most recent one is delivered when the interval expires, so a
+ * burst collapses into at most two notifications.
+ *
+ * The configuration is a comma separated list of
+ * <code>response:minIntervalMs</code> pairs, e.g. "1009:1000,1036:2000".
+ * Only indications that carry the complete current state can be rate
+ * limited, see {@link #isCoalescable}; entries for any other response are
+ * ignored.
+ *
+ * {@hide}
+ */
+class UnsolCoalescer {
+    private static final String LOG_TAG = "UnsolCoalescer";
+
+    /** Receives held back indications when their interval expires */
+    interface Target {
+        void deliverUnsol(int response, Object ret);
+    }
+
+    private static final class Rule {
+        final int mResponse;
+        final long mMinIntervalMs;
+
+        long mLastDelivery;
+        boolean mHasDelivered;
+        boolean mPending;
+        Object mPendingRet;
+
+        long mReceived;
+        long mDelivered;
+        // Indications replaced by a newer one before being delivered
+        long mMerged;
+
+        Rule(int response, long minIntervalMs) {
+            mResponse = response;
+            mMinIntervalMs = minIntervalMs;
+        }
+    }
+
+    private final SparseArray<Rule> mRules;
+    private final Target mTarget;
+    private final Handler mHandler;
+
+    UnsolCoalescer(Looper looper, Target target, String config) {
+        mRules = parseConfig(config);
+        mTarget = target;
+        mHandler = new Handler(looper) {
+            @Override
+            public void handleMessage(Message msg) {
+                deliverPending(msg.what);
+            }
+        };
+    }
+
+    private static SparseArray<Rule> parseConfig(String config) {
+        SparseArray<Rule> rules = new SparseArray<Rule>();
+        if (config == null || config.length() == 0) {
+            return rules;
+        }
+
+        for (String entry : config.split(",")) {
+            String[] parts = entry.trim().split(":");
+            try {
+                if (parts.length != 2) {
+                    throw new NumberFormatException();
+                }
+                int response = Integer.parseInt(parts[0].trim());
+                long interval = Long.parseLong(parts[1].trim());
+                if (!isCoalescable(response)) {
+                    Rlog.e(LOG_TAG, "Ignoring entry '" + entry + "', "
+                            + RIL.responseToString(response) + " cannot be rate limited");
+                    continue;
+                }
+                if (interval > 0) {
+                    rules.put(response, new Rule(response, interval));
+                }
+            } catch (NumberFormatException ex) {
+                Rlog.e(LOG_TAG, "Ignoring malformed entry '" + entry + "'");
+            }
+        }
+        return rules;
+    }
+
+    /**
+     * @return whether an indication can be rate limited: dropping all but
+     * the latest one of a burst must lose nothing, and RIL must route it
+     * through {@link #offer}
+     */
+    static boolean isCoalescable(int response) {
+        switch (response) {
+            case RILConstants.RIL_UNSOL_SIGNAL_STRENGTH:
+            case RILConstants.RIL_UNSOL_CELL_INFO_LIST:
+            case RILConstants.RIL_UNSOL_RESPONSE_VOICE_NETWORK_STATE_CHANGED:
+                return true;
+            default:
+                return false;
+        }
+    }
+
+    /**
+     * Offers an indication to the coalescer.
+     *
+     * @return false if the caller should deliver the indication now, true
+     * if it was held back and will be delivered to the target later (or
+     * replaced by a newer one)
+     */
+    boolean offer(int response, Object ret) {
+        Rule rule = mRules.get(response);
+        if (rule == null) {
+            return false;
+        }
+
+        synchronized (rule) {
+            rule.mReceived++;
+            long now = SystemClock.elapsedRealtime();
+            long sinceLast = now - rule.mLastDelivery;
+
+            if (!rule.mPending && (!rule.mHasDelivered || sinceLast >= rule.mMinIntervalMs)) {
+                rule.mLastDelivery = now;
+                rule.mHasDelivered = true;
+                rule.mDelivered++;
+                return false;
+            }
+
+            if (rule.mPending) {
+                rule.mMerged++;
+            } else {
+                rule.mPending = true;
+                mHandler.sendEmptyMessageDelayed(response,
+                        Math.max(0, rule.mMinIntervalMs - sinceLast));
+            }
+            rule.mPendingRet = ret;
+            return true;
+        }
+    }
+
+    private void deliverPending(int response) {
+        Rule rule = mRules.get(response);
+        if (rule == null) {
+            return;
+        }
+
+        Object ret;
+        synchronized (rule) {
+            if (!rule.mPending) {
+                return;
+            }
+            ret = rule.mPendingRet;
+            rule.mPending = false;
+            rule.mPendingRet = null;
+            rule.mLastDelivery = SystemClock.elapsedRealtime();
+            rule.mDelivered++;
+        }
+        mTarget.deliverUnsol(response, ret);
+    }
+
+    void dump(PrintWriter pw) {
+        pw.println(" UnsolCoalescer rules=" + mRules.size());
+        for (int i = 0; i < mRules.size(); i++) {
+            Rule rule = mRules.valueAt(i);
+            synchronized (rule) {
+                pw.println("  " + RIL.responseToString(rule.mResponse)
+                        + " minInterval=" + rule.mMinIntervalMs + "ms"
+                        + " received=" + rule.mReceived
+                        + " delivered=" + rule.mDelivered
+                        + " merged=" + rule.mMerged
+                        + " pending=" + rule.mPending);
+            }
+        }
+    }
+}
@@ -33,6 +33,7 @@ import com.android.internal.telephony.CallTracker;
 import com.android.internal.telephony.CommandsInterface;
 import com.android.internal.telephony.Connection;
 import com.android.internal.telephony.DriverCall;
+import com.android.internal.telephony.DriverCallList;
 import com.android.internal.telephony.Phone;
 import com.android.internal.telephony.PhoneBase;
 import com.android.internal.telephony.PhoneConstants;
@@ -432,6 +433,7 @@ public final class CdmaCallTracker extends CallTracker {
         mPendingOperations++;
         mLastRelevantPoll = null;
         mNeedsPoll = true;
+        invalidatePolledCalls();
 
         if (DBG_POLL) log("obtainCompleteMessage: pendingOperations=" +
                 mPendingOperations + ", needsPoll=" + mNeedsPoll);
@@ -506,6 +508,16 @@ public final class CdmaCallTracker extends CallTracker {
             return;
         }
 
+        if (isPolledCallsUnchanged(polledCalls) && mPendingMO == null
+                && mDroppedDuringPoll.isEmpty() && mHandoverConnections.isEmpty()) {
+            // Same calls as last time and nothing done to them since
+            if (DBG_POLL) log("poll: call list unchanged");
+            return;
+        }
+        // Only set when the connections are known to match the base list
+        DriverCallList changes = getPolledCallsChanges(polledCalls);
+        invalidatePolledCalls();
+
         Connection newRinging = null; //or waiting
         Connection newUnknown = null;
         boolean hasNonHangupStateChanged = false;   // Any change besides
@@ -640,7 +652,8 @@ public final class CdmaCallTracker extends CallTracker {
                         // continue to use the call info from conn, and only take a log.
                         Rlog.e(LOG_TAG,"Error in RIL, Phantom call appeared " + dc);
                     }
-                } else {
+                } else if (changes == null || changes.isChanged(curDC - 1)) {
+                    // Unchanged calls were applied to conn by the previous poll
                     boolean changed;
                     changed = conn.update(dc);
                     hasNonHangupStateChanged = hasNonHangupStateChanged || changed;
@@ -667,6 +680,8 @@ public final class CdmaCallTracker extends CallTracker {
             }
         }
 
+        setPolledCallsHandled(polledCalls);
+
         // This is the first poll after an ATD.
         // We expect the pending call to appear in the list
         // If it does not, we land here
@@ -640,7 +640,12 @@ public class CdmaLteServiceStateTracker extends CdmaServiceStateTracker {
         if (mSS.getRilDataRadioTechnology() == ServiceState.RIL_RADIO_TECHNOLOGY_LTE) {
             isGsm = true;
         }
-        boolean ssChanged = super.onSignalStrengthResult(ar, isGsm);
+        return super.onSignalStrengthResult(ar, isGsm);
+    }
+
+    @Override
+    protected boolean notifySignalStrength() {
+        boolean ssChanged = super.notifySignalStrength();
 
         synchronized (mCellInfo) {
             if (mSS.getRilDataRadioTechnology() == ServiceState.RIL_RADIO_TECHNOLOGY_LTE) {
@@ -1026,6 +1026,7 @@ public class CdmaServiceStateTracker extends ServiceStateTracker {
 
     protected void setSignalStrengthDefaultValues() {
         mSignalStrength = new SignalStrength( false);
+        mSignalStrengthFilter.reset();
     }
 
     /**
@@ -37,6 +37,7 @@ import com.android.internal.telephony.CallTracker;
 import com.android.internal.telephony.CommandsInterface;
 import com.android.internal.telephony.Connection;
 import com.android.internal.telephony.DriverCall;
+import com.android.internal.telephony.DriverCallList;
 import com.android.internal.telephony.EventLogTags;
 import com.android.internal.telephony.Phone;
 import com.android.internal.telephony.PhoneBase;
@@ -367,6 +368,7 @@ public final class GsmCallTracker extends CallTracker {
         mPendingOperations++;
         mLastRelevantPoll = null;
         mNeedsPoll = true;
+        invalidatePolledCalls();
 
         if (DBG_POLL) log("obtainCompleteMessage: pendingOperations=" +
                 mPendingOperations + ", needsPoll=" + mNeedsPoll);
@@ -435,6 +437,16 @@ public final class GsmCallTracker extends CallTracker {
             return;
         }
 
+        if (isPolledCallsUnchanged(polledCalls) && mPendingMO == null
+                && mDroppedDuringPoll.isEmpty() && mHandoverConnections.isEmpty()) {
+            // Same calls as last time and nothing done to them since
+            if (DBG_POLL) log("poll: call list unchanged");
+            return;
+        }
+        // Only set when the connections are known to match the base list
+        DriverCallList changes = getPolledCallsChanges(polledCalls);
+        invalidatePolledCalls();
+
         Connection newRinging = null; //or waiting
         ArrayList<Connection> newUnknownConnections =
             new ArrayList<Connection>();
@@ -556,9 +568,12 @@ public final class GsmCallTracker extends CallTracker {
                 } // else something strange happened
                 hasNonHangupStateChanged = true;
             } else if (conn != null && dc != null) { /* implicit conn.compareTo(dc) */
-                boolean changed;
-                changed = conn.update(dc);
-                hasNonHangupStateChanged = hasNonHangupStateChanged || changed;
+                // Unchanged calls were applied to conn by the previous poll
+                if (changes == null || changes.isChanged(curDC - 1)) {
+                    boolean changed;
+                    changed = conn.update(dc);
+                    hasNonHangupStateChanged = hasNonHangupStateChanged || changed;
+                }
             }
 
             if (REPEAT_POLLING) {
@@ -581,6 +596,8 @@ public final class GsmCallTracker extends CallTracker {
             }
         }
 
+        setPolledCallsHandled(polledCalls);
+
         // This is the first poll after an ATD.
         // We expect the pending call to appear in the list
         // If it does not, we land here
@@ -964,6 +964,7 @@ final class GsmServiceStateTracker extends ServiceStateTracker {
 
     private void setSignalStrengthDefaultValues() {
         mSignalStrength = new SignalStrength(true);
+        mSignalStrengthFilter.reset();
     }
 
     /**
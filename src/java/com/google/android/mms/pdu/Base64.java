@@ -123,6 +123,19 @@ public class Base64 {
         return decodedData;
     }
 
+    /**
+     * Get the value of a base64 alphabet character.
+     *
+     * @param octet the character, 0 to 255
+     * @return its value, -1 if it is not in the base64 alphabet
+     */
+    static int decodeCharacter(int octet) {
+        if ((octet < 0) || (octet >= BASELENGTH)) {
+            return -1;
+        }
+        return base64Alphabet[octet];
+    }
+
     /**
      * Check octect wheter it is a base64 encoding.
      *
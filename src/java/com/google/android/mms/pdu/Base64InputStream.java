@@ -0,0 +1,182 @@
+/*
+ * Copyright (C) 2014 The Android Open Source Project
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *      http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+
+package com.google.android.mms.pdu;
+
+import java.io.FilterInputStream;
+import java.io.IOException;
+import java.io.InputStream;
+
+/**
+ * An InputStream decoding the Base64 data of another stream as it is read,
+ * so a part body does not have to be held both encoded and decoded.
+ *
+ * As in Base64.decodeBase64(), characters outside of the base64 alphabet
+ * are discarded (RFC 2045). A quadruple cut short by padding or by the end
+ * of the data gives the octets of its complete sextets.
+ */
+class Base64InputStream extends FilterInputStream {
+    private static final int BUFFER_SIZE = 4096;
+
+    private final byte[] mBuffer = new byte[BUFFER_SIZE];
+    private int mBufferPos = 0;
+    private int mBufferEnd = 0;
+    private boolean mEndOfInput = false;
+
+    /**
+     * The sextets of the current quadruple.
+     */
+    private int mBits = 0;
+    private int mSextets = 0;
+
+    /**
+     * Decoded octets that did not fit into the caller's buffer.
+     */
+    private final byte[] mOctets = new byte[3];
+    private int mOctetPos = 0;
+    private int mOctetEnd = 0;
+
+    private final byte[] mSingle = new byte[1];
+
+    Base64InputStream(InputStream in) {
+        super(in);
+    }
+
+    @Override
+    public int read() throws IOException {
+        return (read(mSingle, 0, 1) == 1) ? (mSingle[0] & 0xFF) : -1;
+    }
+
+    @Override
+    public int read(byte[] b, int off, int len) throws IOException {
+        if (len == 0) {
+            return 0;
+        }
+        int count = takeOctets(b, off, len);
+        while (count < len) {
+            if ((mBufferPos == mBufferEnd) && !fill()) {
+                // Whatever is left of the last quadruple
+                endQuadruple();
+                count += takeOctets(b, off + count, len - count);
+                break;
+            }
+
+            int octet = mBuffer[mBufferPos++] & 0xFF;
+            if (octet == Base64.PAD) {
+                endQuadruple();
+                count += takeOctets(b, off + count, len - count);
+                continue;
+            }
+            int sextet = Base64.decodeCharacter(octet);
+            if (sextet < 0) {
+                continue;
+            }
+            mBits = (mBits << 6) | sextet;
+            if (++mSextets == 4) {
+                if (len - count >= 3) {
+                    b[off + count] = (byte) (mBits >> 16);
+                    b[off + count + 1] = (byte) (mBits >> 8);
+                    b[off + count + 2] = (byte) mBits;
+                    count += 3;
+                } else {
+                    mOctets[0] = (byte) (mBits >> 16);
+                    mOctets[1] = (byte) (mBits >> 8);
+                    mOctets[2] = (byte) mBits;
+                    mOctetPos = 0;
+                    mOctetEnd = 3;
+                    count += takeOctets(b, off + count, len - count);
+                }
+                mBits = 0;
+                mSextets = 0;
+            }
+        }
+        return (count > 0) ? count : -1;
+    }
+
+    @Override
+    public long skip(long n) throws IOException {
+        byte[] skipped = new byte[(int) Math.min(n, BUFFER_SIZE)];
+        long total = 0;
+        while (total < n) {
+            int count = read(skipped, 0, (int) Math.min(n - total, skipped.length));
+            if (count < 0) {
+                break;
+            }
+            total += count;
+        }
+        return total;
+    }
+
+    @Override
+    public int available() {
+        return mOctetEnd - mOctetPos;
+    }
+
+    @Override
+    public boolean markSupported() {
+        return false;
+    }
+
+    @Override
+    public void mark(int readlimit) {
+    }
+
+    @Override
+    public void reset() throws IOException {
+        throw new IOException("mark/reset not supported");
+    }
+
+    /**
+     * Keep the octets of the complete sextets of the current quadruple.
+     */
+    private void endQuadruple() {
+        mOctetPos = 0;
+        if (mSextets == 2) {
+            mOctets[0] = (byte) (mBits >> 4);
+            mOctetEnd = 1;
+        } else if (mSextets == 3) {
+            mOctets[0] = (byte) (mBits >> 10);
+            mOctets[1] = (byte) (mBits >> 2);
+            mOctetEnd = 2;
+        } else {
+            mOctetEnd = 0;
+        }
+        mBits = 0;
+        mSextets = 0;
+    }
+
+    private int takeOctets(byte[] b, int off, int len) {
+        int count = Math.min(len, mOctetEnd - mOctetPos);
+        for (int i = 0; i < count; i++) {
+            b[off + i] = mOctets[mOctetPos++];
+        }
+        return count;
+    }
+
+    private boolean fill() throws IOException {
+        if (mEndOfInput) {
+            return false;
+        }
+        int count = in.read(mBuffer, 0, BUFFER_SIZE);
+        if (count <= 0) {
+            mEndOfInput = true;
+            return false;
+        }
+        mBufferPos = 0;
+        mBufferEnd = count;
+        return true;
+    }
+}
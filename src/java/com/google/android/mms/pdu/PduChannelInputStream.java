@@ -0,0 +1,190 @@
+/*
+ * Copyright (C) 2014 The Android Open Source Project
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *      http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+
+package com.google.android.mms.pdu;
+
+import android.util.Log;
+
+import java.io.ByteArrayInputStream;
+import java.io.IOException;
+import java.nio.ByteBuffer;
+import java.nio.channels.FileChannel;
+
+/**
+ * A ByteArrayInputStream over a region of a FileChannel, so the parsing
+ * code in PduParser can run on a PDU that is not in memory.
+ *
+ * Only a small window of the region is buffered. Reads use absolute
+ * channel positions, so several streams can share one channel and mark()
+ * and reset() work over any distance. available() is exact, since the size
+ * of the region is known, which PduParser relies on to measure lengths.
+ *
+ * ByteArrayInputStream methods can not throw IOException; a read error is
+ * reported as the end of the stream and remembered, see hasError().
+ */
+class PduChannelInputStream extends ByteArrayInputStream {
+    private static final String LOG_TAG = "PduChannelInputStream";
+
+    static final int WINDOW_SIZE = 4096;
+
+    private final FileChannel mChannel;
+    private final long mEnd;
+    private final ByteBuffer mWindow;
+    private long mWindowStart;
+    private long mPosition;
+    private long mMarkPosition;
+    private boolean mError;
+
+    PduChannelInputStream(FileChannel channel, long start, long length) {
+        super(new byte[0]);
+        mChannel = channel;
+        mPosition = start;
+        mMarkPosition = start;
+        mEnd = start + length;
+        mWindow = ByteBuffer.allocate(WINDOW_SIZE);
+        mWindow.limit(0);
+    }
+
+    FileChannel getChannel() {
+        return mChannel;
+    }
+
+    /** @return the absolute channel position of the next byte */
+    long getPosition() {
+        return mPosition;
+    }
+
+    boolean hasError() {
+        return mError;
+    }
+
+    @Override
+    public synchronized int read() {
+        if (mPosition >= mEnd || !ensureWindow()) {
+            return -1;
+        }
+        return mWindow.get((int) (mPosition++ - mWindowStart)) & 0xff;
+    }
+
+    @Override
+    public synchronized int read(byte[] b, int off, int len) {
+        if (len == 0) {
+            return 0;
+        }
+        long remaining = mEnd - mPosition;
+        if (remaining <= 0) {
+            return -1;
+        }
+        len = (int) Math.min(len, remaining);
+
+        if (len > WINDOW_SIZE) {
+            // Large reads go straight to the caller's array
+            try {
+                int total = 0;
+                ByteBuffer dst = ByteBuffer.wrap(b, off, len);
+                while (dst.hasRemaining()) {
+                    int count = mChannel.read(dst, mPosition + total);
+                    if (count < 0) {
+                        break;
+                    }
+                    total += count;
+                }
+                mPosition += total;
+                return total > 0 ? total : -1;
+            } catch (IOException e) {
+                onError(e);
+                return -1;
+            }
+        }
+
+        int total = 0;
+        while (total < len && ensureWindow()) {
+            int inWindow = (int) (mPosition - mWindowStart);
+            int count = Math.min(len - total, mWindow.limit() - inWindow);
+            for (int i = 0; i < count; i++) {
+                b[off + total + i] = mWindow.get(inWindow + i);
+            }
+            total += count;
+            mPosition += count;
+        }
+        return total > 0 ? total : -1;
+    }
+
+    @Override
+    public synchronized long skip(long n) {
+        long skipped = Math.max(0, Math.min(n, mEnd - mPosition));
+        mPosition += skipped;
+        return skipped;
+    }
+
+    @Override
+    public synchronized int available() {
+        return (int) Math.min(Integer.MAX_VALUE, mEnd - mPosition);
+    }
+
+    @Override
+    public boolean markSupported() {
+        return true;
+    }
+
+    @Override
+    public void mark(int readAheadLimit) {
+        mMarkPosition = mPosition;
+    }
+
+    @Override
+    public synchronized void reset() {
+        mPosition = mMarkPosition;
+    }
+
+    @Override
+    public void close() {
+        // The channel belongs to the caller
+    }
+
+    /** Makes sure the window holds mPosition, false at the end or on error */
+    private boolean ensureWindow() {
+        if (mPosition >= mWindowStart && mPosition < mWindowStart + mWindow.limit()) {
+            return true;
+        }
+        if (mError || mPosition >= mEnd) {
+            return false;
+        }
+
+        mWindow.clear();
+        mWindow.limit((int) Math.min(WINDOW_SIZE, mEnd - mPosition));
+        mWindowStart = mPosition;
+        try {
+            while (mWindow.hasRemaining()) {
+                int count = mChannel.read(mWindow, mWindowStart + mWindow.position());
+                if (count < 0) {
+                    break;
+                }
+            }
+        } catch (IOException e) {
+            onError(e);
+            mWindow.limit(0);
+            return false;
+        }
+        mWindow.flip();
+        return mWindow.limit() > 0;
+    }
+
+    private void onError(IOException e) {
+        Log.e(LOG_TAG, "Read error at " + mPosition, e);
+        mError = true;
+    }
+}
@@ -19,6 +19,8 @@ package com.google.android.mms.pdu;
 
 import android.content.ContentResolver;
 import android.content.Context;
+import android.content.res.AssetFileDescriptor;
+import android.net.Uri;
 import android.util.Log;
 import android.text.TextUtils;
 
@@ -26,10 +28,13 @@ import java.io.ByteArrayOutputStream;
 import java.io.FileNotFoundException;
 import java.io.IOException;
 import java.io.InputStream;
+import java.io.OutputStream;
 import java.util.Arrays;
 import java.util.HashMap;
 
 public class PduComposer {
+    private static final String LOG_TAG = "PduComposer";
+
     /**
      * Address type.
      */
@@ -83,7 +88,14 @@ public class PduComposer {
     static private final int PDU_COMPOSER_BLOCK_SIZE = 1024;
 
     /**
-     * The output message.
+     * Size of the buffer used when composing to an OutputStream.
+     */
+    static private final int PDU_COMPOSER_STREAM_BUFFER_SIZE = 8192;
+
+    /**
+     * The output message, a ComposeBuffer while writing and null while
+     * measuring. Subclasses must write through the append methods, which
+     * also keep mPosition, rather than to mMessage directly.
      */
     protected ByteArrayOutputStream mMessage = null;
 
@@ -98,9 +110,27 @@ public class PduComposer {
     protected int mPosition = 0;
 
     /**
-     * Message compose buffer stack.
+     * Lengths of the length-prefixed values and multipart entries, in the
+     * order they start. The first pass measures them and the second pass
+     * writes them in front of the values, so the pdu is written once
+     * without any intermediate buffers.
+     */
+    private int[] mLengths = new int[16];
+
+    /**
+     * Positions where the values start, for measuring and checking.
+     */
+    private int[] mStarts = new int[16];
+
+    /**
+     * Index of the next length in mLengths.
+     */
+    private int mLengthIndex = 0;
+
+    /**
+     * Data of parts whose Uri content length is unknown, read while measuring.
      */
-    private BufferStack mStack = null;
+    private HashMap<PduPart, byte[]> mLoadedPartData = null;
 
     /**
      * Content resolver.
@@ -136,19 +166,86 @@ public class PduComposer {
         mPdu = pdu;
         mResolver = context.getContentResolver();
         mPduHeader = pdu.getPduHeaders();
-        mStack = new BufferStack();
-        mMessage = new ByteArrayOutputStream();
-        mPosition = 0;
     }
 
     /**
      * Make the message. No need to check whether mandatory fields are set,
      * because the constructors of outgoing pdus are taking care of this.
      *
+     * The pdu is measured first and then written into a buffer of its exact
+     * size. Part data given as Uri are read while writing, without loading
+     * them first.
+     *
      * @return OutputStream of maked message. Return null if
      *         the PDU is invalid.
      */
     public byte[] make() {
+        int length = measure();
+        if (length < 0) {
+            return null;
+        }
+
+        mMessage = new ComposeBuffer(new byte[length], null);
+        try {
+            if (compose() != PDU_COMPOSE_SUCCESS) {
+                return null;
+            }
+            return ((ComposeBuffer) mMessage).getBuffer();
+        } finally {
+            release();
+        }
+    }
+
+    /**
+     * Make the message and write it to out, without holding the whole
+     * pdu in memory. If the PDU turns out to be invalid while writing,
+     * e.g. because part data given as Uri can not be read any more, part
+     * of it may have been written already.
+     *
+     * @param out where to write the message, not closed
+     * @return the length of the message, or -1 if the PDU is invalid
+     * @throws IOException if writing to out failed
+     */
+    public int make(OutputStream out) throws IOException {
+        int length = measure();
+        if (length < 0) {
+            return -1;
+        }
+
+        ComposeBuffer buffer = new ComposeBuffer(
+                new byte[Math.min(length, PDU_COMPOSER_STREAM_BUFFER_SIZE)], out);
+        mMessage = buffer;
+        try {
+            int result = compose();
+            buffer.flush();
+            if (buffer.mError != null) {
+                throw buffer.mError;
+            }
+            return (result == PDU_COMPOSE_SUCCESS) ? length : -1;
+        } finally {
+            release();
+        }
+    }
+
+    /**
+     * First pass: go through the message without writing it, measuring
+     * the length-prefixed values.
+     *
+     * @return the length of the message, or -1 if the PDU is invalid
+     */
+    private int measure() {
+        mMessage = null;
+        if (compose() != PDU_COMPOSE_SUCCESS) {
+            release();
+            return -1;
+        }
+        return mPosition;
+    }
+
+    private int compose() {
+        mPosition = 0;
+        mLengthIndex = 0;
+
         // Get Message-type.
         int type = mPdu.getMessageType();
 
@@ -156,37 +253,34 @@ public class PduComposer {
         switch (type) {
             case PduHeaders.MESSAGE_TYPE_SEND_REQ:
             case PduHeaders.MESSAGE_TYPE_RETRIEVE_CONF:
-                if (makeSendRetrievePdu(type) != PDU_COMPOSE_SUCCESS) {
-                    return null;
-                }
-                break;
+                return makeSendRetrievePdu(type);
             case PduHeaders.MESSAGE_TYPE_NOTIFYRESP_IND:
-                if (makeNotifyResp() != PDU_COMPOSE_SUCCESS) {
-                    return null;
-                }
-                break;
+                return makeNotifyResp();
             case PduHeaders.MESSAGE_TYPE_ACKNOWLEDGE_IND:
-                if (makeAckInd() != PDU_COMPOSE_SUCCESS) {
-                    return null;
-                }
-                break;
+                return makeAckInd();
             case PduHeaders.MESSAGE_TYPE_READ_REC_IND:
-                if (makeReadRecInd() != PDU_COMPOSE_SUCCESS) {
-                    return null;
-                }
-                break;
+                return makeReadRecInd();
             default:
-                return null;
+                return PDU_COMPOSE_CONTENT_ERROR;
         }
+    }
+
+    private void release() {
+        mMessage = null;
+        mLoadedPartData = null;
+    }
 
-        return mMessage.toByteArray();
+    private boolean isMeasuring() {
+        return mMessage == null;
     }
 
     /**
      *  Copy buf to mMessage.
      */
     protected void arraycopy(byte[] buf, int pos, int length) {
-        mMessage.write(buf, pos, length);
+        if (mMessage != null) {
+            mMessage.write(buf, pos, length);
+        }
         mPosition = mPosition + length;
     }
 
@@ -194,7 +288,9 @@ public class PduComposer {
      * Append a byte to mMessage.
      */
     protected void append(int value) {
-        mMessage.write(value);
+        if (mMessage != null) {
+            mMessage.write(value);
+        }
         mPosition ++;
     }
 
@@ -336,16 +432,12 @@ public class PduComposer {
          * never be 0. It will always be composed as
          * Encoded-string-value = Value-length Char-set Text-string
          */
-        mStack.newbuf();
-        PositionMarker start = mStack.mark();
+        int start = startValueLength();
 
         appendShortInteger(charset);
         appendTextString(textString);
 
-        int len = start.getLength();
-        mStack.pop();
-        appendValueLength(len);
-        mStack.copy();
+        endValueLength(start);
     }
 
     /**
@@ -539,8 +631,7 @@ public class PduComposer {
                     // Insert-address-token = <Octet 129>
                     append(PduHeaders.FROM_INSERT_ADDRESS_TOKEN);
                 } else {
-                    mStack.newbuf();
-                    PositionMarker fstart = mStack.mark();
+                    int fstart = startValueLength();
 
                     // Address-present-token = <Octet 128>
                     append(PduHeaders.FROM_ADDRESS_PRESENT_TOKEN);
@@ -552,10 +643,7 @@ public class PduComposer {
 
                     appendEncodedString(temp);
 
-                    int flen = fstart.getLength();
-                    mStack.pop();
-                    appendValueLength(flen);
-                    mStack.copy();
+                    endValueLength(fstart);
                 }
                 break;
 
@@ -629,16 +717,12 @@ public class PduComposer {
 
                 appendOctet(field);
 
-                mStack.newbuf();
-                PositionMarker expiryStart = mStack.mark();
+                int expiryStart = startValueLength();
 
                 append(PduHeaders.VALUE_RELATIVE_TOKEN);
                 appendLongInteger(expiry);
 
-                int expiryLength = expiryStart.getLength();
-                mStack.pop();
-                appendValueLength(expiryLength);
-                mStack.copy();
+                endValueLength(expiryStart);
                 break;
 
             default:
@@ -652,11 +736,6 @@ public class PduComposer {
      * Make ReadRec.Ind.
      */
     private int makeReadRecInd() {
-        if (mMessage == null) {
-            mMessage = new ByteArrayOutputStream();
-            mPosition = 0;
-        }
-
         // X-Mms-Message-Type
         appendOctet(PduHeaders.MESSAGE_TYPE);
         appendOctet(PduHeaders.MESSAGE_TYPE_READ_REC_IND);
@@ -700,11 +779,6 @@ public class PduComposer {
      * Make NotifyResp.Ind.
      */
     private int makeNotifyResp() {
-        if (mMessage == null) {
-            mMessage = new ByteArrayOutputStream();
-            mPosition = 0;
-        }
-
         //    X-Mms-Message-Type
         appendOctet(PduHeaders.MESSAGE_TYPE);
         appendOctet(PduHeaders.MESSAGE_TYPE_NOTIFYRESP_IND);
@@ -732,11 +806,6 @@ public class PduComposer {
      * Make Acknowledge.Ind.
      */
     private int makeAckInd() {
-        if (mMessage == null) {
-            mMessage = new ByteArrayOutputStream();
-            mPosition = 0;
-        }
-
         //    X-Mms-Message-Type
         appendOctet(PduHeaders.MESSAGE_TYPE);
         appendOctet(PduHeaders.MESSAGE_TYPE_ACKNOWLEDGE_IND);
@@ -761,11 +830,6 @@ public class PduComposer {
      * Make Send.req.
      */
     private int makeSendRetrievePdu(int type) {
-        if (mMessage == null) {
-            mMessage = new ByteArrayOutputStream();
-            mPosition = 0;
-        }
-
         // X-Mms-Message-Type
         appendOctet(PduHeaders.MESSAGE_TYPE);
         appendOctet(type);
@@ -853,10 +917,6 @@ public class PduComposer {
      */
     private int makeMessageBody(int type) {
         // 1. add body informations
-        mStack.newbuf();  // Switching buffer because we need to
-
-        PositionMarker ctStart = mStack.mark();
-
         // This contentTypeIdentifier should be used for type of attachment...
         String contentType = new String(mPduHeader.getTextString(PduHeaders.CONTENT_TYPE));
         Integer contentTypeIdentifier = mContentTypeMap.get(contentType);
@@ -865,9 +925,6 @@ public class PduComposer {
             return PDU_COMPOSE_CONTENT_ERROR;
         }
 
-        appendShortInteger(contentTypeIdentifier.intValue());
-
-        // content-type parameter: start
         PduBody body;
         if (type == PduHeaders.MESSAGE_TYPE_RETRIEVE_CONF) {
             body = ((RetrieveConf) mPdu).getBody();
@@ -876,12 +933,16 @@ public class PduComposer {
         }
         if (null == body || body.getPartsNum() == 0) {
             // empty message
+            appendShortInteger(contentTypeIdentifier.intValue());
             appendUintvarInteger(0);
-            mStack.pop();
-            mStack.copy();
             return PDU_COMPOSE_SUCCESS;
         }
 
+        int ctStart = startValueLength();
+
+        appendShortInteger(contentTypeIdentifier.intValue());
+
+        // content-type parameter: start
         PduPart part;
         try {
             part = body.getPart(0);
@@ -904,21 +965,16 @@ public class PduComposer {
             e.printStackTrace();
         }
 
-        int ctLength = ctStart.getLength();
-        mStack.pop();
-        appendValueLength(ctLength);
-        mStack.copy();
+        endValueLength(ctStart);
 
         // 3. add content
         int partNum = body.getPartsNum();
         appendUintvarInteger(partNum);
         for (int i = 0; i < partNum; i++) {
             part = body.getPart(i);
-            mStack.newbuf();  // Leaving space for header lengh and data length
-            PositionMarker attachment = mStack.mark();
+            int attachment = startPart();  // Header length and data length come first
 
-            mStack.newbuf();  // Leaving space for Content-Type length
-            PositionMarker contentTypeBegin = mStack.mark();
+            int contentTypeBegin = startValueLength();
 
             byte[] partContentType = part.getContentType();
 
@@ -969,10 +1025,7 @@ public class PduComposer {
                 appendShortInteger(charset);
             }
 
-            int contentTypeLength = contentTypeBegin.getLength();
-            mStack.pop();
-            appendValueLength(contentTypeLength);
-            mStack.copy();
+            endValueLength(contentTypeBegin);
 
             // content id
             byte[] contentId = part.getContentId();
@@ -994,159 +1047,318 @@ public class PduComposer {
             }
 
             // content
-            int headerLength = attachment.getLength();
-
-            int dataLength = 0; // Just for safety...
-            byte[] partData = part.getData();
+            startPartData(attachment);
 
-            if (partData != null) {
-                arraycopy(partData, 0, partData.length);
-                dataLength = partData.length;
-            } else {
-                InputStream cr = null;
-                try {
-                    byte[] buffer = new byte[PDU_COMPOSER_BLOCK_SIZE];
-                    cr = mResolver.openInputStream(part.getDataUri());
-                    int len = 0;
-                    while ((len = cr.read(buffer)) != -1) {
-                        mMessage.write(buffer, 0, len);
-                        mPosition += len;
-                        dataLength += len;
-                    }
-                } catch (FileNotFoundException e) {
-                    return PDU_COMPOSE_CONTENT_ERROR;
-                } catch (IOException e) {
-                    return PDU_COMPOSE_CONTENT_ERROR;
-                } catch (RuntimeException e) {
-                    return PDU_COMPOSE_CONTENT_ERROR;
-                } finally {
-                    if (cr != null) {
-                        try {
-                            cr.close();
-                        } catch (IOException e) {
-                        }
-                    }
-                }
-            }
-
-            if (dataLength != (attachment.getLength() - headerLength)) {
-                throw new RuntimeException("BUG: Length sanity check failed");
+            if (appendPartData(part, attachment) != PDU_COMPOSE_SUCCESS) {
+                return PDU_COMPOSE_CONTENT_ERROR;
             }
 
-            mStack.pop();
-            appendUintvarInteger(headerLength);
-            appendUintvarInteger(dataLength);
-            mStack.copy();
+            endPart(attachment);
         }
 
         return PDU_COMPOSE_SUCCESS;
     }
 
     /**
-     *  Record current message informations.
+     * Append the data of a part, from its data or read from its data Uri.
+     * While measuring only the length is found out, the data Uri content is
+     * read only if its length is not known.
      */
-    static private class LengthRecordNode {
-        ByteArrayOutputStream currentMessage = null;
-        public int currentPosition = 0;
+    private int appendPartData(PduPart part, int attachment) {
+        if (part.getDataBuffer() != null) {
+            if (isMeasuring()) {
+                mPosition += part.getDataLength();
+                return PDU_COMPOSE_SUCCESS;
+            }
+            try {
+                mPosition += part.writeDataTo(mMessage);
+            } catch (IOException e) {
+                return PDU_COMPOSE_CONTENT_ERROR;
+            }
+            return PDU_COMPOSE_SUCCESS;
+        }
 
-        public LengthRecordNode next = null;
+        byte[] loaded = (mLoadedPartData != null) ? mLoadedPartData.get(part) : null;
+        if (loaded != null) {
+            arraycopy(loaded, 0, loaded.length);
+            return PDU_COMPOSE_SUCCESS;
+        }
+
+        Uri dataUri = part.getDataUri();
+        if (isMeasuring()) {
+            long length = getDataLength(mResolver, dataUri);
+            if (length < 0) {
+                loaded = loadData(dataUri);
+                if (loaded == null) {
+                    return PDU_COMPOSE_CONTENT_ERROR;
+                }
+                if (mLoadedPartData == null) {
+                    mLoadedPartData = new HashMap<PduPart, byte[]>();
+                }
+                mLoadedPartData.put(part, loaded);
+                length = loaded.length;
+            }
+            if (length > Integer.MAX_VALUE - mPosition) {
+                return PDU_COMPOSE_CONTENT_ERROR;
+            }
+            mPosition += (int) length;
+            return PDU_COMPOSE_SUCCESS;
+        }
+
+        // Copy exactly the measured length, the content must not have changed
+        int dataLength = mLengths[attachment + 1];
+        InputStream cr = null;
+        try {
+            cr = mResolver.openInputStream(dataUri);
+            int copied = ((ComposeBuffer) mMessage).readFrom(cr, dataLength);
+            mPosition += copied;
+            if ((copied != dataLength) || (cr.read() != -1)) {
+                Log.e(LOG_TAG, "Content of " + dataUri + " changed while composing");
+                return PDU_COMPOSE_CONTENT_ERROR;
+            }
+        } catch (FileNotFoundException e) {
+            return PDU_COMPOSE_CONTENT_ERROR;
+        } catch (IOException e) {
+            return PDU_COMPOSE_CONTENT_ERROR;
+        } catch (RuntimeException e) {
+            return PDU_COMPOSE_CONTENT_ERROR;
+        } finally {
+            if (cr != null) {
+                try {
+                    cr.close();
+                } catch (IOException e) {
+                }
+            }
+        }
+        return PDU_COMPOSE_SUCCESS;
     }
 
     /**
-     * Mark current message position and stact size.
+     * @return the length of the content of uri, -1 if it is not known
      */
-    private class PositionMarker {
-        private int c_pos;   // Current position
-        private int currentStackSize;  // Current stack size
-
-        int getLength() {
-            // If these assert fails, likely that you are finding the
-            // size of buffer that is deep in BufferStack you can only
-            // find the length of the buffer that is on top
-            if (currentStackSize != mStack.stackSize) {
-                throw new RuntimeException("BUG: Invalid call to getLength()");
+    static long getDataLength(ContentResolver resolver, Uri uri) {
+        AssetFileDescriptor afd = null;
+        try {
+            afd = resolver.openAssetFileDescriptor(uri, "r");
+            if (afd == null) {
+                return -1;
+            }
+            long length = afd.getLength();
+            if (length == AssetFileDescriptor.UNKNOWN_LENGTH) {
+                // The whole file, -1 if it is not a regular file
+                length = afd.getParcelFileDescriptor().getStatSize();
+            }
+            return length;
+        } catch (FileNotFoundException e) {
+            return -1;
+        } catch (RuntimeException e) {
+            return -1;
+        } finally {
+            if (afd != null) {
+                try {
+                    afd.close();
+                } catch (IOException e) {
+                }
             }
-
-            return mPosition - c_pos;
         }
     }
 
     /**
-     * This implementation can be OPTIMIZED to use only
-     * 2 buffers. This optimization involves changing BufferStack
-     * only... Its usage (interface) will not change.
+     * @return the content of uri, null if it can not be read
      */
-    private class BufferStack {
-        private LengthRecordNode stack = null;
-        private LengthRecordNode toCopy = null;
-
-        int stackSize = 0;
-
-        /**
-         *  Create a new message buffer and push it into the stack.
-         */
-        void newbuf() {
-            // You can't create a new buff when toCopy != null
-            // That is after calling pop() and before calling copy()
-            // If you do, it is a bug
-            if (toCopy != null) {
-                throw new RuntimeException("BUG: Invalid newbuf() before copy()");
+    private byte[] loadData(Uri uri) {
+        InputStream cr = null;
+        try {
+            cr = mResolver.openInputStream(uri);
+            ByteArrayOutputStream data = new ByteArrayOutputStream();
+            byte[] buffer = new byte[PDU_COMPOSER_BLOCK_SIZE];
+            int len = 0;
+            while ((len = cr.read(buffer)) != -1) {
+                data.write(buffer, 0, len);
             }
+            return data.toByteArray();
+        } catch (FileNotFoundException e) {
+            return null;
+        } catch (IOException e) {
+            return null;
+        } catch (RuntimeException e) {
+            return null;
+        } finally {
+            if (cr != null) {
+                try {
+                    cr.close();
+                } catch (IOException e) {
+                }
+            }
+        }
+    }
 
-            LengthRecordNode temp = new LengthRecordNode();
-
-            temp.currentMessage = mMessage;
-            temp.currentPosition = mPosition;
+    /**
+     * Reserve count lengths.
+     *
+     * @return the index of the first one
+     */
+    private int nextLengths(int count) {
+        int index = mLengthIndex;
+        mLengthIndex += count;
+        if (isMeasuring() && (mLengthIndex > mLengths.length)) {
+            int size = Math.max(mLengths.length * 2, mLengthIndex);
+            mLengths = Arrays.copyOf(mLengths, size);
+            mStarts = Arrays.copyOf(mStarts, size);
+        }
+        return index;
+    }
 
-            temp.next = stack;
-            stack = temp;
+    /**
+     * Start a value preceded by its Value-length.
+     *
+     * @return the index of its length, for endValueLength()
+     */
+    private int startValueLength() {
+        int index = nextLengths(1);
+        if (!isMeasuring()) {
+            appendValueLength(mLengths[index]);
+        }
+        mStarts[index] = mPosition;
+        return index;
+    }
 
-            stackSize = stackSize + 1;
+    /**
+     * End a value started with startValueLength().
+     */
+    private void endValueLength(int index) {
+        int length = endLength(index);
+        if (isMeasuring()) {
+            // Only counts, the length goes in front of the value when writing
+            appendValueLength(length);
+        }
+    }
 
-            mMessage = new ByteArrayOutputStream();
-            mPosition = 0;
+    /**
+     * Start a multipart entry, preceded by the Uintvar lengths of its
+     * headers and its data.
+     *
+     * @return the index of its lengths, for startPartData() and endPart()
+     */
+    private int startPart() {
+        int index = nextLengths(2);
+        if (!isMeasuring()) {
+            appendUintvarInteger(mLengths[index]);
+            appendUintvarInteger(mLengths[index + 1]);
         }
+        mStarts[index] = mPosition;
+        return index;
+    }
 
-        /**
-         *  Pop the message before and record current message in the stack.
-         */
-        void pop() {
-            ByteArrayOutputStream currentMessage = mMessage;
-            int currentPosition = mPosition;
+    /**
+     * End the headers of a multipart entry started with startPart().
+     */
+    private void startPartData(int index) {
+        endLength(index);
+        mStarts[index + 1] = mPosition;
+    }
 
-            mMessage = stack.currentMessage;
-            mPosition = stack.currentPosition;
+    /**
+     * End a multipart entry started with startPart().
+     */
+    private void endPart(int index) {
+        endLength(index + 1);
+        if (isMeasuring()) {
+            appendUintvarInteger(mLengths[index]);
+            appendUintvarInteger(mLengths[index + 1]);
+        }
+    }
 
-            toCopy = stack;
-            // Re using the top element of the stack to avoid memory allocation
+    private int endLength(int index) {
+        int length = mPosition - mStarts[index];
+        if (isMeasuring()) {
+            mLengths[index] = length;
+        } else if (length != mLengths[index]) {
+            throw new RuntimeException("BUG: Length sanity check failed");
+        }
+        return length;
+    }
 
-            stack = stack.next;
-            stackSize = stackSize - 1;
+    /**
+     * The output of the second pass: either a buffer of the size of the
+     * whole message, or a smaller one that is flushed to an OutputStream
+     * whenever it is full. Write errors are kept in mError, since the
+     * append methods can not throw them.
+     */
+    private static class ComposeBuffer extends ByteArrayOutputStream {
+        final OutputStream mOut;
+        IOException mError = null;
+
+        ComposeBuffer(byte[] buffer, OutputStream out) {
+            super(0);
+            buf = buffer;
+            mOut = out;
+        }
 
-            toCopy.currentMessage = currentMessage;
-            toCopy.currentPosition = currentPosition;
+        byte[] getBuffer() {
+            return buf;
         }
 
-        /**
-         *  Append current message to the message before.
-         */
-        void copy() {
-            arraycopy(toCopy.currentMessage.toByteArray(), 0,
-                    toCopy.currentPosition);
+        @Override
+        public void write(int b) {
+            if (count == buf.length) {
+                flush();
+            }
+            buf[count++] = (byte) b;
+        }
 
-            toCopy = null;
+        @Override
+        public void write(byte[] b, int off, int len) {
+            while (len > 0) {
+                if (count == buf.length) {
+                    flush();
+                }
+                int copied = Math.min(len, buf.length - count);
+                System.arraycopy(b, off, buf, count, copied);
+                count += copied;
+                off += copied;
+                len -= copied;
+            }
         }
 
         /**
-         *  Mark current message position
+         * Read up to length bytes from in straight into the buffer.
+         *
+         * @return the number of bytes read
          */
-        PositionMarker mark() {
-            PositionMarker m = new PositionMarker();
-
-            m.c_pos = mPosition;
-            m.currentStackSize = stackSize;
+        int readFrom(InputStream in, int length) throws IOException {
+            int total = 0;
+            while (total < length) {
+                if (count == buf.length) {
+                    flush();
+                }
+                int read = in.read(buf, count,
+                        Math.min(length - total, buf.length - count));
+                if (read < 0) {
+                    break;
+                }
+                count += read;
+                total += read;
+            }
+            return total;
+        }
 
-            return m;
+        @Override
+        public void flush() {
+            if (mOut == null) {
+                if (count == buf.length) {
+                    throw new RuntimeException("BUG: Message longer than measured");
+                }
+                return;
+            }
+            if (mError == null) {
+                try {
+                    mOut.write(buf, 0, count);
+                } catch (IOException e) {
+                    mError = e;
+                }
+            }
+            count = 0;
         }
     }
 
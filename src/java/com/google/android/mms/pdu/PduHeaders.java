@@ -20,7 +20,6 @@ package com.google.android.mms.pdu;
 import com.google.android.mms.InvalidHeaderValueException;
 
 import java.util.ArrayList;
-import java.util.HashMap;
 
 public class PduHeaders {
     /**
@@ -320,15 +319,99 @@ public class PduHeaders {
     public static final int STORE_STATUS_ERROR_END                              = 0xFF;
 
     /**
-     * The map contains the value of all headers.
+     * Header fields are stored by kind, octets and long integers without
+     * boxing and all others as objects. Each field has a slot in the array
+     * of its kind, found through SLOTS, which is indexed by field code and
+     * holds the kind and the slot of each field.
      */
-    private HashMap<Integer, Object> mHeaderMap = null;
+    private static final int FIRST_FIELD = BCC;
+    private static final int LAST_FIELD = CANCEL_STATUS;
+
+    private static final int[] OCTET_FIELDS = {
+        ADAPTATION_ALLOWED, CANCEL_STATUS, CONTENT_CLASS, DELIVERY_REPORT,
+        DISTRIBUTION_INDICATOR, DRM_CONTENT, MESSAGE_TYPE, MMS_VERSION, MM_STATE, PRIORITY,
+        QUOTAS, READ_REPORT, READ_STATUS, RECOMMENDED_RETRIEVAL_MODE, REPLY_CHARGING,
+        REPORT_ALLOWED, RESPONSE_STATUS, RETRIEVE_STATUS, SENDER_VISIBILITY, STATUS, STORE,
+        STORED, STORE_STATUS, TOTALS,
+    };
+
+    private static final int[] LONG_FIELDS = {
+        DATE, DELIVERY_TIME, EXPIRY, LIMIT, MESSAGE_COUNT, MESSAGE_SIZE,
+        PREVIOUSLY_SENT_DATE, REPLY_CHARGING_DEADLINE, REPLY_CHARGING_SIZE, START,
+    };
+
+    /**
+     * Text-String, Encoded-String-Value and address list fields.
+     */
+    private static final int[] OBJECT_FIELDS = {
+        APPLIC_ID, AUX_APPLIC_ID, CANCEL_ID, CONTENT_LOCATION, CONTENT_TYPE, MESSAGE_CLASS,
+        MESSAGE_ID, REPLACE_ID, REPLY_APPLIC_ID, REPLY_CHARGING_ID, TRANSACTION_ID,
+        FROM, MM_FLAGS, PREVIOUSLY_SENT_BY, RECOMMENDED_RETRIEVAL_MODE_TEXT, RESPONSE_TEXT,
+        RETRIEVE_TEXT, STATUS_TEXT, STORE_STATUS_TEXT, SUBJECT,
+        BCC, CC, TO,
+    };
+
+    private static final int SLOT_MASK = 0x1F;
+    private static final int KIND_OCTET = 1 << 5;
+    private static final int KIND_LONG = 2 << 5;
+    private static final int KIND_OBJECT = 3 << 5;
+
+    private static final byte[] SLOTS = new byte[LAST_FIELD - FIRST_FIELD + 1];
+
+    static {
+        for (int i = 0; i < OCTET_FIELDS.length; i++) {
+            SLOTS[OCTET_FIELDS[i] - FIRST_FIELD] = (byte) (KIND_OCTET | i);
+        }
+        for (int i = 0; i < LONG_FIELDS.length; i++) {
+            SLOTS[LONG_FIELDS[i] - FIRST_FIELD] = (byte) (KIND_LONG | i);
+        }
+        for (int i = 0; i < OBJECT_FIELDS.length; i++) {
+            SLOTS[OBJECT_FIELDS[i] - FIRST_FIELD] = (byte) (KIND_OBJECT | i);
+        }
+    }
+
+    /**
+     * Octet values, 0 if not set.
+     */
+    private final int[] mOctets = new int[OCTET_FIELDS.length];
+
+    /**
+     * Long integer values, set where the bit of the slot in mLongsSet is.
+     */
+    private final long[] mLongs = new long[LONG_FIELDS.length];
+    private int mLongsSet;
+
+    /**
+     * byte[], EncodedStringValue or ArrayList<EncodedStringValue> values,
+     * null if not set.
+     */
+    private final Object[] mObjects = new Object[OBJECT_FIELDS.length];
 
     /**
      * Constructor of PduHeaders.
      */
     public PduHeaders() {
-        mHeaderMap = new HashMap<Integer, Object>();
+    }
+
+    /**
+     * @return the slot of field, or -1 if it is not a header field of kind.
+     */
+    private static int slot(int field, int kind) {
+        if ((field < FIRST_FIELD) || (field > LAST_FIELD)) {
+            return -1;
+        }
+        int entry = SLOTS[field - FIRST_FIELD];
+        return (entry & ~SLOT_MASK) == kind ? (entry & SLOT_MASK) : -1;
+    }
+
+    private Object getObject(int field) {
+        int slot = slot(field, KIND_OBJECT);
+        return slot < 0 ? null : mObjects[slot];
+    }
+
+    /** The setters only get here for fields they have checked */
+    private void putObject(int field, Object value) {
+        mObjects[slot(field, KIND_OBJECT)] = value;
     }
 
     /**
@@ -340,12 +423,12 @@ public class PduHeaders {
      *          the value is not set.
      */
     protected int getOctet(int field) {
-        Integer octet = (Integer) mHeaderMap.get(field);
-        if (null == octet) {
+        int slot = slot(field, KIND_OCTET);
+        if (slot < 0) {
             return 0;
         }
 
-        return octet;
+        return mOctets[slot];
     }
 
     /**
@@ -485,7 +568,7 @@ public class PduHeaders {
                 // This header value should not be Octect.
                 throw new RuntimeException("Invalid header field!");
         }
-        mHeaderMap.put(field, value);
+        mOctets[slot(field, KIND_OCTET)] = value;
     }
 
     /**
@@ -496,7 +579,8 @@ public class PduHeaders {
      *          with specified header field
      */
     protected byte[] getTextString(int field) {
-        return (byte[]) mHeaderMap.get(field);
+        Object value = getObject(field);
+        return value instanceof byte[] ? (byte[]) value : null;
     }
 
     /**
@@ -534,7 +618,7 @@ public class PduHeaders {
                 // This header value should not be Text-String.
                 throw new RuntimeException("Invalid header field!");
         }
-        mHeaderMap.put(field, value);
+        putObject(field, value);
     }
 
     /**
@@ -545,7 +629,8 @@ public class PduHeaders {
      *          with specified header field
      */
     protected EncodedStringValue getEncodedStringValue(int field) {
-        return (EncodedStringValue) mHeaderMap.get(field);
+        Object value = getObject(field);
+        return value instanceof EncodedStringValue ? (EncodedStringValue) value : null;
     }
 
     /**
@@ -556,11 +641,11 @@ public class PduHeaders {
      *          with specified header field
      */
     protected EncodedStringValue[] getEncodedStringValues(int field) {
-        ArrayList<EncodedStringValue> list =
-                (ArrayList<EncodedStringValue>) mHeaderMap.get(field);
-        if (null == list) {
+        Object value = getObject(field);
+        if (!(value instanceof ArrayList)) {
             return null;
         }
+        ArrayList<EncodedStringValue> list = (ArrayList<EncodedStringValue>) value;
         EncodedStringValue[] values = new EncodedStringValue[list.size()];
         return list.toArray(values);
     }
@@ -599,7 +684,7 @@ public class PduHeaders {
                 throw new RuntimeException("Invalid header field!");
         }
 
-        mHeaderMap.put(field, value);
+        putObject(field, value);
     }
 
     /**
@@ -634,7 +719,7 @@ public class PduHeaders {
         for (int i = 0; i < value.length; i++) {
             list.add(value[i]);
         }
-        mHeaderMap.put(field, list);
+        putObject(field, list);
     }
 
     /**
@@ -660,12 +745,12 @@ public class PduHeaders {
         }
 
         ArrayList<EncodedStringValue> list =
-            (ArrayList<EncodedStringValue>) mHeaderMap.get(field);
+            (ArrayList<EncodedStringValue>) getObject(field);
         if (null == list) {
             list  = new ArrayList<EncodedStringValue>();
         }
         list.add(value);
-        mHeaderMap.put(field, list);
+        putObject(field, list);
     }
 
     /**
@@ -677,12 +762,12 @@ public class PduHeaders {
      *          field is not existed in pdu header.
      */
     protected long getLongInteger(int field) {
-        Long longInteger = (Long) mHeaderMap.get(field);
-        if (null == longInteger) {
+        int slot = slot(field, KIND_LONG);
+        if ((slot < 0) || ((mLongsSet & (1 << slot)) == 0)) {
             return -1;
         }
 
-        return longInteger.longValue();
+        return mLongs[slot];
     }
 
     /**
@@ -712,6 +797,8 @@ public class PduHeaders {
                 // This header value should not be LongInteger.
                 throw new RuntimeException("Invalid header field!");
         }
-        mHeaderMap.put(field, value);
+        int slot = slot(field, KIND_LONG);
+        mLongs[slot] = value;
+        mLongsSet |= 1 << slot;
     }
 }
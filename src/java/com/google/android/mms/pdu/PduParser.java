@@ -17,14 +17,22 @@
 
 package com.google.android.mms.pdu;
 
+import android.net.Uri;
 import android.util.Log;
 
 import com.google.android.mms.ContentType;
 import com.google.android.mms.InvalidHeaderValueException;
 
 import java.io.ByteArrayInputStream;
-import java.io.ByteArrayOutputStream;
+import java.io.File;
+import java.io.FileOutputStream;
+import java.io.IOException;
+import java.io.InputStream;
+import java.io.RandomAccessFile;
 import java.io.UnsupportedEncodingException;
+import java.nio.ByteBuffer;
+import java.nio.channels.FileChannel;
+import java.util.ArrayList;
 import java.util.Arrays;
 import java.util.HashMap;
 
@@ -43,9 +51,44 @@ public class PduParser {
     private static final int END_STRING_FLAG = 0x00;
     //The next two are used by the interface "parseWapString" to
     //distinguish Text-String and Quoted-String.
-    private static final int TYPE_TEXT_STRING = 0;
-    private static final int TYPE_QUOTED_STRING = 1;
-    private static final int TYPE_TOKEN_STRING = 2;
+    static final int TYPE_TEXT_STRING = 0;
+    static final int TYPE_QUOTED_STRING = 1;
+    static final int TYPE_TOKEN_STRING = 2;
+
+    /**
+     * Character classes of all octets, see isTokenCharacter() and isText().
+     */
+    private static final byte CHAR_TOKEN = 0x01;
+    private static final byte CHAR_TEXT = 0x02;
+    private static final byte[] CHAR_CLASSES = new byte[256];
+
+    static {
+        for (int ch = 0; ch < 256; ch++) {
+            // TEXT = <any OCTET except CTLs, but including LWS>
+            if (((ch >= 32) && (ch <= 126)) || (ch >= 128)
+                    || (ch == '\t') || (ch == '\n') || (ch == '\r')) {
+                CHAR_CLASSES[ch] |= CHAR_TEXT;
+            }
+            // Token = 1*<any CHAR except CTLs or separators>
+            if ((ch >= 33) && (ch <= 126) && ("\"(),/:;<=>?@[\\]{}".indexOf(ch) < 0)) {
+                CHAR_CLASSES[ch] |= CHAR_TOKEN;
+            }
+        }
+    }
+
+    /**
+     * Strings are collected here before they are copied out at their
+     * final length. The parse methods are static, so the buffer is kept
+     * per thread rather than per parser.
+     */
+    private static final int SCRATCH_SIZE = 256;
+    private static final int SCRATCH_SIZE_MAX = 4096;
+    private static final ThreadLocal<byte[]> sScratch = new ThreadLocal<byte[]>() {
+        @Override
+        protected byte[] initialValue() {
+            return new byte[SCRATCH_SIZE];
+        }
+    };
 
     /**
      * Specify the part position.
@@ -90,15 +133,135 @@ public class PduParser {
      */
     private final boolean mParseContentDisposition;
 
+    /**
+     * Part bodies up to this size stay in memory when streaming.
+     */
+    static final int STREAMED_PART_IN_MEMORY_MAX = 16 * 1024;
+
+    /**
+     * Size of the buffer for writing decoded part bodies to a file.
+     */
+    private static final int SPILL_BUFFER_SIZE = 8 * 1024;
+
+    /**
+     * When parsing a byte array, binary part data of at least this size
+     * refer to the pdu instead of being copied out of it.
+     */
+    static final int SHARED_PART_MIN = 4 * 1024;
+
+    /**
+     * A part referring to the pdu keeps all of it in memory, so only parts
+     * taking at least this share of the pdu refer to it.
+     */
+    private static final int SHARED_PART_MAX_PDU_RATIO = 4;
+
+    /**
+     * The pdu when parsing a byte array, large binary part data refer to it.
+     */
+    private final byte[] mPduData;
+
+    /**
+     * Where streamed part bodies are written, null when parsing a byte array.
+     */
+    private final File mSpoolDir;
+
+    /**
+     * Copy of a PDU read from an InputStream, deleted after parsing.
+     */
+    private File mSpoolFile = null;
+    private RandomAccessFile mSpoolAccess = null;
+
+    /**
+     * Files written for part bodies, deleted if the parsing fails.
+     */
+    private final ArrayList<File> mSpilledFiles = new ArrayList<File>();
+
     /**
      * Constructor.
      *
+     * The pdu is copied once, large binary part data refer to the copy.
+     *
      * @param pduDataStream pdu data to be parsed
      * @param parseContentDisposition whether to parse the Content-Disposition part header
      */
     public PduParser(byte[] pduDataStream, boolean parseContentDisposition) {
-        mPduDataStream = new ByteArrayInputStream(pduDataStream);
+        this(pduDataStream, parseContentDisposition, false);
+    }
+
+    /**
+     * Constructor.
+     *
+     * With sharePduData, the pdu is not copied and large binary part data
+     * refer to pduDataStream, so the caller must not modify it while the parsed pdu is
+     * in use.
+     *
+     * @param pduDataStream pdu data to be parsed
+     * @param parseContentDisposition whether to parse the Content-Disposition part header
+     * @param sharePduData whether the parts may refer to pduDataStream instead of a copy
+     */
+    public PduParser(byte[] pduDataStream, boolean parseContentDisposition,
+            boolean sharePduData) {
+        mPduData = sharePduData ? pduDataStream : pduDataStream.clone();
+        mPduDataStream = new ByteArrayInputStream(mPduData);
+        mParseContentDisposition = parseContentDisposition;
+        mSpoolDir = null;
+    }
+
+    /**
+     * Constructor for parsing a pdu held in a file without reading it into memory.
+     *
+     * Only the headers are held in memory. Part bodies larger than
+     * STREAMED_PART_IN_MEMORY_MAX, except text and SMIL, are copied into
+     * files in spoolDir and set as the data Uri of their part; the caller
+     * must delete them once the parts have been persisted.
+     *
+     * @param pduChannel channel of the file holding the pdu, left open
+     * @param parseContentDisposition whether to parse the Content-Disposition part header
+     * @param spoolDir directory to write part bodies to
+     */
+    public PduParser(FileChannel pduChannel, boolean parseContentDisposition, File spoolDir)
+            throws IOException {
+        mPduDataStream = new PduChannelInputStream(pduChannel, 0, pduChannel.size());
         mParseContentDisposition = parseContentDisposition;
+        mPduData = null;
+        mSpoolDir = spoolDir;
+    }
+
+    /**
+     * Constructor for parsing a pdu from a stream without reading it into memory.
+     *
+     * The stream is copied to a temporary file in spoolDir first, since
+     * parsing needs to know the length of the pdu and to go back and forth
+     * in it; the file is deleted when parse() returns. Part bodies are then
+     * handled as by {@link #PduParser(FileChannel, boolean, File)}.
+     *
+     * @param pduStream the pdu, read to the end but not closed
+     * @param parseContentDisposition whether to parse the Content-Disposition part header
+     * @param spoolDir directory to write the pdu and part bodies to
+     */
+    public PduParser(InputStream pduStream, boolean parseContentDisposition, File spoolDir)
+            throws IOException {
+        mParseContentDisposition = parseContentDisposition;
+        mPduData = null;
+        mSpoolDir = spoolDir;
+        mSpoolFile = File.createTempFile("pdu", null, spoolDir);
+        try {
+            FileOutputStream out = new FileOutputStream(mSpoolFile);
+            try {
+                byte[] buffer = new byte[8192];
+                for (int len = 0; (len = pduStream.read(buffer)) != -1; ) {
+                    out.write(buffer, 0, len);
+                }
+            } finally {
+                out.close();
+            }
+            mSpoolAccess = new RandomAccessFile(mSpoolFile, "r");
+            FileChannel channel = mSpoolAccess.getChannel();
+            mPduDataStream = new PduChannelInputStream(channel, 0, channel.size());
+        } catch (IOException e) {
+            releaseSpool();
+            throw e;
+        }
     }
 
     /**
@@ -107,7 +270,42 @@ public class PduParser {
      * @return the pdu structure if parsing successfully.
      *         null if parsing error happened or mandatory fields are not set.
      */
-    public GenericPdu parse(){
+    public GenericPdu parse() {
+        GenericPdu pdu = null;
+        try {
+            pdu = parsePdu();
+            if ((mPduDataStream instanceof PduChannelInputStream)
+                    && ((PduChannelInputStream) mPduDataStream).hasError()) {
+                pdu = null;
+            }
+        } finally {
+            if (null == pdu) {
+                for (File file : mSpilledFiles) {
+                    file.delete();
+                }
+            }
+            mSpilledFiles.clear();
+            releaseSpool();
+        }
+        return pdu;
+    }
+
+    private void releaseSpool() {
+        if (null != mSpoolAccess) {
+            try {
+                mSpoolAccess.close();
+            } catch (IOException e) {
+                log("Failed to close " + mSpoolFile);
+            }
+            mSpoolAccess = null;
+        }
+        if (null != mSpoolFile) {
+            mSpoolFile.delete();
+            mSpoolFile = null;
+        }
+    }
+
+    private GenericPdu parsePdu() {
         if (mPduDataStream == null) {
             return null;
         }
@@ -897,34 +1095,36 @@ public class PduParser {
 
             /* get part's data */
             if (dataLength > 0) {
-                byte[] partData = new byte[dataLength];
                 String partContentType = new String(part.getContentType());
-                pduDataStream.read(partData, 0, dataLength);
                 if (partContentType.equalsIgnoreCase(ContentType.MULTIPART_ALTERNATIVE)) {
                     // parse "multipart/vnd.wap.multipart.alternative".
-                    PduBody childBody = parseParts(new ByteArrayInputStream(partData));
+                    PduBody childBody = parseParts(getPartDataStream(pduDataStream, dataLength));
                     // take the first part of children.
                     part = childBody.getPart(0);
-                } else {
-                    // Check Content-Transfer-Encoding.
-                    byte[] partDataEncoding = part.getContentTransferEncoding();
-                    if (null != partDataEncoding) {
-                        String encoding = new String(partDataEncoding);
-                        if (encoding.equalsIgnoreCase(PduPart.P_BASE64)) {
-                            // Decode "base64" into "binary".
-                            partData = Base64.decodeBase64(partData);
-                        } else if (encoding.equalsIgnoreCase(PduPart.P_QUOTED_PRINTABLE)) {
-                            // Decode "quoted-printable" into "binary".
-                            partData = QuotedPrintable.decodeQuotedPrintable(partData);
-                        } else {
-                            // "binary" is the default encoding.
-                        }
+                } else if (shouldSpillPartData(pduDataStream, part, partContentType, dataLength)) {
+                    Uri dataUri = spillPartData((PduChannelInputStream) pduDataStream, part,
+                            dataLength);
+                    if (null == dataUri) {
+                        log("Write part data error!");
+                        return null;
                     }
+                    part.setDataUri(dataUri);
+                } else if (shouldSharePartData(pduDataStream, part, dataLength)) {
+                    // Refer to the part data in the pdu instead of copying it
+                    int offset = mPduData.length - pduDataStream.available();
+                    part.setDataBuffer(ByteBuffer.wrap(mPduData, offset, dataLength));
+                    pduDataStream.skip(dataLength);
+                } else if (isBinaryEncoded(part)) {
+                    byte[] partData = new byte[dataLength];
+                    pduDataStream.read(partData, 0, dataLength);
+                    part.setDataBuffer(ByteBuffer.wrap(partData));
+                } else {
+                    ByteBuffer partData = decodePartData(pduDataStream, part, dataLength);
                     if (null == partData) {
                         log("Decode part data error!");
                         return null;
                     }
-                    part.setData(partData);
+                    part.setDataBuffer(partData);
                 }
             }
 
@@ -941,6 +1141,178 @@ public class PduParser {
         return body;
     }
 
+    /**
+     * Get a stream over the next dataLength bytes and skip them.
+     *
+     * @param pduDataStream pdu data input stream
+     * @param dataLength length of the part data
+     * @return the part data stream
+     */
+    private static ByteArrayInputStream getPartDataStream(ByteArrayInputStream pduDataStream,
+            int dataLength) {
+        if (pduDataStream instanceof PduChannelInputStream) {
+            PduChannelInputStream channelStream = (PduChannelInputStream) pduDataStream;
+            ByteArrayInputStream partStream = new PduChannelInputStream(
+                    channelStream.getChannel(), channelStream.getPosition(),
+                    Math.min(dataLength, channelStream.available()));
+            channelStream.skip(dataLength);
+            return partStream;
+        }
+        byte[] partData = new byte[dataLength];
+        pduDataStream.read(partData, 0, dataLength);
+        return new ByteArrayInputStream(partData);
+    }
+
+    /**
+     * Get a stream over the next dataLength bytes and skip them, without
+     * copying them if they are in mPduData.
+     */
+    private ByteArrayInputStream getEncodedPartStream(ByteArrayInputStream pduDataStream,
+            int dataLength) {
+        if ((pduDataStream == mPduDataStream) && (null != mPduData)
+                && (dataLength <= pduDataStream.available())) {
+            int offset = mPduData.length - pduDataStream.available();
+            pduDataStream.skip(dataLength);
+            return new ByteArrayInputStream(mPduData, offset, dataLength);
+        }
+        return getPartDataStream(pduDataStream, dataLength);
+    }
+
+    /**
+     * Wrap a stream of part data in a decoder for the Content-Transfer-Encoding
+     * of the part. "binary" is the default encoding.
+     */
+    private static InputStream getDecodingStream(PduPart part, InputStream partDataStream) {
+        byte[] partDataEncoding = part.getContentTransferEncoding();
+        if (null != partDataEncoding) {
+            String encoding = new String(partDataEncoding);
+            if (encoding.equalsIgnoreCase(PduPart.P_BASE64)) {
+                return new Base64InputStream(partDataStream);
+            } else if (encoding.equalsIgnoreCase(PduPart.P_QUOTED_PRINTABLE)) {
+                return new QuotedPrintableInputStream(partDataStream);
+            }
+        }
+        return partDataStream;
+    }
+
+    /**
+     * Decode the next dataLength bytes of encoded part data into memory.
+     * Only the decoded data are copied, into a buffer sized for the encoding.
+     *
+     * @return the decoded data, null if they could not be decoded
+     */
+    private ByteBuffer decodePartData(ByteArrayInputStream pduDataStream, PduPart part,
+            int dataLength) {
+        InputStream in = getDecodingStream(part,
+                getEncodedPartStream(pduDataStream, dataLength));
+        // Four base64 characters give at most three octets
+        int capacity = (in instanceof Base64InputStream) ? (dataLength / 4 * 3 + 2) : dataLength;
+        byte[] partData = new byte[capacity];
+        int length = 0;
+        try {
+            int count;
+            while ((length < capacity)
+                    && ((count = in.read(partData, length, capacity - length)) > 0)) {
+                length += count;
+            }
+        } catch (IOException e) {
+            log("Failed to decode part data: " + e);
+            return null;
+        }
+        if (length < capacity - capacity / 4) {
+            // Mostly escapes or line breaks, do not keep the slack
+            partData = Arrays.copyOf(partData, length);
+        }
+        return ByteBuffer.wrap(partData, 0, length);
+    }
+
+    /**
+     * Whether the part data may refer to mPduData instead of being copied.
+     * Small parts, or parts that are a small share of the pdu, are copied
+     * so that they do not keep the whole pdu in memory.
+     */
+    private boolean shouldSharePartData(ByteArrayInputStream pduDataStream, PduPart part,
+            int dataLength) {
+        if ((pduDataStream != mPduDataStream) || (null == mPduData)
+                || (dataLength > pduDataStream.available()) || !isBinaryEncoded(part)) {
+            return false;
+        }
+        return (dataLength >= SHARED_PART_MIN)
+                && ((long) dataLength * SHARED_PART_MAX_PDU_RATIO >= mPduData.length);
+    }
+
+    /**
+     * Whether to write the part data to a file instead of reading it into memory.
+     * Text parts are kept since PduPersister stores them from getData().
+     * Encoded parts are decoded as they are written.
+     */
+    private boolean shouldSpillPartData(ByteArrayInputStream pduDataStream, PduPart part,
+            String partContentType, int dataLength) {
+        if (!(pduDataStream instanceof PduChannelInputStream) || (null == mSpoolDir)
+                || (dataLength <= STREAMED_PART_IN_MEMORY_MAX)) {
+            return false;
+        }
+        return !ContentType.isTextType(partContentType)
+                && !ContentType.APP_SMIL.equalsIgnoreCase(partContentType);
+    }
+
+    /**
+     * Whether the part data can be used as is, without decoding.
+     */
+    private static boolean isBinaryEncoded(PduPart part) {
+        byte[] partDataEncoding = part.getContentTransferEncoding();
+        return (null == partDataEncoding)
+                || new String(partDataEncoding).equalsIgnoreCase(PduPart.P_BINARY);
+    }
+
+    /**
+     * Copy the next dataLength bytes to a new file in mSpoolDir, decoding
+     * them if the part has a Content-Transfer-Encoding.
+     *
+     * @return file Uri of the part data, null on error
+     */
+    private Uri spillPartData(PduChannelInputStream pduDataStream, PduPart part,
+            int dataLength) {
+        File file = null;
+        try {
+            file = File.createTempFile("part", null, mSpoolDir);
+            mSpilledFiles.add(file);
+            FileOutputStream out = new FileOutputStream(file);
+            try {
+                if (!isBinaryEncoded(part)) {
+                    InputStream in = getDecodingStream(part,
+                            getPartDataStream(pduDataStream, dataLength));
+                    byte[] buffer = new byte[SPILL_BUFFER_SIZE];
+                    int count;
+                    while ((count = in.read(buffer, 0, buffer.length)) > 0) {
+                        out.write(buffer, 0, count);
+                    }
+                    return Uri.fromFile(file);
+                }
+
+                FileChannel source = pduDataStream.getChannel();
+                FileChannel target = out.getChannel();
+                long position = pduDataStream.getPosition();
+                long copied = 0;
+                while (copied < dataLength) {
+                    long count = source.transferTo(position + copied, dataLength - copied, target);
+                    if (count <= 0) {
+                        log("Part data truncated at " + copied + " of " + dataLength);
+                        return null;
+                    }
+                    copied += count;
+                }
+            } finally {
+                out.close();
+            }
+        } catch (IOException e) {
+            Log.e(LOG_TAG, "Failed to write part data to " + file, e);
+            return null;
+        }
+        pduDataStream.skip(dataLength);
+        return Uri.fromFile(file);
+    }
+
     /**
      * Log status.
      *
@@ -1130,32 +1502,7 @@ public class PduParser {
          * SP         = <US-ASCII SP, space (32)>
          * HT         = <US-ASCII HT, horizontal-tab (9)>
          */
-        if((ch < 33) || (ch > 126)) {
-            return false;
-        }
-
-        switch(ch) {
-            case '"': /* '"' */
-            case '(': /* '(' */
-            case ')': /* ')' */
-            case ',': /* ',' */
-            case '/': /* '/' */
-            case ':': /* ':' */
-            case ';': /* ';' */
-            case '<': /* '<' */
-            case '=': /* '=' */
-            case '>': /* '>' */
-            case '?': /* '?' */
-            case '@': /* '@' */
-            case '[': /* '[' */
-            case '\\': /* '\' */
-            case ']': /* ']' */
-            case '{': /* '{' */
-            case '}': /* '}' */
-                return false;
-        }
-
-        return true;
+        return (ch >= 0) && (ch < 256) && ((CHAR_CLASSES[ch] & CHAR_TOKEN) != 0);
     }
 
     /**
@@ -1174,44 +1521,58 @@ public class PduParser {
          * CR   = <US-ASCII CR, carriage return (13)>
          * LF   = <US-ASCII LF, linefeed (10)>
          */
-        if(((ch >= 32) && (ch <= 126)) || ((ch >= 128) && (ch <= 255))) {
-            return true;
-        }
-
-        switch(ch) {
-            case '\t': /* '\t' */
-            case '\n': /* '\n' */
-            case '\r': /* '\r' */
-                return true;
-        }
-
-        return false;
+        return (ch >= 0) && (ch < 256) && ((CHAR_CLASSES[ch] & CHAR_TEXT) != 0);
     }
 
     protected static byte[] getWapString(ByteArrayInputStream pduDataStream,
             int stringType) {
         assert(null != pduDataStream);
-        ByteArrayOutputStream out = new ByteArrayOutputStream();
-        int temp = pduDataStream.read();
-        assert(-1 != temp);
-        while((-1 != temp) && ('\0' != temp)) {
-            // check each of the character
-            if (stringType == TYPE_TOKEN_STRING) {
-                if (isTokenCharacter(temp)) {
-                    out.write(temp);
+        int charClass = (stringType == TYPE_TOKEN_STRING) ? CHAR_TOKEN : CHAR_TEXT;
+        byte[] scratch = sScratch.get();
+        int length = 0;
+        int consumed = 0;
+        boolean terminated = false;
+
+        // Read ahead in chunks rather than a byte at a time, keeping only
+        // the characters of the class in place, then go back to just
+        // after the End-of-string.
+        pduDataStream.mark(Integer.MAX_VALUE);
+        while (!terminated) {
+            if (scratch.length - length < SCRATCH_SIZE / 2) {
+                scratch = Arrays.copyOf(scratch, scratch.length * 2);
+            }
+            int count = pduDataStream.read(scratch, length, scratch.length - length);
+            if (count <= 0) {
+                // No End-of-string, the rest of the stream is the string
+                break;
+            }
+
+            int end = length + count;
+            for (int i = length; i < end; i++) {
+                int ch = scratch[i] & 0xFF;
+                if (ch == END_STRING_FLAG) {
+                    consumed += i - (end - count) + 1;
+                    terminated = true;
+                    break;
                 }
-            } else {
-                if (isText(temp)) {
-                    out.write(temp);
+                if ((CHAR_CLASSES[ch] & charClass) != 0) {
+                    scratch[length++] = (byte) ch;
                 }
             }
-
-            temp = pduDataStream.read();
-            assert(-1 != temp);
+            if (!terminated) {
+                consumed += count;
+            }
+        }
+        if (terminated) {
+            pduDataStream.reset();
+            pduDataStream.skip(consumed);
         }
 
-        if (out.size() > 0) {
-            return out.toByteArray();
+        if (scratch.length <= SCRATCH_SIZE_MAX) {
+            sScratch.set(scratch);
+        }
+        if (length > 0) {
+            return Arrays.copyOf(scratch, length);
         }
 
         return null;
@@ -1617,6 +1978,7 @@ public class PduParser {
         int tempPos = 0;
         int lastLen = length;
         while(0 < lastLen) {
+            pduDataStream.mark(1);
             int header = pduDataStream.read();
             assert(-1 != header);
             lastLen--;
@@ -1719,7 +2081,8 @@ public class PduParser {
                     break;
                 }
             } else if ((header >= TEXT_MIN) && (header <= TEXT_MAX)) {
-                // Not assigned header.
+                // Not assigned header, the octet is the first character of its name.
+                pduDataStream.reset();
                 byte[] tempHeader = parseWapString(pduDataStream, TYPE_TEXT_STRING);
                 byte[] tempValue = parseWapString(pduDataStream, TYPE_TEXT_STRING);
 
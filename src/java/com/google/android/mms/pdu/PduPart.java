@@ -18,7 +18,12 @@
 package com.google.android.mms.pdu;
 
 import android.net.Uri;
+import android.util.Log;
 
+import java.io.IOException;
+import java.io.OutputStream;
+import java.nio.ByteBuffer;
+import java.nio.channels.Channels;
 import java.util.HashMap;
 import java.util.Map;
 
@@ -115,12 +120,37 @@ public class PduPart {
      private Uri mUri = null;
 
      /**
-      * Part data.
+      * Part data, shared with whoever set it and never modified.
       */
-     private byte[] mPartData = null;
+     private ByteBuffer mPartData = null;
+
+     /**
+      * Reads the part data on first access, null once it was read or if
+      * the data was set directly.
+      */
+     private volatile DataLoader mDataLoader = null;
 
      private static final String TAG = "PduPart";
 
+     /**
+      * Reads the data of a part that is kept out of memory until needed.
+      */
+     interface DataLoader {
+         ByteBuffer load(PduPart part) throws IOException;
+
+         /**
+          * @return the length of the data load() would return, without
+          *         reading it, or -1 if that is not known
+          */
+         long getLength(PduPart part);
+
+         /**
+          * Called once the data read by load() is set, outside of the
+          * part's lock, e.g. to account for the memory it takes.
+          */
+         void onLoaded(PduPart part);
+     }
+
      /**
       * Empty Constructor.
       */
@@ -138,31 +168,151 @@ public class PduPart {
             return;
         }
 
-         mPartData = new byte[data.length];
-         System.arraycopy(data, 0, mPartData, 0, data.length);
+         byte[] partData = new byte[data.length];
+         System.arraycopy(data, 0, partData, 0, data.length);
+         mPartData = ByteBuffer.wrap(partData);
+         mDataLoader = null;
      }
 
      /**
       * @return A copy of the part data or null if the data wasn't set or
       *         the data is stored as Uri.
       * @see #getDataUri
+      * @see #getDataBuffer
       */
      public byte[] getData() {
-         if(mPartData == null) {
+         ByteBuffer partData = getLoadedData();
+         if(partData == null) {
             return null;
          }
 
-         byte[] byteArray = new byte[mPartData.length];
-         System.arraycopy(mPartData, 0, byteArray, 0, mPartData.length);
+         byte[] byteArray = new byte[partData.remaining()];
+         partData.duplicate().get(byteArray);
          return byteArray;
      }
 
+     /**
+      * Set part data without copying it. The remaining bytes of data are
+      * used, e.g. a slice of a received pdu or a MappedByteBuffer over a
+      * region of a file, and must not be modified afterwards.
+      *
+      * @param data the data
+      */
+     public void setDataBuffer(ByteBuffer data) {
+         if(data == null) {
+            return;
+        }
+
+         mPartData = data.slice();
+         mDataLoader = null;
+     }
+
+     /**
+      * Have the data read by loader when it is first asked for, instead of
+      * holding it from the start. A part whose data can not be read then
+      * has no data.
+      */
+     void setDataLoader(DataLoader loader) {
+         mDataLoader = loader;
+     }
+
+     /**
+      * @return false if the data is kept out of memory until it is first
+      *         asked for and that has not happened yet.
+      */
+     public boolean isDataLoaded() {
+         return mDataLoader == null;
+     }
+
+     /**
+      * Read the data now if it is kept out of memory until needed.
+      *
+      * @return false if the data could not be read
+      */
+     boolean loadData() {
+         DataLoader loader;
+         synchronized (this) {
+             loader = mDataLoader;
+             if (loader == null) {
+                 return true;
+             }
+
+             try {
+                 ByteBuffer data = loader.load(this);
+                 if (data != null) {
+                     mPartData = data.slice();
+                 }
+             } catch (IOException e) {
+                 Log.e(TAG, "Failed to load part data", e);
+                 return false;
+             } finally {
+                 // After mPartData, so whoever sees no loader sees the data
+                 mDataLoader = null;
+             }
+         }
+         loader.onLoaded(this);
+         return true;
+     }
+
+     private ByteBuffer getLoadedData() {
+         if (mDataLoader != null) {
+             loadData();
+         }
+         return mPartData;
+     }
+
+     /**
+      * @return A read-only view of the part data or null if the data
+      *         wasn't set or the data is stored as Uri. The view shares
+      *         the data and has its own position.
+      * @see #getDataUri
+      */
+     public ByteBuffer getDataBuffer() {
+         ByteBuffer partData = getLoadedData();
+         if(partData == null) {
+            return null;
+         }
+
+         return partData.asReadOnlyBuffer();
+     }
+
+     /**
+      * Write the part data to os without making a copy where possible.
+      *
+      * @return the number of bytes written, 0 if there is no data
+      */
+     int writeDataTo(OutputStream os) throws IOException {
+         ByteBuffer partData = getLoadedData();
+         if(partData == null) {
+            return 0;
+         }
+
+         int length = partData.remaining();
+         if(partData.hasArray()) {
+             os.write(partData.array(), partData.arrayOffset() + partData.position(),
+                     length);
+         } else {
+             Channels.newChannel(os).write(partData.duplicate());
+         }
+         return length;
+     }
+
     /**
      * @return The length of the data, if this object have data, else 0.
+     *         Data that is not loaded yet is only read if its length is
+     *         not known otherwise.
      */
      public int getDataLength() {
-         if(mPartData != null){
-             return mPartData.length;
+         DataLoader loader = mDataLoader;
+         if (loader != null) {
+             long length = loader.getLength(this);
+             if (length >= 0 && length <= Integer.MAX_VALUE) {
+                 return (int) length;
+             }
+         }
+         ByteBuffer partData = getLoadedData();
+         if(partData != null){
+             return partData.remaining();
          } else {
              return 0;
          }
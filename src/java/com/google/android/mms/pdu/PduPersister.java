@@ -26,15 +26,20 @@ import com.google.android.mms.util.PduCache;
 import com.google.android.mms.util.PduCacheEntry;
 import com.google.android.mms.util.SqliteWrapper;
 
+import android.content.ContentProviderOperation;
+import android.content.ContentProviderResult;
 import android.content.ContentResolver;
 import android.content.ContentUris;
 import android.content.ContentValues;
 import android.content.Context;
+import android.content.OperationApplicationException;
 import android.database.Cursor;
 import android.database.DatabaseUtils;
 import android.database.sqlite.SQLiteException;
 import android.drm.DrmManagerClient;
 import android.net.Uri;
+import android.os.RemoteException;
+import android.os.SystemProperties;
 import android.provider.MediaStore;
 import android.provider.Telephony;
 import android.provider.Telephony.Mms;
@@ -54,13 +59,24 @@ import java.io.FileNotFoundException;
 import java.io.IOException;
 import java.io.InputStream;
 import java.io.OutputStream;
+import java.io.RandomAccessFile;
 import java.io.UnsupportedEncodingException;
+import java.nio.ByteBuffer;
 import java.util.ArrayList;
 import java.util.HashMap;
 import java.util.HashSet;
 import java.util.Map;
 import java.util.Set;
 import java.util.Map.Entry;
+import java.util.concurrent.ArrayBlockingQueue;
+import java.util.concurrent.Callable;
+import java.util.concurrent.ExecutionException;
+import java.util.concurrent.ExecutorService;
+import java.util.concurrent.Future;
+import java.util.concurrent.ThreadFactory;
+import java.util.concurrent.ThreadPoolExecutor;
+import java.util.concurrent.TimeUnit;
+import java.util.concurrent.atomic.AtomicInteger;
 
 import com.google.android.mms.pdu.EncodedStringValue;
 
@@ -74,6 +90,33 @@ public class PduPersister {
 
     private static final long DUMMY_THREAD_ID = Long.MAX_VALUE;
 
+    /**
+     * Read the data of all parts in load(), one after the other.
+     */
+    public static final int LOAD_PARTS = 0;
+    /**
+     * Read the data of all parts in load(), in parallel on a small pool
+     * of threads shared by all loads.
+     */
+    public static final int LOAD_PARTS_IN_PARALLEL = 1;
+    /**
+     * Read the data of a part when it is first asked for.
+     */
+    public static final int LOAD_PARTS_LAZILY = 2;
+
+    private static final int PART_LOAD_THREADS = 3;
+    private static final int PART_LOAD_QUEUE_SIZE = 16;
+    private static final long PART_LOAD_KEEP_ALIVE_SECONDS = 10;
+
+    private static ExecutorService sPartLoadExecutor;
+
+    /**
+     * Whether persist() writes a message with a few applyBatch calls instead
+     * of an insert per part and per address, see persistBatched(). Defaults
+     * to false until the batches are measured to be faster on devices.
+     */
+    private static final String PROPERTY_BATCH_PERSIST = "persist.mms.batch_persist";
+
     /**
      * The uri of temporary drm objects.
      */
@@ -281,6 +324,7 @@ public class PduPersister {
     private final ContentResolver mContentResolver;
     private final DrmManagerClient mDrmManagerClient;
     private final TelephonyManager mTelephonyManager;
+    private boolean mBatchPersist;
 
     private PduPersister(Context context) {
         mContext = context;
@@ -288,8 +332,57 @@ public class PduPersister {
         mDrmManagerClient = new DrmManagerClient(context);
         mTelephonyManager = (TelephonyManager)context
                 .getSystemService(Context.TELEPHONY_SERVICE);
+        mBatchPersist = SystemProperties.getBoolean(PROPERTY_BATCH_PERSIST, false);
      }
 
+    /**
+     * Reads the data of a loaded part from its file, and has the cache
+     * entry of the message weighed again once it holds the data.
+     */
+    private static class PartFileLoader implements PduPart.DataLoader {
+        private final ContentResolver mResolver;
+        private final Uri mMessageUri;
+
+        PartFileLoader(ContentResolver resolver, Uri messageUri) {
+            mResolver = resolver;
+            mMessageUri = messageUri;
+        }
+
+        @Override
+        public void onLoaded(PduPart part) {
+            PDU_CACHE_INSTANCE.reweigh(mMessageUri);
+        }
+
+        @Override
+        public long getLength(PduPart part) {
+            return PduComposer.getDataLength(mResolver, part.getDataUri());
+        }
+
+        @Override
+        public ByteBuffer load(PduPart part) throws IOException {
+            ByteArrayOutputStream baos = new ByteArrayOutputStream();
+            InputStream is = mResolver.openInputStream(part.getDataUri());
+            if (is == null) {
+                throw new FileNotFoundException("No data for " + part.getDataUri());
+            }
+            try {
+                byte[] buffer = new byte[8192];
+                int len = is.read(buffer);
+                while (len >= 0) {
+                    baos.write(buffer, 0, len);
+                    len = is.read(buffer);
+                }
+            } finally {
+                try {
+                    is.close();
+                } catch (IOException e) {
+                    Log.e(TAG, "Failed to close stream", e);
+                } // Ignore
+            }
+            return ByteBuffer.wrap(baos.toByteArray());
+        }
+    }
+
     /** Get(or create if not exist) an instance of PduPersister */
     public static PduPersister getPduPersister(Context context) {
         if ((sPersister == null)) {
@@ -356,7 +449,7 @@ public class PduPersister {
         return null;
     }
 
-    private PduPart[] loadParts(long msgId) throws MmsException {
+    private PduPart[] loadParts(long msgId, PduPart.DataLoader loader) throws MmsException {
         Cursor c = SqliteWrapper.query(mContext, mContentResolver,
                 Uri.parse("content://mms/" + msgId + "/part"),
                 PART_PROJECTION, null, null, null);
@@ -431,9 +524,6 @@ public class PduPersister {
                 if (!ContentType.isImageType(type)
                         && !ContentType.isAudioType(type)
                         && !ContentType.isVideoType(type)) {
-                    ByteArrayOutputStream baos = new ByteArrayOutputStream();
-                    InputStream is = null;
-
                     // Store simple string values directly in the database instead of an
                     // external file.  This makes the text searchable and retrieval slightly
                     // faster.
@@ -442,33 +532,11 @@ public class PduPersister {
                         String text = c.getString(PART_COLUMN_TEXT);
                         byte [] blob = new EncodedStringValue(text != null ? text : "")
                             .getTextString();
-                        baos.write(blob, 0, blob.length);
+                        part.setDataBuffer(ByteBuffer.wrap(blob));
                     } else {
-
-                        try {
-                            is = mContentResolver.openInputStream(partURI);
-
-                            byte[] buffer = new byte[256];
-                            int len = is.read(buffer);
-                            while (len >= 0) {
-                                baos.write(buffer, 0, len);
-                                len = is.read(buffer);
-                            }
-                        } catch (IOException e) {
-                            Log.e(TAG, "Failed to load part data", e);
-                            c.close();
-                            throw new MmsException(e);
-                        } finally {
-                            if (is != null) {
-                                try {
-                                    is.close();
-                                } catch (IOException e) {
-                                    Log.e(TAG, "Failed to close stream", e);
-                                } // Ignore
-                            }
-                        }
+                        // Read from the file when needed, see load(Uri, int)
+                        part.setDataLoader(loader);
                     }
-                    part.setData(baos.toByteArray());
                 }
                 parts[partIdx++] = part;
             }
@@ -526,29 +594,47 @@ public class PduPersister {
      * @throws MmsException Failed to load some fields of a PDU.
      */
     public GenericPdu load(Uri uri) throws MmsException {
+        return load(uri, LOAD_PARTS);
+    }
+
+    /**
+     * Load a PDU from storage by given Uri.
+     *
+     * Parts other than text, images, audio and video keep their data in a
+     * file, which is read as given by partsMode. With LOAD_PARTS_LAZILY a
+     * part reads its file when its data is first asked for, and has no
+     * data if that fails, so callers that only need the headers or the
+     * text do not pay for the rest.
+     *
+     * @param uri The Uri of the PDU to be loaded.
+     * @param partsMode LOAD_PARTS, LOAD_PARTS_IN_PARALLEL or LOAD_PARTS_LAZILY.
+     * @return A generic PDU object, it may be cast to dedicated PDU.
+     * @throws MmsException Failed to load some fields of a PDU, or the
+     *         data of a part unless loading lazily.
+     */
+    public GenericPdu load(Uri uri, int partsMode) throws MmsException {
         GenericPdu pdu = null;
         PduCacheEntry cacheEntry = null;
         int msgBox = 0;
         long threadId = -1;
         try {
-            synchronized(PDU_CACHE_INSTANCE) {
-                if (PDU_CACHE_INSTANCE.isUpdating(uri)) {
-                    if (LOCAL_LOGV) {
-                        Log.v(TAG, "load: " + uri + " blocked by isUpdating()");
-                    }
-                    try {
-                        PDU_CACHE_INSTANCE.wait();
-                    } catch (InterruptedException e) {
-                        Log.e(TAG, "load: ", e);
-                    }
-                    cacheEntry = PDU_CACHE_INSTANCE.get(uri);
-                    if (cacheEntry != null) {
-                        return cacheEntry.getPdu();
+            // Tell the cache to indicate to other callers that this item
+            // is currently being updated, once nobody else is.
+            if (PDU_CACHE_INSTANCE.beginUpdate(uri)) {
+                cacheEntry = PDU_CACHE_INSTANCE.get(uri);
+                if (cacheEntry != null) {
+                    GenericPdu cached = cacheEntry.getPdu();
+                    // A lazy load may have cached it with parts still to read
+                    if ((partsMode != LOAD_PARTS_LAZILY)
+                            && (cached instanceof MultimediaMessagePdu)
+                            && !loadPartData(((MultimediaMessagePdu) cached).getBody(),
+                                    partsMode == LOAD_PARTS_IN_PARALLEL)) {
+                        // Don't leave the parts without data in the cache
+                        PDU_CACHE_INSTANCE.purge(uri);
+                        throw new MmsException("Failed to load part data of " + uri);
                     }
+                    return cached;
                 }
-                // Tell the cache to indicate to other callers that this item
-                // is currently being updated.
-                PDU_CACHE_INSTANCE.setUpdating(uri, true);
             }
 
             Cursor c = SqliteWrapper.query(mContext, mContentResolver, uri,
@@ -609,13 +695,17 @@ public class PduPersister {
             // load multiparts and put them into the body of the PDU.
             if ((msgType == PduHeaders.MESSAGE_TYPE_RETRIEVE_CONF)
                     || (msgType == PduHeaders.MESSAGE_TYPE_SEND_REQ)) {
-                PduPart[] parts = loadParts(msgId);
+                PduPart[] parts = loadParts(msgId, new PartFileLoader(mContentResolver, uri));
                 if (parts != null) {
                     int partsNum = parts.length;
                     for (int i = 0; i < partsNum; i++) {
                         body.addPart(parts[i]);
                     }
                 }
+                if ((partsMode != LOAD_PARTS_LAZILY)
+                        && !loadPartData(body, partsMode == LOAD_PARTS_IN_PARALLEL)) {
+                    throw new MmsException("Failed to load part data of " + uri);
+                }
             }
 
             switch (msgType) {
@@ -667,43 +757,151 @@ public class PduPersister {
                         "Unrecognized PDU type: " + Integer.toHexString(msgType));
             }
         } finally {
-            synchronized(PDU_CACHE_INSTANCE) {
-                if (pdu != null) {
-                    assert(PDU_CACHE_INSTANCE.get(uri) == null);
-                    // Update the cache entry with the real info
-                    cacheEntry = new PduCacheEntry(pdu, msgBox, threadId);
-                    PDU_CACHE_INSTANCE.put(uri, cacheEntry);
-                }
-                PDU_CACHE_INSTANCE.setUpdating(uri, false);
-                PDU_CACHE_INSTANCE.notifyAll(); // tell anybody waiting on this entry to go ahead
+            if (pdu != null) {
+                assert(PDU_CACHE_INSTANCE.get(uri) == null);
+                // Update the cache entry with the real info
+                cacheEntry = new PduCacheEntry(pdu, msgBox, threadId);
+                PDU_CACHE_INSTANCE.put(uri, cacheEntry);
             }
+            // tell anybody waiting on this entry to go ahead
+            PDU_CACHE_INSTANCE.setUpdating(uri, false);
         }
         return pdu;
     }
 
+    /**
+     * Read the data of the parts of body which have not read it yet.
+     *
+     * @return false if the data of a part could not be read
+     */
+    private boolean loadPartData(PduBody body, boolean parallel) throws MmsException {
+        if (body == null) {
+            return true;
+        }
+
+        ArrayList<PduPart> parts = new ArrayList<PduPart>();
+        int partsNum = body.getPartsNum();
+        for (int i = 0; i < partsNum; i++) {
+            PduPart part = body.getPart(i);
+            if (!part.isDataLoaded()) {
+                parts.add(part);
+            }
+        }
+
+        if (!parallel || (parts.size() < 2)) {
+            boolean loaded = true;
+            for (PduPart part : parts) {
+                loaded &= part.loadData();
+            }
+            return loaded;
+        }
+
+        // Hand all parts but the last to the pool and read that one here
+        ExecutorService executor = getPartLoadExecutor();
+        ArrayList<Future<Boolean>> results = new ArrayList<Future<Boolean>>(parts.size() - 1);
+        for (int i = 0; i < parts.size() - 1; i++) {
+            final PduPart part = parts.get(i);
+            results.add(executor.submit(new Callable<Boolean>() {
+                @Override
+                public Boolean call() {
+                    return part.loadData();
+                }
+            }));
+        }
+        boolean loaded = parts.get(parts.size() - 1).loadData();
+        try {
+            for (Future<Boolean> result : results) {
+                loaded &= result.get();
+            }
+        } catch (InterruptedException e) {
+            Thread.currentThread().interrupt();
+            throw new MmsException(e);
+        } catch (ExecutionException e) {
+            throw new MmsException(e.getCause());
+        }
+        return loaded;
+    }
+
+    private static synchronized ExecutorService getPartLoadExecutor() {
+        if (sPartLoadExecutor == null) {
+            // When all threads are busy and the queue is full, the loading
+            // thread reads the part itself.
+            ThreadPoolExecutor executor = new ThreadPoolExecutor(
+                    PART_LOAD_THREADS, PART_LOAD_THREADS,
+                    PART_LOAD_KEEP_ALIVE_SECONDS, TimeUnit.SECONDS,
+                    new ArrayBlockingQueue<Runnable>(PART_LOAD_QUEUE_SIZE),
+                    new ThreadFactory() {
+                        private final AtomicInteger mCount = new AtomicInteger();
+
+                        @Override
+                        public Thread newThread(Runnable r) {
+                            return new Thread(r, "PduPartLoader #" + mCount.incrementAndGet());
+                        }
+                    },
+                    new ThreadPoolExecutor.CallerRunsPolicy());
+            executor.allowCoreThreadTimeOut(true);
+            sPartLoadExecutor = executor;
+        }
+        return sPartLoadExecutor;
+    }
+
     private void persistAddress(
             long msgId, int type, EncodedStringValue[] array) {
-        ContentValues values = new ContentValues(3);
-
+        Uri uri = Uri.parse("content://mms/" + msgId + "/addr");
         for (EncodedStringValue addr : array) {
-            values.clear(); // Clear all values first.
-            values.put(Addr.ADDRESS, toIsoString(addr.getTextString()));
-            values.put(Addr.CHARSET, addr.getCharacterSet());
-            values.put(Addr.TYPE, type);
-
-            Uri uri = Uri.parse("content://mms/" + msgId + "/addr");
-            SqliteWrapper.insert(mContext, mContentResolver, uri, values);
+            SqliteWrapper.insert(mContext, mContentResolver, uri, getAddressValues(addr, type));
         }
     }
 
+    private static ContentValues getAddressValues(EncodedStringValue addr, int type) {
+        ContentValues values = new ContentValues(3);
+        values.put(Addr.ADDRESS, toIsoString(addr.getTextString()));
+        values.put(Addr.CHARSET, addr.getCharacterSet());
+        values.put(Addr.TYPE, type);
+        return values;
+    }
+
     private static String getPartContentType(PduPart part) {
         return part.getContentType() == null ? null : toIsoString(part.getContentType());
     }
 
+    private static boolean isTextContentType(String contentType) {
+        return ContentType.TEXT_PLAIN.equals(contentType)
+                || ContentType.APP_SMIL.equals(contentType)
+                || ContentType.TEXT_HTML.equals(contentType);
+    }
+
+    /** The value of the text column for a part of a text content type */
+    private static String getPartText(PduPart part) {
+        byte[] data = part.getData();
+        return data == null ? "" : new EncodedStringValue(data).getString();
+    }
+
     public Uri persistPart(PduPart part, long msgId, HashMap<Uri, InputStream> preOpenedFiles)
             throws MmsException {
         Uri uri = Uri.parse("content://mms/" + msgId + "/part");
-        ContentValues values = new ContentValues(8);
+        ContentValues values = getPartValues(part);
+        String contentType = values.getAsString(Part.CONTENT_TYPE);
+
+        Uri res = SqliteWrapper.insert(mContext, mContentResolver, uri, values);
+        if (res == null) {
+            throw new MmsException("Failed to persist part, return null.");
+        }
+
+        persistData(part, res, contentType, preOpenedFiles);
+        // After successfully store the data, we should update
+        // the dataUri of the part.
+        part.setDataUri(res);
+
+        return res;
+    }
+
+    /**
+     * Get the values of the part table row for a part, without its data.
+     * The content type in the values is the one the data must be saved as.
+     */
+    private static ContentValues getPartValues(PduPart part) throws MmsException {
+        ContentValues values = new ContentValues(9);
 
         int charset = part.getCharset();
         if (charset != 0 ) {
@@ -752,18 +950,7 @@ public class PduPersister {
             value = toIsoString(part.getContentLocation());
             values.put(Part.CONTENT_LOCATION, (String) value);
         }
-
-        Uri res = SqliteWrapper.insert(mContext, mContentResolver, uri, values);
-        if (res == null) {
-            throw new MmsException("Failed to persist part, return null.");
-        }
-
-        persistData(part, res, contentType, preOpenedFiles);
-        // After successfully store the data, we should update
-        // the dataUri of the part.
-        part.setDataUri(res);
-
-        return res;
+        return values;
     }
 
     /**
@@ -790,15 +977,9 @@ public class PduPersister {
         String path = null;
 
         try {
-            byte[] data = part.getData();
-            if (ContentType.TEXT_PLAIN.equals(contentType)
-                    || ContentType.APP_SMIL.equals(contentType)
-                    || ContentType.TEXT_HTML.equals(contentType)) {
+            if (isTextContentType(contentType)) {
                 ContentValues cv = new ContentValues();
-                if (data == null) {
-                    data = new String("").getBytes(CharacterSets.DEFAULT_CHARSET_NAME);
-                }
-                cv.put(Telephony.Mms.Part.TEXT, new EncodedStringValue(data).getString());
+                cv.put(Telephony.Mms.Part.TEXT, getPartText(part));
                 if (mContentResolver.update(uri, cv, null, null) != 1) {
                     throw new MmsException("unable to update " + uri.toString());
                 }
@@ -835,7 +1016,7 @@ public class PduPersister {
                 // uri can look like:
                 // content://mms/part/98
                 os = mContentResolver.openOutputStream(uri);
-                if (data == null) {
+                if (part.getDataBuffer() == null) {
                     dataUri = part.getDataUri();
                     if ((dataUri == null) || (dataUri == uri)) {
                         Log.w(TAG, "Can't find data for this part.");
@@ -872,9 +1053,10 @@ public class PduPersister {
                         Log.v(TAG, "Saving data to: " + uri);
                     }
                     if (!isDrm) {
-                        os.write(data);
+                        part.writeDataTo(os);
                     } else {
                         dataUri = uri;
+                        byte[] data = part.getData();
                         byte[] convertedData = drmConvertSession.convert(data, data.length);
                         if (convertedData != null) {
                             os.write(convertedData, 0, convertedData.length);
@@ -984,20 +1166,9 @@ public class PduPersister {
      * @throws MmsException Bad URI or updating failed.
      */
     public void updateHeaders(Uri uri, SendReq sendReq) {
-        synchronized(PDU_CACHE_INSTANCE) {
-            // If the cache item is getting updated, wait until it's done updating before
-            // purging it.
-            if (PDU_CACHE_INSTANCE.isUpdating(uri)) {
-                if (LOCAL_LOGV) {
-                    Log.v(TAG, "updateHeaders: " + uri + " blocked by isUpdating()");
-                }
-                try {
-                    PDU_CACHE_INSTANCE.wait();
-                } catch (InterruptedException e) {
-                    Log.e(TAG, "updateHeaders: ", e);
-                }
-            }
-        }
+        // If the cache item is getting updated, wait until it's done updating before
+        // purging it.
+        PDU_CACHE_INSTANCE.waitForUpdate(uri);
         PDU_CACHE_INSTANCE.purge(uri);
 
         ContentValues values = new ContentValues(10);
@@ -1136,7 +1307,7 @@ public class PduPersister {
         // Only update the data when:
         // 1. New binary data supplied or
         // 2. The Uri of the part is different from the current one.
-        if ((part.getData() != null)
+        if ((part.getDataBuffer() != null)
                 || (uri != part.getDataUri())) {
             persistData(part, uri, contentType, preOpenedFiles);
         }
@@ -1154,24 +1325,13 @@ public class PduPersister {
             throws MmsException {
         try {
             PduCacheEntry cacheEntry;
-            synchronized(PDU_CACHE_INSTANCE) {
-                if (PDU_CACHE_INSTANCE.isUpdating(uri)) {
-                    if (LOCAL_LOGV) {
-                        Log.v(TAG, "updateParts: " + uri + " blocked by isUpdating()");
-                    }
-                    try {
-                        PDU_CACHE_INSTANCE.wait();
-                    } catch (InterruptedException e) {
-                        Log.e(TAG, "updateParts: ", e);
-                    }
-                    cacheEntry = PDU_CACHE_INSTANCE.get(uri);
-                    if (cacheEntry != null) {
-                        ((MultimediaMessagePdu) cacheEntry.getPdu()).setBody(body);
-                    }
+            // Tell the cache to indicate to other callers that this item
+            // is currently being updated, once nobody else is.
+            if (PDU_CACHE_INSTANCE.beginUpdate(uri)) {
+                cacheEntry = PDU_CACHE_INSTANCE.get(uri);
+                if (cacheEntry != null) {
+                    ((MultimediaMessagePdu) cacheEntry.getPdu()).setBody(body);
                 }
-                // Tell the cache to indicate to other callers that this item
-                // is currently being updated.
-                PDU_CACHE_INSTANCE.setUpdating(uri, true);
             }
 
             ArrayList<PduPart> toBeCreated = new ArrayList<PduPart>();
@@ -1218,10 +1378,7 @@ public class PduPersister {
                 updatePart(e.getKey(), e.getValue(), preOpenedFiles);
             }
         } finally {
-            synchronized(PDU_CACHE_INSTANCE) {
-                PDU_CACHE_INSTANCE.setUpdating(uri, false);
-                PDU_CACHE_INSTANCE.notifyAll();
-            }
+            PDU_CACHE_INSTANCE.setUpdating(uri, false);
         }
     }
 
@@ -1259,20 +1416,9 @@ public class PduPersister {
                     + "content://mms/drafts, content://mms/outbox, "
                     + "content://mms/temp.");
         }
-        synchronized(PDU_CACHE_INSTANCE) {
-            // If the cache item is getting updated, wait until it's done updating before
-            // purging it.
-            if (PDU_CACHE_INSTANCE.isUpdating(uri)) {
-                if (LOCAL_LOGV) {
-                    Log.v(TAG, "persist: " + uri + " blocked by isUpdating()");
-                }
-                try {
-                    PDU_CACHE_INSTANCE.wait();
-                } catch (InterruptedException e) {
-                    Log.e(TAG, "persist1: ", e);
-                }
-            }
-        }
+        // If the cache item is getting updated, wait until it's done updating before
+        // purging it.
+        PDU_CACHE_INSTANCE.waitForUpdate(uri);
         PDU_CACHE_INSTANCE.purge(uri);
 
         PduHeaders header = pdu.getPduHeaders();
@@ -1374,10 +1520,6 @@ public class PduPersister {
             values.put(Mms.THREAD_ID, threadId);
         }
 
-        // Save parts first to avoid inconsistent message is loaded
-        // while saving the parts.
-        long dummyId = System.currentTimeMillis(); // Dummy ID of the msg.
-
         // Figure out if this PDU is a text-only message
         boolean textOnly = true;
 
@@ -1387,7 +1529,6 @@ public class PduPersister {
         // Get body if the PDU is a RetrieveConf or SendReq.
         if (pdu instanceof MultimediaMessagePdu) {
             body = ((MultimediaMessagePdu) pdu).getBody();
-            // Start saving parts if necessary.
             if (body != null) {
                 int partsNum = body.getPartsNum();
                 if (partsNum > 2) {
@@ -1400,7 +1541,6 @@ public class PduPersister {
                 for (int i = 0; i < partsNum; i++) {
                     PduPart part = body.getPart(i);
                     messageSize += part.getDataLength();
-                    persistPart(part, dummyId, preOpenedFiles);
 
                     // If we've got anything besides text/plain or SMIL part, then we've got
                     // an mms message with some other type of attachment.
@@ -1421,6 +1561,20 @@ public class PduPersister {
             values.put(Mms.MESSAGE_SIZE, messageSize);
         }
 
+        if (mBatchPersist) {
+            return persistBatched(uri, msgId, values, body, addressMap, preOpenedFiles);
+        }
+
+        // Save parts first to avoid inconsistent message is loaded
+        // while saving the parts.
+        long dummyId = System.currentTimeMillis(); // Dummy ID of the msg.
+        if (body != null) {
+            int partsNum = body.getPartsNum();
+            for (int i = 0; i < partsNum; i++) {
+                persistPart(body.getPart(i), dummyId, preOpenedFiles);
+            }
+        }
+
         Uri res = null;
         if (existingUri) {
             res = uri;
@@ -1460,6 +1614,225 @@ public class PduPersister {
         return res;
     }
 
+    /**
+     * Persist a downloaded PDU held in a file, such as a retrieve-conf,
+     * without reading it into memory.
+     *
+     * Part bodies too large to keep in memory are written to the cache
+     * directory while the PDU is parsed, and are deleted again once they
+     * have been persisted.
+     *
+     * @param pduFile The file holding the PDU.
+     * @param uri Where to store the PDU.
+     * @param parseContentDisposition whether to parse the Content-Disposition part header
+     * @param createThreadId if true, this function may create a thread id for the recipients
+     * @param groupMmsEnabled if true, all of the recipients addressed in the PDU will be used
+     *  to create the associated thread.
+     * @return A Uri which can be used to access the stored PDU.
+     */
+    public Uri persist(File pduFile, Uri uri, boolean parseContentDisposition,
+            boolean createThreadId, boolean groupMmsEnabled) throws MmsException {
+        File spoolDir = mContext.getCacheDir();
+        GenericPdu pdu;
+        RandomAccessFile access = null;
+        try {
+            access = new RandomAccessFile(pduFile, "r");
+            pdu = new PduParser(access.getChannel(), parseContentDisposition, spoolDir).parse();
+        } catch (IOException e) {
+            throw new MmsException("Failed to read " + pduFile, e);
+        } finally {
+            if (access != null) {
+                try {
+                    access.close();
+                } catch (IOException e) {
+                    Log.e(TAG, "Failed to close " + pduFile, e);
+                }
+            }
+        }
+        if (pdu == null) {
+            throw new MmsException("Invalid PDU in " + pduFile);
+        }
+
+        try {
+            return persist(pdu, uri, createThreadId, groupMmsEnabled, null);
+        } finally {
+            if (pdu instanceof MultimediaMessagePdu) {
+                deleteSpooledParts(((MultimediaMessagePdu) pdu).getBody(), spoolDir);
+            }
+        }
+    }
+
+    /**
+     * Delete the files PduParser wrote part bodies of body to.
+     */
+    private static void deleteSpooledParts(PduBody body, File spoolDir) {
+        if (body == null) {
+            return;
+        }
+        String spoolPath = spoolDir.getAbsolutePath();
+        for (int i = 0; i < body.getPartsNum(); i++) {
+            Uri dataUri = body.getPart(i).getDataUri();
+            if (dataUri != null && "file".equals(dataUri.getScheme())) {
+                File file = new File(dataUri.getPath());
+                if (spoolPath.equals(file.getParentFile().getAbsolutePath())) {
+                    file.delete();
+                }
+            }
+        }
+    }
+
+    /**
+     * The part of persist() that writes the rows, with a batch of
+     * ContentProviderOperations for the parts and one for the pdu row
+     * instead of an insert for each of them.
+     *
+     * As in persist(), the parts are inserted under a dummy message id and
+     * their data is written before the pdu row is written, so a message is
+     * never seen without its part data. The second batch writes the pdu row
+     * and moves the parts to it through a back-reference to its id. If
+     * anything fails before that, the dummy parts are deleted again.
+     *
+     * applyBatch() is not atomic, a batch that fails halfway leaves the
+     * rows written so far. The provider takes the message id of an address
+     * from the uri path, not from the values, so addresses of a new message
+     * can not use a back-reference and go in a third batch once the id is
+     * known, as the addresses come after the pdu row in persist() too.
+     *
+     * @param uri the uri given to persist()
+     * @param msgId the id of the message if uri is an existing message, else -1
+     * @param values the pdu row
+     */
+    private Uri persistBatched(Uri uri, long msgId, ContentValues values, PduBody body,
+            HashMap<Integer, EncodedStringValue[]> addressMap,
+            HashMap<Uri, InputStream> preOpenedFiles) throws MmsException {
+        boolean existingUri = msgId != -1;
+        int partsNum = body == null ? 0 : body.getPartsNum();
+        ArrayList<ContentProviderOperation> ops =
+                new ArrayList<ContentProviderOperation>(partsNum + 2);
+
+        long dummyId = System.currentTimeMillis(); // Dummy ID of the msg.
+        Uri dummyPartUri = Uri.parse("content://mms/" + dummyId + "/part");
+        if (partsNum > 0) {
+            String[] contentTypes = new String[partsNum];
+            for (int i = 0; i < partsNum; i++) {
+                PduPart part = body.getPart(i);
+                ContentValues partValues = getPartValues(part);
+                contentTypes[i] = partValues.getAsString(Part.CONTENT_TYPE);
+                if (isTextContentType(contentTypes[i])) {
+                    partValues.put(Part.TEXT, getPartText(part));
+                }
+                ops.add(ContentProviderOperation.newInsert(dummyPartUri)
+                        .withValues(partValues).build());
+            }
+
+            boolean done = false;
+            try {
+                ContentProviderResult[] results = applyBatch(ops);
+                for (int i = 0; i < partsNum; i++) {
+                    PduPart part = body.getPart(i);
+                    Uri partUri = results[i].uri;
+                    if (partUri == null) {
+                        throw new MmsException("Failed to persist part, return null.");
+                    }
+                    if (!isTextContentType(contentTypes[i])) {
+                        persistData(part, partUri, contentTypes[i], preOpenedFiles);
+                    }
+                    part.setDataUri(partUri);
+                }
+                done = true;
+            } finally {
+                if (!done) {
+                    SqliteWrapper.delete(mContext, mContentResolver, dummyPartUri, null, null);
+                }
+            }
+        }
+
+        ops.clear();
+        int pduIndex = 0;
+        if (existingUri) {
+            ops.add(ContentProviderOperation.newUpdate(uri).withValues(values).build());
+            if (partsNum > 0) {
+                ops.add(ContentProviderOperation.newUpdate(dummyPartUri)
+                        .withValue(Part.MSG_ID, msgId).build());
+            }
+            addAddressOperations(ops, msgId, addressMap);
+        } else {
+            ops.add(ContentProviderOperation.newInsert(uri).withValues(values).build());
+            if (partsNum > 0) {
+                ops.add(ContentProviderOperation.newUpdate(dummyPartUri)
+                        .withValueBackReference(Part.MSG_ID, pduIndex).build());
+            }
+        }
+
+        ContentProviderResult[] results = null;
+        try {
+            results = applyBatch(ops);
+        } finally {
+            if ((results == null) && (partsNum > 0)) {
+                SqliteWrapper.delete(mContext, mContentResolver, dummyPartUri, null, null);
+            }
+        }
+
+        Uri res = uri;
+        if (!existingUri) {
+            if (results[pduIndex].uri == null) {
+                throw new MmsException("persist() failed: return null.");
+            }
+            msgId = ContentUris.parseId(results[pduIndex].uri);
+            // As in persist(), return the longest URI of the persisted PDU
+            res = Uri.parse(uri + "/" + msgId);
+
+            ops.clear();
+            addAddressOperations(ops, msgId, addressMap);
+            if (!ops.isEmpty()) {
+                applyBatch(ops);
+            }
+        }
+
+        return res;
+    }
+
+    private static void addAddressOperations(ArrayList<ContentProviderOperation> ops,
+            long msgId, HashMap<Integer, EncodedStringValue[]> addressMap) {
+        Uri uri = Uri.parse("content://mms/" + msgId + "/addr");
+        for (int addrType : ADDRESS_FIELDS) {
+            EncodedStringValue[] array = addressMap.get(addrType);
+            if (array != null) {
+                for (EncodedStringValue addr : array) {
+                    ops.add(ContentProviderOperation.newInsert(uri)
+                            .withValues(getAddressValues(addr, addrType)).build());
+                }
+            }
+        }
+    }
+
+    private ContentProviderResult[] applyBatch(ArrayList<ContentProviderOperation> ops)
+            throws MmsException {
+        ContentProviderResult[] results;
+        try {
+            results = SqliteWrapper.applyBatch(mContext, mContentResolver,
+                    Mms.CONTENT_URI.getAuthority(), ops);
+        } catch (RemoteException e) {
+            Log.e(TAG, "Failed to apply batch.", e);
+            throw new MmsException(e);
+        } catch (OperationApplicationException e) {
+            Log.e(TAG, "Failed to apply batch.", e);
+            throw new MmsException(e);
+        }
+        if (results == null) {
+            throw new MmsException("persist() failed: batch not applied.");
+        }
+        return results;
+    }
+
+    /**
+     * Use one batch of ContentProviderOperations per message in persist(),
+     * or an insert per row as before. Only for comparing the two.
+     */
+    void setBatchPersist(boolean batchPersist) {
+        mBatchPersist = batchPersist;
+    }
+
     /**
      * For a given address type, extract the recipients from the headers.
      *
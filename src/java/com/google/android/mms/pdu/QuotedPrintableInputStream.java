@@ -0,0 +1,142 @@
+/*
+ * Copyright (C) 2014 The Android Open Source Project
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *      http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+
+package com.google.android.mms.pdu;
+
+import java.io.FilterInputStream;
+import java.io.IOException;
+import java.io.InputStream;
+
+/**
+ * An InputStream decoding the quoted-printable data of another stream as
+ * it is read, so a part body does not have to be held both encoded and
+ * decoded.
+ *
+ * Implements the same subset of RFC 1521 as
+ * QuotedPrintable.decodeQuotedPrintable(): "=" followed by two hex digits
+ * is an escaped octet and "=" followed by CRLF a soft line break. Where
+ * decodeQuotedPrintable() returns null, reading throws an IOException.
+ */
+class QuotedPrintableInputStream extends FilterInputStream {
+    private static final int BUFFER_SIZE = 4096;
+    private static final byte ESCAPE_CHAR = '=';
+
+    private final byte[] mBuffer = new byte[BUFFER_SIZE];
+    private int mBufferPos = 0;
+    private int mBufferEnd = 0;
+
+    private final byte[] mSingle = new byte[1];
+
+    QuotedPrintableInputStream(InputStream in) {
+        super(in);
+    }
+
+    @Override
+    public int read() throws IOException {
+        return (read(mSingle, 0, 1) == 1) ? (mSingle[0] & 0xFF) : -1;
+    }
+
+    @Override
+    public int read(byte[] b, int off, int len) throws IOException {
+        if (len == 0) {
+            return 0;
+        }
+        int count = 0;
+        while ((count < len) && ensureBuffered(1)) {
+            // Copy up to the next escape
+            int end = Math.min(mBufferEnd, mBufferPos + len - count);
+            while ((mBufferPos < end) && (mBuffer[mBufferPos] != ESCAPE_CHAR)) {
+                b[off + count++] = mBuffer[mBufferPos++];
+            }
+            if ((mBufferPos == end) || (count == len)) {
+                continue;
+            }
+
+            if (!ensureBuffered(3)) {
+                throw new IOException("Truncated quoted-printable escape");
+            }
+            int first = mBuffer[mBufferPos + 1];
+            int second = mBuffer[mBufferPos + 2];
+            mBufferPos += 3;
+            if (('\r' == first) && ('\n' == second)) {
+                continue;
+            }
+            int u = Character.digit((char) (first & 0xFF), 16);
+            int l = Character.digit((char) (second & 0xFF), 16);
+            if ((u == -1) || (l == -1)) {
+                throw new IOException("Invalid quoted-printable escape");
+            }
+            b[off + count++] = (byte) ((u << 4) + l);
+        }
+        return (count > 0) ? count : -1;
+    }
+
+    @Override
+    public long skip(long n) throws IOException {
+        byte[] skipped = new byte[(int) Math.min(n, BUFFER_SIZE)];
+        long total = 0;
+        while (total < n) {
+            int count = read(skipped, 0, (int) Math.min(n - total, skipped.length));
+            if (count < 0) {
+                break;
+            }
+            total += count;
+        }
+        return total;
+    }
+
+    @Override
+    public int available() {
+        return 0;
+    }
+
+    @Override
+    public boolean markSupported() {
+        return false;
+    }
+
+    @Override
+    public void mark(int readlimit) {
+    }
+
+    @Override
+    public void reset() throws IOException {
+        throw new IOException("mark/reset not supported");
+    }
+
+    /**
+     * Make sure there are at least count octets in the buffer.
+     *
+     * @return false if the input ends before
+     */
+    private boolean ensureBuffered(int count) throws IOException {
+        int buffered = mBufferEnd - mBufferPos;
+        if (buffered >= count) {
+            return true;
+        }
+        System.arraycopy(mBuffer, mBufferPos, mBuffer, 0, buffered);
+        mBufferPos = 0;
+        mBufferEnd = buffered;
+        while (mBufferEnd < count) {
+            int read = in.read(mBuffer, mBufferEnd, BUFFER_SIZE - mBufferEnd);
+            if (read <= 0) {
+                return false;
+            }
+            mBufferEnd += read;
+        }
+        return true;
+    }
+}
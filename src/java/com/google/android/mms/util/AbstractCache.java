@@ -19,39 +19,122 @@ package com.google.android.mms.util;
 
 import android.util.Log;
 
-import java.util.HashMap;
+import java.util.Map;
+import java.util.concurrent.ConcurrentHashMap;
+import java.util.concurrent.atomic.AtomicLong;
 
+/**
+ * A cache bounded by a number of entries and, optionally, by the total
+ * weight of the entries as given by {@link #weigh}. When a put goes over
+ * either limit, entries are evicted according to the eviction policy and
+ * handed to {@link #onEvicted}.
+ *
+ * get() and size() do not lock, so lookups never wait for each other or
+ * for changes. Changes are synchronized on the cache, which subclasses can
+ * use to keep their own state consistent with the cached entries.
+ */
 public abstract class AbstractCache<K, V> {
     private static final String TAG = "AbstractCache";
     private static final boolean DEBUG = false;
     private static final boolean LOCAL_LOGV = false;
 
-    private static final int MAX_CACHED_ITEMS  = 500;
+    /**
+     * Evict the least recently used entry.
+     */
+    public static final int EVICT_LRU = 0;
+
+    /**
+     * Evict the least hit entry among the least recently used ones.
+     */
+    public static final int EVICT_LFU = 1;
+
+    protected static final int MAX_CACHED_ITEMS  = 500;
+
+    // Number of least recently used entries EVICT_LFU chooses from
+    private static final int LFU_CANDIDATES = 8;
+
+    private final ConcurrentHashMap<K, CacheEntry<V>> mCacheMap;
+    private final int mMaxItems;
+    private final long mMaxWeight;
+    private final int mPolicy;
+    private volatile long mWeight;
+
+    // Orders the accesses, for finding the least recently used entries
+    private final AtomicLong mAccessClock = new AtomicLong();
 
-    private final HashMap<K, CacheEntry<V>> mCacheMap;
+    private final AtomicLong mHitCount = new AtomicLong();
+    private final AtomicLong mMissCount = new AtomicLong();
+    private volatile long mEvictionCount;
+
+    // Scratch space for choosing an entry to evict
+    private final CacheEntry<?>[] mCandidates = new CacheEntry<?>[LFU_CANDIDATES];
+    private final Object[] mCandidateKeys = new Object[LFU_CANDIDATES];
 
     protected AbstractCache() {
-        mCacheMap = new HashMap<K, CacheEntry<V>>();
+        this(MAX_CACHED_ITEMS, 0, EVICT_LRU);
+    }
+
+    /**
+     * @param maxItems the maximum number of entries
+     * @param maxWeight the maximum total weight of the entries, 0 for no limit
+     * @param policy EVICT_LRU or EVICT_LFU
+     */
+    protected AbstractCache(int maxItems, long maxWeight, int policy) {
+        mCacheMap = new ConcurrentHashMap<K, CacheEntry<V>>();
+        mMaxItems = maxItems;
+        mMaxWeight = maxWeight;
+        mPolicy = policy;
+    }
+
+    /**
+     * @return the weight of an entry, such as its approximate size in
+     *         bytes; 0 unless overridden
+     */
+    protected long weigh(K key, V value) {
+        return 0;
+    }
+
+    /**
+     * Called after an entry was evicted to make room for another one,
+     * while synchronized on the cache.
+     */
+    protected void onEvicted(K key, V value) {
     }
 
-    public boolean put(K key, V value) {
+    /**
+     * Called after put() replaced the entry of a key, while synchronized
+     * on the cache. Not called when put() fails, the old entry then stays.
+     */
+    protected void onReplaced(K key, V oldValue) {
+    }
+
+    public synchronized boolean put(K key, V value) {
         if (LOCAL_LOGV) {
             Log.v(TAG, "Trying to put " + key + " into cache.");
         }
 
-        if (mCacheMap.size() >= MAX_CACHED_ITEMS) {
-            // TODO Should remove the oldest or least hit cached entry
-            // and then cache the new one.
-            if (LOCAL_LOGV) {
-                Log.v(TAG, "Failed! size limitation reached.");
+        if (key != null) {
+            long weight = weigh(key, value);
+            if ((mMaxWeight > 0) && (weight > mMaxWeight)) {
+                if (LOCAL_LOGV) {
+                    Log.v(TAG, "Failed! " + key + " weighs " + weight);
+                }
+                return false;
             }
-            return false;
-        }
 
-        if (key != null) {
             CacheEntry<V> cacheEntry = new CacheEntry<V>();
             cacheEntry.value = value;
-            mCacheMap.put(key, cacheEntry);
+            cacheEntry.weight = weight;
+            cacheEntry.lastAccess = mAccessClock.incrementAndGet();
+            CacheEntry<V> replaced = mCacheMap.put(key, cacheEntry);
+            if (replaced != null) {
+                mWeight -= replaced.weight;
+            }
+            mWeight += weight;
+            if (replaced != null) {
+                onReplaced(key, replaced.value);
+            }
+            trim(key);
 
             if (LOCAL_LOGV) {
                 Log.v(TAG, key + " cached, " + mCacheMap.size() + " items total.");
@@ -61,6 +144,91 @@ public abstract class AbstractCache<K, V> {
         return false;
     }
 
+    /**
+     * Weigh the entry of key again after its value changed weight, e.g.
+     * because it read data it did not hold when it was put. An entry that
+     * became too heavy to be cached is evicted.
+     */
+    public synchronized void reweigh(K key) {
+        CacheEntry<V> cacheEntry = (key != null) ? mCacheMap.get(key) : null;
+        if (cacheEntry == null) {
+            return;
+        }
+
+        long weight = weigh(key, cacheEntry.value);
+        mWeight += weight - cacheEntry.weight;
+        cacheEntry.weight = weight;
+        if ((mMaxWeight > 0) && (weight > mMaxWeight)) {
+            mCacheMap.remove(key);
+            mWeight -= weight;
+            mEvictionCount++;
+            if (LOCAL_LOGV) {
+                Log.v(TAG, key + " evicted, it weighs " + weight);
+            }
+            onEvicted(key, cacheEntry.value);
+            return;
+        }
+        trim(key);
+    }
+
+    /**
+     * Evict entries other than keep until the cache is within its limits.
+     */
+    @SuppressWarnings("unchecked")
+    private void trim(K keep) {
+        int candidateCount = (mPolicy == EVICT_LFU) ? LFU_CANDIDATES : 1;
+        while ((mCacheMap.size() > mMaxItems)
+                || ((mMaxWeight > 0) && (mWeight > mMaxWeight))) {
+            // Collect the least recently used entries, oldest first
+            int count = 0;
+            for (Map.Entry<K, CacheEntry<V>> e : mCacheMap.entrySet()) {
+                if (e.getKey().equals(keep)) {
+                    continue;
+                }
+                long access = e.getValue().lastAccess;
+                int i = count;
+                while ((i > 0) && (mCandidates[i - 1].lastAccess > access)) {
+                    if (i < candidateCount) {
+                        mCandidates[i] = mCandidates[i - 1];
+                        mCandidateKeys[i] = mCandidateKeys[i - 1];
+                    }
+                    i--;
+                }
+                if (i < candidateCount) {
+                    mCandidates[i] = e.getValue();
+                    mCandidateKeys[i] = e.getKey();
+                    if (count < candidateCount) {
+                        count++;
+                    }
+                }
+            }
+            if (count == 0) {
+                return;
+            }
+
+            int victim = 0;
+            for (int i = 1; i < count; i++) {
+                if (mCandidates[i].hit < mCandidates[victim].hit) {
+                    victim = i;
+                }
+            }
+            K key = (K) mCandidateKeys[victim];
+            CacheEntry<V> cacheEntry = (CacheEntry<V>) mCandidates[victim];
+            for (int i = 0; i < count; i++) {
+                mCandidates[i] = null;
+                mCandidateKeys[i] = null;
+            }
+
+            mCacheMap.remove(key);
+            mWeight -= cacheEntry.weight;
+            mEvictionCount++;
+            if (LOCAL_LOGV) {
+                Log.v(TAG, key + " evicted after " + cacheEntry.hit + " hits.");
+            }
+            onEvicted(key, cacheEntry.value);
+        }
+    }
+
     public V get(K key) {
         if (LOCAL_LOGV) {
             Log.v(TAG, "Trying to get " + key + " from cache.");
@@ -69,22 +237,29 @@ public abstract class AbstractCache<K, V> {
         if (key != null) {
             CacheEntry<V> cacheEntry = mCacheMap.get(key);
             if (cacheEntry != null) {
+                // Racing updates may be lost, they only guide eviction
                 cacheEntry.hit++;
+                cacheEntry.lastAccess = mAccessClock.incrementAndGet();
+                mHitCount.incrementAndGet();
                 if (LOCAL_LOGV) {
                     Log.v(TAG, key + " hit " + cacheEntry.hit + " times.");
                 }
                 return cacheEntry.value;
             }
+            mMissCount.incrementAndGet();
         }
         return null;
     }
 
-    public V purge(K key) {
+    public synchronized V purge(K key) {
         if (LOCAL_LOGV) {
             Log.v(TAG, "Trying to purge " + key);
         }
 
-        CacheEntry<V> v = mCacheMap.remove(key);
+        CacheEntry<V> v = (key != null) ? mCacheMap.remove(key) : null;
+        if (v != null) {
+            mWeight -= v.weight;
+        }
 
         if (LOCAL_LOGV) {
             Log.v(TAG, mCacheMap.size() + " items cached.");
@@ -93,20 +268,42 @@ public abstract class AbstractCache<K, V> {
         return v != null ? v.value : null;
     }
 
-    public void purgeAll() {
+    public synchronized void purgeAll() {
         if (LOCAL_LOGV) {
             Log.v(TAG, "Purging cache, " + mCacheMap.size()
                     + " items dropped.");
         }
         mCacheMap.clear();
+        mWeight = 0;
     }
 
     public int size() {
         return mCacheMap.size();
     }
 
+    /**
+     * @return the total weight of the cached entries
+     */
+    public long getWeight() {
+        return mWeight;
+    }
+
+    public long getHitCount() {
+        return mHitCount.get();
+    }
+
+    public long getMissCount() {
+        return mMissCount.get();
+    }
+
+    public long getEvictionCount() {
+        return mEvictionCount;
+    }
+
     private static class CacheEntry<V> {
-        int hit;
+        volatile int hit;
+        volatile long lastAccess;
+        long weight;
         V value;
     }
 }
@@ -20,17 +20,57 @@ package com.google.android.mms.util;
 import android.content.ContentUris;
 import android.content.UriMatcher;
 import android.net.Uri;
+import android.os.SystemProperties;
 import android.provider.Telephony.Mms;
 import android.util.Log;
 
+import com.google.android.mms.pdu.GenericPdu;
+import com.google.android.mms.pdu.MultimediaMessagePdu;
+import com.google.android.mms.pdu.PduBody;
+import com.google.android.mms.pdu.PduPart;
+
+import java.util.Collections;
 import java.util.HashMap;
 import java.util.HashSet;
+import java.util.Set;
+import java.util.concurrent.ConcurrentHashMap;
 
+/**
+ * Cache of loaded pdus, indexed by message box and thread.
+ *
+ * Lookups and isUpdating() do not lock. Changes to the cache and its
+ * indexes are synchronized on the cache. Waiting for a pdu that is being
+ * updated uses one of UPDATE_LOCK_STRIPES locks chosen by its Uri, so
+ * waiters are only woken up by updates of Uris sharing their lock.
+ */
 public final class PduCache extends AbstractCache<Uri, PduCacheEntry> {
     private static final String TAG = "PduCache";
     private static final boolean DEBUG = false;
     private static final boolean LOCAL_LOGV = false;
 
+    /**
+     * Maximum number of cached pdus.
+     */
+    private static final String PROPERTY_MAX_ITEMS = "persist.mms.pdu_cache_items";
+
+    /**
+     * Maximum total size of the cached pdus in kB, 0 for no limit.
+     */
+    private static final String PROPERTY_MAX_KB = "persist.mms.pdu_cache_kb";
+
+    /**
+     * Eviction policy, "lru" or "lfu".
+     */
+    private static final String PROPERTY_POLICY = "persist.mms.pdu_cache_policy";
+
+    private static final int DEFAULT_MAX_KB = 4 * 1024;
+
+    // Rough size of a pdu without its part data
+    private static final int PDU_OVERHEAD_BYTES = 1024;
+
+    // Power of two
+    private static final int UPDATE_LOCK_STRIPES = 16;
+
     private static final int MMS_ALL             = 0;
     private static final int MMS_ALL_ID          = 1;
     private static final int MMS_INBOX           = 2;
@@ -73,12 +113,20 @@ public final class PduCache extends AbstractCache<Uri, PduCacheEntry> {
 
     private final HashMap<Integer, HashSet<Uri>> mMessageBoxes;
     private final HashMap<Long, HashSet<Uri>> mThreads;
-    private final HashSet<Uri> mUpdating;
+    private final Set<Uri> mUpdating;
+    private final Object[] mUpdateLocks;
 
     private PduCache() {
+        super(SystemProperties.getInt(PROPERTY_MAX_ITEMS, MAX_CACHED_ITEMS),
+                SystemProperties.getInt(PROPERTY_MAX_KB, DEFAULT_MAX_KB) * 1024L,
+                "lfu".equals(SystemProperties.get(PROPERTY_POLICY)) ? EVICT_LFU : EVICT_LRU);
         mMessageBoxes = new HashMap<Integer, HashSet<Uri>>();
         mThreads = new HashMap<Long, HashSet<Uri>>();
-        mUpdating = new HashSet<Uri>();
+        mUpdating = Collections.newSetFromMap(new ConcurrentHashMap<Uri, Boolean>());
+        mUpdateLocks = new Object[UPDATE_LOCK_STRIPES];
+        for (int i = 0; i < UPDATE_LOCK_STRIPES; i++) {
+            mUpdateLocks[i] = new Object();
+        }
     }
 
     synchronized public static final PduCache getInstance() {
@@ -93,23 +141,23 @@ public final class PduCache extends AbstractCache<Uri, PduCacheEntry> {
 
     @Override
     synchronized public boolean put(Uri uri, PduCacheEntry entry) {
-        int msgBoxId = entry.getMessageBox();
-        HashSet<Uri> msgBox = mMessageBoxes.get(msgBoxId);
-        if (msgBox == null) {
-            msgBox = new HashSet<Uri>();
-            mMessageBoxes.put(msgBoxId, msgBox);
-        }
-
-        long threadId = entry.getThreadId();
-        HashSet<Uri> thread = mThreads.get(threadId);
-        if (thread == null) {
-            thread = new HashSet<Uri>();
-            mThreads.put(threadId, thread);
-        }
-
         Uri finalKey = normalizeKey(uri);
         boolean result = super.put(finalKey, entry);
         if (result) {
+            int msgBoxId = entry.getMessageBox();
+            HashSet<Uri> msgBox = mMessageBoxes.get(msgBoxId);
+            if (msgBox == null) {
+                msgBox = new HashSet<Uri>();
+                mMessageBoxes.put(msgBoxId, msgBox);
+            }
+
+            long threadId = entry.getThreadId();
+            HashSet<Uri> thread = mThreads.get(threadId);
+            if (thread == null) {
+                thread = new HashSet<Uri>();
+                mThreads.put(threadId, thread);
+            }
+
             msgBox.add(finalKey);
             thread.add(finalKey);
         }
@@ -117,18 +165,107 @@ public final class PduCache extends AbstractCache<Uri, PduCacheEntry> {
         return result;
     }
 
-    synchronized public void setUpdating(Uri uri, boolean updating) {
-        if (updating) {
-            mUpdating.add(uri);
-        } else {
-            mUpdating.remove(uri);
+    @Override
+    synchronized public void reweigh(Uri uri) {
+        super.reweigh(normalizeKey(uri));
+    }
+
+    @Override
+    protected long weigh(Uri key, PduCacheEntry entry) {
+        long weight = PDU_OVERHEAD_BYTES;
+        GenericPdu pdu = entry.getPdu();
+        if (pdu instanceof MultimediaMessagePdu) {
+            PduBody body = ((MultimediaMessagePdu) pdu).getBody();
+            if (body != null) {
+                for (int i = 0; i < body.getPartsNum(); i++) {
+                    // Weighing must not read the data of a lazily loaded
+                    // part, which is counted once reweigh() is called
+                    PduPart part = body.getPart(i);
+                    if (part.isDataLoaded()) {
+                        weight += part.getDataLength();
+                    }
+                }
+            }
         }
+        return weight;
     }
 
-    synchronized public boolean isUpdating(Uri uri) {
+    @Override
+    protected void onEvicted(Uri key, PduCacheEntry entry) {
+        removeFromThreads(key, entry);
+        removeFromMessageBoxes(key, entry);
+    }
+
+    @Override
+    protected void onReplaced(Uri key, PduCacheEntry entry) {
+        // Drop the replaced entry from its message box and thread
+        removeFromThreads(key, entry);
+        removeFromMessageBoxes(key, entry);
+    }
+
+    private Object getUpdateLock(Uri uri) {
+        int hash = uri.hashCode();
+        hash ^= (hash >>> 16);
+        return mUpdateLocks[hash & (UPDATE_LOCK_STRIPES - 1)];
+    }
+
+    public void setUpdating(Uri uri, boolean updating) {
+        Object lock = getUpdateLock(uri);
+        synchronized (lock) {
+            if (updating) {
+                mUpdating.add(uri);
+            } else if (mUpdating.remove(uri)) {
+                lock.notifyAll(); // tell anybody waiting on this entry to go ahead
+            }
+        }
+    }
+
+    public boolean isUpdating(Uri uri) {
         return mUpdating.contains(uri);
     }
 
+    /**
+     * Wait until uri is not being updated.
+     *
+     * @return true if uri was being updated
+     */
+    public boolean waitForUpdate(Uri uri) {
+        return waitForUpdate(uri, false);
+    }
+
+    /**
+     * Wait until uri is not being updated, then mark it as being updated.
+     * The caller must call setUpdating(uri, false) or put(uri, entry) when
+     * done.
+     *
+     * @return true if uri was being updated by someone else
+     */
+    public boolean beginUpdate(Uri uri) {
+        return waitForUpdate(uri, true);
+    }
+
+    private boolean waitForUpdate(Uri uri, boolean begin) {
+        boolean waited = false;
+        Object lock = getUpdateLock(uri);
+        synchronized (lock) {
+            try {
+                while (mUpdating.contains(uri)) {
+                    if (LOCAL_LOGV) {
+                        Log.v(TAG, uri + " blocked by isUpdating()");
+                    }
+                    waited = true;
+                    lock.wait();
+                }
+            } catch (InterruptedException e) {
+                Log.e(TAG, "waitForUpdate: ", e);
+            }
+            if (begin) {
+                mUpdating.add(uri);
+            }
+        }
+        return waited;
+    }
+
     @Override
     synchronized public PduCacheEntry purge(Uri uri) {
         int match = URI_MATCHER.match(uri);
@@ -161,7 +298,7 @@ public final class PduCache extends AbstractCache<Uri, PduCacheEntry> {
     }
 
     private PduCacheEntry purgeSingleEntry(Uri key) {
-        mUpdating.remove(key);
+        setUpdating(key, false);
         PduCacheEntry entry = super.purge(key);
         if (entry != null) {
             removeFromThreads(key, entry);
@@ -177,7 +314,9 @@ public final class PduCache extends AbstractCache<Uri, PduCacheEntry> {
 
         mMessageBoxes.clear();
         mThreads.clear();
-        mUpdating.clear();
+        for (Uri uri : mUpdating) {
+            setUpdating(uri, false);
+        }
     }
 
     /**
@@ -218,7 +357,7 @@ public final class PduCache extends AbstractCache<Uri, PduCacheEntry> {
             HashSet<Uri> msgBox = mMessageBoxes.remove(msgBoxId);
             if (msgBox != null) {
                 for (Uri key : msgBox) {
-                    mUpdating.remove(key);
+                    setUpdating(key, false);
                     PduCacheEntry entry = super.purge(key);
                     if (entry != null) {
                         removeFromThreads(key, entry);
@@ -232,6 +371,9 @@ public final class PduCache extends AbstractCache<Uri, PduCacheEntry> {
         HashSet<Uri> thread = mThreads.get(entry.getThreadId());
         if (thread != null) {
             thread.remove(key);
+            if (thread.isEmpty()) {
+                mThreads.remove(entry.getThreadId());
+            }
         }
     }
 
@@ -243,7 +385,7 @@ public final class PduCache extends AbstractCache<Uri, PduCacheEntry> {
         HashSet<Uri> thread = mThreads.remove(threadId);
         if (thread != null) {
             for (Uri key : thread) {
-                mUpdating.remove(key);
+                setUpdating(key, false);
                 PduCacheEntry entry = super.purge(key);
                 if (entry != null) {
                     removeFromMessageBoxes(key, entry);
@@ -253,9 +395,12 @@ public final class PduCache extends AbstractCache<Uri, PduCacheEntry> {
     }
 
     private void removeFromMessageBoxes(Uri key, PduCacheEntry entry) {
-        HashSet<Uri> msgBox = mThreads.get(Long.valueOf(entry.getMessageBox()));
+        HashSet<Uri> msgBox = mMessageBoxes.get(entry.getMessageBox());
         if (msgBox != null) {
             msgBox.remove(key);
+            if (msgBox.isEmpty()) {
+                mMessageBoxes.remove(entry.getMessageBox());
+            }
         }
     }
 }
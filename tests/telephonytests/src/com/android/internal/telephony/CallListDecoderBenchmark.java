@@ -0,0 +1,79 @@
+/*
+ * Copyright (C) 2014 The Android Open Source Project
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *      http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+
+package com.android.internal.telephony;
+
+import static com.android.internal.telephony.CallListDecoderTest.ACTIVE;
+import static com.android.internal.telephony.CallListDecoderTest.callList;
+
+import android.os.Parcel;
+import android.telephony.Rlog;
+import android.test.suitebuilder.annotation.LargeTest;
+import android.test.suitebuilder.annotation.Suppress;
+
+import junit.framework.TestCase;
+
+/**
+ * Benchmark for CallListDecoder, suppressed from the test suites and run
+ * by hand.
+ */
+public class CallListDecoderBenchmark extends TestCase {
+    private static final String TAG = "CallListDecoderBenchmark";
+
+    /**
+     * Polls an unchanged five party conference, as happens every
+     * POLL_DELAY_MSEC while a conference is being set up, with and without
+     * comparing against the previous response.
+     */
+    @LargeTest
+    @Suppress
+    public void testBenchmarkUnchangedConference() {
+        final int iterations = 20000;
+        byte[] data = callList(ACTIVE, ACTIVE, ACTIVE, ACTIVE, ACTIVE);
+        Parcel p = Parcel.obtain();
+        CallListDecoder diffing = new CallListDecoder();
+        CallListDecoder full = new CallListDecoder();
+        int sink = 0;
+
+        for (int i = 0; i < iterations / 10; i++) {
+            p.unmarshall(data, 0, data.length);
+            p.setDataPosition(0);
+            sink += diffing.decode(p, data, 0, data.length).size();
+            p.setDataPosition(0);
+            sink += full.decode(p, null, 0, data.length).size();
+        }
+
+        long start = System.nanoTime();
+        for (int i = 0; i < iterations; i++) {
+            p.unmarshall(data, 0, data.length);
+            p.setDataPosition(0);
+            sink += full.decode(p, null, 0, data.length).size();
+        }
+        long fullNs = System.nanoTime() - start;
+
+        start = System.nanoTime();
+        for (int i = 0; i < iterations; i++) {
+            p.unmarshall(data, 0, data.length);
+            p.setDataPosition(0);
+            sink += diffing.decode(p, data, 0, data.length).size();
+        }
+        long diffNs = System.nanoTime() - start;
+        p.recycle();
+
+        Rlog.d(TAG, "per unchanged 5 call poll: decoded=" + (fullNs / iterations)
+                + "ns compared=" + (diffNs / iterations) + "ns (" + sink + ")");
+    }
+}
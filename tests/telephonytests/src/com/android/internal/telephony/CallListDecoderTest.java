@@ -0,0 +1,139 @@
+/*
+ * Copyright (C) 2014 The Android Open Source Project
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *      http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+
+package com.android.internal.telephony;
+
+import android.os.Parcel;
+import android.test.suitebuilder.annotation.SmallTest;
+
+import junit.framework.TestCase;
+
+/**
+ * Test cases for CallListDecoder.
+ */
+public class CallListDecoderTest extends TestCase {
+
+    // RIL_CallState values
+    static final int ACTIVE = 0;
+    private static final int HOLDING = 1;
+    private static final int INCOMING = 4;
+
+    /** Builds a GET_CURRENT_CALLS response payload, states[i] is call i + 1 */
+    static byte[] callList(int... states) {
+        Parcel p = Parcel.obtain();
+        p.writeInt(states.length);
+        // Reverse order, the decoder sorts by index
+        for (int i = states.length - 1; i >= 0; i--) {
+            p.writeInt(states[i]);
+            p.writeInt(i + 1);         // index
+            p.writeInt(145);           // TOA
+            p.writeInt(states.length > 2 ? 1 : 0); // isMpty
+            p.writeInt(0);             // isMT
+            p.writeInt(0);             // als
+            p.writeInt(1);             // isVoice
+            p.writeInt(0);             // isVoicePrivacy
+            p.writeString("1650555000" + i);
+            p.writeInt(0);             // number presentation
+            p.writeString(null);
+            p.writeInt(0);             // name presentation
+            p.writeInt(0);             // no UUS info
+        }
+        byte[] data = p.marshall();
+        p.recycle();
+        return data;
+    }
+
+    private static DriverCallList decode(CallListDecoder decoder, byte[] data, boolean diff) {
+        Parcel p = Parcel.obtain();
+        p.unmarshall(data, 0, data.length);
+        p.setDataPosition(0);
+        DriverCallList calls = diff
+                ? decoder.decode(p, data, 0, data.length)
+                : decoder.decode(p, null, 0, data.length);
+        p.recycle();
+        return calls;
+    }
+
+    @SmallTest
+    public void testDecode() {
+        DriverCallList calls = decode(new CallListDecoder(), callList(ACTIVE, HOLDING), true);
+
+        assertEquals(2, calls.size());
+        assertEquals(1, calls.get(0).index);
+        assertEquals(DriverCall.State.ACTIVE, calls.get(0).state);
+        assertEquals("+16505550000", calls.get(0).number);
+        assertEquals(2, calls.get(1).index);
+        assertEquals(DriverCall.State.HOLDING, calls.get(1).state);
+        assertTrue(calls.isChanged(0));
+        assertTrue(calls.isChanged(1));
+        assertEquals(DriverCallList.NO_GENERATION, calls.getBaseGeneration());
+    }
+
+    @SmallTest
+    public void testUnchangedReturnsCopyOfPreviousList() {
+        CallListDecoder decoder = new CallListDecoder();
+        DriverCallList first = decode(decoder, callList(ACTIVE, INCOMING), true);
+        DriverCallList second = decode(decoder, callList(ACTIVE, HOLDING), true);
+        DriverCallList third = decode(decoder, callList(ACTIVE, HOLDING), true);
+
+        assertNotSame(second, third);
+        assertEquals(second.getGeneration(), third.getGeneration());
+        assertEquals(first.getGeneration(), third.getBaseGeneration());
+        assertSame(second.get(0), third.get(0));
+        assertSame(second.get(1), third.get(1));
+        assertFalse(third.isChanged(0));
+        assertTrue(third.isChanged(1));
+
+        // A receiver changing its list does not affect the next one
+        second.clear();
+        DriverCallList fourth = decode(decoder, callList(ACTIVE, HOLDING), true);
+        assertEquals(2, fourth.size());
+    }
+
+    @SmallTest
+    public void testOnlyChangedCallsAreNew() {
+        CallListDecoder decoder = new CallListDecoder();
+        DriverCallList first = decode(decoder, callList(ACTIVE, INCOMING), true);
+        DriverCallList second = decode(decoder, callList(ACTIVE, HOLDING), true);
+
+        assertNotSame(first, second);
+        assertEquals(first.getGeneration(), second.getBaseGeneration());
+        assertSame(first.get(0), second.get(0));
+        assertFalse(second.isChanged(0));
+        assertTrue(second.isChanged(1));
+        assertEquals(1, second.getChangedCount());
+        // The previous list is left untouched
+        assertEquals(DriverCall.State.INCOMING, first.get(1).state);
+
+        DriverCallList third = decode(decoder, callList(ACTIVE), true);
+        assertEquals(1, third.size());
+        assertSame(first.get(0), third.get(0));
+        assertEquals(0, third.getChangedCount());
+    }
+
+    @SmallTest
+    public void testWithoutFrameNothingIsShared() {
+        CallListDecoder decoder = new CallListDecoder();
+        DriverCallList first = decode(decoder, callList(ACTIVE), true);
+        DriverCallList second = decode(decoder, callList(ACTIVE), false);
+        DriverCallList third = decode(decoder, callList(ACTIVE), true);
+
+        assertNotSame(first.get(0), second.get(0));
+        assertEquals(DriverCallList.NO_GENERATION, second.getBaseGeneration());
+        assertNotSame(first, third);
+        assertTrue(third.isChanged(0));
+    }
+}
@@ -0,0 +1,55 @@
+/*
+ * Copyright (C) 2014 The Android Open Source Project
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *      http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+
+package com.android.internal.telephony;
+
+import android.content.ContentValues;
+import android.database.MatrixCursor;
+import android.test.suitebuilder.annotation.SmallTest;
+
+import com.android.internal.util.HexDump;
+
+import junit.framework.TestCase;
+
+import java.util.Arrays;
+
+/**
+ * Test cases for storing the PDU of an InboundSmsTracker in the raw table.
+ */
+public class InboundSmsTrackerTest extends TestCase {
+    private static final byte[] PDU = { 0x07, (byte) 0x91, 0x44, 0x77, 0x28, 0x00, (byte) 0xF0 };
+
+    @SmallTest
+    public void testContentValues() {
+        InboundSmsTracker tracker = new InboundSmsTracker(PDU, 0, -1, false, "+16505550100",
+                7, 1, 2, false);
+        ContentValues blob = tracker.getContentValues(true);
+        assertTrue(Arrays.equals(PDU, (byte[]) blob.get("pdu")));
+        ContentValues hex = tracker.getContentValues(false);
+        assertEquals(HexDump.toHexString(PDU), hex.get("pdu"));
+    }
+
+    @SmallTest
+    public void testReadBlobAndHexRows() {
+        MatrixCursor cursor = new MatrixCursor(new String[] {"pdu"});
+        cursor.addRow(new Object[] {PDU});
+        cursor.addRow(new Object[] {HexDump.toHexString(PDU)});
+        assertTrue(cursor.moveToNext());
+        assertTrue(Arrays.equals(PDU, InboundSmsTracker.getPdu(cursor, 0)));
+        assertTrue(cursor.moveToNext());
+        assertTrue(Arrays.equals(PDU, InboundSmsTracker.getPdu(cursor, 0)));
+    }
+}
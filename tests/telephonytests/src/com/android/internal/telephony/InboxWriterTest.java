@@ -0,0 +1,171 @@
+/*
+ * Copyright (C) 2014 The Android Open Source Project
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *      http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+
+package com.android.internal.telephony;
+
+import android.content.ContentUris;
+import android.content.ContentValues;
+import android.content.Intent;
+import android.net.Uri;
+import android.os.Handler;
+import android.os.HandlerThread;
+import android.provider.Telephony;
+import android.test.mock.MockContentProvider;
+import android.test.mock.MockContentResolver;
+import android.test.suitebuilder.annotation.SmallTest;
+
+import junit.framework.TestCase;
+
+import java.util.ArrayList;
+import java.util.concurrent.CountDownLatch;
+import java.util.concurrent.TimeUnit;
+
+/**
+ * Test cases for InboxWriter.
+ */
+public class InboxWriterTest extends TestCase {
+    private static final String TAG = "InboxWriterTest";
+
+    private static final long TIMEOUT_MS = 5000;
+
+    /** An inbox that can hold up calls on the writer thread. */
+    private static class FakeInboxProvider extends MockContentProvider {
+        final ArrayList<ContentValues> mRows = new ArrayList<ContentValues>();
+        int mCalls;
+        volatile Thread mBlockedThread;
+        final CountDownLatch mBlocked = new CountDownLatch(1);
+        final CountDownLatch mUnblock = new CountDownLatch(1);
+
+        @Override
+        public Uri insert(Uri uri, ContentValues values) {
+            onCall();
+            synchronized (this) {
+                mRows.add(values);
+                return ContentUris.withAppendedId(uri, mRows.size());
+            }
+        }
+
+        synchronized int getCalls() {
+            return mCalls;
+        }
+
+        /** Called for each provider call, as the resolver would make a binder call */
+        private void onCall() {
+            synchronized (this) {
+                mCalls++;
+            }
+            if (Thread.currentThread() == mBlockedThread) {
+                mBlocked.countDown();
+                try {
+                    mUnblock.await(TIMEOUT_MS, TimeUnit.MILLISECONDS);
+                } catch (InterruptedException e) {
+                    // fall through
+                }
+            }
+        }
+    }
+
+    /** Collects the Uris of written messages */
+    private static class Results implements InboxWriter.Callback {
+        final ArrayList<Uri> mUris = new ArrayList<Uri>();
+        final CountDownLatch mDone;
+
+        Results(int count) {
+            mDone = new CountDownLatch(count);
+        }
+
+        @Override
+        public void onInboxMessageWritten(Uri uri) {
+            synchronized (mUris) {
+                mUris.add(uri);
+            }
+            mDone.countDown();
+        }
+
+        void await() throws InterruptedException {
+            assertTrue(mDone.await(TIMEOUT_MS, TimeUnit.MILLISECONDS));
+        }
+    }
+
+    private FakeInboxProvider mProvider;
+    private MockContentResolver mResolver;
+    private HandlerThread mWriterThread;
+    private InboxWriter mWriter;
+    private Handler mCallbackHandler;
+
+    @Override
+    protected void setUp() throws Exception {
+        super.setUp();
+        mProvider = new FakeInboxProvider();
+        mResolver = new MockContentResolver();
+        mResolver.addProvider("sms", mProvider);
+        mWriterThread = new HandlerThread(TAG);
+        mWriterThread.start();
+        mWriter = new InboxWriter(mResolver, mWriterThread.getLooper());
+        HandlerThread callbackThread = new HandlerThread(TAG + "Callback");
+        callbackThread.start();
+        mCallbackHandler = new Handler(callbackThread.getLooper());
+    }
+
+    private static Intent deliverIntent(String body) {
+        Intent intent = new Intent();
+        intent.putExtra("pdus", new byte[][] {body.getBytes()});
+        intent.putExtra("format", "3gpp");
+        return intent;
+    }
+
+    @SmallTest
+    public void testWrite() throws Exception {
+        Results results = new Results(1);
+        mWriter.write(deliverIntent("hello\fworld"), mCallbackHandler, results);
+        results.await();
+        assertEquals(1, ContentUris.parseId(results.mUris.get(0)));
+        assertEquals("hello\nworld", mProvider.mRows.get(0).get(Telephony.Sms.Inbox.BODY));
+        assertEquals(1, mProvider.getCalls());
+    }
+
+    @SmallTest
+    public void testUnparsableMessage() throws Exception {
+        Results results = new Results(1);
+        mWriter.write(new Intent(), mCallbackHandler, results);
+        results.await();
+        assertNull(results.mUris.get(0));
+        assertEquals(0, mProvider.getCalls());
+    }
+
+    @SmallTest
+    public void testBurstIsWrittenInOrder() throws Exception {
+        final int messages = 10;
+        mProvider.mBlockedThread = mWriterThread;
+        Results results = new Results(messages);
+        mWriter.write(deliverIntent("message 0"), mCallbackHandler, results);
+        assertTrue(mProvider.mBlocked.await(TIMEOUT_MS, TimeUnit.MILLISECONDS));
+        for (int i = 1; i < messages; i++) {
+            mWriter.write(deliverIntent("message " + i), mCallbackHandler, results);
+        }
+        // the caller is not held up by the pending insert
+        assertEquals(messages, mWriter.getQueueDepth());
+        mProvider.mUnblock.countDown();
+        results.await();
+
+        assertEquals(messages, mProvider.getCalls());
+        for (int i = 0; i < messages; i++) {
+            assertEquals(i + 1, ContentUris.parseId(results.mUris.get(i)));
+            assertEquals("message " + i, mProvider.mRows.get(i).get(Telephony.Sms.Inbox.BODY));
+        }
+        assertEquals(0, mWriter.getQueueDepth());
+    }
+}
@@ -0,0 +1,135 @@
+/*
+ * Copyright (C) 2014 The Android Open Source Project
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *      http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+
+package com.android.internal.telephony;
+
+import android.telephony.Rlog;
+import android.test.suitebuilder.annotation.LargeTest;
+import android.test.suitebuilder.annotation.Suppress;
+import android.util.SparseArray;
+
+import junit.framework.TestCase;
+
+import java.util.ArrayList;
+
+/**
+ * Microbenchmark for the PendingRequestTable class, suppressed from the
+ * test suites and run by hand.
+ */
+public class PendingRequestTableBenchmark extends TestCase {
+    private static final String TAG = "PendingRequestTableBenchmark";
+
+    private static class Request {
+        int mSerial;
+
+        Request(int serial) {
+            mSerial = serial;
+        }
+    }
+
+    private static class Table extends PendingRequestTable<Request> {
+        Table(int capacity) {
+            super(capacity);
+        }
+
+        @Override
+        protected int keyOf(Request r) {
+            return r.mSerial;
+        }
+    }
+
+    /**
+     * Compares the table against the synchronized SparseArray it replaced
+     * in RIL, with 1000 requests in flight: every iteration adds one new
+     * request and removes the oldest, as the sender and receiver do.
+     */
+    @LargeTest
+    @Suppress
+    public void testBenchmarkAgainstSparseArray() {
+        final int inFlight = 1000;
+        final int iterations = 1000000;
+        Request[] requests = new Request[inFlight];
+        for (int i = 0; i < inFlight; i++) {
+            requests[i] = new Request(i);
+        }
+
+        SparseArray<Request> array = new SparseArray<Request>();
+        Table table = new Table(RIL.REQUEST_TABLE_CAPACITY);
+
+        // warm up both paths before timing
+        runSparseArray(array, requests, iterations / 10);
+        runTable(table, requests, iterations / 10);
+
+        long start = System.nanoTime();
+        runSparseArray(array, requests, iterations);
+        long sparseNs = System.nanoTime() - start;
+
+        start = System.nanoTime();
+        runTable(table, requests, iterations);
+        long tableNs = System.nanoTime() - start;
+
+        Rlog.d(TAG, "put+remove with " + inFlight + " in flight: SparseArray="
+                + (sparseNs / iterations) + "ns PendingRequestTable="
+                + (tableNs / iterations) + "ns maxProbe=" + table.maxProbe());
+    }
+
+    private static void runSparseArray(SparseArray<Request> array, Request[] requests,
+            int iterations) {
+        int n = requests.length;
+        for (int i = 0; i < n; i++) {
+            synchronized (array) {
+                array.append(requests[i].mSerial, requests[i]);
+            }
+        }
+        for (int i = 0; i < iterations; i++) {
+            Request r = requests[i % n];
+            Request found;
+            synchronized (array) {
+                found = array.get(r.mSerial);
+                if (found != null) {
+                    array.remove(r.mSerial);
+                }
+            }
+            r.mSerial += n;
+            synchronized (array) {
+                array.append(r.mSerial, r);
+            }
+        }
+        synchronized (array) {
+            array.clear();
+        }
+        for (int i = 0; i < n; i++) {
+            requests[i].mSerial = i;
+        }
+    }
+
+    private static void runTable(Table table, Request[] requests, int iterations) {
+        int n = requests.length;
+        for (int i = 0; i < n; i++) {
+            table.put(requests[i]);
+        }
+        for (int i = 0; i < iterations; i++) {
+            Request r = requests[i % n];
+            table.remove(r.mSerial);
+            r.mSerial += n;
+            table.put(r);
+        }
+        table.removeAll(new ArrayList<Request>());
+        for (int i = 0; i < n; i++) {
+            requests[i].mSerial = i;
+        }
+    }
+}
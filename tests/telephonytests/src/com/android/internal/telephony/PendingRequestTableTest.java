@@ -0,0 +1,246 @@
+/*
+ * Copyright (C) 2014 The Android Open Source Project
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *      http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+
+package com.android.internal.telephony;
+
+import android.test.suitebuilder.annotation.MediumTest;
+import android.test.suitebuilder.annotation.SmallTest;
+
+import junit.framework.TestCase;
+
+import java.util.ArrayList;
+import java.util.HashSet;
+import java.util.concurrent.ConcurrentLinkedQueue;
+import java.util.concurrent.atomic.AtomicInteger;
+
+/**
+ * Test cases for the PendingRequestTable class.
+ */
+public class PendingRequestTableTest extends TestCase {
+
+    private static class Request {
+        int mSerial;
+
+        Request(int serial) {
+            mSerial = serial;
+        }
+    }
+
+    private static class Table extends PendingRequestTable<Request> {
+        Table(int capacity) {
+            super(capacity);
+        }
+
+        @Override
+        protected int keyOf(Request r) {
+            return r.mSerial;
+        }
+    }
+
+    @SmallTest
+    public void testPutRemove() {
+        Table t = new Table(16);
+        Request a = new Request(5);
+        Request b = new Request(6);
+        t.put(a);
+        t.put(b);
+        assertEquals(2, t.size());
+        assertSame(b, t.remove(6));
+        assertNull(t.remove(6));
+        assertSame(a, t.remove(5));
+        assertEquals(0, t.size());
+        assertEquals(0, t.maxProbe());
+    }
+
+    @SmallTest
+    public void testCapacityRoundsUp() {
+        assertEquals(16, new Table(9).capacity());
+        assertEquals(16, new Table(16).capacity());
+    }
+
+    @SmallTest
+    public void testCollisionsAndOverflow() {
+        Table t = new Table(4);
+        // All share home slot 0 of a 4-slot table; the last two overflow
+        for (int i = 0; i < 6; i++) {
+            t.put(new Request(i * 4));
+        }
+        assertEquals(6, t.size());
+        assertEquals(3, t.maxProbe());
+
+        assertEquals(0, t.remove(0).mSerial);
+        assertEquals(20, t.remove(20).mSerial);
+        // Slot 0 is free again but entries after it must still be found
+        assertEquals(8, t.remove(8).mSerial);
+        assertNull(t.remove(1));
+
+        ArrayList<Request> out = new ArrayList<Request>();
+        assertEquals(3, t.snapshot(out));
+        assertEquals(3, t.size());
+
+        out.clear();
+        assertEquals(3, t.removeAll(out));
+        assertEquals(0, t.size());
+        HashSet<Integer> keys = new HashSet<Integer>();
+        for (Request r : out) keys.add(r.mSerial);
+        assertTrue(keys.contains(4));
+        assertTrue(keys.contains(12));
+        assertTrue(keys.contains(16));
+        assertEquals(0, t.maxProbe());
+    }
+
+    @SmallTest
+    public void testProbeBoundDropsWhenDisplacedEntriesAreRemoved() {
+        Table t = new Table(8);
+        for (int i = 0; i < 3; i++) {
+            t.put(new Request(i * 8));
+        }
+        t.put(new Request(3));
+        assertEquals(2, t.maxProbe());
+
+        // The bound stays while any entry is away from its home slot
+        assertEquals(16, t.remove(16).mSerial);
+        assertEquals(2, t.maxProbe());
+        assertEquals(8, t.remove(8).mSerial);
+        assertEquals(0, t.maxProbe());
+
+        // Later collisions start from zero again
+        t.put(new Request(12));
+        assertEquals(0, t.maxProbe());
+        t.put(new Request(20));
+        assertEquals(1, t.maxProbe());
+    }
+
+    @SmallTest
+    public void testNegativeSerials() {
+        Table t = new Table(8);
+        Request r = new Request(Integer.MIN_VALUE + 3);
+        t.put(r);
+        assertSame(r, t.remove(Integer.MIN_VALUE + 3));
+    }
+
+    /**
+     * One thread adds requests while another removes them and a third
+     * clears the table; every request must be removed exactly once.
+     */
+    @MediumTest
+    public void testConcurrentRemoveExactlyOnce() throws Exception {
+        final int total = 100000;
+        final Table t = new Table(64);
+        final AtomicInteger removed = new AtomicInteger(0);
+        final AtomicInteger produced = new AtomicInteger(0);
+
+        Thread producer = new Thread() {
+            @Override
+            public void run() {
+                for (int i = 0; i < total; i++) {
+                    t.put(new Request(i));
+                    produced.set(i + 1);
+                }
+            }
+        };
+        Thread consumer = new Thread() {
+            @Override
+            public void run() {
+                for (int i = 0; i < total; i++) {
+                    while (produced.get() <= i) {
+                        Thread.yield();
+                    }
+                    if (t.remove(i) != null) removed.incrementAndGet();
+                }
+            }
+        };
+        Thread clearer = new Thread() {
+            @Override
+            public void run() {
+                ArrayList<Request> out = new ArrayList<Request>();
+                while (produced.get() < total) {
+                    out.clear();
+                    removed.addAndGet(t.removeAll(out));
+                }
+            }
+        };
+
+        producer.start();
+        consumer.start();
+        clearer.start();
+        producer.join();
+        consumer.join();
+        clearer.join();
+
+        removed.addAndGet(t.removeAll(new ArrayList<Request>()));
+        assertEquals(total, removed.get());
+        assertEquals(0, t.size());
+    }
+
+    /**
+     * Requests are recycled under new serials, as RILRequest objects are,
+     * while two threads race to remove each serial; every serial must be
+     * removed exactly once.
+     */
+    @MediumTest
+    public void testRecycledEntriesRemovedExactlyOnce() throws Exception {
+        final int total = 100000;
+        final Table t = new Table(16);
+        final AtomicInteger removed = new AtomicInteger(0);
+        final AtomicInteger produced = new AtomicInteger(0);
+        final ConcurrentLinkedQueue<Request> pool = new ConcurrentLinkedQueue<Request>();
+        for (int i = 0; i < 4; i++) {
+            pool.add(new Request(-1));
+        }
+
+        Thread producer = new Thread() {
+            @Override
+            public void run() {
+                for (int i = 0; i < total; i++) {
+                    Request r;
+                    while ((r = pool.poll()) == null) {
+                        Thread.yield();
+                    }
+                    r.mSerial = i;
+                    t.put(r);
+                    produced.set(i + 1);
+                }
+            }
+        };
+        Thread[] consumers = new Thread[2];
+        for (int c = 0; c < consumers.length; c++) {
+            consumers[c] = new Thread() {
+                @Override
+                public void run() {
+                    for (int i = 0; i < total; i++) {
+                        while (produced.get() <= i) {
+                            Thread.yield();
+                        }
+                        Request r = t.remove(i);
+                        if (r != null) {
+                            removed.incrementAndGet();
+                            pool.add(r);
+                        }
+                    }
+                }
+            };
+        }
+
+        producer.start();
+        for (Thread consumer : consumers) consumer.start();
+        producer.join();
+        for (Thread consumer : consumers) consumer.join();
+
+        assertEquals(total, removed.get());
+        assertEquals(0, t.size());
+    }
+}
@@ -0,0 +1,182 @@
+/*
+ * Copyright (C) 2014 The Android Open Source Project
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *      http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+
+package com.android.internal.telephony;
+
+import android.content.ContentProviderOperation;
+import android.content.ContentProviderResult;
+import android.content.ContentUris;
+import android.content.ContentValues;
+import android.content.OperationApplicationException;
+import android.net.Uri;
+import android.test.mock.MockContentProvider;
+import android.test.mock.MockContentResolver;
+import android.test.suitebuilder.annotation.SmallTest;
+
+import junit.framework.TestCase;
+
+import java.util.ArrayList;
+
+/**
+ * Test cases for RawTableWriter.
+ */
+public class RawTableWriterTest extends TestCase {
+    private static final Uri RAW_URI = Uri.parse("content://sms/raw");
+
+    /** A raw table, selected by _id or by reference as InboundSmsHandler does */
+    private static class FakeRawProvider extends MockContentProvider {
+        final ArrayList<ContentValues> mRows = new ArrayList<ContentValues>();
+        int mCalls;
+        int mBatches;
+        boolean mFailBatches;
+        private boolean mInBatch;
+
+        @Override
+        public Uri insert(Uri uri, ContentValues values) {
+            if (!mInBatch) {
+                mCalls++;
+            }
+            mRows.add(values);
+            return ContentUris.withAppendedId(uri, mRows.size());
+        }
+
+        @Override
+        public int delete(Uri uri, String selection, String[] selectionArgs) {
+            if (!mInBatch) {
+                mCalls++;
+            }
+            int rows = 0;
+            for (int i = 0; i < mRows.size(); i++) {
+                ContentValues row = mRows.get(i);
+                if (row != null && matches(i + 1, row, selection, selectionArgs)) {
+                    mRows.set(i, null);
+                    rows++;
+                }
+            }
+            return rows;
+        }
+
+        private static boolean matches(long id, ContentValues row, String selection,
+                String[] args) {
+            if (InboundSmsHandler.SELECT_BY_ID.equals(selection)) {
+                return Long.toString(id).equals(args[0]);
+            }
+            assertEquals(InboundSmsHandler.SELECT_BY_REFERENCE, selection);
+            return args[0].equals(row.getAsString("address"))
+                    && args[1].equals(row.getAsString("reference_number"))
+                    && args[2].equals(row.getAsString("count"));
+        }
+
+        @Override
+        public ContentProviderResult[] applyBatch(ArrayList<ContentProviderOperation> ops)
+                throws OperationApplicationException {
+            mCalls++;
+            mBatches++;
+            if (mFailBatches) {
+                throw new OperationApplicationException("failed");
+            }
+            mInBatch = true;
+            try {
+                ContentProviderResult[] results = new ContentProviderResult[ops.size()];
+                for (int i = 0; i < ops.size(); i++) {
+                    results[i] = ops.get(i).apply(this, results, i);
+                }
+                return results;
+            } finally {
+                mInBatch = false;
+            }
+        }
+
+        int getRowCount() {
+            int count = 0;
+            for (ContentValues row : mRows) {
+                if (row != null) {
+                    count++;
+                }
+            }
+            return count;
+        }
+    }
+
+    private FakeRawProvider mProvider;
+    private RawTableWriter mWriter;
+
+    @Override
+    protected void setUp() throws Exception {
+        super.setUp();
+        mProvider = new FakeRawProvider();
+        MockContentResolver resolver = new MockContentResolver();
+        resolver.addProvider("sms", mProvider);
+        mWriter = new RawTableWriter(resolver, RAW_URI);
+    }
+
+    private void addSegment(int ref, int sequence, int count) {
+        InboundSmsTracker tracker = new InboundSmsTracker(new byte[140], 0, -1, false,
+                "+16505550100", ref, sequence, count, false);
+        mProvider.insert(RAW_URI, tracker.getContentValues(true));
+        mProvider.mCalls = 0;
+    }
+
+    private static String[] byReference(int ref, int count) {
+        return new String[] {"+16505550100", Integer.toString(ref), Integer.toString(count)};
+    }
+
+    @SmallTest
+    public void testDeletesWaitForFlush() {
+        addSegment(1, 1, 2);
+        addSegment(2, 1, 3);
+        addSegment(2, 2, 3);
+        mWriter.delete(InboundSmsHandler.SELECT_BY_REFERENCE, byReference(1, 2));
+        mWriter.delete(InboundSmsHandler.SELECT_BY_REFERENCE, byReference(2, 3));
+        assertEquals(2, mWriter.getPendingDeleteCount());
+        assertEquals(0, mProvider.mCalls);
+        assertEquals(3, mProvider.getRowCount());
+
+        mWriter.flush();
+        assertEquals(1, mProvider.mCalls);
+        assertEquals(1, mProvider.mBatches);
+        assertEquals(0, mWriter.getPendingDeleteCount());
+        assertEquals(0, mProvider.getRowCount());
+    }
+
+    @SmallTest
+    public void testSingleDeleteIsNotBatched() {
+        addSegment(1, 1, 2);
+        mWriter.delete(InboundSmsHandler.SELECT_BY_REFERENCE, byReference(1, 2));
+        mWriter.flush();
+        assertEquals(1, mProvider.mCalls);
+        assertEquals(0, mProvider.mBatches);
+        assertEquals(0, mProvider.getRowCount());
+
+        // Nothing to do
+        mWriter.flush();
+        assertEquals(1, mProvider.mCalls);
+    }
+
+    @SmallTest
+    public void testFailedBatchIsAppliedOneAtATime() {
+        addSegment(1, 1, 2);
+        addSegment(2, 1, 2);
+        addSegment(3, 1, 2);
+        mProvider.mFailBatches = true;
+        mWriter.delete(InboundSmsHandler.SELECT_BY_REFERENCE, byReference(1, 2));
+        mWriter.delete(InboundSmsHandler.SELECT_BY_REFERENCE, byReference(2, 2));
+        mWriter.flush();
+        assertEquals(3, mProvider.mCalls);
+        assertEquals(1, mProvider.getRowCount());
+        assertEquals(0, mWriter.getPendingDeleteCount());
+    }
+}
@@ -0,0 +1,183 @@
+/*
+ * Copyright (C) 2014 The Android Open Source Project
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *      http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+
+package com.android.internal.telephony;
+
+import android.test.suitebuilder.annotation.SmallTest;
+
+import junit.framework.TestCase;
+
+import java.io.ByteArrayOutputStream;
+import java.io.IOException;
+import java.io.PipedInputStream;
+import java.io.PipedOutputStream;
+import java.util.ArrayList;
+import java.util.Arrays;
+
+/**
+ * Test cases for the RilFrameReader class.
+ */
+public class RilFrameReaderTest extends TestCase {
+
+    /** Collects a copy of every frame delivered */
+    private static class Collector implements RilFrameReader.FrameHandler {
+        ArrayList<byte[]> mFrames = new ArrayList<byte[]>();
+
+        @Override
+        public void onFrame(byte[] buffer, int offset, int length) {
+            mFrames.add(Arrays.copyOfRange(buffer, offset, offset + length));
+        }
+    }
+
+    /** Hands out at most mChunk bytes per read to exercise partial frames */
+    private static class TricklingSource implements RilFrameReader.Source {
+        private final byte[] mData;
+        private final int mChunk;
+        private int mPos;
+
+        TricklingSource(byte[] data, int chunk) {
+            mData = data;
+            mChunk = chunk;
+        }
+
+        @Override
+        public int read(byte[] buffer, int offset, int count) {
+            if (mPos == mData.length) return -1;
+            int n = Math.min(Math.min(count, mChunk), mData.length - mPos);
+            System.arraycopy(mData, mPos, buffer, offset, n);
+            mPos += n;
+            return n;
+        }
+    }
+
+    private static byte[] payload(int length, int seed) {
+        byte[] b = new byte[length];
+        for (int i = 0; i < length; i++) {
+            b[i] = (byte) (i * 31 + seed);
+        }
+        return b;
+    }
+
+    private static void writeFrame(ByteArrayOutputStream out, byte[] payload) {
+        int length = payload.length;
+        out.write((length >> 24) & 0xff);
+        out.write((length >> 16) & 0xff);
+        out.write((length >> 8) & 0xff);
+        out.write(length & 0xff);
+        out.write(payload, 0, length);
+    }
+
+    private static Collector drain(RilFrameReader reader) throws IOException {
+        Collector c = new Collector();
+        while (reader.readFrames(c) >= 0) {
+            // keep reading until end of stream
+        }
+        return c;
+    }
+
+    @SmallTest
+    public void testSeveralFramesFromOneRead() throws Exception {
+        ByteArrayOutputStream out = new ByteArrayOutputStream();
+        byte[][] payloads = { payload(12, 1), payload(0, 2), payload(300, 3) };
+        for (byte[] p : payloads) writeFrame(out, p);
+        byte[] stream = out.toByteArray();
+
+        RilFrameReader reader = new RilFrameReader(
+                new TricklingSource(stream, stream.length));
+        Collector c = new Collector();
+        assertEquals(3, reader.readFrames(c));
+        assertEquals(-1, reader.readFrames(c));
+        for (int i = 0; i < payloads.length; i++) {
+            assertTrue(Arrays.equals(payloads[i], c.mFrames.get(i)));
+        }
+    }
+
+    @SmallTest
+    public void testFramesSplitAcrossReads() throws Exception {
+        ByteArrayOutputStream out = new ByteArrayOutputStream();
+        byte[][] payloads = { payload(100, 4), payload(5, 5), payload(64, 6) };
+        for (byte[] p : payloads) writeFrame(out, p);
+
+        RilFrameReader reader = new RilFrameReader(
+                new TricklingSource(out.toByteArray(), 3));
+        Collector c = drain(reader);
+        assertEquals(payloads.length, c.mFrames.size());
+        for (int i = 0; i < payloads.length; i++) {
+            assertTrue(Arrays.equals(payloads[i], c.mFrames.get(i)));
+        }
+    }
+
+    @SmallTest
+    public void testFrameLargerThanMaxCommandBytes() throws Exception {
+        ByteArrayOutputStream out = new ByteArrayOutputStream();
+        byte[] small = payload(10, 7);
+        byte[] large = payload(RIL.RIL_MAX_COMMAND_BYTES * 3 + 17, 8);
+        writeFrame(out, small);
+        writeFrame(out, large);
+        writeFrame(out, small);
+
+        RilFrameReader reader = new RilFrameReader(
+                new TricklingSource(out.toByteArray(), 1000));
+        Collector c = drain(reader);
+        assertEquals(3, c.mFrames.size());
+        assertTrue(Arrays.equals(large, c.mFrames.get(1)));
+        assertTrue(Arrays.equals(small, c.mFrames.get(2)));
+        // Buffer must not stay inflated after the large frame was consumed
+        assertEquals(RIL.RIL_MAX_COMMAND_BYTES, reader.getCapacity());
+    }
+
+    @SmallTest
+    public void testCorruptLengthIsRejected() throws Exception {
+        byte[] stream = { (byte) 0x7f, 0, 0, 0, 1, 2, 3 };
+        RilFrameReader reader = new RilFrameReader(new TricklingSource(stream, 7));
+        try {
+            reader.readFrames(new Collector());
+            fail("IOException expected");
+        } catch (IOException ex) {
+            // test pass
+        }
+    }
+
+    @SmallTest
+    public void testPipe() throws Exception {
+        final ByteArrayOutputStream out = new ByteArrayOutputStream();
+        for (int i = 0; i < 50; i++) {
+            writeFrame(out, payload(i * 97, i));
+        }
+        final PipedOutputStream pos = new PipedOutputStream();
+        PipedInputStream pis = new PipedInputStream(pos, 512);
+
+        Thread writer = new Thread() {
+            @Override
+            public void run() {
+                try {
+                    pos.write(out.toByteArray());
+                    pos.close();
+                } catch (IOException ex) {
+                    // reader side will fail the test
+                }
+            }
+        };
+        writer.start();
+
+        Collector c = drain(new RilFrameReader(RilFrameReader.fromInputStream(pis)));
+        writer.join();
+        assertEquals(50, c.mFrames.size());
+        for (int i = 0; i < 50; i++) {
+            assertTrue(Arrays.equals(payload(i * 97, i), c.mFrames.get(i)));
+        }
+    }
+}
@@ -0,0 +1,109 @@
+/*
+ * Copyright (C) 2014 The Android Open Source Project
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *      http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+
+package com.android.internal.telephony;
+
+import android.test.suitebuilder.annotation.SmallTest;
+
+import junit.framework.TestCase;
+
+import java.io.ByteArrayOutputStream;
+import java.io.IOException;
+import java.util.ArrayList;
+import java.util.Arrays;
+
+/**
+ * Test cases for the RilFrameWriter class: batched sends must put the same
+ * bytes on the wire as sending each request on its own.
+ */
+public class RilFrameWriterTest extends TestCase {
+
+    private static byte[] parcel(int length, int seed) {
+        byte[] data = new byte[length];
+        for (int i = 0; i < length; i++) {
+            data[i] = (byte)(seed + i);
+        }
+        return data;
+    }
+
+    private static byte[] unbatched(byte[][] parcels) throws IOException {
+        ByteArrayOutputStream out = new ByteArrayOutputStream();
+        byte[] header = new byte[RilFrameWriter.HEADER_SIZE];
+        for (byte[] data : parcels) {
+            RilFrameWriter.writeFrame(out, header, data);
+        }
+        return out.toByteArray();
+    }
+
+    private static byte[] batched(RilFrameWriter writer, byte[][] parcels) throws IOException {
+        ByteArrayOutputStream out = new ByteArrayOutputStream();
+        writer.reset();
+        for (byte[] data : parcels) {
+            writer.append(data);
+        }
+        writer.writeTo(out);
+        assertEquals(parcels.length, writer.getFrameCount());
+        return out.toByteArray();
+    }
+
+    @SmallTest
+    public void testHeaderIsBigEndianLength() throws IOException {
+        byte[] wire = unbatched(new byte[][] {parcel(0x1234, 0)});
+        assertEquals(RilFrameWriter.HEADER_SIZE + 0x1234, wire.length);
+        assertEquals(0, wire[0]);
+        assertEquals(0, wire[1]);
+        assertEquals(0x12, wire[2]);
+        assertEquals(0x34, wire[3]);
+    }
+
+    @SmallTest
+    public void testBatchedMatchesUnbatched() throws IOException {
+        int[] sizes = {0, 1, 4, 8, 255, 256, 1000};
+        byte[][] parcels = new byte[sizes.length][];
+        for (int i = 0; i < sizes.length; i++) {
+            parcels[i] = parcel(sizes[i], i);
+        }
+        RilFrameWriter writer = new RilFrameWriter(8 * 1024);
+        assertTrue(Arrays.equals(unbatched(parcels), batched(writer, parcels)));
+    }
+
+    @SmallTest
+    public void testBatchedMatchesUnbatchedWhenGrowing() throws IOException {
+        // Starts smaller than a single frame, so every append grows the buffer
+        RilFrameWriter writer = new RilFrameWriter(16);
+        ArrayList<byte[]> list = new ArrayList<byte[]>();
+        for (int i = 0; i < 20; i++) {
+            list.add(parcel(17 + i * 31, i));
+        }
+        byte[][] parcels = list.toArray(new byte[list.size()][]);
+        assertTrue(Arrays.equals(unbatched(parcels), batched(writer, parcels)));
+    }
+
+    @SmallTest
+    public void testResetReusesBuffer() throws IOException {
+        RilFrameWriter writer = new RilFrameWriter(64);
+        byte[][] first = {parcel(100, 1), parcel(3, 2)};
+        byte[][] second = {parcel(5, 3)};
+        assertTrue(Arrays.equals(unbatched(first), batched(writer, first)));
+        assertTrue(Arrays.equals(unbatched(second), batched(writer, second)));
+    }
+
+    @SmallTest
+    public void testEmptyBatchWritesNothing() throws IOException {
+        RilFrameWriter writer = new RilFrameWriter(64);
+        assertEquals(0, batched(writer, new byte[0][]).length);
+    }
+}
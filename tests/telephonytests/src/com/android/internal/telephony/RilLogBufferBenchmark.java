@@ -0,0 +1,68 @@
+/*
+ * Copyright (C) 2014 The Android Open Source Project
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *      http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+
+package com.android.internal.telephony;
+
+import android.telephony.Rlog;
+import android.telephony.SignalStrength;
+import android.test.suitebuilder.annotation.LargeTest;
+import android.test.suitebuilder.annotation.Suppress;
+
+import junit.framework.TestCase;
+
+/**
+ * Benchmark for the RilLogBuffer class, suppressed from the test suites
+ * and run by hand.
+ */
+public class RilLogBufferBenchmark extends TestCase {
+    private static final String TAG = "RilLogBufferBenchmark";
+
+    /**
+     * Compares formatting every signal strength indication, as the unsolicited
+     * logging did, with recording a copy of it for formatting at dump time.
+     */
+    @LargeTest
+    @Suppress
+    public void testBenchmarkSignalStrength() {
+        final int iterations = 100000;
+        final int code = RILConstants.RIL_UNSOL_SIGNAL_STRENGTH;
+        SignalStrength ss = new SignalStrength();
+        RilLogBuffer buffer = new RilLogBuffer(RIL.RESPONSE_LOG_SIZE);
+        int sink = 0;
+
+        for (int i = 0; i < iterations / 10; i++) {
+            sink += ("[UNSL]< " + RIL.responseToString(code) + " "
+                    + RIL.retToString(code, ss)).length();
+            buffer.recordUnsol(code, ss);
+        }
+
+        long start = System.nanoTime();
+        for (int i = 0; i < iterations; i++) {
+            sink += ("[UNSL]< " + RIL.responseToString(code) + " "
+                    + RIL.retToString(code, ss)).length();
+        }
+        long eagerNs = System.nanoTime() - start;
+
+        start = System.nanoTime();
+        for (int i = 0; i < iterations; i++) {
+            buffer.recordUnsol(code, ss);
+        }
+        long deferredNs = System.nanoTime() - start;
+
+        Rlog.d(TAG, "per signal strength indication: formatted=" + (eagerNs / iterations)
+                + "ns deferred=" + (deferredNs / iterations) + "ns (" + sink + ")");
+    }
+}
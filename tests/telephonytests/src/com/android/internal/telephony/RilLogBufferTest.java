@@ -0,0 +1,77 @@
+/*
+ * Copyright (C) 2014 The Android Open Source Project
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *      http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+
+package com.android.internal.telephony;
+
+import android.test.suitebuilder.annotation.SmallTest;
+
+import junit.framework.TestCase;
+
+import java.io.PrintWriter;
+import java.io.StringWriter;
+import java.util.ArrayList;
+
+/**
+ * Test cases for the RilLogBuffer class.
+ */
+public class RilLogBufferTest extends TestCase {
+
+    private static String dump(RilLogBuffer buffer) {
+        StringWriter sw = new StringWriter();
+        PrintWriter pw = new PrintWriter(sw);
+        buffer.dump(pw);
+        pw.flush();
+        return sw.toString();
+    }
+
+    @SmallTest
+    public void testKeepsMostRecent() {
+        RilLogBuffer buffer = new RilLogBuffer(2);
+        buffer.recordResponse(Integer.MIN_VALUE + 7, RILConstants.RIL_REQUEST_SIM_IO, 0, null);
+        buffer.recordUnsol(RILConstants.RIL_UNSOL_SIGNAL_STRENGTH, new int[] {1, 2});
+        buffer.recordResponse(Integer.MIN_VALUE + 8, RILConstants.RIL_REQUEST_GET_IMSI, 0,
+                "001010123456789");
+
+        String out = dump(buffer);
+        assertTrue(out.contains("last 2 of 3"));
+        assertFalse(out.contains("[0007]"));
+        assertTrue(out.contains("[UNSL]< " + RIL.responseToString(
+                RILConstants.RIL_UNSOL_SIGNAL_STRENGTH) + " {1, 2}"));
+        // Privacy filtering of retToString still applies at dump time
+        assertTrue(out.contains("[0008]< " + RIL.requestToString(
+                RILConstants.RIL_REQUEST_GET_IMSI)));
+        assertFalse(out.contains("001010123456789"));
+    }
+
+    @SmallTest
+    public void testResultsChangedLaterAreDumpedAsRecorded() {
+        RilLogBuffer buffer = new RilLogBuffer(4);
+        int[] ints = {1, 2};
+        ArrayList<String> list = new ArrayList<String>();
+        list.add("first");
+        buffer.recordUnsol(RILConstants.RIL_UNSOL_SIGNAL_STRENGTH, ints);
+        buffer.recordResponse(Integer.MIN_VALUE + 9, RILConstants.RIL_REQUEST_SIM_IO, 0, list);
+
+        // Receivers may change the results they were handed
+        ints[0] = 3;
+        list.set(0, "second");
+
+        String out = dump(buffer);
+        assertTrue(out.contains(" {1, 2}"));
+        assertTrue(out.contains("first"));
+        assertFalse(out.contains("second"));
+    }
+}
@@ -0,0 +1,117 @@
+/*
+ * Copyright (C) 2014 The Android Open Source Project
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *      http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+
+package com.android.internal.telephony;
+
+import android.test.suitebuilder.annotation.MediumTest;
+import android.test.suitebuilder.annotation.SmallTest;
+
+import junit.framework.TestCase;
+
+import java.util.List;
+
+/**
+ * Test cases for the RilMetrics class.
+ */
+public class RilMetricsTest extends TestCase {
+    private static final long MS = 1000000L;
+
+    @SmallTest
+    public void testBuckets() {
+        assertEquals(0, RilMetrics.bucketFor(0));
+        assertEquals(0, RilMetrics.bucketFor(4 * MS));
+        assertEquals(1, RilMetrics.bucketFor(5 * MS));
+        assertEquals(RilMetrics.BUCKET_BOUNDS_MS.length, RilMetrics.bucketFor(60000 * MS));
+    }
+
+    @SmallTest
+    public void testLatencyAndGauges() {
+        RilMetrics metrics = new RilMetrics();
+        for (int i = 0; i < 100; i++) {
+            metrics.onRequestSent(RILConstants.RIL_REQUEST_SIM_IO);
+        }
+        for (int i = 0; i < 98; i++) {
+            metrics.onRequestDone(RILConstants.RIL_REQUEST_SIM_IO);
+            metrics.onResponse(RILConstants.RIL_REQUEST_SIM_IO, 3 * MS);
+        }
+        metrics.onRequestDone(RILConstants.RIL_REQUEST_SIM_IO);
+        metrics.onResponse(RILConstants.RIL_REQUEST_SIM_IO, 700 * MS);
+        metrics.onTimeout(RILConstants.RIL_REQUEST_SIM_IO);
+
+        List<RilMetrics.RequestStats> stats = metrics.snapshot();
+        assertEquals(1, stats.size());
+        RilMetrics.RequestStats s = stats.get(0);
+        assertEquals(RILConstants.RIL_REQUEST_SIM_IO, s.request);
+        assertEquals(99, s.count);
+        assertEquals(1, s.inFlight);
+        assertEquals(1, s.timeouts);
+        assertEquals(700, s.maxNanos / MS);
+        assertEquals(5, s.getPercentileMs(50));
+        assertEquals(1000, s.getPercentileMs(100));
+
+        // Snapshots are copies
+        metrics.onRequestDone(RILConstants.RIL_REQUEST_SIM_IO);
+        assertEquals(1, s.inFlight);
+        assertEquals(0, metrics.snapshot().get(0).inFlight);
+    }
+
+    /**
+     * Several threads record at once, including for request codes not seen
+     * before; no update may be lost.
+     */
+    @MediumTest
+    public void testConcurrentRecording() throws Exception {
+        final RilMetrics metrics = new RilMetrics();
+        final int perThread = 10000;
+        Thread[] threads = new Thread[4];
+        for (int t = 0; t < threads.length; t++) {
+            threads[t] = new Thread() {
+                @Override
+                public void run() {
+                    for (int i = 0; i < perThread; i++) {
+                        int request = i % 20;
+                        metrics.onRequestSent(request);
+                        metrics.onResponse(request, (i % 100) * MS);
+                        metrics.onRequestDone(request);
+                    }
+                }
+            };
+            threads[t].start();
+        }
+        for (Thread thread : threads) {
+            thread.join();
+        }
+
+        List<RilMetrics.RequestStats> stats = metrics.snapshot();
+        assertEquals(20, stats.size());
+        long total = 0;
+        for (RilMetrics.RequestStats s : stats) {
+            long bucketed = 0;
+            for (long b : s.buckets) bucketed += b;
+            assertEquals(s.count, bucketed);
+            assertEquals(0, s.inFlight);
+            total += s.count;
+        }
+        assertEquals(threads.length * perThread, total);
+    }
+
+    @SmallTest
+    public void testEmpty() {
+        RilMetrics.RequestStats s = new RilMetrics.RequestStats(1);
+        assertEquals(-1, s.getPercentileMs(50));
+        assertEquals(0, s.getAverageMs());
+    }
+}
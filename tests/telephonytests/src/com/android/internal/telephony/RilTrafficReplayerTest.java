@@ -0,0 +1,148 @@
+/*
+ * Copyright (C) 2014 The Android Open Source Project
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *      http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+
+package com.android.internal.telephony;
+
+import android.test.suitebuilder.annotation.SmallTest;
+
+import junit.framework.TestCase;
+
+import java.io.ByteArrayInputStream;
+import java.io.ByteArrayOutputStream;
+import java.io.IOException;
+import java.util.ArrayList;
+import java.util.Arrays;
+
+/**
+ * Test cases for RilTrafficRecorder and RilTrafficReplayer.
+ */
+public class RilTrafficReplayerTest extends TestCase {
+    private static final long TIMEOUT_MS = 5000;
+
+    private static class CollectingSink implements RilTrafficReplayer.Sink {
+        ArrayList<int[]> mSent = new ArrayList<int[]>();
+        ArrayList<byte[]> mMessages = new ArrayList<byte[]>();
+
+        @Override
+        public void onRequestSent(int request, int serial) {
+            mSent.add(new int[] {request, serial});
+        }
+
+        @Override
+        public void onMessage(byte[] buffer, int offset, int length) {
+            mMessages.add(Arrays.copyOfRange(buffer, offset, offset + length));
+        }
+    }
+
+    @SmallTest
+    public void testRoundTrip() throws Exception {
+        ByteArrayOutputStream out = new ByteArrayOutputStream();
+        RilTrafficRecorder recorder = new RilTrafficRecorder(out, 1024 * 1024);
+        byte[] small = { 1, 2, 3 };
+        byte[] large = new byte[RIL.RIL_MAX_COMMAND_BYTES + 100];
+        large[large.length - 1] = 42;
+
+        recorder.recordSent(RILConstants.RIL_REQUEST_SIM_IO, Integer.MIN_VALUE + 5);
+        recorder.recordReceived(small, 0, small.length);
+        recorder.recordSent(RILConstants.RIL_REQUEST_GET_IMSI, -1);
+        recorder.recordReceived(large, 0, large.length);
+        recorder.close();
+        assertTrue(recorder.awaitClosed(TIMEOUT_MS));
+
+        CollectingSink sink = new CollectingSink();
+        RilTrafficReplayer.Result result = new RilTrafficReplayer(
+                new ByteArrayInputStream(out.toByteArray())).replay(sink, false, false);
+
+        assertEquals(2, result.sent);
+        assertEquals(2, result.messages);
+        assertEquals(RILConstants.RIL_REQUEST_SIM_IO, sink.mSent.get(0)[0]);
+        assertEquals(Integer.MIN_VALUE + 5, sink.mSent.get(0)[1]);
+        assertEquals(-1, sink.mSent.get(1)[1]);
+        assertTrue(Arrays.equals(small, sink.mMessages.get(0)));
+        assertTrue(Arrays.equals(large, sink.mMessages.get(1)));
+    }
+
+    @SmallTest
+    public void testSizeLimitStopsRecording() throws Exception {
+        ByteArrayOutputStream out = new ByteArrayOutputStream();
+        // Room for two records of 23 to 25 bytes after the 5 byte header
+        RilTrafficRecorder recorder = new RilTrafficRecorder(out, 60);
+        byte[] msg = new byte[20];
+        for (int i = 0; i < 10; i++) {
+            recorder.recordReceived(msg, 0, msg.length);
+        }
+        assertTrue(recorder.isStopped());
+        assertTrue(recorder.awaitClosed(TIMEOUT_MS));
+
+        CollectingSink sink = new CollectingSink();
+        new RilTrafficReplayer(new ByteArrayInputStream(out.toByteArray()))
+                .replay(sink, false, false);
+        assertEquals(2, sink.mMessages.size());
+    }
+
+    /** A message as read from the socket, with its first two Parcel ints */
+    private static byte[] message(int type, int value) {
+        byte[] message = new byte[12];
+        for (int i = 0; i < 4; i++) {
+            message[i] = (byte) (type >> (8 * i));
+            message[4 + i] = (byte) (value >> (8 * i));
+        }
+        return message;
+    }
+
+    @SmallTest
+    public void testRedactsSubscriberContent() throws Exception {
+        ByteArrayOutputStream out = new ByteArrayOutputStream();
+        RilTrafficRecorder recorder = new RilTrafficRecorder(out, 1024 * 1024);
+        byte[] imsi = message(RIL.RESPONSE_SOLICITED, 7);
+        byte[] signal = message(RIL.RESPONSE_SOLICITED, 8);
+        byte[] sms = message(RIL.RESPONSE_UNSOLICITED, RILConstants.RIL_UNSOL_RESPONSE_NEW_SMS);
+        byte[] unsolSignal = message(RIL.RESPONSE_UNSOLICITED,
+                RILConstants.RIL_UNSOL_SIGNAL_STRENGTH);
+
+        recorder.recordSent(RILConstants.RIL_REQUEST_GET_IMSI, 7);
+        recorder.recordSent(RILConstants.RIL_REQUEST_SIGNAL_STRENGTH, 8);
+        recorder.recordReceived(imsi, 0, imsi.length);
+        recorder.recordReceived(signal, 0, signal.length);
+        recorder.recordReceived(sms, 0, sms.length);
+        recorder.recordReceived(unsolSignal, 0, unsolSignal.length);
+        // a later request may reuse the serial
+        recorder.recordReceived(imsi, 0, imsi.length);
+        recorder.close();
+        assertTrue(recorder.awaitClosed(TIMEOUT_MS));
+
+        CollectingSink sink = new CollectingSink();
+        new RilTrafficReplayer(new ByteArrayInputStream(out.toByteArray()))
+                .replay(sink, false, false);
+        // the requests themselves are kept
+        assertEquals(2, sink.mSent.size());
+        assertEquals(3, sink.mMessages.size());
+        assertTrue(Arrays.equals(signal, sink.mMessages.get(0)));
+        assertTrue(Arrays.equals(unsolSignal, sink.mMessages.get(1)));
+        assertTrue(Arrays.equals(imsi, sink.mMessages.get(2)));
+    }
+
+    @SmallTest
+    public void testRejectsGarbage() throws Exception {
+        try {
+            new RilTrafficReplayer(new ByteArrayInputStream(new byte[] {1, 2, 3, 4, 5}))
+                    .replay(new CollectingSink(), false, false);
+            fail("IOException expected");
+        } catch (IOException ex) {
+            // test pass
+        }
+    }
+}
@@ -0,0 +1,143 @@
+/*
+ * Copyright (C) 2014 The Android Open Source Project
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *      http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+
+package com.android.internal.telephony;
+
+import android.os.Looper;
+import android.telephony.SignalStrength;
+import android.test.suitebuilder.annotation.SmallTest;
+
+import junit.framework.TestCase;
+
+import java.io.PrintWriter;
+import java.io.StringWriter;
+
+/**
+ * Test cases for the SignalStrengthFilter class.
+ */
+public class SignalStrengthFilterTest extends TestCase {
+    private static final SignalStrengthFilter.Target NO_TARGET =
+            new SignalStrengthFilter.Target() {
+        @Override
+        public void onSignalStrengthReady(SignalStrength ss) {
+        }
+    };
+
+    private static SignalStrengthFilter filter(String config, long minIntervalMs) {
+        return new SignalStrengthFilter(Looper.getMainLooper(), NO_TARGET, config,
+                minIntervalMs);
+    }
+
+    /** GSM signal strength, asu 12 and up is 4 bars, 8 to 11 is 3 bars */
+    private static SignalStrength gsm(int asu) {
+        return new SignalStrength(asu, 0, -120, -160, -120, -1, -1, true);
+    }
+
+    private static SignalStrength cdma(int dbm) {
+        return new SignalStrength(99, 0, dbm, -160, -120, -1, -1, false);
+    }
+
+    private static String dump(SignalStrengthFilter filter) {
+        StringWriter sw = new StringWriter();
+        PrintWriter pw = new PrintWriter(sw);
+        filter.dump(pw);
+        pw.flush();
+        return sw.toString();
+    }
+
+    @SmallTest
+    public void testUnconfiguredReportsChanges() {
+        SignalStrengthFilter filter = filter("", 0);
+        assertTrue(filter.offer(gsm(10)));
+        assertFalse(filter.offer(gsm(10)));
+        assertTrue(filter.offer(gsm(11)));
+        assertTrue(dump(filter).contains("unchanged=1"));
+    }
+
+    @SmallTest
+    public void testHysteresis() {
+        SignalStrengthFilter filter = filter("gsm:4:8", 0);
+        assertTrue(filter.offer(gsm(11)));     // -91 dBm, 3 bars
+        // 4 bars but only 2 dB better
+        assertFalse(filter.offer(gsm(12)));
+        assertFalse(filter.offer(gsm(11)));
+        // 4 dB better than reported
+        assertTrue(filter.offer(gsm(13)));
+        // Losing the signal is always reported
+        assertTrue(filter.offer(gsm(99)));
+        assertTrue(dump(filter).contains("hysteresis=1"));
+    }
+
+    @SmallTest
+    public void testLargeDelta() {
+        SignalStrengthFilter filter = filter("gsm:4:8", 0);
+        assertTrue(filter.offer(gsm(20)));
+        // Same level, 6 dB
+        assertFalse(filter.offer(gsm(23)));
+        // Same level, 8 dB
+        assertTrue(filter.offer(gsm(24)));
+        assertTrue(dump(filter).contains("smallDelta=1"));
+    }
+
+    @SmallTest
+    public void testTechnologyChangeIsReported() {
+        SignalStrengthFilter filter = filter("gsm:4:8,cdma:4:8", 0);
+        assertTrue(filter.offer(gsm(20)));
+        assertTrue(filter.offer(cdma(-80)));
+        assertFalse(filter.offer(cdma(-81)));
+    }
+
+    @SmallTest
+    public void testReportedUpdateIsCopied() {
+        SignalStrengthFilter filter = filter("", 0);
+        SignalStrength reported = gsm(10);
+        assertTrue(filter.offer(reported));
+        // The reported instance is handed on and may be changed by others
+        reported.setGsm(false);
+        assertFalse(filter.offer(gsm(10)));
+    }
+
+    @SmallTest
+    public void testResetReportsNextUpdate() {
+        SignalStrengthFilter filter = filter("gsm:4:8", 0);
+        assertTrue(filter.offer(gsm(20)));
+        assertFalse(filter.offer(gsm(20)));
+        filter.reset();
+        assertTrue(filter.offer(gsm(20)));
+    }
+
+    @SmallTest
+    public void testMinIntervalHoldsBack() {
+        SignalStrengthFilter filter = filter("", 60 * 1000);
+        assertTrue(filter.offer(gsm(10)));
+        assertFalse(filter.offer(gsm(15)));
+        assertFalse(filter.offer(gsm(20)));
+        String out = dump(filter);
+        assertTrue(out.contains("deferred=1"));
+        assertTrue(out.contains("merged=1"));
+        assertTrue(out.contains("pending=true"));
+
+        // Back to the reported value, nothing left to report
+        assertFalse(filter.offer(gsm(10)));
+        assertTrue(dump(filter).contains("pending=false"));
+    }
+
+    @SmallTest
+    public void testMalformedConfigIgnored() {
+        SignalStrengthFilter filter = filter("gsm:4,umts:1:1,lte:x:2,cdma:2:4", 0);
+        assertTrue(dump(filter).contains("config= cdma:2:4"));
+    }
+}
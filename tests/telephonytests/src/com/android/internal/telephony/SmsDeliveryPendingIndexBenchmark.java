@@ -0,0 +1,99 @@
+/*
+ * Copyright (C) 2014 The Android Open Source Project
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *      http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+
+package com.android.internal.telephony;
+
+import android.telephony.Rlog;
+import android.test.suitebuilder.annotation.LargeTest;
+import android.test.suitebuilder.annotation.Suppress;
+
+import junit.framework.TestCase;
+
+import java.util.ArrayList;
+
+/**
+ * Benchmark for SmsDeliveryPendingIndex, suppressed from the test suites and
+ * run by hand.
+ */
+public class SmsDeliveryPendingIndexBenchmark extends TestCase {
+    private static final String TAG = "SmsDeliveryPendingIndexBenchmark";
+
+    /** A sent message, as the dispatcher's list held it */
+    private static class Sent {
+        final int mMessageRef;
+
+        Sent(int messageRef) {
+            mMessageRef = messageRef;
+        }
+    }
+
+    /**
+     * Matches status reports for 500 pending messages, reports arriving in a different order
+     * than the messages were sent, with the index and with the list the dispatcher scanned.
+     */
+    @LargeTest
+    @Suppress
+    public void testBenchmarkReportMatching() {
+        final int pending = 500;
+        final int warmup = 100;
+        final int iterations = 500;
+
+        long sink = 0;
+        long indexNs = 0;
+        long listNs = 0;
+        for (int i = 0; i < warmup + iterations; i++) {
+            SmsDeliveryPendingIndex<Sent> index = new SmsDeliveryPendingIndex<Sent>();
+            ArrayList<Sent> list = new ArrayList<Sent>();
+            for (int ref = 0; ref < pending; ref++) {
+                Sent sent = new Sent(ref);
+                index.add(ref, sent, 0);
+                list.add(sent);
+            }
+
+            long start = System.nanoTime();
+            for (int r = 0; r < pending; r++) {
+                int ref = (r * 7) % pending;
+                Sent sent = index.get(ref, 0);
+                index.remove(ref);
+                sink += sent.mMessageRef;
+            }
+            long middle = System.nanoTime();
+            for (int r = 0; r < pending; r++) {
+                int ref = (r * 7) % pending;
+                for (int j = 0, count = list.size(); j < count; j++) {
+                    Sent sent = list.get(j);
+                    if (sent.mMessageRef == ref) {
+                        list.remove(j);
+                        sink += sent.mMessageRef;
+                        break;
+                    }
+                }
+            }
+            long end = System.nanoTime();
+            assertEquals(0, index.size());
+            assertEquals(0, list.size());
+
+            if (i >= warmup) {
+                indexNs += middle - start;
+                listNs += end - middle;
+            }
+        }
+
+        Rlog.d(TAG, "per report with " + pending + " pending: index="
+                + (indexNs / iterations / pending) + "ns list="
+                + (listNs / iterations / pending) + "ns (" + sink + ")");
+    }
+}
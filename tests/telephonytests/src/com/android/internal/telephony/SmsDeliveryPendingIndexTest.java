@@ -0,0 +1,78 @@
+/*
+ * Copyright (C) 2014 The Android Open Source Project
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *      http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+
+package com.android.internal.telephony;
+
+import android.test.suitebuilder.annotation.SmallTest;
+
+import junit.framework.TestCase;
+
+/**
+ * Test cases for SmsDeliveryPendingIndex.
+ */
+public class SmsDeliveryPendingIndexTest extends TestCase {
+    @SmallTest
+    public void testReports() {
+        SmsDeliveryPendingIndex<String> index = new SmsDeliveryPendingIndex<String>();
+        index.add(1, "one", 0);
+        index.add(2, "two", 0);
+        // a pending report leaves the message in the index
+        assertEquals("two", index.get(2, 1));
+        assertEquals("two", index.get(2, 2));
+        assertEquals("two", index.remove(2));
+        assertNull(index.get(2, 3));
+        assertEquals(1, index.size());
+        assertEquals(0, index.getOrphanCount());
+    }
+
+    @SmallTest
+    public void testExpiry() {
+        SmsDeliveryPendingIndex<String> index = new SmsDeliveryPendingIndex<String>();
+        index.add(1, "one", 0);
+        index.add(2, "two", 1000);
+        assertEquals("one", index.get(1, SmsDeliveryPendingIndex.EXPIRY_MS));
+        assertNull(index.get(1, SmsDeliveryPendingIndex.EXPIRY_MS + 1));
+        assertEquals("two", index.get(2, SmsDeliveryPendingIndex.EXPIRY_MS + 1));
+        assertEquals(1, index.size());
+        assertEquals(1, index.getOrphanCount());
+    }
+
+    @SmallTest
+    public void testReusedReferenceReplaces() {
+        SmsDeliveryPendingIndex<String> index = new SmsDeliveryPendingIndex<String>();
+        index.add(1, "first", 0);
+        index.add(2, "two", 1);
+        index.add(1, "second", 2);
+        assertEquals("second", index.get(1, 3));
+        assertEquals(2, index.size());
+        assertEquals(1, index.getOrphanCount());
+        // moved to the end, so it expires after the other
+        assertNull(index.get(2, SmsDeliveryPendingIndex.EXPIRY_MS + 2));
+        assertEquals("second", index.get(1, SmsDeliveryPendingIndex.EXPIRY_MS + 2));
+    }
+
+    @SmallTest
+    public void testCapDropsOldest() {
+        SmsDeliveryPendingIndex<String> index = new SmsDeliveryPendingIndex<String>();
+        for (int i = 0; i <= SmsDeliveryPendingIndex.MAX_PENDING; i++) {
+            index.add(i, Integer.toString(i), i);
+        }
+        assertEquals(SmsDeliveryPendingIndex.MAX_PENDING, index.size());
+        assertNull(index.get(0, SmsDeliveryPendingIndex.MAX_PENDING));
+        assertEquals("1", index.get(1, SmsDeliveryPendingIndex.MAX_PENDING));
+        assertEquals(1, index.getOrphanCount());
+    }
+}
@@ -0,0 +1,158 @@
+/*
+ * Copyright (C) 2014 The Android Open Source Project
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *      http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+
+package com.android.internal.telephony;
+
+import static com.android.internal.telephony.SmsReassemblyIndexTest.segment;
+
+import android.telephony.Rlog;
+import android.test.suitebuilder.annotation.LargeTest;
+import android.test.suitebuilder.annotation.Suppress;
+
+import com.android.internal.util.HexDump;
+
+import junit.framework.TestCase;
+
+import java.util.ArrayList;
+import java.util.Iterator;
+
+/**
+ * Benchmark for SmsReassemblyIndex, suppressed from the test suites and run
+ * by hand.
+ */
+public class SmsReassemblyIndexBenchmark extends TestCase {
+    private static final String TAG = "SmsReassemblyIndexBenchmark";
+
+    /** A row of the raw table, as the handler queried it before the index */
+    private static class RawRow {
+        final String mAddress;
+        final int mReferenceNumber;
+        final int mSequence;
+        final int mCount;
+        final String mPdu;
+
+        RawRow(InboundSmsTracker tracker) {
+            mAddress = tracker.getAddress();
+            mReferenceNumber = tracker.getReferenceNumber();
+            mSequence = tracker.getSequenceNumber();
+            mCount = tracker.getMessageCount();
+            mPdu = HexDump.toHexString(tracker.getPdu());
+        }
+
+        boolean matches(InboundSmsTracker tracker) {
+            return mAddress.equals(tracker.getAddress())
+                    && (mReferenceNumber == tracker.getReferenceNumber())
+                    && (mCount == tracker.getMessageCount());
+        }
+    }
+
+    /**
+     * Reassembles bursts of 20 interleaved 10 part messages, with the index and with the
+     * queries of the raw table the handler used before, simulated by scanning a list.
+     * Provider round trips are not included, so this understates the difference; with
+     * the index the handler still makes one raw table query for the first segment of
+     * each message, which is not included either.
+     */
+    @LargeTest
+    @Suppress
+    public void testBenchmarkBurstReassembly() {
+        final int messages = 20;
+        final int count = 10;
+        final int warmup = 200;
+        final int iterations = 1000;
+
+        InboundSmsTracker[] burst = new InboundSmsTracker[messages * count];
+        for (int seq = 1; seq <= count; seq++) {
+            for (int m = 0; m < messages; m++) {
+                burst[(seq - 1) * messages + m] = segment("+1650555" + (1000 + m), m, seq, count);
+            }
+        }
+
+        long sink = 0;
+        long indexNs = 0;
+        long tableNs = 0;
+        SmsReassemblyIndex index = new SmsReassemblyIndex();
+        ArrayList<RawRow> table = new ArrayList<RawRow>();
+        for (int i = 0; i < warmup + iterations; i++) {
+            long start = System.nanoTime();
+            for (InboundSmsTracker tracker : burst) {
+                if (!index.isLoaded(tracker)) {
+                    index.setLoaded(tracker);
+                }
+                if (index.getSegment(tracker) != null) {
+                    continue;
+                }
+                // Still written to the raw table
+                sink += HexDump.toHexString(tracker.getPdu()).length();
+                index.add(tracker);
+                InboundSmsTracker[] segments = index.takeComplete(tracker);
+                if (segments != null) {
+                    sink += segments[count - 1].getPdu().length;
+                    index.remove(tracker.getAddress(), tracker.getReferenceNumber(), count);
+                }
+            }
+            long middle = System.nanoTime();
+
+            for (InboundSmsTracker tracker : burst) {
+                boolean duplicate = false;
+                for (RawRow row : table) {
+                    if (row.matches(tracker) && (row.mSequence == tracker.getSequenceNumber())) {
+                        duplicate = true;
+                        break;
+                    }
+                }
+                if (duplicate) {
+                    continue;
+                }
+                table.add(new RawRow(tracker));
+
+                int received = 0;
+                for (RawRow row : table) {
+                    if (row.matches(tracker)) {
+                        received++;
+                    }
+                }
+                if (received == count) {
+                    byte[][] pdus = new byte[count][];
+                    for (RawRow row : table) {
+                        if (row.matches(tracker)) {
+                            pdus[row.mSequence - 1] = HexDump.hexStringToByteArray(row.mPdu);
+                        }
+                    }
+                    sink += pdus[count - 1].length;
+                    Iterator<RawRow> rows = table.iterator();
+                    while (rows.hasNext()) {
+                        if (rows.next().matches(tracker)) {
+                            rows.remove();
+                        }
+                    }
+                }
+            }
+            long end = System.nanoTime();
+
+            if (i >= warmup) {
+                indexNs += middle - start;
+                tableNs += end - middle;
+            }
+        }
+        assertEquals(0, index.size());
+        assertEquals(0, table.size());
+
+        Rlog.d(TAG, "per burst of " + messages + "x" + count + " segments: index="
+                + (indexNs / iterations / 1000) + "us rawTable="
+                + (tableNs / iterations / 1000) + "us (" + sink + ")");
+    }
+}
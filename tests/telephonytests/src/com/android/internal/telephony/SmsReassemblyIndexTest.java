@@ -0,0 +1,195 @@
+/*
+ * Copyright (C) 2014 The Android Open Source Project
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *      http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+
+package com.android.internal.telephony;
+
+import android.test.suitebuilder.annotation.SmallTest;
+
+import junit.framework.TestCase;
+
+/**
+ * Test cases for SmsReassemblyIndex.
+ */
+public class SmsReassemblyIndexTest extends TestCase {
+    private static final int SEGMENT_SIZE = 140;
+
+    private static byte[] pdu(int message, int sequence) {
+        byte[] pdu = new byte[SEGMENT_SIZE];
+        for (int i = 0; i < pdu.length; i++) {
+            pdu[i] = (byte) (message * 31 + sequence * 7 + i);
+        }
+        return pdu;
+    }
+
+    static InboundSmsTracker segment(String address, int ref, int sequence, int count) {
+        return new InboundSmsTracker(pdu(ref, sequence), 0, -1, false, address, ref, sequence,
+                count, false);
+    }
+
+    @SmallTest
+    public void testReassemblyInAnyOrder() {
+        SmsReassemblyIndex index = new SmsReassemblyIndex();
+        int[] order = { 3, 1, 2 };
+        for (int i = 0; i < order.length; i++) {
+            InboundSmsTracker tracker = segment("+16505550100", 7, order[i], 3);
+            assertNull(index.getSegment(tracker));
+            assertTrue(index.add(tracker));
+            InboundSmsTracker[] segments = index.takeComplete(tracker);
+            if (i < order.length - 1) {
+                assertNull(segments);
+            } else {
+                assertEquals(3, segments.length);
+                for (int seq = 1; seq <= 3; seq++) {
+                    assertEquals(seq, segments[seq - 1].getSequenceNumber());
+                }
+            }
+        }
+        // Taken only once, but duplicates are recognized until it is removed
+        InboundSmsTracker duplicate = segment("+16505550100", 7, 2, 3);
+        assertNull(index.takeComplete(duplicate));
+        assertNotNull(index.getSegment(duplicate));
+        assertFalse(index.add(duplicate));
+
+        index.remove("+16505550100", 7, 3);
+        assertEquals(0, index.size());
+        assertNull(index.getSegment(duplicate));
+    }
+
+    @SmallTest
+    public void testMessagesAreKeptApart() {
+        SmsReassemblyIndex index = new SmsReassemblyIndex();
+        assertTrue(index.add(segment("+16505550100", 7, 1, 2)));
+        assertTrue(index.add(segment("+16505550101", 7, 1, 2)));
+        assertTrue(index.add(segment("+16505550100", 8, 1, 2)));
+        assertTrue(index.add(segment("+16505550100", 7, 1, 3)));
+        assertTrue(index.add(segment(null, 7, 1, 2)));
+        assertEquals(5, index.size());
+        assertNull(index.takeComplete(segment("+16505550100", 7, 2, 2)));
+    }
+
+    @SmallTest
+    public void testMissingSegments() {
+        SmsReassemblyIndex index = new SmsReassemblyIndex();
+        InboundSmsTracker first = segment("+16505550100", 7, 1, 2);
+        assertFalse(index.isMissingSegments(first));
+        index.add(first);
+        assertTrue(index.isMissingSegments(first));
+        index.add(segment("+16505550100", 7, 2, 2));
+        assertFalse(index.isMissingSegments(first));
+        assertNotNull(index.takeComplete(first));
+        assertFalse(index.isMissingSegments(first));
+    }
+
+    @SmallTest
+    public void testInvalidSequence() {
+        SmsReassemblyIndex index = new SmsReassemblyIndex();
+        InboundSmsTracker zero = segment("+16505550100", 7, 0, 2);
+        InboundSmsTracker beyond = segment("+16505550100", 7, 3, 2);
+        assertFalse(SmsReassemblyIndex.isValidSegment(zero));
+        assertFalse(SmsReassemblyIndex.isValidSegment(beyond));
+        assertFalse(index.add(zero));
+        assertFalse(index.add(beyond));
+        assertNull(index.getSegment(beyond));
+        assertEquals(0, index.size());
+
+        // CDMA WAP push sequence numbers start at 0
+        InboundSmsTracker wap = new InboundSmsTracker(pdu(1, 0), 0, 2948, true,
+                "+16505550100", 7, 0, 2, true);
+        assertTrue(index.add(wap));
+    }
+
+    @SmallTest
+    public void testOldMessagesExpire() {
+        SmsReassemblyIndex index = new SmsReassemblyIndex();
+        InboundSmsTracker old = segment("+16505550100", 7, 1, 2);
+        index.add(old, 0);
+        index.add(segment("+16505550100", 8, 1, 2), 1000);
+        assertNotNull(index.getSegment(old));
+
+        // Adding expires the messages added before
+        index.add(segment("+16505550100", 9, 1, 2), SmsReassemblyIndex.EXPIRY_MS + 1);
+        assertEquals(2, index.size());
+        assertNull(index.getSegment(old));
+        assertFalse(index.isMissingSegments(old));
+    }
+
+    @SmallTest
+    public void testOldestMessageIsDroppedWhenFull() {
+        SmsReassemblyIndex index = new SmsReassemblyIndex();
+        for (int ref = 0; ref < SmsReassemblyIndex.MAX_MESSAGES; ref++) {
+            assertTrue(index.add(segment("+16505550100", ref, 1, 2), ref));
+        }
+        // More segments of a held message take no room
+        assertTrue(index.add(segment("+16505550100", 0, 2, 2), 2000));
+        assertEquals(SmsReassemblyIndex.MAX_MESSAGES, index.size());
+
+        assertTrue(index.add(segment("+16505550100", -1, 1, 2), 2000));
+        assertEquals(SmsReassemblyIndex.MAX_MESSAGES, index.size());
+        assertNull(index.getSegment(segment("+16505550100", 0, 1, 2)));
+        assertNotNull(index.getSegment(segment("+16505550100", 1, 1, 2)));
+    }
+
+    @SmallTest
+    public void testMessagesAreLoadedOnceScanned() {
+        SmsReassemblyIndex index = new SmsReassemblyIndex();
+        InboundSmsTracker scanned = segment("+16505550100", 7, 1, 2);
+        InboundSmsTracker unknown = segment("+16505550100", 8, 1, 2);
+        index.add(scanned);
+        // Before the scan is done the raw table may hold more rows of any message
+        assertFalse(index.isLoaded(scanned));
+        assertFalse(index.isLoaded(unknown));
+
+        index.setLoaded(unknown);
+        assertTrue(index.isLoaded(unknown));
+        assertTrue(index.isMissingSegments(unknown));
+
+        index.setScanned();
+        assertTrue(index.isLoaded(scanned));
+        assertTrue(index.isLoaded(segment("+16505550100", 9, 1, 2)));
+        index.add(segment("+16505550100", 9, 1, 2));
+        assertTrue(index.isLoaded(segment("+16505550100", 9, 2, 2)));
+    }
+
+    @SmallTest
+    public void testDroppedMessagesAreReadBack() {
+        SmsReassemblyIndex index = new SmsReassemblyIndex();
+        index.setScanned();
+        InboundSmsTracker old = segment("+16505550100", 7, 1, 2);
+        InboundSmsTracker taken = segment("+16505550100", 8, 1, 1);
+        index.add(old, 0);
+        index.add(taken, 0);
+        assertNotNull(index.takeComplete(taken));
+        index.add(segment("+16505550100", 9, 1, 2), SmsReassemblyIndex.EXPIRY_MS + 1);
+        assertTrue(index.wasDropped(old));
+        assertFalse(index.isLoaded(old));
+
+        // The next segment finds the first one in the raw table
+        InboundSmsTracker last = segment("+16505550100", 7, 2, 2);
+        index.add(old, SmsReassemblyIndex.EXPIRY_MS + 2);
+        index.setLoaded(last, SmsReassemblyIndex.EXPIRY_MS + 2);
+        assertFalse(index.wasDropped(old));
+        assertTrue(index.isLoaded(old));
+        assertNull(index.getSegment(last));
+        assertTrue(index.add(last, SmsReassemblyIndex.EXPIRY_MS + 2));
+        assertNotNull(index.takeComplete(last));
+
+        // A message that was broadcast before it was dropped is not broadcast again
+        index.add(taken, SmsReassemblyIndex.EXPIRY_MS + 2);
+        assertNull(index.takeComplete(taken));
+        index.remove("+16505550100", 8, 1);
+        assertFalse(index.wasDropped(taken));
+    }
+}
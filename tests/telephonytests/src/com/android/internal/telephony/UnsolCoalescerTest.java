@@ -0,0 +1,146 @@
+/*
+ * Copyright (C) 2014 The Android Open Source Project
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *      http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+
+package com.android.internal.telephony;
+
+import android.os.HandlerThread;
+import android.test.suitebuilder.annotation.MediumTest;
+import android.test.suitebuilder.annotation.SmallTest;
+
+import junit.framework.TestCase;
+
+import java.util.ArrayList;
+import java.util.concurrent.CountDownLatch;
+import java.util.concurrent.TimeUnit;
+
+/**
+ * Test cases for the UnsolCoalescer class.
+ */
+public class UnsolCoalescerTest extends TestCase {
+    private static final String TAG = "UnsolCoalescerTest";
+
+    private static final int SIGNAL = RILConstants.RIL_UNSOL_SIGNAL_STRENGTH;
+    private static final int CELL_INFO = RILConstants.RIL_UNSOL_CELL_INFO_LIST;
+    private static final int NEW_SMS = RILConstants.RIL_UNSOL_RESPONSE_NEW_SMS;
+
+    private static final long TIMEOUT_MS = 5000;
+
+    /** Collects the held back indications delivered when their interval expires */
+    private static class Collector implements UnsolCoalescer.Target {
+        final ArrayList<Object> mDelivered = new ArrayList<Object>();
+        final CountDownLatch mDone;
+
+        Collector(int count) {
+            mDone = new CountDownLatch(count);
+        }
+
+        @Override
+        public void deliverUnsol(int response, Object ret) {
+            synchronized (mDelivered) {
+                mDelivered.add(ret);
+            }
+            mDone.countDown();
+        }
+    }
+
+    private HandlerThread mThread;
+
+    @Override
+    protected void setUp() throws Exception {
+        super.setUp();
+        mThread = new HandlerThread(TAG);
+        mThread.start();
+    }
+
+    @Override
+    protected void tearDown() throws Exception {
+        mThread.quit();
+        super.tearDown();
+    }
+
+    private UnsolCoalescer coalescer(Collector collector, String config) {
+        return new UnsolCoalescer(mThread.getLooper(), collector, config);
+    }
+
+    @SmallTest
+    public void testNoConfigPassesThrough() {
+        UnsolCoalescer c = coalescer(new Collector(0), null);
+        for (int i = 0; i < 5; i++) {
+            assertFalse(c.offer(SIGNAL, "signal " + i));
+        }
+    }
+
+    @SmallTest
+    public void testUnconfiguredResponsePassesThrough() {
+        UnsolCoalescer c = coalescer(new Collector(0), SIGNAL + ":60000");
+        assertFalse(c.offer(SIGNAL, "signal 0"));
+        assertTrue(c.offer(SIGNAL, "signal 1"));
+        for (int i = 0; i < 5; i++) {
+            assertFalse(c.offer(CELL_INFO, "cell info " + i));
+        }
+    }
+
+    @SmallTest
+    public void testUnsupportedResponseIsRejected() {
+        // SMS must never be dropped, so the entry is ignored
+        UnsolCoalescer c = coalescer(new Collector(0), NEW_SMS + ":60000");
+        for (int i = 0; i < 5; i++) {
+            assertFalse(c.offer(NEW_SMS, "sms " + i));
+        }
+        assertTrue(UnsolCoalescer.isCoalescable(SIGNAL));
+        assertTrue(UnsolCoalescer.isCoalescable(CELL_INFO));
+        assertTrue(UnsolCoalescer.isCoalescable(
+                RILConstants.RIL_UNSOL_RESPONSE_VOICE_NETWORK_STATE_CHANGED));
+        assertFalse(UnsolCoalescer.isCoalescable(NEW_SMS));
+    }
+
+    @SmallTest
+    public void testMalformedEntriesAreIgnored() {
+        UnsolCoalescer c = coalescer(new Collector(0), "junk, " + SIGNAL + ":x,"
+                + CELL_INFO + ":60000:1, " + CELL_INFO + " : 60000");
+        assertFalse(c.offer(SIGNAL, "signal 0"));
+        assertFalse(c.offer(SIGNAL, "signal 1"));
+        assertFalse(c.offer(CELL_INFO, "cell info 0"));
+        assertTrue(c.offer(CELL_INFO, "cell info 1"));
+    }
+
+    @MediumTest
+    public void testBurstDeliversFirstAndLatest() throws Exception {
+        Collector collector = new Collector(1);
+        UnsolCoalescer c = coalescer(collector, SIGNAL + ":200");
+
+        assertFalse(c.offer(SIGNAL, "signal 0"));
+        for (int i = 1; i < 10; i++) {
+            assertTrue(c.offer(SIGNAL, "signal " + i));
+        }
+        assertTrue(collector.mDone.await(TIMEOUT_MS, TimeUnit.MILLISECONDS));
+
+        // let a stray second delivery show up before checking
+        Thread.sleep(300);
+        synchronized (collector.mDelivered) {
+            assertEquals(1, collector.mDelivered.size());
+            assertEquals("signal 9", collector.mDelivered.get(0));
+        }
+    }
+
+    @MediumTest
+    public void testQuietPeriodPassesThrough() throws Exception {
+        UnsolCoalescer c = coalescer(new Collector(0), SIGNAL + ":50");
+        assertFalse(c.offer(SIGNAL, "signal 0"));
+        Thread.sleep(100);
+        assertFalse(c.offer(SIGNAL, "signal 1"));
+    }
+}
@@ -0,0 +1,106 @@
+/*
+ * Copyright (C) 2014 The Android Open Source Project
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *      http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+
+package com.google.android.mms.pdu;
+
+import android.test.suitebuilder.annotation.SmallTest;
+
+import junit.framework.TestCase;
+
+import java.io.ByteArrayInputStream;
+import java.io.ByteArrayOutputStream;
+import java.io.IOException;
+import java.io.InputStream;
+import java.util.Arrays;
+import java.util.Random;
+
+/**
+ * Test cases for Base64InputStream.
+ */
+public class Base64InputStreamTest extends TestCase {
+    static byte[] randomData(int size, long seed) {
+        byte[] data = new byte[size];
+        new Random(seed).nextBytes(data);
+        return data;
+    }
+
+    /** Base64 with a line break every 76 characters, as in MIME bodies */
+    static byte[] encode(byte[] data) {
+        return android.util.Base64.encode(data, android.util.Base64.DEFAULT);
+    }
+
+    private static byte[] decode(byte[] encoded, int chunkSize) throws IOException {
+        InputStream in = new Base64InputStream(new ByteArrayInputStream(encoded));
+        ByteArrayOutputStream out = new ByteArrayOutputStream();
+        byte[] buffer = new byte[chunkSize];
+        int count;
+        while ((count = in.read(buffer, 0, chunkSize)) >= 0) {
+            out.write(buffer, 0, count);
+        }
+        return out.toByteArray();
+    }
+
+    @SmallTest
+    public void testMatchesDecodeBase64() throws Exception {
+        int[] sizes = { 0, 1, 2, 3, 4, 5, 57, 58, 1000, 5000 };
+        int[] chunkSizes = { 1, 2, 3, 7, 4096 };
+        for (int size : sizes) {
+            byte[] data = randomData(size, size);
+            byte[] encoded = encode(data);
+            for (int chunkSize : chunkSizes) {
+                byte[] decoded = decode(encoded, chunkSize);
+                assertTrue("size " + size + " chunk " + chunkSize, Arrays.equals(data, decoded));
+                assertTrue(Arrays.equals(Base64.decodeBase64(encoded), decoded));
+            }
+        }
+    }
+
+    @SmallTest
+    public void testSingleOctetReads() throws Exception {
+        byte[] data = randomData(100, 1);
+        InputStream in = new Base64InputStream(new ByteArrayInputStream(encode(data)));
+        for (int i = 0; i < data.length; i++) {
+            assertEquals(data[i] & 0xFF, in.read());
+        }
+        assertEquals(-1, in.read());
+    }
+
+    @SmallTest
+    public void testDiscardsNonBase64Characters() throws Exception {
+        assertEquals("ABCD", new String(decode("QU JD\r\n\tRA==".getBytes(), 16)));
+        byte[] withHighOctets = { 'Q', (byte) 0xC3, 'U', 'J', (byte) 0xFF, 'D' };
+        assertEquals("ABC", new String(decode(withHighOctets, 16)));
+    }
+
+    @SmallTest
+    public void testIncompleteQuadruple() throws Exception {
+        assertEquals("ABCD", new String(decode("QUJDRA".getBytes(), 16)));
+        assertEquals("ABCDE", new String(decode("QUJDREU".getBytes(), 16)));
+        assertEquals("ABC", new String(decode("QUJDR".getBytes(), 16)));
+        // Padding ends a quadruple, the data may continue after it
+        assertEquals("ABCDA", new String(decode("QUJDRA==QQ==".getBytes(), 16)));
+    }
+
+    @SmallTest
+    public void testSkip() throws Exception {
+        byte[] data = randomData(10000, 2);
+        InputStream in = new Base64InputStream(new ByteArrayInputStream(encode(data)));
+        assertEquals(5001, in.skip(5001));
+        assertEquals(data[5001] & 0xFF, in.read());
+        assertEquals(10000 - 5002, in.skip(10000));
+        assertEquals(-1, in.read());
+    }
+}
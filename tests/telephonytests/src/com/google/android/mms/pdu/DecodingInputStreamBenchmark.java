@@ -0,0 +1,113 @@
+/*
+ * Copyright (C) 2014 The Android Open Source Project
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *      http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+
+package com.google.android.mms.pdu;
+
+import android.test.suitebuilder.annotation.LargeTest;
+import android.test.suitebuilder.annotation.Suppress;
+import android.util.Log;
+
+import junit.framework.TestCase;
+
+import java.io.ByteArrayInputStream;
+import java.io.InputStream;
+import java.util.Arrays;
+
+/**
+ * Throughput benchmarks for Base64InputStream and QuotedPrintableInputStream,
+ * suppressed from the test suites and run by hand.
+ */
+public class DecodingInputStreamBenchmark extends TestCase {
+    private static final String TAG = "DecodingInputStreamBenchmark";
+
+    private static final int SIZE = 1024 * 1024;
+    private static final int WARMUP = 3;
+    private static final int ITERATIONS = 10;
+
+    /** Reads in to a buffer of the decoded size and returns the decoded length */
+    private static int readFully(InputStream in, byte[] decoded) throws Exception {
+        int length = 0;
+        int count;
+        while ((count = in.read(decoded, length, decoded.length - length)) > 0) {
+            length += count;
+        }
+        return length;
+    }
+
+    /**
+     * Decodes a 1MB part body with Base64.decodeBase64() and with
+     * Base64InputStream into a buffer of the decoded size.
+     */
+    @LargeTest
+    @Suppress
+    public void testBenchmarkBase64Throughput() throws Exception {
+        byte[] data = Base64InputStreamTest.randomData(SIZE, 3);
+        byte[] encoded = Base64InputStreamTest.encode(data);
+
+        long arrayNs = 0;
+        long streamNs = 0;
+        long sink = 0;
+        byte[] decoded = new byte[SIZE];
+        for (int i = 0; i < WARMUP + ITERATIONS; i++) {
+            long start = System.nanoTime();
+            sink += Base64.decodeBase64(encoded).length;
+            long middle = System.nanoTime();
+            sink += readFully(new Base64InputStream(new ByteArrayInputStream(encoded)), decoded);
+            long end = System.nanoTime();
+            if (i >= WARMUP) {
+                arrayNs += middle - start;
+                streamNs += end - middle;
+            }
+        }
+        assertTrue(Arrays.equals(data, decoded));
+
+        Log.d(TAG, "MB/s decoded: decodeBase64=" + (SIZE * 1000L * ITERATIONS / arrayNs)
+                + " stream=" + (SIZE * 1000L * ITERATIONS / streamNs) + " (" + sink + ")");
+    }
+
+    /**
+     * Decodes a 1MB part body with QuotedPrintable.decodeQuotedPrintable()
+     * and with QuotedPrintableInputStream into a buffer of the decoded size.
+     */
+    @LargeTest
+    @Suppress
+    public void testBenchmarkQuotedPrintableThroughput() throws Exception {
+        byte[] data = QuotedPrintableInputStreamTest.textData(SIZE, 3);
+        byte[] encoded = QuotedPrintableInputStreamTest.encode(data);
+
+        long arrayNs = 0;
+        long streamNs = 0;
+        long sink = 0;
+        byte[] decoded = new byte[SIZE];
+        for (int i = 0; i < WARMUP + ITERATIONS; i++) {
+            long start = System.nanoTime();
+            sink += QuotedPrintable.decodeQuotedPrintable(encoded).length;
+            long middle = System.nanoTime();
+            sink += readFully(new QuotedPrintableInputStream(new ByteArrayInputStream(encoded)),
+                    decoded);
+            long end = System.nanoTime();
+            if (i >= WARMUP) {
+                arrayNs += middle - start;
+                streamNs += end - middle;
+            }
+        }
+        assertTrue(Arrays.equals(data, decoded));
+
+        Log.d(TAG, "MB/s decoded: decodeQuotedPrintable="
+                + (SIZE * 1000L * ITERATIONS / arrayNs)
+                + " stream=" + (SIZE * 1000L * ITERATIONS / streamNs) + " (" + sink + ")");
+    }
+}
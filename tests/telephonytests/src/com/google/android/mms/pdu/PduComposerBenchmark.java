@@ -0,0 +1,92 @@
+/*
+ * Copyright (C) 2014 The Android Open Source Project
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *      http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+
+package com.google.android.mms.pdu;
+
+import android.test.AndroidTestCase;
+import android.test.suitebuilder.annotation.LargeTest;
+import android.test.suitebuilder.annotation.Suppress;
+import android.util.Log;
+
+import java.io.ByteArrayOutputStream;
+import java.io.File;
+
+/**
+ * Benchmark for PduComposer, suppressed from the test suites and run by
+ * hand.
+ */
+public class PduComposerBenchmark extends AndroidTestCase {
+    private static final String TAG = "PduComposerBenchmark";
+
+    private File mDir;
+
+    @Override
+    protected void setUp() throws Exception {
+        super.setUp();
+        mDir = new File(getContext().getCacheDir(), "PduComposerBenchmark");
+        mDir.mkdir();
+    }
+
+    @Override
+    protected void tearDown() throws Exception {
+        for (File file : mDir.listFiles()) {
+            file.delete();
+        }
+        mDir.delete();
+        super.tearDown();
+    }
+
+    /**
+     * Composes a send-req with 10 images of 100kB, given as data and as
+     * Uris, into a byte array and into a stream.
+     */
+    @LargeTest
+    @Suppress
+    public void testBenchmarkSendReqTenImages() throws Exception {
+        final int warmup = 5;
+        final int iterations = 20;
+        SendReq fromData = PduComposerTest.sendReq(mDir, 10, false);
+        SendReq fromUri = PduComposerTest.sendReq(mDir, 10, true);
+        ByteArrayOutputStream out = new ByteArrayOutputStream();
+        long sink = 0;
+
+        long[] ns = new long[3];
+        for (int i = 0; i < warmup + iterations; i++) {
+            long start = System.nanoTime();
+            sink += new PduComposer(getContext(), fromData).make().length;
+            long dataNs = System.nanoTime() - start;
+
+            start = System.nanoTime();
+            sink += new PduComposer(getContext(), fromUri).make().length;
+            long uriNs = System.nanoTime() - start;
+
+            out.reset();
+            start = System.nanoTime();
+            sink += new PduComposer(getContext(), fromUri).make(out);
+            long streamNs = System.nanoTime() - start;
+
+            if (i >= warmup) {
+                ns[0] += dataNs;
+                ns[1] += uriNs;
+                ns[2] += streamNs;
+            }
+        }
+
+        Log.d(TAG, "per 10 image send-req: data=" + (ns[0] / iterations / 1000)
+                + "us uri=" + (ns[1] / iterations / 1000)
+                + "us uriToStream=" + (ns[2] / iterations / 1000) + "us (" + sink + ")");
+    }
+}
@@ -0,0 +1,178 @@
+/*
+ * Copyright (C) 2014 The Android Open Source Project
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *      http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+
+package com.google.android.mms.pdu;
+
+import android.net.Uri;
+import android.test.AndroidTestCase;
+import android.test.suitebuilder.annotation.SmallTest;
+
+import com.google.android.mms.ContentType;
+
+import java.io.ByteArrayOutputStream;
+import java.io.File;
+import java.io.FileOutputStream;
+import java.io.IOException;
+import java.util.Arrays;
+
+/**
+ * Test cases for PduComposer.
+ */
+public class PduComposerTest extends AndroidTestCase {
+
+    private static final int IMAGE_SIZE = 100 * 1024;
+
+    private File mDir;
+
+    @Override
+    protected void setUp() throws Exception {
+        super.setUp();
+        mDir = new File(getContext().getCacheDir(), "PduComposerTest");
+        mDir.mkdir();
+    }
+
+    @Override
+    protected void tearDown() throws Exception {
+        for (File file : mDir.listFiles()) {
+            file.delete();
+        }
+        mDir.delete();
+        super.tearDown();
+    }
+
+    private static byte[] imageData(int size, int seed) {
+        byte[] data = new byte[size];
+        for (int i = 0; i < size; i++) {
+            data[i] = (byte) (i * 31 + seed);
+        }
+        return data;
+    }
+
+    private static Uri writeFile(File dir, String name, byte[] data) throws IOException {
+        File file = new File(dir, name);
+        FileOutputStream out = new FileOutputStream(file);
+        try {
+            out.write(data);
+        } finally {
+            out.close();
+        }
+        return Uri.fromFile(file);
+    }
+
+    private static PduPart part(String contentType, String name) {
+        PduPart part = new PduPart();
+        part.setContentType(contentType.getBytes());
+        part.setContentLocation(name.getBytes());
+        part.setContentId(name.getBytes());
+        return part;
+    }
+
+    private SendReq sendReq(int imageCount, boolean imagesAsUri) throws Exception {
+        return sendReq(mDir, imageCount, imagesAsUri);
+    }
+
+    /**
+     * A send-req with a SMIL part and imageCount image parts, given as
+     * data or as Uris of files in dir.
+     */
+    static SendReq sendReq(File dir, int imageCount, boolean imagesAsUri) throws Exception {
+        SendReq req = new SendReq();
+        req.setFrom(new EncodedStringValue("+16505550199"));
+        req.addTo(new EncodedStringValue("+16505550100"));
+        req.addTo(new EncodedStringValue("someone@example.com"));
+        req.setTransactionId("T1".getBytes());
+        req.setContentType(ContentType.MULTIPART_RELATED.getBytes());
+        // Long enough for a Length-quote value length
+        req.setSubject(new EncodedStringValue("Pictures from the trip to the mountains"));
+        req.setExpiry(7 * 24 * 3600);
+
+        PduBody body = new PduBody();
+        PduPart smil = part(ContentType.APP_SMIL, "smil.xml");
+        smil.setData("<smil/>".getBytes());
+        body.addPart(smil);
+        for (int i = 0; i < imageCount; i++) {
+            String name = "image" + i + ".jpg";
+            PduPart image = part(ContentType.IMAGE_JPEG, name);
+            if (imagesAsUri) {
+                image.setDataUri(writeFile(dir, name, imageData(IMAGE_SIZE, i)));
+            } else {
+                image.setData(imageData(IMAGE_SIZE, i));
+            }
+            body.addPart(image);
+        }
+        req.setBody(body);
+        return req;
+    }
+
+    private byte[] makeToStream(GenericPdu pdu) throws IOException {
+        ByteArrayOutputStream out = new ByteArrayOutputStream();
+        int length = new PduComposer(getContext(), pdu).make(out);
+        assertEquals(out.size(), length);
+        return out.toByteArray();
+    }
+
+    @SmallTest
+    public void testMakeRoundTrip() throws Exception {
+        byte[] pdu = new PduComposer(getContext(), sendReq(2, false)).make();
+        assertNotNull(pdu);
+
+        SendReq req = (SendReq) new PduParser(pdu, true).parse();
+        assertEquals("Pictures from the trip to the mountains", req.getSubject().getString());
+        assertEquals(2, req.getTo().length);
+        PduBody body = req.getBody();
+        assertEquals(3, body.getPartsNum());
+        assertEquals("<smil/>", new String(body.getPart(0).getData()));
+        assertTrue(Arrays.equals(imageData(IMAGE_SIZE, 1), body.getPart(2).getData()));
+    }
+
+    @SmallTest
+    public void testUriPartsAreStreamed() throws Exception {
+        byte[] fromData = new PduComposer(getContext(), sendReq(3, false)).make();
+        byte[] fromUri = new PduComposer(getContext(), sendReq(3, true)).make();
+        assertTrue(Arrays.equals(fromData, fromUri));
+    }
+
+    @SmallTest
+    public void testMakeToStream() throws Exception {
+        SendReq req = sendReq(3, true);
+        assertTrue(Arrays.equals(new PduComposer(getContext(), req).make(), makeToStream(req)));
+
+        AcknowledgeInd ack = new AcknowledgeInd(PduHeaders.CURRENT_MMS_VERSION, "T1".getBytes());
+        assertTrue(Arrays.equals(new PduComposer(getContext(), ack).make(), makeToStream(ack)));
+    }
+
+    @SmallTest
+    public void testEmptyBody() throws Exception {
+        SendReq req = sendReq(0, false);
+        req.setBody(null);
+        byte[] pdu = new PduComposer(getContext(), req).make();
+        assertNotNull(pdu);
+        // Content-Type without a value length, then no parts
+        assertEquals((byte) (0x80 | 0x33), pdu[pdu.length - 2]);
+        assertEquals(0, pdu[pdu.length - 1]);
+    }
+
+    @SmallTest
+    public void testMissingUriContent() throws Exception {
+        SendReq req = sendReq(1, false);
+        PduPart missing = part(ContentType.IMAGE_JPEG, "missing.jpg");
+        missing.setDataUri(Uri.fromFile(new File(mDir, "missing.jpg")));
+        req.getBody().addPart(missing);
+
+        assertNull(new PduComposer(getContext(), req).make());
+        assertEquals(-1, new PduComposer(getContext(), req).make(new ByteArrayOutputStream()));
+    }
+}
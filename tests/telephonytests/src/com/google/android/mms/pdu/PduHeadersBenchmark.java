@@ -0,0 +1,76 @@
+/*
+ * Copyright (C) 2014 The Android Open Source Project
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *      http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+
+package com.google.android.mms.pdu;
+
+import static com.google.android.mms.pdu.PduHeadersTest.notificationInd;
+import static com.google.android.mms.pdu.PduHeadersTest.retrieveConf;
+
+import android.test.AndroidTestCase;
+import android.test.suitebuilder.annotation.LargeTest;
+import android.test.suitebuilder.annotation.Suppress;
+import android.util.Log;
+
+/**
+ * Benchmark for the header storage of PduHeaders, suppressed from the test
+ * suites and run by hand.
+ */
+public class PduHeadersBenchmark extends AndroidTestCase {
+    private static final String TAG = "PduHeadersBenchmark";
+
+    private static long usedHeap() {
+        Runtime runtime = Runtime.getRuntime();
+        for (int i = 0; i < 3; i++) {
+            System.gc();
+            System.runFinalization();
+        }
+        return runtime.totalMemory() - runtime.freeMemory();
+    }
+
+    /** Parse time and retained heap of a parsed pdu, headers included */
+    private static void benchmarkParse(String name, byte[] pdu) {
+        final int warmup = 2000;
+        final int iterations = 20000;
+        final int retained = 5000;
+
+        long sink = 0;
+        long start = 0;
+        for (int i = 0; i < warmup + iterations; i++) {
+            if (i == warmup) {
+                start = System.nanoTime();
+            }
+            sink += new PduParser(pdu, true).parse().getMessageType();
+        }
+        long parseNs = (System.nanoTime() - start) / iterations;
+
+        GenericPdu[] pdus = new GenericPdu[retained];
+        long before = usedHeap();
+        for (int i = 0; i < retained; i++) {
+            pdus[i] = new PduParser(pdu, true).parse();
+        }
+        long bytes = (usedHeap() - before) / retained;
+        sink += pdus[retained - 1].getMessageType();
+
+        Log.d(TAG, name + ": parse=" + parseNs + "ns heap=" + bytes + " bytes (" + sink + ")");
+    }
+
+    @LargeTest
+    @Suppress
+    public void testBenchmarkParse() throws Exception {
+        benchmarkParse("m-notification.ind", notificationInd());
+        benchmarkParse("m-retrieve.conf", retrieveConf(getContext()));
+    }
+}
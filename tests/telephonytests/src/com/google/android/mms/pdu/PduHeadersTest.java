@@ -0,0 +1,159 @@
+/*
+ * Copyright (C) 2014 The Android Open Source Project
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *      http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+
+package com.google.android.mms.pdu;
+
+import android.content.Context;
+import android.test.AndroidTestCase;
+import android.test.suitebuilder.annotation.SmallTest;
+
+import com.google.android.mms.ContentType;
+
+import java.io.ByteArrayOutputStream;
+
+/**
+ * Test cases for the header storage of PduHeaders.
+ */
+public class PduHeadersTest extends AndroidTestCase {
+    private static void writeText(ByteArrayOutputStream out, String text) {
+        byte[] bytes = text.getBytes();
+        out.write(bytes, 0, bytes.length);
+        out.write(0);
+    }
+
+    /** A m-notification.ind as received over WAP push */
+    static byte[] notificationInd() {
+        ByteArrayOutputStream out = new ByteArrayOutputStream();
+        out.write(PduHeaders.MESSAGE_TYPE);
+        out.write(PduHeaders.MESSAGE_TYPE_NOTIFICATION_IND);
+        out.write(PduHeaders.TRANSACTION_ID);
+        writeText(out, "T1234567890");
+        out.write(PduHeaders.MMS_VERSION);
+        out.write(0x80 | PduHeaders.MMS_VERSION_1_2);
+        out.write(PduHeaders.FROM);
+        out.write(14);  // Value-length
+        out.write(0x80);  // Address-present-token
+        writeText(out, "+16505550199");
+        out.write(PduHeaders.SUBJECT);
+        writeText(out, "Hello");
+        out.write(PduHeaders.MESSAGE_CLASS);
+        out.write(0x80);  // Personal
+        out.write(PduHeaders.MESSAGE_SIZE);
+        out.write(2);  // Short-length of the Long-integer
+        out.write(0x40);
+        out.write(0x00);
+        out.write(PduHeaders.EXPIRY);
+        out.write(5);  // Value-length
+        out.write(0x81);  // Relative-token
+        out.write(3);
+        out.write(0x09);
+        out.write(0x3A);
+        out.write(0x80);
+        out.write(PduHeaders.CONTENT_LOCATION);
+        writeText(out, "http://mmsc.example.com/mms?id=0123456789");
+        return out.toByteArray();
+    }
+
+    /** A m-retrieve.conf with a SMIL and a text part */
+    static byte[] retrieveConf(Context context) throws Exception {
+        SendReq req = new SendReq();
+        req.setFrom(new EncodedStringValue("+16505550199"));
+        req.addTo(new EncodedStringValue("+16505550100"));
+        req.addTo(new EncodedStringValue("+16505550101"));
+        req.setSubject(new EncodedStringValue("Hello"));
+        req.setDate(1400000000L);
+        req.setMessageClass(PduHeaders.MESSAGE_CLASS_PERSONAL_STR.getBytes());
+        req.setContentType(ContentType.MULTIPART_RELATED.getBytes());
+
+        PduBody body = new PduBody();
+        PduPart smil = new PduPart();
+        smil.setContentType(ContentType.APP_SMIL.getBytes());
+        smil.setContentLocation("smil.xml".getBytes());
+        smil.setData("<smil/>".getBytes());
+        body.addPart(smil);
+        PduPart text = new PduPart();
+        text.setContentType(ContentType.TEXT_PLAIN.getBytes());
+        text.setContentLocation("text.txt".getBytes());
+        text.setData("Hello there".getBytes());
+        body.addPart(text);
+        req.setBody(body);
+
+        byte[] pdu = new PduComposer(context, req).make();
+        // Message type is the first header, make the send-req a retrieve-conf
+        assertEquals((byte) PduHeaders.MESSAGE_TYPE_SEND_REQ, pdu[1]);
+        pdu[1] = (byte) PduHeaders.MESSAGE_TYPE_RETRIEVE_CONF;
+        return pdu;
+    }
+
+    @SmallTest
+    public void testFieldsOfEachKind() throws Exception {
+        PduHeaders headers = new PduHeaders();
+        assertEquals(0, headers.getOctet(PduHeaders.PRIORITY));
+        assertEquals(-1, headers.getLongInteger(PduHeaders.DATE));
+        assertNull(headers.getTextString(PduHeaders.TRANSACTION_ID));
+        assertNull(headers.getEncodedStringValue(PduHeaders.SUBJECT));
+        assertNull(headers.getEncodedStringValues(PduHeaders.TO));
+
+        headers.setOctet(PduHeaders.PRIORITY_HIGH, PduHeaders.PRIORITY);
+        headers.setLongInteger(0, PduHeaders.DATE);
+        headers.setLongInteger(Long.MAX_VALUE, PduHeaders.EXPIRY);
+        headers.setTextString("T1".getBytes(), PduHeaders.TRANSACTION_ID);
+        headers.setEncodedStringValue(new EncodedStringValue("S"), PduHeaders.SUBJECT);
+        headers.appendEncodedStringValue(new EncodedStringValue("a"), PduHeaders.TO);
+        headers.appendEncodedStringValue(new EncodedStringValue("b"), PduHeaders.TO);
+
+        assertEquals(PduHeaders.PRIORITY_HIGH, headers.getOctet(PduHeaders.PRIORITY));
+        assertEquals(0, headers.getLongInteger(PduHeaders.DATE));
+        assertEquals(Long.MAX_VALUE, headers.getLongInteger(PduHeaders.EXPIRY));
+        assertEquals(-1, headers.getLongInteger(PduHeaders.DELIVERY_TIME));
+        assertEquals("T1", new String(headers.getTextString(PduHeaders.TRANSACTION_ID)));
+        assertEquals("S", headers.getEncodedStringValue(PduHeaders.SUBJECT).getString());
+        assertEquals(2, headers.getEncodedStringValues(PduHeaders.TO).length);
+        assertNull(headers.getEncodedStringValues(PduHeaders.CC));
+    }
+
+    @SmallTest
+    public void testFieldsOfOtherKindsAreNotSet() throws Exception {
+        PduHeaders headers = new PduHeaders();
+        headers.setOctet(PduHeaders.VALUE_YES, PduHeaders.DELIVERY_REPORT);
+        headers.setLongInteger(1234, PduHeaders.DATE);
+        headers.setEncodedStringValue(new EncodedStringValue("S"), PduHeaders.SUBJECT);
+
+        assertEquals(0, headers.getOctet(PduHeaders.DATE));
+        assertEquals(-1, headers.getLongInteger(PduHeaders.DELIVERY_REPORT));
+        assertNull(headers.getTextString(PduHeaders.SUBJECT));
+        assertNull(headers.getEncodedStringValues(PduHeaders.SUBJECT));
+        // Not header fields at all
+        assertEquals(0, headers.getOctet(0x80));
+        assertEquals(-1, headers.getLongInteger(0xC0));
+        assertNull(headers.getTextString(0x20));
+    }
+
+    @SmallTest
+    public void testParse() throws Exception {
+        NotificationInd ind = (NotificationInd) new PduParser(notificationInd(), true).parse();
+        assertNotNull(ind);
+        assertEquals(0x4000, ind.getMessageSize());
+        assertEquals("Hello", ind.getSubject().getString());
+        assertEquals("+16505550199", ind.getFrom().getString());
+
+        RetrieveConf conf = (RetrieveConf) new PduParser(retrieveConf(getContext()), true).parse();
+        assertNotNull(conf);
+        assertEquals(1400000000L, conf.getDate());
+        assertEquals(2, conf.getTo().length);
+        assertEquals(2, conf.getBody().getPartsNum());
+    }
+}
@@ -0,0 +1,89 @@
+/*
+ * Copyright (C) 2014 The Android Open Source Project
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *      http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+
+package com.google.android.mms.pdu;
+
+import android.test.suitebuilder.annotation.LargeTest;
+import android.test.suitebuilder.annotation.Suppress;
+import android.util.Log;
+
+import junit.framework.TestCase;
+
+import java.io.ByteArrayInputStream;
+import java.io.ByteArrayOutputStream;
+
+/**
+ * Benchmark for the header string parsing of PduParser, suppressed from the
+ * test suites and run by hand.
+ */
+public class PduParserBenchmark extends TestCase {
+    private static final String TAG = "PduParserBenchmark";
+
+    /**
+     * The string values of the headers of m-notification.ind and
+     * m-retrieve.conf pdus as sent by MMSCs, and of their parts.
+     */
+    private static final String[] HEADER_STRINGS = {
+        "3a6b9f0c-1d2e-4f80-9b7c-5e4d3c2b1a00",
+        "http://mmsc.example.com/mms/wapenc?location=16505550199_ab12cd&rid=022",
+        "http://mms.example.net:8002/0F4E6C1A2B3C4D5E6F708192A3B4C5D6",
+        "mmsc-tid-000123456789",
+        "MSGID-0a1b2c3d4e5f",
+        "application/vnd.wap.multipart.related",
+        "application/smil",
+        "<0000>",
+        "smil.xml",
+        "text_0.txt",
+        "IMG_20140612_181512.jpg",
+        "Pictures from the trip",
+    };
+
+    /** Parses the corpus as text and as tokens, which is how the headers are read */
+    @LargeTest
+    @Suppress
+    public void testBenchmarkHeaderStrings() {
+        final int warmup = 20000;
+        final int iterations = 200000;
+        ByteArrayOutputStream out = new ByteArrayOutputStream();
+        for (String value : HEADER_STRINGS) {
+            byte[] bytes = value.getBytes();
+            out.write(bytes, 0, bytes.length);
+            out.write(0);
+        }
+        byte[] corpus = out.toByteArray();
+
+        long sink = 0;
+        long[] ns = new long[2];
+        int[] types = { PduParser.TYPE_TEXT_STRING, PduParser.TYPE_TOKEN_STRING };
+        for (int t = 0; t < types.length; t++) {
+            long start = 0;
+            for (int i = 0; i < warmup + iterations; i++) {
+                if (i == warmup) {
+                    start = System.nanoTime();
+                }
+                ByteArrayInputStream in = new ByteArrayInputStream(corpus);
+                for (int j = 0; j < HEADER_STRINGS.length; j++) {
+                    byte[] value = PduParser.parseWapString(in, types[t]);
+                    sink += value == null ? 0 : value.length;
+                }
+            }
+            ns[t] = (System.nanoTime() - start) / iterations / HEADER_STRINGS.length;
+        }
+
+        Log.d(TAG, "per header string: text=" + ns[0] + "ns token=" + ns[1] + "ns ("
+                + sink + ")");
+    }
+}
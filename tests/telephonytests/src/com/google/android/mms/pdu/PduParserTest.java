@@ -0,0 +1,372 @@
+/*
+ * Copyright (C) 2014 The Android Open Source Project
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *      http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+
+package com.google.android.mms.pdu;
+
+import android.test.AndroidTestCase;
+import android.test.suitebuilder.annotation.SmallTest;
+
+import com.google.android.mms.ContentType;
+
+import java.io.ByteArrayInputStream;
+import java.io.ByteArrayOutputStream;
+import java.io.File;
+import java.io.FileInputStream;
+import java.io.FileOutputStream;
+import java.io.IOException;
+import java.io.RandomAccessFile;
+import java.nio.ByteBuffer;
+import java.util.Arrays;
+
+/**
+ * Test cases for parsing PDUs from a file or stream with PduParser.
+ */
+public class PduParserTest extends AndroidTestCase {
+    private static final String TAG = "PduParserTest";
+
+    private static final int LARGE_PART_SIZE = 3 * PduParser.STREAMED_PART_IN_MEMORY_MAX;
+
+    private File mSpoolDir;
+
+    @Override
+    protected void setUp() throws Exception {
+        super.setUp();
+        mSpoolDir = new File(getContext().getCacheDir(), "PduParserTest");
+        mSpoolDir.mkdir();
+    }
+
+    @Override
+    protected void tearDown() throws Exception {
+        for (File file : mSpoolDir.listFiles()) {
+            file.delete();
+        }
+        mSpoolDir.delete();
+        super.tearDown();
+    }
+
+    private static PduPart part(String contentType, String name, byte[] data) {
+        PduPart part = new PduPart();
+        part.setContentType(contentType.getBytes());
+        part.setContentLocation(name.getBytes());
+        part.setContentId(("<" + name + ">").getBytes());
+        part.setData(data);
+        return part;
+    }
+
+    private static byte[] imageData(int size) {
+        byte[] data = new byte[size];
+        for (int i = 0; i < size; i++) {
+            data[i] = (byte) (i * 31 + (i >> 8));
+        }
+        return data;
+    }
+
+    /** A send-req with a text, a small image and a large image part */
+    private byte[] sendReq() throws Exception {
+        SendReq req = new SendReq();
+        req.setFrom(new EncodedStringValue(PduHeaders.FROM_INSERT_ADDRESS_TOKEN_STR));
+        req.addTo(new EncodedStringValue("+16505550100"));
+        req.setTransactionId("T1".getBytes());
+        req.setContentType(ContentType.MULTIPART_MIXED.getBytes());
+        req.setSubject(new EncodedStringValue("Pictures"));
+
+        PduBody body = new PduBody();
+        body.addPart(part(ContentType.TEXT_PLAIN, "text.txt", "Hello".getBytes()));
+        body.addPart(part(ContentType.IMAGE_JPEG, "small.jpg", imageData(1000)));
+        body.addPart(part(ContentType.IMAGE_JPEG, "large.jpg", imageData(LARGE_PART_SIZE)));
+        req.setBody(body);
+
+        byte[] pdu = new PduComposer(getContext(), req).make();
+        assertNotNull(pdu);
+        return pdu;
+    }
+
+    private File writeFile(byte[] data) throws IOException {
+        File file = File.createTempFile("test", null, mSpoolDir);
+        FileOutputStream out = new FileOutputStream(file);
+        try {
+            out.write(data);
+        } finally {
+            out.close();
+        }
+        return file;
+    }
+
+    private static byte[] readFile(File file) throws IOException {
+        byte[] data = new byte[(int) file.length()];
+        FileInputStream in = new FileInputStream(file);
+        try {
+            int offset = 0;
+            while (offset < data.length) {
+                offset += in.read(data, offset, data.length - offset);
+            }
+        } finally {
+            in.close();
+        }
+        return data;
+    }
+
+    private static void assertStreamedSendReq(SendReq req) throws IOException {
+        assertNotNull(req);
+        assertEquals("Pictures", req.getSubject().getString());
+        assertEquals("+16505550100", req.getTo()[0].getString());
+
+        PduBody body = req.getBody();
+        assertEquals(3, body.getPartsNum());
+        assertEquals("Hello", new String(body.getPart(0).getData()));
+        assertNull(body.getPart(0).getDataUri());
+        assertTrue(Arrays.equals(imageData(1000), body.getPart(1).getData()));
+        assertNull(body.getPart(1).getDataUri());
+
+        PduPart large = body.getPart(2);
+        assertNull(large.getData());
+        assertNotNull(large.getDataUri());
+        File file = new File(large.getDataUri().getPath());
+        assertTrue(Arrays.equals(imageData(LARGE_PART_SIZE), readFile(file)));
+        file.delete();
+    }
+
+    @SmallTest
+    public void testParseFromChannel() throws Exception {
+        File pduFile = writeFile(sendReq());
+        RandomAccessFile access = new RandomAccessFile(pduFile, "r");
+        try {
+            PduParser parser = new PduParser(access.getChannel(), true, mSpoolDir);
+            assertStreamedSendReq((SendReq) parser.parse());
+        } finally {
+            access.close();
+        }
+        pduFile.delete();
+        assertEquals(0, mSpoolDir.listFiles().length);
+    }
+
+    @SmallTest
+    public void testParseFromStream() throws Exception {
+        PduParser parser = new PduParser(new ByteArrayInputStream(sendReq()), true, mSpoolDir);
+        assertStreamedSendReq((SendReq) parser.parse());
+        // The copy of the pdu is gone
+        assertEquals(0, mSpoolDir.listFiles().length);
+    }
+
+    @SmallTest
+    public void testParseFromArrayKeepsDataInMemory() throws Exception {
+        SendReq req = (SendReq) new PduParser(sendReq(), true).parse();
+        PduPart large = req.getBody().getPart(2);
+        assertNull(large.getDataUri());
+        assertTrue(Arrays.equals(imageData(LARGE_PART_SIZE), large.getData()));
+    }
+
+    @SmallTest
+    public void testParseFromArrayCopiesPdu() throws Exception {
+        byte[] pdu = sendReq();
+        SendReq req = (SendReq) new PduParser(pdu, true).parse();
+        ByteBuffer data = req.getBody().getPart(2).getDataBuffer();
+        int offset = pdu.length - LARGE_PART_SIZE;
+        byte original = pdu[offset];
+        pdu[offset] = (byte) ~pdu[offset];
+        assertEquals(original, data.get(0));
+    }
+
+    @SmallTest
+    public void testParseFromArraySharesPartData() throws Exception {
+        byte[] pdu = sendReq();
+        SendReq req = (SendReq) new PduParser(pdu, true, true).parse();
+        ByteBuffer data = req.getBody().getPart(2).getDataBuffer();
+        int offset = pdu.length - LARGE_PART_SIZE;
+        pdu[offset] = (byte) ~pdu[offset];
+        assertEquals(pdu[offset], data.get(0));
+
+        // Composing again gives the same pdu
+        assertTrue(Arrays.equals(pdu, new PduComposer(getContext(), req).make()));
+    }
+
+    @SmallTest
+    public void testParseFromArrayCopiesSmallParts() throws Exception {
+        byte[] pdu = sendReq();
+        SendReq req = (SendReq) new PduParser(pdu, true, true).parse();
+        ByteBuffer data = req.getBody().getPart(1).getDataBuffer();
+        byte[] small = imageData(1000);
+        int offset = 0;
+        while (!Arrays.equals(small, Arrays.copyOfRange(pdu, offset, offset + small.length))) {
+            offset++;
+        }
+        byte original = pdu[offset];
+        pdu[offset] = (byte) ~pdu[offset];
+        assertEquals(original, data.get(0));
+    }
+
+    @SmallTest
+    public void testTruncatedPduLeavesNoFiles() throws Exception {
+        byte[] pdu = sendReq();
+        // Cut into the large part
+        byte[] truncated = Arrays.copyOf(pdu, pdu.length - LARGE_PART_SIZE / 2);
+        PduParser parser = new PduParser(new ByteArrayInputStream(truncated), true, mSpoolDir);
+        assertNull(parser.parse());
+        assertEquals(0, mSpoolDir.listFiles().length);
+    }
+
+    private static void writeUintvar(ByteArrayOutputStream out, int value) {
+        int shift = 28;
+        while ((shift > 0) && ((value >>> shift) == 0)) {
+            shift -= 7;
+        }
+        for (; shift > 0; shift -= 7) {
+            out.write(0x80 | ((value >>> shift) & 0x7F));
+        }
+        out.write(value & 0x7F);
+    }
+
+    /** A send-req with a single image part in the given Content-Transfer-Encoding */
+    private static byte[] encodedPartReq(String encoding, byte[] encoded) {
+        ByteArrayOutputStream out = new ByteArrayOutputStream();
+        out.write(PduHeaders.MESSAGE_TYPE);
+        out.write(PduHeaders.MESSAGE_TYPE_SEND_REQ);
+        out.write(PduHeaders.TRANSACTION_ID);
+        out.write('T');
+        out.write(0);
+        out.write(PduHeaders.MMS_VERSION);
+        out.write(0x80 | PduHeaders.MMS_VERSION_1_2);
+        out.write(PduHeaders.FROM);
+        out.write(1);  // Value-length
+        out.write(PduHeaders.FROM_INSERT_ADDRESS_TOKEN);
+        out.write(PduHeaders.CONTENT_TYPE);
+        out.write(0xA3);  // application/vnd.wap.multipart.mixed
+
+        byte[] headers = (PduPart.CONTENT_TRANSFER_ENCODING + "\0" + encoding + "\0").getBytes();
+        writeUintvar(out, 1);  // Number of parts
+        writeUintvar(out, 1 + headers.length);
+        writeUintvar(out, encoded.length);
+        out.write(0x9E);  // image/jpeg
+        out.write(headers, 0, headers.length);
+        out.write(encoded, 0, encoded.length);
+        return out.toByteArray();
+    }
+
+    /** Quoted-printable escaping every octet */
+    private static byte[] encodeQuotedPrintable(byte[] data) {
+        ByteArrayOutputStream out = new ByteArrayOutputStream();
+        for (byte b : data) {
+            byte[] escape = String.format("=%02X", b & 0xFF).getBytes();
+            out.write(escape, 0, escape.length);
+        }
+        return out.toByteArray();
+    }
+
+    private PduPart parseEncodedPart(byte[] pdu, boolean fromChannel) throws Exception {
+        SendReq req;
+        if (fromChannel) {
+            File pduFile = writeFile(pdu);
+            RandomAccessFile access = new RandomAccessFile(pduFile, "r");
+            try {
+                req = (SendReq) new PduParser(access.getChannel(), true, mSpoolDir).parse();
+            } finally {
+                access.close();
+            }
+            pduFile.delete();
+        } else {
+            req = (SendReq) new PduParser(pdu, true).parse();
+        }
+        assertNotNull(req);
+        assertEquals(1, req.getBody().getPartsNum());
+        return req.getBody().getPart(0);
+    }
+
+    @SmallTest
+    public void testParseEncodedParts() throws Exception {
+        byte[] data = imageData(1000);
+        byte[] base64 = android.util.Base64.encode(data, android.util.Base64.DEFAULT);
+        byte[] quoted = encodeQuotedPrintable(data);
+        for (int i = 0; i < 2; i++) {
+            boolean fromChannel = (i == 1);
+            PduPart part = parseEncodedPart(encodedPartReq(PduPart.P_BASE64, base64), fromChannel);
+            assertTrue(Arrays.equals(data, part.getData()));
+            part = parseEncodedPart(encodedPartReq(PduPart.P_QUOTED_PRINTABLE, quoted),
+                    fromChannel);
+            assertTrue(Arrays.equals(data, part.getData()));
+            // The buffer is trimmed to the decoded data
+            assertEquals(data.length, part.getDataBuffer().capacity());
+        }
+    }
+
+    @SmallTest
+    public void testParseLargeEncodedPartsFromChannel() throws Exception {
+        byte[] data = imageData(LARGE_PART_SIZE);
+        byte[][] pdus = {
+            encodedPartReq(PduPart.P_BASE64,
+                    android.util.Base64.encode(data, android.util.Base64.DEFAULT)),
+            encodedPartReq(PduPart.P_QUOTED_PRINTABLE, encodeQuotedPrintable(data)),
+        };
+        for (byte[] pdu : pdus) {
+            // Decoded as they are written to a file
+            PduPart part = parseEncodedPart(pdu, true);
+            assertNull(part.getData());
+            File file = new File(part.getDataUri().getPath());
+            assertTrue(Arrays.equals(data, readFile(file)));
+            file.delete();
+        }
+    }
+
+    @SmallTest
+    public void testInvalidEncodedPart() throws Exception {
+        byte[] pdu = encodedPartReq(PduPart.P_QUOTED_PRINTABLE, "=ZZ".getBytes());
+        assertNull(new PduParser(pdu, true).parse());
+    }
+
+    /** TOKEN of RFC 2616 */
+    private static boolean isTokenReference(int ch) {
+        return (ch > 32) && (ch < 127) && ("()<>@,;:\\\"/[]?={}".indexOf(ch) < 0);
+    }
+
+    /** TEXT of RFC 2616, as octets */
+    private static boolean isTextReference(int ch) {
+        return ((ch >= 32) && (ch <= 255) && (ch != 127))
+                || (ch == '\t') || (ch == '\n') || (ch == '\r');
+    }
+
+    @SmallTest
+    public void testCharacterClasses() {
+        for (int ch = -1; ch <= 256; ch++) {
+            assertEquals("token " + ch, isTokenReference(ch), PduParser.isTokenCharacter(ch));
+            assertEquals("text " + ch, isTextReference(ch), PduParser.isText(ch));
+        }
+    }
+
+    private static ByteArrayInputStream strings(String... values) {
+        ByteArrayOutputStream out = new ByteArrayOutputStream();
+        for (String value : values) {
+            byte[] bytes = value.getBytes();
+            out.write(bytes, 0, bytes.length);
+            out.write(0);
+        }
+        return new ByteArrayInputStream(out.toByteArray());
+    }
+
+    @SmallTest
+    public void testGetWapString() {
+        char[] longText = new char[5000];
+        Arrays.fill(longText, 'x');
+        ByteArrayInputStream in = strings("multipart/related", "a b\u0001c", "",
+                new String(longText), "end");
+
+        // Separators are dropped from tokens, control characters from text
+        assertEquals("multipartrelated",
+                new String(PduParser.getWapString(in, PduParser.TYPE_TOKEN_STRING)));
+        assertEquals("a bc", new String(PduParser.getWapString(in, PduParser.TYPE_TEXT_STRING)));
+        assertNull(PduParser.getWapString(in, PduParser.TYPE_TEXT_STRING));
+        assertEquals(5000, PduParser.getWapString(in, PduParser.TYPE_TEXT_STRING).length);
+        assertEquals("end", new String(PduParser.getWapString(in, PduParser.TYPE_TEXT_STRING)));
+    }
+}
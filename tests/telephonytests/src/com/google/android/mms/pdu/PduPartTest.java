@@ -0,0 +1,172 @@
+/*
+ * Copyright (C) 2014 The Android Open Source Project
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *      http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+
+package com.google.android.mms.pdu;
+
+import android.test.suitebuilder.annotation.SmallTest;
+
+import junit.framework.TestCase;
+
+import java.io.ByteArrayOutputStream;
+import java.io.IOException;
+import java.nio.ByteBuffer;
+import java.nio.ReadOnlyBufferException;
+import java.util.Arrays;
+
+/**
+ * Test cases for the part data accessors of PduPart.
+ */
+public class PduPartTest extends TestCase {
+    private static final byte[] DATA = { 1, 2, 3, 4, 5, 6, 7, 8 };
+
+    @SmallTest
+    public void testByteArrayAccessorsCopy() {
+        byte[] data = DATA.clone();
+        PduPart part = new PduPart();
+        part.setData(data);
+        data[0] = 0;
+        byte[] result = part.getData();
+        result[1] = 0;
+
+        assertTrue(Arrays.equals(DATA, part.getData()));
+        assertEquals(DATA.length, part.getDataLength());
+    }
+
+    @SmallTest
+    public void testDataBufferIsShared() {
+        byte[] data = DATA.clone();
+        ByteBuffer source = ByteBuffer.wrap(data, 2, 4);
+        PduPart part = new PduPart();
+        part.setDataBuffer(source);
+        // Moving the source does not change the part
+        source.position(6);
+
+        assertEquals(4, part.getDataLength());
+        ByteBuffer view = part.getDataBuffer();
+        assertTrue(view.isReadOnly());
+        assertEquals(3, view.get(0));
+        data[2] = 42;
+        assertEquals(42, view.get(0));
+
+        // Views have their own position
+        view.get();
+        assertEquals(4, part.getDataBuffer().remaining());
+        try {
+            view.put((byte) 0);
+            fail();
+        } catch (ReadOnlyBufferException expected) {
+        }
+        assertTrue(Arrays.equals(new byte[] { 42, 4, 5, 6 }, part.getData()));
+    }
+
+    @SmallTest
+    public void testWriteDataTo() throws Exception {
+        ByteArrayOutputStream out = new ByteArrayOutputStream();
+        PduPart part = new PduPart();
+        assertEquals(0, part.writeDataTo(out));
+
+        part.setDataBuffer(ByteBuffer.wrap(DATA, 1, 3));
+        assertEquals(3, part.writeDataTo(out));
+        // Buffers without an accessible array
+        part.setDataBuffer(ByteBuffer.wrap(DATA, 5, 3).asReadOnlyBuffer());
+        assertEquals(3, part.writeDataTo(out));
+        assertEquals(3, part.writeDataTo(out));
+
+        assertTrue(Arrays.equals(new byte[] { 2, 3, 4, 6, 7, 8, 6, 7, 8 }, out.toByteArray()));
+    }
+
+    /** Counts the loads and fails them if data is null */
+    private static class CountingLoader implements PduPart.DataLoader {
+        private final byte[] mData;
+        long mLength = -1;
+        int mLoads;
+        int mLoaded;
+
+        CountingLoader(byte[] data) {
+            mData = data;
+        }
+
+        @Override
+        public ByteBuffer load(PduPart part) throws IOException {
+            mLoads++;
+            if (mData == null) {
+                throw new IOException("no data");
+            }
+            return ByteBuffer.wrap(mData);
+        }
+
+        @Override
+        public long getLength(PduPart part) {
+            return mLength;
+        }
+
+        @Override
+        public void onLoaded(PduPart part) {
+            assertTrue(part.isDataLoaded());
+            mLoaded++;
+        }
+    }
+
+    @SmallTest
+    public void testDataLoadedOnFirstAccess() throws Exception {
+        CountingLoader loader = new CountingLoader(DATA);
+        PduPart part = new PduPart();
+        part.setDataLoader(loader);
+        assertFalse(part.isDataLoaded());
+        assertEquals(0, loader.mLoads);
+
+        assertEquals(DATA.length, part.getDataLength());
+        assertTrue(part.isDataLoaded());
+        assertTrue(Arrays.equals(DATA, part.getData()));
+        assertEquals(DATA.length, part.writeDataTo(new ByteArrayOutputStream()));
+        assertEquals(1, loader.mLoads);
+        assertEquals(1, loader.mLoaded);
+    }
+
+    @SmallTest
+    public void testKnownDataLengthDoesNotLoad() {
+        CountingLoader loader = new CountingLoader(DATA);
+        loader.mLength = DATA.length;
+        PduPart part = new PduPart();
+        part.setDataLoader(loader);
+        assertEquals(DATA.length, part.getDataLength());
+        assertFalse(part.isDataLoaded());
+        assertEquals(0, loader.mLoads);
+    }
+
+    @SmallTest
+    public void testFailedLoadLeavesNoData() {
+        CountingLoader loader = new CountingLoader(null);
+        PduPart part = new PduPart();
+        part.setDataLoader(loader);
+        assertFalse(part.loadData());
+        assertTrue(part.isDataLoaded());
+        assertNull(part.getData());
+        assertNull(part.getDataBuffer());
+        assertEquals(1, loader.mLoads);
+        assertEquals(0, loader.mLoaded);
+    }
+
+    @SmallTest
+    public void testSetDataReplacesLoader() {
+        CountingLoader loader = new CountingLoader(new byte[] { 9 });
+        PduPart part = new PduPart();
+        part.setDataLoader(loader);
+        part.setData(DATA);
+        assertTrue(Arrays.equals(DATA, part.getData()));
+        assertEquals(0, loader.mLoads);
+    }
+}
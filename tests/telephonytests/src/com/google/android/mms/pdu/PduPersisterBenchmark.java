@@ -0,0 +1,89 @@
+/*
+ * Copyright (C) 2014 The Android Open Source Project
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *      http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+
+package com.google.android.mms.pdu;
+
+import static com.google.android.mms.pdu.PduPersisterTest.sendReq;
+
+import android.net.Uri;
+import android.provider.Telephony.Mms;
+import android.test.AndroidTestCase;
+import android.test.suitebuilder.annotation.LargeTest;
+import android.test.suitebuilder.annotation.Suppress;
+import android.util.Log;
+
+import java.util.ArrayList;
+
+/**
+ * Benchmark for PduPersister against the mms provider, suppressed from the
+ * test suites and run by hand.
+ */
+public class PduPersisterBenchmark extends AndroidTestCase {
+    private static final String TAG = "PduPersisterBenchmark";
+
+    private PduPersister mPersister;
+    private final ArrayList<Uri> mPersisted = new ArrayList<Uri>();
+
+    @Override
+    protected void setUp() throws Exception {
+        super.setUp();
+        mPersister = PduPersister.getPduPersister(getContext());
+    }
+
+    @Override
+    protected void tearDown() throws Exception {
+        for (Uri uri : mPersisted) {
+            getContext().getContentResolver().delete(uri, null, null);
+        }
+        mPersister.setBatchPersist(false);
+        super.tearDown();
+    }
+
+    private void persist(SendReq req, boolean batched) throws Exception {
+        mPersister.setBatchPersist(batched);
+        Uri uri = mPersister.persist(req, Mms.Draft.CONTENT_URI, false, false, null);
+        assertNotNull(uri);
+        mPersisted.add(uri);
+    }
+
+    /**
+     * Persists a group message with 20 recipients and 5 parts, one insert
+     * per row and batched.
+     */
+    @LargeTest
+    @Suppress
+    public void testBenchmarkPersistGroupMessage() throws Exception {
+        final int warmup = 2;
+        final int iterations = 10;
+
+        long[] ns = new long[2];
+        for (int i = 0; i < warmup + iterations; i++) {
+            for (int mode = 0; mode < 2; mode++) {
+                SendReq req = sendReq(20, 3);
+                long start = System.nanoTime();
+                persist(req, mode == 1);
+                long elapsed = System.nanoTime() - start;
+                if (i >= warmup) {
+                    ns[mode] += elapsed;
+                }
+            }
+        }
+
+        Log.d(TAG, "per 20 recipient, 5 part message: unbatched="
+                + (ns[0] / iterations / 1000) + "us batched="
+                + (ns[1] / iterations / 1000) + "us");
+    }
+}
@@ -0,0 +1,201 @@
+/*
+ * Copyright (C) 2014 The Android Open Source Project
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *      http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+
+package com.google.android.mms.pdu;
+
+import android.net.Uri;
+import android.provider.Telephony.Mms;
+import android.test.AndroidTestCase;
+import android.test.suitebuilder.annotation.LargeTest;
+
+import com.google.android.mms.ContentType;
+
+import java.io.File;
+import java.io.FileOutputStream;
+import java.util.ArrayList;
+import java.util.Arrays;
+
+/**
+ * Tests for PduPersister against the mms provider.
+ */
+public class PduPersisterTest extends AndroidTestCase {
+    private static final int IMAGE_SIZE = 16 * 1024;
+
+    private PduPersister mPersister;
+    private final ArrayList<Uri> mPersisted = new ArrayList<Uri>();
+
+    @Override
+    protected void setUp() throws Exception {
+        super.setUp();
+        mPersister = PduPersister.getPduPersister(getContext());
+    }
+
+    @Override
+    protected void tearDown() throws Exception {
+        for (Uri uri : mPersisted) {
+            getContext().getContentResolver().delete(uri, null, null);
+        }
+        mPersister.setBatchPersist(false);
+        super.tearDown();
+    }
+
+    private static byte[] imageData(int size, int seed) {
+        byte[] data = new byte[size];
+        for (int i = 0; i < size; i++) {
+            data[i] = (byte) (i * 31 + seed);
+        }
+        return data;
+    }
+
+    private static PduPart part(String contentType, String name, byte[] data) {
+        PduPart part = new PduPart();
+        part.setContentType(contentType.getBytes());
+        part.setContentLocation(name.getBytes());
+        part.setContentId(name.getBytes());
+        part.setData(data);
+        return part;
+    }
+
+    /** A send-req to recipientCount recipients with a SMIL, a text and imageCount images */
+    static SendReq sendReq(int recipientCount, int imageCount) {
+        SendReq req = new SendReq();
+        req.setFrom(new EncodedStringValue("+16505550199"));
+        for (int i = 0; i < recipientCount; i++) {
+            req.addTo(new EncodedStringValue("+1650555" + (1000 + i)));
+        }
+        req.setSubject(new EncodedStringValue("Pictures from the trip"));
+        req.setContentType(ContentType.MULTIPART_RELATED.getBytes());
+
+        PduBody body = new PduBody();
+        body.addPart(part(ContentType.APP_SMIL, "smil.xml", "<smil/>".getBytes()));
+        body.addPart(part(ContentType.TEXT_PLAIN, "text.txt", "Hello".getBytes()));
+        for (int i = 0; i < imageCount; i++) {
+            body.addPart(part(ContentType.IMAGE_JPEG, "image" + i + ".jpg",
+                    imageData(IMAGE_SIZE, i)));
+        }
+        req.setBody(body);
+        return req;
+    }
+
+    private Uri persist(SendReq req, boolean batched) throws Exception {
+        mPersister.setBatchPersist(batched);
+        Uri uri = mPersister.persist(req, Mms.Draft.CONTENT_URI, false, false, null);
+        assertNotNull(uri);
+        mPersisted.add(uri);
+        return uri;
+    }
+
+    private void assertPersisted(Uri uri, int recipientCount, int imageCount) throws Exception {
+        SendReq req = (SendReq) mPersister.load(uri);
+        assertEquals("Pictures from the trip", req.getSubject().getString());
+        assertEquals("+16505550199", req.getFrom().getString());
+        assertEquals(recipientCount, req.getTo().length);
+
+        PduBody body = req.getBody();
+        assertEquals(imageCount + 2, body.getPartsNum());
+        assertEquals("Hello", new String(body.getPartByContentLocation("text.txt").getData()));
+        for (int i = 0; i < imageCount; i++) {
+            PduPart image = body.getPartByContentLocation("image" + i + ".jpg");
+            assertTrue(Arrays.equals(imageData(IMAGE_SIZE, i), image.getData()));
+        }
+    }
+
+    @LargeTest
+    public void testBatchedPersist() throws Exception {
+        assertPersisted(persist(sendReq(3, 2), true), 3, 2);
+    }
+
+    @LargeTest
+    public void testBatchedPersistToExistingUri() throws Exception {
+        Uri uri = persist(sendReq(1, 0), false);
+        mPersister.setBatchPersist(true);
+        mPersister.persist(sendReq(3, 2), uri, false, false, null);
+        // The existing addresses and parts stay, the new ones are added
+        SendReq req = (SendReq) mPersister.load(uri);
+        assertEquals(4, req.getTo().length);
+        assertEquals(6, req.getBody().getPartsNum());
+    }
+
+    @LargeTest
+    public void testUnbatchedPersist() throws Exception {
+        assertPersisted(persist(sendReq(3, 2), false), 3, 2);
+    }
+
+    /** A send-req with cardCount vcards, which are stored in files */
+    private static SendReq vcardReq(int cardCount) {
+        SendReq req = sendReq(1, 0);
+        for (int i = 0; i < cardCount; i++) {
+            req.getBody().addPart(part(ContentType.TEXT_VCARD, "card" + i + ".vcf",
+                    ("BEGIN:VCARD\nFN:Card " + i + "\nEND:VCARD\n").getBytes()));
+        }
+        return req;
+    }
+
+    @LargeTest
+    public void testLazyLoad() throws Exception {
+        Uri uri = persist(vcardReq(1), true);
+        SendReq req = (SendReq) mPersister.load(uri, PduPersister.LOAD_PARTS_LAZILY);
+        PduPart card = req.getBody().getPartByContentLocation("card0.vcf");
+        assertFalse(card.isDataLoaded());
+
+        // A full load of the cached message reads what is left
+        req = (SendReq) mPersister.load(uri);
+        card = req.getBody().getPartByContentLocation("card0.vcf");
+        assertTrue(card.isDataLoaded());
+        assertEquals("BEGIN:VCARD\nFN:Card 0\nEND:VCARD\n", new String(card.getData()));
+    }
+
+    @LargeTest
+    public void testParallelLoad() throws Exception {
+        Uri uri = persist(vcardReq(4), true);
+        SendReq req = (SendReq) mPersister.load(uri, PduPersister.LOAD_PARTS_IN_PARALLEL);
+        for (int i = 0; i < 4; i++) {
+            PduPart card = req.getBody().getPartByContentLocation("card" + i + ".vcf");
+            assertTrue(card.isDataLoaded());
+            assertEquals("BEGIN:VCARD\nFN:Card " + i + "\nEND:VCARD\n",
+                    new String(card.getData()));
+        }
+    }
+
+    @LargeTest
+    public void testPersistFromFile() throws Exception {
+        SendReq req = sendReq(2, 0);
+        byte[] image = imageData(3 * PduParser.STREAMED_PART_IN_MEMORY_MAX, 7);
+        req.getBody().addPart(part(ContentType.IMAGE_JPEG, "large.jpg", image));
+        File cacheDir = getContext().getCacheDir();
+        int cachedFiles = cacheDir.list().length;
+        File pduFile = File.createTempFile("PduPersisterTest", null, cacheDir);
+        try {
+            FileOutputStream out = new FileOutputStream(pduFile);
+            try {
+                out.write(new PduComposer(getContext(), req).make());
+            } finally {
+                out.close();
+            }
+            Uri uri = mPersister.persist(pduFile, Mms.Draft.CONTENT_URI, true, false, false);
+            assertNotNull(uri);
+            mPersisted.add(uri);
+
+            PduBody body = ((SendReq) mPersister.load(uri)).getBody();
+            assertEquals(3, body.getPartsNum());
+            assertTrue(Arrays.equals(image, body.getPartByContentLocation("large.jpg").getData()));
+        } finally {
+            pduFile.delete();
+        }
+        // The part body written while parsing is gone
+        assertEquals(cachedFiles, cacheDir.list().length);
+    }
+}
@@ -0,0 +1,115 @@
+/*
+ * Copyright (C) 2014 The Android Open Source Project
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *      http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+
+package com.google.android.mms.pdu;
+
+import android.test.suitebuilder.annotation.SmallTest;
+
+import junit.framework.TestCase;
+
+import java.io.ByteArrayInputStream;
+import java.io.ByteArrayOutputStream;
+import java.io.IOException;
+import java.io.InputStream;
+import java.util.Arrays;
+import java.util.Random;
+
+/**
+ * Test cases for QuotedPrintableInputStream.
+ */
+public class QuotedPrintableInputStreamTest extends TestCase {
+    /** Mostly text, with some octets that have to be escaped */
+    static byte[] textData(int size, long seed) {
+        Random random = new Random(seed);
+        byte[] data = new byte[size];
+        for (int i = 0; i < size; i++) {
+            data[i] = (random.nextInt(10) == 0) ? (byte) random.nextInt(256)
+                    : (byte) (' ' + random.nextInt(95));
+        }
+        return data;
+    }
+
+    /** Quoted-printable with a soft line break every 72 characters */
+    static byte[] encode(byte[] data) {
+        ByteArrayOutputStream out = new ByteArrayOutputStream();
+        int line = 0;
+        for (byte b : data) {
+            int octet = b & 0xFF;
+            if ((octet < ' ') || (octet > '~') || (octet == '=')) {
+                out.write('=');
+                out.write(Character.toUpperCase(Character.forDigit(octet >> 4, 16)));
+                out.write(Character.toUpperCase(Character.forDigit(octet & 0xF, 16)));
+                line += 3;
+            } else {
+                out.write(octet);
+                line++;
+            }
+            if (line >= 72) {
+                out.write('=');
+                out.write('\r');
+                out.write('\n');
+                line = 0;
+            }
+        }
+        return out.toByteArray();
+    }
+
+    private static byte[] decode(byte[] encoded, int chunkSize) throws IOException {
+        InputStream in = new QuotedPrintableInputStream(new ByteArrayInputStream(encoded));
+        ByteArrayOutputStream out = new ByteArrayOutputStream();
+        byte[] buffer = new byte[chunkSize];
+        int count;
+        while ((count = in.read(buffer, 0, chunkSize)) >= 0) {
+            out.write(buffer, 0, count);
+        }
+        return out.toByteArray();
+    }
+
+    @SmallTest
+    public void testMatchesDecodeQuotedPrintable() throws Exception {
+        int[] sizes = { 0, 1, 2, 3, 71, 72, 73, 1000, 10000 };
+        int[] chunkSizes = { 1, 2, 3, 7, 4096 };
+        for (int size : sizes) {
+            byte[] data = textData(size, size);
+            byte[] encoded = encode(data);
+            for (int chunkSize : chunkSizes) {
+                byte[] decoded = decode(encoded, chunkSize);
+                assertTrue("size " + size + " chunk " + chunkSize, Arrays.equals(data, decoded));
+                assertTrue(Arrays.equals(QuotedPrintable.decodeQuotedPrintable(encoded), decoded));
+            }
+        }
+    }
+
+    @SmallTest
+    public void testHardLineBreaksAreKept() throws Exception {
+        assertEquals("a\r\nb=c", new String(decode("a\r\nb=3Dc".getBytes(), 16)));
+        assertEquals("ab", new String(decode("a=\r\nb".getBytes(), 16)));
+    }
+
+    @SmallTest
+    public void testInvalidEscapes() throws Exception {
+        String[] invalid = { "abc=", "abc=4", "abc=\r", "abc=ZZ", "abc=\n\n" };
+        for (String encoded : invalid) {
+            assertNull(QuotedPrintable.decodeQuotedPrintable(encoded.getBytes()));
+            try {
+                decode(encoded.getBytes(), 16);
+                fail(encoded);
+            } catch (IOException e) {
+                // Expected, where decodeQuotedPrintable() returns null
+            }
+        }
+    }
+}
@@ -0,0 +1,172 @@
+/*
+ * Copyright (C) 2014 The Android Open Source Project
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *      http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+
+package com.google.android.mms.util;
+
+import android.test.suitebuilder.annotation.SmallTest;
+
+import junit.framework.TestCase;
+
+import java.util.ArrayList;
+
+/**
+ * Test cases for the eviction of AbstractCache.
+ */
+public class AbstractCacheTest extends TestCase {
+    /** Caches strings weighing their length */
+    private static class TestCache extends AbstractCache<Integer, String> {
+        final ArrayList<Integer> mEvicted = new ArrayList<Integer>();
+        final ArrayList<String> mReplaced = new ArrayList<String>();
+
+        TestCache(int maxItems, long maxWeight, int policy) {
+            super(maxItems, maxWeight, policy);
+        }
+
+        @Override
+        protected long weigh(Integer key, String value) {
+            return value.length();
+        }
+
+        @Override
+        protected void onEvicted(Integer key, String value) {
+            mEvicted.add(key);
+        }
+
+        @Override
+        protected void onReplaced(Integer key, String value) {
+            mReplaced.add(value);
+        }
+    }
+
+    @SmallTest
+    public void testLruEvictsLeastRecentlyUsed() {
+        TestCache cache = new TestCache(3, 0, AbstractCache.EVICT_LRU);
+        cache.put(1, "a");
+        cache.put(2, "b");
+        cache.put(3, "c");
+        assertEquals("a", cache.get(1));
+
+        assertTrue(cache.put(4, "d"));
+        assertEquals(3, cache.size());
+        assertNull(cache.get(2));
+        assertEquals("[2]", cache.mEvicted.toString());
+        assertEquals(1, cache.getEvictionCount());
+        assertEquals(1, cache.getHitCount());
+        assertEquals(1, cache.getMissCount());
+    }
+
+    @SmallTest
+    public void testLfuEvictsLeastHit() {
+        TestCache cache = new TestCache(3, 0, AbstractCache.EVICT_LFU);
+        cache.put(1, "a");
+        cache.put(2, "b");
+        cache.put(3, "c");
+        cache.get(1);
+        cache.get(1);
+        cache.get(2);
+        cache.get(3);
+
+        // 1 is the least recently used but hit the most
+        cache.put(4, "d");
+        assertEquals("[2]", cache.mEvicted.toString());
+        // 4 was never hit, the new entry itself is never evicted
+        cache.put(5, "e");
+        assertEquals("[2, 4]", cache.mEvicted.toString());
+        assertEquals("e", cache.get(5));
+    }
+
+    @SmallTest
+    public void testWeightLimit() {
+        TestCache cache = new TestCache(100, 10, AbstractCache.EVICT_LRU);
+        cache.put(1, "aaaa");
+        cache.put(2, "bbbb");
+        assertEquals(8, cache.getWeight());
+
+        cache.put(3, "cccc");
+        assertEquals("[1]", cache.mEvicted.toString());
+        assertEquals(8, cache.getWeight());
+
+        // Replacing an entry replaces its weight
+        cache.put(2, "bb");
+        assertEquals(6, cache.getWeight());
+        assertEquals("[bbbb]", cache.mReplaced.toString());
+
+        // Too heavy to be cached at all
+        assertFalse(cache.put(4, "ddddddddddd"));
+        assertEquals(2, cache.size());
+
+        // A failed put keeps the old entry
+        assertFalse(cache.put(2, "bbbbbbbbbbb"));
+        assertEquals("bb", cache.get(2));
+        assertEquals(6, cache.getWeight());
+        assertEquals("[bbbb]", cache.mReplaced.toString());
+
+        cache.purge(2);
+        assertEquals(4, cache.getWeight());
+        cache.purgeAll();
+        assertEquals(0, cache.getWeight());
+    }
+
+    /** Caches string builders weighing their length when put or reweighed */
+    private static class BuilderCache extends AbstractCache<Integer, StringBuilder> {
+        final ArrayList<Integer> mEvicted = new ArrayList<Integer>();
+
+        BuilderCache(long maxWeight) {
+            super(100, maxWeight, AbstractCache.EVICT_LRU);
+        }
+
+        @Override
+        protected long weigh(Integer key, StringBuilder value) {
+            return value.length();
+        }
+
+        @Override
+        protected void onEvicted(Integer key, StringBuilder value) {
+            mEvicted.add(key);
+        }
+    }
+
+    @SmallTest
+    public void testReweigh() {
+        BuilderCache cache = new BuilderCache(10);
+        StringBuilder a = new StringBuilder("a");
+        StringBuilder b = new StringBuilder("b");
+        cache.put(1, a);
+        cache.put(2, b);
+        assertEquals(2, cache.getWeight());
+
+        // Growing within the limit
+        b.append("bbbb");
+        cache.reweigh(2);
+        assertEquals(6, cache.getWeight());
+
+        // Growing over the limit evicts others first
+        b.append("bbbbb");
+        cache.reweigh(2);
+        assertEquals(10, cache.getWeight());
+        assertEquals("[1]", cache.mEvicted.toString());
+
+        // Too heavy on its own
+        b.append("b");
+        cache.reweigh(2);
+        assertEquals(0, cache.getWeight());
+        assertEquals(0, cache.size());
+        assertEquals("[1, 2]", cache.mEvicted.toString());
+
+        // Unknown keys are ignored
+        cache.reweigh(3);
+    }
+}
@@ -0,0 +1,146 @@
+/*
+ * Copyright (C) 2014 The Android Open Source Project
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *      http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+
+package com.google.android.mms.util;
+
+import android.net.Uri;
+import android.provider.Telephony.Mms;
+import android.test.suitebuilder.annotation.LargeTest;
+import android.test.suitebuilder.annotation.Suppress;
+import android.util.Log;
+
+import com.google.android.mms.pdu.GenericPdu;
+
+import junit.framework.TestCase;
+
+import java.util.concurrent.CountDownLatch;
+
+/**
+ * Contention benchmark for PduCache, suppressed from the test suites and
+ * run by hand.
+ */
+public class PduCacheBenchmark extends TestCase {
+    private static final String TAG = "PduCacheBenchmark";
+
+    private PduCache mCache;
+
+    @Override
+    protected void setUp() throws Exception {
+        super.setUp();
+        mCache = PduCache.getInstance();
+        mCache.purgeAll();
+    }
+
+    @Override
+    protected void tearDown() throws Exception {
+        mCache.purgeAll();
+        super.tearDown();
+    }
+
+    private static Uri messageUri(int id) {
+        return Uri.parse("content://mms/" + id);
+    }
+
+    private static PduCacheEntry entry(int msgBox, long threadId) {
+        return new PduCacheEntry(new GenericPdu(), msgBox, threadId);
+    }
+
+    private static class Reader extends Thread {
+        private final PduCache mCache;
+        private final Object mLock;
+        private final CountDownLatch mStart;
+        private final int mOperations;
+        private final int mSeed;
+
+        Reader(PduCache cache, Object lock, CountDownLatch start, int operations, int seed) {
+            mCache = cache;
+            mLock = lock;
+            mStart = start;
+            mOperations = operations;
+            mSeed = seed;
+        }
+
+        @Override
+        public void run() {
+            try {
+                mStart.await();
+            } catch (InterruptedException e) {
+                return;
+            }
+            int id = mSeed;
+            for (int i = 0; i < mOperations; i++) {
+                id = (id * 1103515245 + 12345) & 0x7fffffff;
+                Uri uri = messageUri(id % 200);
+                if (mLock == null) {
+                    read(uri, i);
+                } else {
+                    synchronized (mLock) {
+                        read(uri, i);
+                    }
+                }
+            }
+        }
+
+        private void read(Uri uri, int i) {
+            // One in a hundred operations reloads the message
+            if (i % 100 == 0) {
+                mCache.put(uri, entry(Mms.MESSAGE_BOX_INBOX, 1));
+            } else if (!mCache.isUpdating(uri)) {
+                mCache.get(uri);
+            }
+        }
+    }
+
+    private long runReaders(Object lock, int threads, int operations) throws Exception {
+        CountDownLatch start = new CountDownLatch(1);
+        Reader[] readers = new Reader[threads];
+        for (int i = 0; i < threads; i++) {
+            readers[i] = new Reader(mCache, lock, start, operations, i);
+            readers[i].start();
+        }
+        long begin = System.nanoTime();
+        start.countDown();
+        for (Reader reader : readers) {
+            reader.join();
+        }
+        return System.nanoTime() - begin;
+    }
+
+    /**
+     * Four threads reading cached messages, with one put per hundred
+     * operations, against the same with every operation holding one lock,
+     * as when all PduCache methods were synchronized.
+     */
+    @LargeTest
+    @Suppress
+    public void testBenchmarkContention() throws Exception {
+        final int threads = 4;
+        final int operations = 200000;
+        for (int i = 0; i < 200; i++) {
+            mCache.put(messageUri(i), entry(Mms.MESSAGE_BOX_INBOX, 1));
+        }
+
+        runReaders(null, threads, operations / 10);
+        runReaders(mCache, threads, operations / 10);
+
+        long lockedNs = runReaders(mCache, threads, operations);
+        long concurrentNs = runReaders(null, threads, operations);
+
+        long total = (long) threads * operations;
+        Log.d(TAG, threads + " threads: global lock=" + (lockedNs / total)
+                + "ns/op concurrent=" + (concurrentNs / total) + "ns/op");
+    }
+}
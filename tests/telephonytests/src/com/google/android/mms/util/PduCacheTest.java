@@ -0,0 +1,122 @@
+/*
+ * Copyright (C) 2014 The Android Open Source Project
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *      http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+
+package com.google.android.mms.util;
+
+import android.net.Uri;
+import android.provider.Telephony.Mms;
+import android.test.suitebuilder.annotation.SmallTest;
+
+import com.google.android.mms.pdu.GenericPdu;
+
+import junit.framework.TestCase;
+
+import java.util.concurrent.CountDownLatch;
+import java.util.concurrent.TimeUnit;
+
+/**
+ * Test cases for PduCache.
+ */
+public class PduCacheTest extends TestCase {
+    private PduCache mCache;
+
+    @Override
+    protected void setUp() throws Exception {
+        super.setUp();
+        mCache = PduCache.getInstance();
+        mCache.purgeAll();
+    }
+
+    @Override
+    protected void tearDown() throws Exception {
+        mCache.purgeAll();
+        super.tearDown();
+    }
+
+    private static Uri messageUri(int id) {
+        return Uri.parse("content://mms/" + id);
+    }
+
+    private static PduCacheEntry entry(int msgBox, long threadId) {
+        return new PduCacheEntry(new GenericPdu(), msgBox, threadId);
+    }
+
+    @SmallTest
+    public void testPurgeByIndexes() {
+        mCache.put(messageUri(1), entry(Mms.MESSAGE_BOX_INBOX, 1));
+        mCache.put(messageUri(2), entry(Mms.MESSAGE_BOX_INBOX, 2));
+        mCache.put(messageUri(3), entry(Mms.MESSAGE_BOX_SENT, 2));
+
+        mCache.purge(Uri.parse("content://mms-sms/conversations/2"));
+        assertNotNull(mCache.get(messageUri(1)));
+        assertNull(mCache.get(messageUri(2)));
+        assertNull(mCache.get(messageUri(3)));
+
+        // Moving a message to another box replaces its entry
+        mCache.put(messageUri(1), entry(Mms.MESSAGE_BOX_SENT, 1));
+        mCache.purge(Uri.parse("content://mms/inbox"));
+        assertNotNull(mCache.get(messageUri(1)));
+        mCache.purge(Uri.parse("content://mms/sent"));
+        assertNull(mCache.get(messageUri(1)));
+    }
+
+    @SmallTest
+    public void testEvictionUpdatesIndexes() {
+        for (int i = 0; i <= AbstractCache.MAX_CACHED_ITEMS; i++) {
+            mCache.put(messageUri(i), entry(Mms.MESSAGE_BOX_INBOX, i % 2));
+        }
+        assertEquals(AbstractCache.MAX_CACHED_ITEMS, mCache.size());
+        assertEquals(1, mCache.getEvictionCount());
+        assertNull(mCache.get(messageUri(0)));
+
+        mCache.purge(Uri.parse("content://mms-sms/conversations/0"));
+        assertEquals(AbstractCache.MAX_CACHED_ITEMS / 2, mCache.size());
+        mCache.purge(Uri.parse("content://mms/inbox"));
+        assertEquals(0, mCache.size());
+    }
+
+    @SmallTest
+    public void testBeginUpdateWaitsForUpdate() throws Exception {
+        final Uri uri = messageUri(1);
+        assertFalse(mCache.beginUpdate(uri));
+        assertTrue(mCache.isUpdating(uri));
+
+        final CountDownLatch started = new CountDownLatch(1);
+        final CountDownLatch done = new CountDownLatch(1);
+        final boolean[] waited = new boolean[1];
+        Thread other = new Thread() {
+            @Override
+            public void run() {
+                started.countDown();
+                waited[0] = mCache.beginUpdate(uri);
+                done.countDown();
+            }
+        };
+        other.start();
+        started.await();
+        // Other Uris are not blocked
+        assertFalse(mCache.waitForUpdate(messageUri(2)));
+        assertFalse(done.await(100, TimeUnit.MILLISECONDS));
+
+        // Putting the loaded entry ends the update
+        mCache.put(uri, entry(Mms.MESSAGE_BOX_INBOX, 1));
+        assertTrue(done.await(5, TimeUnit.SECONDS));
+        assertTrue(waited[0]);
+        assertTrue(mCache.isUpdating(uri));
+        mCache.setUpdating(uri, false);
+        assertFalse(mCache.isUpdating(uri));
+    }
+}